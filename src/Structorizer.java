@@ -75,6 +75,10 @@
  *                                      group export: Without specified entry points all contained diagrams
  *                                      will be qualified for export. Remaining difference: We still first
  *                                      check for contained main diagrams as potential tree roots.
+ *      Kay Gürtzig     2020-04-25      KGU#863: Batch image export (-i png|svg|pdf|emf) in headless mode
+ *      Kay Gürtzig     2020-04-28      KGU#866: Arrangement archives for batch export are no longer extracted
+ *      Kay Gürtzig     2020-05-07      KGU#863: Batch image export exits with code 4 if any export failed
+ *      Kay Gürtzig     2020-05-07      KGU#863: Batch image export rejects colliding output files, exact -r switch
  *
  ******************************************************************************************************
  *
@@ -106,6 +110,11 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Scanner;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -127,6 +136,7 @@ import lu.fisch.structorizer.gui.Mainform;
 import lu.fisch.structorizer.helpers.GENPlugin;
 import lu.fisch.structorizer.io.ArrFilter;
 import lu.fisch.structorizer.io.ArrZipFilter;
+import lu.fisch.structorizer.io.DiagramImageWriter;
 import lu.fisch.structorizer.io.Ini;
 import lu.fisch.structorizer.io.StructogramFilter;
 import lu.fisch.structorizer.parsers.CodeParser;
@@ -148,6 +158,9 @@ public class Structorizer
 		Vector<String> fileNames = new Vector<String>();
 		String generator = null;
 		String parser = null;
+		// START KGU#863 2020-04-25: Batch image export
+		String imageFormats = null;
+		// END KGU#863 2020-04-25
 		StringList switches = new StringList();
 		//String outFileName = null;
 		//String charSet = "UTF-8";
@@ -198,6 +211,26 @@ public class Structorizer
 				openFound = true;
 			}
 			// END KGU#722 2019-08-07
+			// START KGU#863 2020-04-25: Batch image export
+			else if (i == 0 && args[i].equals("-i") && args.length > 1)
+			{
+				imageFormats = args[++i];
+				// Must be set before any AWT class gets initialised
+				System.setProperty("java.awt.headless", "true");
+			}
+			else if (args[i].equals("-j") && imageFormats != null && i+1 < args.length)
+			{
+				// Number of worker threads
+				options.put("threads", args[++i]);
+			}
+			// START KGU#863 2020-05-07: Must not be confused with other switches containing an 'r'
+			else if (args[i].equals("-r") && imageFormats != null)
+			{
+				// Re-use the layout among the formats
+				options.put("reuseLayout", "true");
+			}
+			// END KGU#863 2020-05-07
+			// END KGU#863 2020-04-25
 			// START KGU#538 2018-07-01: Bugfix #554 - was nonsense and had to be replaced 
 			// Legacy support - parsers will now be derived from the file extensions 
 			//else if (i > 0 && (parser != null) && (args[i].equalsIgnoreCase("pas") || args[i].equalsIgnoreCase("pascal"))
@@ -209,7 +242,10 @@ public class Structorizer
 			{
 				// Output file name
 				// START KGU#722 2019-08-07: Enh. #741
-				if (openFound || generator == null && parser == null) {
+				// START KGU#863 2020-04-25: For image export it's the output directory
+				//if (openFound || generator == null && parser == null) {
+				if (openFound || generator == null && parser == null && imageFormats == null) {
+				// END KGU#863 2020-04-25
 					// Mark this as an illegal option
 					switches.add(args[i]);
 				}
@@ -315,9 +351,12 @@ public class Structorizer
 		}
 		// START KGU#722 2019-08-06: Enh. #741
 		if (settings != null) {
-			if (generator != null || parser != null) {
+			// START KGU#863 2020-04-25: Batch image export
+			//if (generator != null || parser != null) {
+			if (generator != null || parser != null || imageFormats != null) {
+			// END KGU#863 2020-04-25
 				try {
-					Ini.getInstance().redirect(settings.getAbsolutePath(), generator != null || parser != null);
+					Ini.getInstance().redirect(settings.getAbsolutePath(), generator != null || parser != null || imageFormats != null);
 				} catch (IOException ex) {
 					System.err.println("*** Failing to redirect settings file: " + ex.getMessage());
 					Logger.getLogger(Structorizer.class.getName()).log(Level.WARNING, "Option -s " + settings.getPath(), ex);
@@ -344,6 +383,13 @@ public class Structorizer
 			// END KGU#354 2017-04-27
 			return;
 		}
+		// START KGU#863 2020-04-25: Batch image export
+		else if (imageFormats != null)
+		{
+			Structorizer.exportImages(imageFormats, fileNames, options, switches.concatenate());
+			return;
+		}
+		// END KGU#863 2020-04-25
 		// END KGU#187 2016-04-28
 		
 		// START KGU#521 2018-06-12: Workaround for #536 (corrupted rendering on certain machines) 
@@ -553,6 +599,9 @@ public class Structorizer
 		"Structorizer [-s SETTINGSFILE] [-open] [NSDFILE|ARRFILE|ARRZFILE]...",
 		"Structorizer -x GENERATOR [-a] [-b] [-c] [-f] [-l] [-t] [-e CHARSET] [-s SETTINGSFILE] [-] [-o OUTFILE] (NSDFILE|ARRSPEC|ARRZSPEC)...",
 		"Structorizer -p [PARSER] [-f] [-z] [-v [LOGPATH]] [-l MAXLINELEN] [-e CHARSET] [-s SETTINGSFILE] [-o OUTFILE] SOURCEFILE...",
+		// START KGU#863 2020-04-25: Batch image export
+		"Structorizer -i FORMAT[,FORMAT]... [-r] [-j THREADS] [-s SETTINGSFILE] [-o OUTDIR] NSDFILE...",
+		// END KGU#863 2020-04-25
 		"Structorizer -h",
 		"(See " + Element.E_HELP_PAGE + "?menu=96 or " + Element.E_HELP_PAGE + "?menu=136 for details.)"
 	};
@@ -725,6 +774,168 @@ public class Structorizer
 	}
 	// END KGU#187 2016-04-28
 
+	// START KGU#863 2020-04-25: Batch image export
+	/*****************************************
+	 * batch image export method (headless)
+	 * @param _formats - comma-separated list of image formats (see {@link DiagramImageWriter#FORMATS})
+	 * @param _nsdNames - vector of the diagram file names
+	 * @param _options - map of non-binary command line options ("outFileName" is the output directory here,
+	 * "reuseLayout" stands for switch -r)
+	 * @param _switches - set of switches (on / off)
+	 *****************************************/
+	public static void exportImages(String _formats, Vector<String> _nsdNames, HashMap<String, String> _options, String _switches)
+	{
+		final StringList formats = StringList.explode(_formats.toLowerCase(), ",");
+		for (int i = 0; i < formats.count(); i++) {
+			if (!DiagramImageWriter.isSupportedFormat(formats.get(i).trim())) {
+				System.err.println("*** Unknown image format \"" + formats.get(i) + "\"");
+				System.err.println("Usage: " + synopsis[3] + "\nwith FORMAT = "
+						+ new StringList(DiagramImageWriter.FORMATS).concatenate(" | "));
+				System.exit(1);
+			}
+			formats.set(i, formats.get(i).trim());
+		}
+		if (_nsdNames.isEmpty()) {
+			System.err.println("*** No NSD files for image export.");
+			System.exit(2);
+		}
+		File outDir = null;
+		if (_options.containsKey("outFileName")) {
+			outDir = new File(_options.get("outFileName"));
+			if (!outDir.isDirectory() && !outDir.mkdirs()) {
+				System.err.println("*** Output directory " + outDir.getAbsolutePath() + " cannot be created.");
+				System.exit(2);
+			}
+		}
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		if (_options.containsKey("threads")) {
+			try {
+				nThreads = Math.max(1, Integer.parseInt(_options.get("threads")));
+			}
+			catch (NumberFormatException ex) {
+				System.err.println("*** Illegal thread number \"" + _options.get("threads") + "\" ignored.");
+			}
+		}
+		// Re-use the element geometry among the formats of a diagram?
+		// START KGU#863 2020-05-07: The switches are concatenated, so look for the exact option
+		//final boolean reuseLayout = _switches.indexOf('r') >= 0;
+		final boolean reuseLayout = _options.containsKey("reuseLayout");
+		// END KGU#863 2020-05-07
+		loadDrawingSettings();
+
+		// START KGU#863 2020-05-07: Concurrent exports must not write to the same files
+		//final File targetDir = outDir;
+		// Output files (path without extension) by input file name, in order of input
+		LinkedHashMap<String, File> targets = new LinkedHashMap<String, File>();
+		HashMap<File, String> targetSources = new HashMap<File, String>();
+		HashMap<File, String> inputFiles = new HashMap<File, String>();
+		StringList collisions = new StringList();
+		for (String fName: _nsdNames) {
+			File f = new File(fName).getAbsoluteFile();
+			if (inputFiles.put(f.toPath().normalize().toFile(), fName) != null) {
+				// The same file given twice is exported once
+				continue;
+			}
+			String baseName = f.getName();
+			if (StructogramFilter.isNSD(baseName)) {
+				baseName = baseName.substring(0, baseName.length() - ".nsd".length());
+			}
+			File target = new File(outDir != null ? outDir.getAbsoluteFile() : f.getParentFile(), baseName);
+			target = target.toPath().normalize().toFile();
+			String other = targetSources.put(target, fName);
+			if (other != null) {
+				collisions.add("*** " + other + " and " + fName + " would both be exported to " + target.getPath() + ".*");
+			}
+			targets.put(fName, target);
+		}
+		if (!collisions.isEmpty()) {
+			System.err.println(collisions.getText());
+			System.err.println("*** Image export aborted, no file written.");
+			System.exit(2);
+		}
+		// END KGU#863 2020-05-07
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, targets.size()));
+		List<Future<Void>> results = new LinkedList<Future<Void>>();
+		// START KGU#863 2020-05-07
+		//for (final String fName: _nsdNames) {
+		for (Entry<String, File> target: targets.entrySet()) {
+			final String fName = target.getKey();
+			final File targetBase = target.getValue();
+		// END KGU#863 2020-05-07
+			results.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					File f = new File(fName);
+					if (!f.exists() || !StructogramFilter.isNSD(fName)) {
+						throw new IOException("File " + fName + " not found or inappropriate.");
+					}
+					Root root = new NSDParser().parse(f);
+					root.filename = fName;
+					DiagramImageWriter writer = new DiagramImageWriter(root, reuseLayout);
+					// START KGU#863 2020-05-07: Determined in advance
+					//String baseName = f.getName();
+					//baseName = baseName.substring(0, baseName.length() - ".nsd".length());
+					//File dir = targetDir != null ? targetDir : f.getAbsoluteFile().getParentFile();
+					// END KGU#863 2020-05-07
+					for (int i = 0; i < formats.count(); i++) {
+						// START KGU#863 2020-05-07
+						//writer.write(formats.get(i), new File(dir, baseName + "." + formats.get(i)));
+						writer.write(formats.get(i), new File(targetBase.getPath() + "." + formats.get(i)));
+						// END KGU#863 2020-05-07
+					}
+					return null;
+				}
+			}));
+		}
+		int nFailed = 0;
+		// START KGU#863 2020-05-07
+		//Iterator<String> nameIter = _nsdNames.iterator();
+		Iterator<String> nameIter = targets.keySet().iterator();
+		// END KGU#863 2020-05-07
+		for (Future<Void> result: results) {
+			String fName = nameIter.next();
+			try {
+				result.get();
+			}
+			catch (ExecutionException ex) {
+				nFailed++;
+				System.err.println("*** Error while exporting " + fName + ": " + ex.getCause().getMessage());
+				Logger.getLogger(Structorizer.class.getName()).log(Level.WARNING, "Image export of " + fName, ex.getCause());
+			}
+			catch (InterruptedException ex) {
+				nFailed++;
+				System.err.println("*** Image export of " + fName + " interrupted.");
+			}
+		}
+		pool.shutdown();
+		// START KGU#863 2020-05-07: Any failure is to be reported to the caller
+		//if (nFailed == _nsdNames.size()) {
+		if (nFailed > 0) {
+		// END KGU#863 2020-05-07
+			System.exit(4);
+		}
+	}
+
+	/**
+	 * Adopts the drawing-relevant preferences (font, colours, structure preferences, DIN,
+	 * comments, highlighting) from the (possibly redirected) Ini file for the batch image export.
+	 * These are usually established by the GUI.
+	 */
+	private static void loadDrawingSettings()
+	{
+		// This also (re)loads the Ini file
+		Element.loadFromINI();
+		Ini ini = Ini.getInstance();
+		Element.E_DIN = ini.getProperty("DIN", "1").equals("1");
+		Element.E_SHOWCOMMENTS = !ini.getProperty("showComments", "1").equals("0");
+		Element.E_COMMENTSPLUSTEXT = ini.getProperty("commentsPlusText", "0").equals("1");
+		Element.E_TOGGLETC = ini.getProperty("switchTextComments", "0").equals("1");
+		Element.E_VARHIGHLIGHT = ini.getProperty("varHightlight", "1").equals("1");
+		Element.E_HIDE_DECL = ini.getProperty("hideDeclarations", "0").equals("1");
+		Element.E_SHOW_UNICODE_OPERATORS = ini.getProperty("unicodeCompOps", "1").equals("1");
+	}
+	// END KGU#863 2020-04-25
+
 	/**
 	 * Tries to form an {@link ArchivePool} from arrangement file {@code aFile} and
 	 * to identify the pool roots for export from the signature list {@code arrSpec}
@@ -742,8 +953,11 @@ public class Structorizer
 		boolean done = false;
 		ArchiveIndex index = null;
 		if (isArrz) {
+			// START KGU#866 2020-04-28: Read the diagrams directly from the archive
 			//index = archivar.getArrangementArchiveContent(f, null);
-			index = archivar.unzipArrangementArchive(f, null);
+			//index = archivar.unzipArrangementArchive(f, null);
+			index = archivar.getArrangementArchiveContent(f, null);
+			// END KGU#866 2020-04-28
 		}
 		else {
 			index = archivar.makeNewIndexFor(f);
@@ -1361,6 +1575,9 @@ public class Structorizer
 			}
 		}
 		System.out.println("\n\tARRSPEC = (ARRFILE|ARRZFILE)!SIGNATURE...");
+		// START KGU#863 2020-04-25: Batch image export
+		System.out.println("\tFORMAT = " + new StringList(DiagramImageWriter.FORMATS).concatenate(" | "));
+		// END KGU#863 2020-04-25
 		System.out.print("\n\tPARSER = ");
 		// Again we (ab)use some class residing in package gui to fetch the plugin configuration 
 		buff = new BufferedInputStream(lu.fisch.structorizer.gui.EditData.class.getResourceAsStream("parsers.xml"));
@@ -38,6 +38,8 @@ package lu.fisch.diagrcontrol;
  *      Kay Gürtzig     2018-03-21      Issue #463: console output replaced by standard JDK4 (= j.u.l.) logging
  *      Kay Gürtzig     2018-10-12      Issue #622: Logging of API calls introduced (level CONFIG)
  *      Kay Gürtzig     2019-03-02      Issue #366: New methods isFocused() and requestFocus() in analogy to Window
+ *      Kay Gürtzig     2020-04-22      KGU#860: execute() delegates to a cached RoutineDispatcher (method handles)
+ *      Kay Gürtzig     2020-05-07      KGU#860: The controller is passed to its (class-wide) RoutineDispatcher per call
  *
  ******************************************************************************************************
  *
@@ -216,6 +218,13 @@ public interface DiagramController
 	 * @see #getProcedureMap()
 	 */
 	public default Object execute(String name, Object[] arguments) throws FunctionException
+	{
+		// START KGU#860 2020-04-22: Resolution, conversion decisions and method handles are cached now
+		return RoutineDispatcher.forController(this).execute(this, name, arguments);
+	}
+	// END KGU#860 2020-04-22
+	// START KGU#860 2020-04-22: Former implementation, now replaced by the RoutineDispatcher
+	/*
 	{
 		Object result = null;
 		String key = name + "#" + arguments.length;
@@ -269,6 +278,8 @@ public interface DiagramController
 		}
 		return result;
 	}
+	*/
+	// END KGU#860 2020-04-22
 
 	/**
 	 * Helper method trying to convert the argument type to the declared parameter type
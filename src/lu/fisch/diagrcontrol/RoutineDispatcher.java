@@ -0,0 +1,324 @@
+/*
+    Structorizer
+    A not so little tool anymore, which you can use to create Nassi-Schneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.diagrcontrol;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Cached dispatch of DiagramController routine calls via method handles.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-22      First Issue (KGU#860)
+ *      Kay Gürtzig     2020-05-07      KGU#860: Dispatchers per controller class (ClassValue) with unbound handles,
+ *                                      the controller is passed per call (the former weak map never lost entries)
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-22 (Kay Gürtzig)
+ *      - DiagramController.execute(String, Object[]) used to compose the map key, look up the Method,
+ *        convert every argument via castArgument() and call Method.invoke() on each call. Turtle-heavy
+ *        diagrams do this millions of times.
+ *      - Now there is a dispatcher per controller class, which resolves a routine name and arity
+ *        once to a call site holding a method handle taking the controller and an Object array
+ *        (spread over the parameters), so it can be invoked exactly. The argument conversion is decided per argument position
+ *        for the argument class met last (monomorphic cache) and only redecided if another class comes.
+ *      - The routine maps of a controller are supposed not to change after the first call and to be
+ *        the same for all instances of the controller class (they are derived from the class anyway).
+ *        Controllers overriding castArgument() get their method called for every argument, as before.
+ *      2020-05-07 (Kay Gürtzig)
+ *      - The dispatchers used to be kept in a WeakHashMap by controller instance, but each dispatcher
+ *        referenced its controller (field and bound handles), so no entry was ever dropped. Moreover,
+ *        every call had to take the lock of the map. A ClassValue holds the dispatchers now (no lock on
+ *        lookup, no reference from the dispatcher to a controller instance).
+ *
+ ******************************************************************************************************///
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lu.fisch.diagrcontrol.DiagramController.FunctionException;
+import lu.fisch.utils.StringList;
+
+/**
+ * Executes the routines of a {@link DiagramController} via cached method handles with argument
+ * conversions decided once per call site.
+ * @author Kay Gürtzig
+ * @see DiagramController#execute(String, Object[])
+ */
+final class RoutineDispatcher {
+
+	/** The dispatchers by controller class */
+	private static final ClassValue<RoutineDispatcher> dispatchers = new ClassValue<RoutineDispatcher>() {
+		@Override
+		protected RoutineDispatcher computeValue(Class<?> _controllerClass) {
+			return new RoutineDispatcher(_controllerClass);
+		}
+	};
+
+	/** Argument conversion kinds, see {@link #convert(Object, int, Class)} */
+	private static final int CONV_NONE = 0;
+	private static final int CONV_CAST = 1;
+	private static final int CONV_CUSTOM = 2;
+	private static final int CONV_INTEGER = 3;
+	private static final int CONV_DOUBLE = 4;
+	private static final int CONV_FLOAT = 5;
+	private static final int CONV_SHORT = 6;
+	private static final int CONV_LONG = 7;
+	private static final int CONV_BYTE = 8;
+
+	/** The conversion decided for arguments of a certain class */
+	private static final class Conversion {
+		final Class<?> argClass;
+		final int kind;
+		Conversion(Class<?> _argClass, int _kind)
+		{
+			argClass = _argClass;
+			kind = _kind;
+		}
+	}
+
+	/** A resolved routine (name and arity) */
+	private static final class CallSite {
+		final String category;
+		final Method method;
+		/** Handle of type (Object, Object[])Object (controller, arguments), null if the method isn't accessible this way */
+		final MethodHandle handle;
+		final Class<?>[] paramClasses;
+		/** The conversions for the argument classes met last, by argument position */
+		final Conversion[] conversions;
+		CallSite(String _category, Method _method, MethodHandle _handle)
+		{
+			category = _category;
+			method = _method;
+			handle = _handle;
+			paramClasses = _method.getParameterTypes();
+			conversions = new Conversion[paramClasses.length];
+		}
+	}
+
+	/** Simple name of the controller class (for messages) */
+	private final String controllerName;
+	private final Logger logger;
+	/** Whether the controller class provides its own castArgument() method */
+	private final boolean hasCustomCast;
+	/** Resolved call sites by routine name, indexed by arity (null entries unresolved) */
+	private final ConcurrentHashMap<String, CallSite[]> callSites = new ConcurrentHashMap<String, CallSite[]>();
+
+	/**
+	 * @param _controller - a {@link DiagramController}
+	 * @return the dispatcher for the class of the given controller (created on demand)
+	 */
+	static RoutineDispatcher forController(DiagramController _controller)
+	{
+		return dispatchers.get(_controller.getClass());
+	}
+
+	private RoutineDispatcher(Class<?> _controllerClass)
+	{
+		controllerName = _controllerClass.getSimpleName();
+		logger = Logger.getLogger(_controllerClass.getName());
+		boolean customCast = true;
+		try {
+			Method castMethod = _controllerClass.getMethod("castArgument", Object.class, Class.class);
+			customCast = castMethod.getDeclaringClass() != DiagramController.class;
+		}
+		catch (NoSuchMethodException | SecurityException ex) {}
+		hasCustomCast = customCast;
+	}
+
+	/**
+	 * Executes the procedure or function {@code name} with the given arguments (the array elements
+	 * are replaced by the converted values). See {@link DiagramController#execute(String, Object[])}.
+	 * @param controller - the controller to execute the routine (of the class of this dispatcher)
+	 * @param name - the routine name (lower-case)
+	 * @param arguments - array of the argument values
+	 * @return the result value (null for procedures)
+	 * @throws FunctionException if there is no such routine or an argument can't be converted
+	 */
+	Object execute(DiagramController controller, String name, Object[] arguments) throws FunctionException
+	{
+		CallSite site = getCallSite(controller, name, arguments.length);
+		if (site == null) {
+			throw new FunctionException(
+					controllerName + ": No function <" + name + "> with " + arguments.length + " arguments defined.");
+		}
+		for (int i = 0; i < arguments.length; i++) {
+			Object arg = arguments[i];
+			Class<?> argClass = arg == null ? null : arg.getClass();
+			Conversion conv = site.conversions[i];
+			if (conv == null || conv.argClass != argClass) {
+				conv = new Conversion(argClass, decideConversion(argClass, site.paramClasses[i]));
+				site.conversions[i] = conv;
+			}
+			try {
+				arguments[i] = convert(controller, arg, conv.kind, site.paramClasses[i]);
+			}
+			catch (Exception ex) {
+				FunctionException err = new FunctionException(
+						controllerName + ": "
+								+ site.category + " <" + name + "> argument " + (i+1)
+								+ ": <" + arguments[i] + "> could not be converted to "
+								+ site.paramClasses[i].getSimpleName());
+				err.setStackTrace(ex.getStackTrace());
+				throw err;
+			}
+		}
+		Object result = null;
+		try {
+			if (logger.isLoggable(Level.CONFIG)) {
+				StringList argStrings = new StringList();
+				for (Object arg: arguments) {
+					argStrings.add(String.valueOf(arg));
+				}
+				logger.config("Executing " + name + "(" + argStrings.concatenate(",") + ")");
+			}
+			if (site.handle != null) {
+				result = (Object)site.handle.invokeExact((Object)controller, arguments);
+			}
+			else {
+				result = site.method.invoke(controller, arguments);
+			}
+		} catch (Throwable e) {
+			logger.log(Level.SEVERE, "Defective DiagramControl class " + site.method + ": " + e.toString(), e);
+		}
+		return result;
+	}
+
+	/**
+	 * Resolves the routine with given {@code name} and arity {@code nArgs} (procedures first)
+	 * via the routine maps of {@code controller}.
+	 * @return the call site or null if there is no such routine
+	 */
+	private CallSite getCallSite(DiagramController controller, String name, int nArgs)
+	{
+		CallSite[] sites = callSites.get(name);
+		if (sites != null && nArgs < sites.length && sites[nArgs] != null) {
+			return sites[nArgs];
+		}
+		String key = name + "#" + nArgs;
+		String category = "Procedure";
+		Method method = controller.getProcedureMap().get(key);
+		if (method == null) {
+			category = "Function";
+			method = controller.getFunctionMap().get(key);
+		}
+		if (method == null) {
+			return null;
+		}
+		MethodHandle handle = null;
+		try {
+			handle = MethodHandles.publicLookup().unreflect(method);
+			// START KGU#860 2020-05-07: Not bound to the controller but taking it as first argument
+			//if (!Modifier.isStatic(method.getModifiers())) {
+			//	handle = handle.bindTo(controller);
+			//}
+			//handle = handle.asSpreader(Object[].class, nArgs)
+			//		.asType(MethodType.methodType(Object.class, Object[].class));
+			if (Modifier.isStatic(method.getModifiers())) {
+				handle = MethodHandles.dropArguments(handle, 0, method.getDeclaringClass());
+			}
+			handle = handle.asSpreader(Object[].class, nArgs)
+					.asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+			// END KGU#860 2020-05-07
+		}
+		catch (IllegalAccessException | RuntimeException ex) {
+			// Not accessible as handle (e.g. class not public), so we will have to use reflection
+			logger.log(Level.FINE, "No method handle for " + method, ex);
+			handle = null;
+		}
+		CallSite site = new CallSite(category, method, handle);
+		// Copy-on-write - concurrent resolutions of the same site are harmless
+		synchronized (callSites) {
+			sites = callSites.get(name);
+			CallSite[] newSites = new CallSite[Math.max(nArgs + 1, sites == null ? 0 : sites.length)];
+			if (sites != null) {
+				System.arraycopy(sites, 0, newSites, 0, sites.length);
+			}
+			newSites[nArgs] = site;
+			callSites.put(name, newSites);
+		}
+		return site;
+	}
+
+	/**
+	 * Decides how arguments of class {@code argClass} are to be converted for a parameter
+	 * of class {@code paramClass} (in the same way as {@link DiagramController#castArgument(Object, Class)}).
+	 * @param argClass - the class of the argument object or null for a null argument
+	 * @param paramClass - the declared parameter class
+	 * @return the conversion kind
+	 */
+	private int decideConversion(Class<?> argClass, Class<?> paramClass)
+	{
+		if (hasCustomCast) {
+			return CONV_CUSTOM;
+		}
+		if (argClass == null) {
+			return CONV_CAST;
+		}
+		if (paramClass.isAssignableFrom(argClass)) {
+			return CONV_NONE;
+		}
+		if (Number.class.isAssignableFrom(argClass)) {
+			switch (paramClass.getSimpleName()) {
+			case "Integer":	return CONV_INTEGER;
+			case "Double":	return CONV_DOUBLE;
+			case "Float":	return CONV_FLOAT;
+			case "Short":	return CONV_SHORT;
+			case "Long":	return CONV_LONG;
+			case "Byte":	return CONV_BYTE;
+			}
+		}
+		return CONV_CAST;
+	}
+
+	/**
+	 * Converts the argument {@code arg} according to conversion {@code kind}.
+	 * @throws ClassCastException if the argument isn't compatible
+	 */
+	private Object convert(DiagramController controller, Object arg, int kind, Class<?> paramClass) throws ClassCastException
+	{
+		switch (kind) {
+		case CONV_NONE:		return arg;
+		case CONV_CUSTOM:	return controller.castArgument(arg, paramClass);
+		case CONV_INTEGER:	return ((Number)arg).intValue();
+		case CONV_DOUBLE:	return ((Number)arg).doubleValue();
+		case CONV_FLOAT:	return ((Number)arg).floatValue();
+		case CONV_SHORT:	return ((Number)arg).shortValue();
+		case CONV_LONG:		return ((Number)arg).longValue();
+		case CONV_BYTE:		return ((Number)arg).byteValue();
+		default:			return paramClass.cast(arg);
+		}
+	}
+
+}
@@ -38,6 +38,7 @@ package lu.fisch.graphics;
  *      Kay Gürtzig     2016.10.13      Enh. #270: Method hatchedRect() added to overlay a hatched pattern
  *      Kay Gürtzig     2017.05.16      Enh. #389: New methods for polygons, API changes
  *      Kay Gürtzig     2017.05.17      Issue #405: API enhancement for rotated drawing
+ *      Kay Gürtzig     2020-04-16      KGU#854: Bounded LRU cache for stringWidth()
  *
  ******************************************************************************************************
  *
@@ -55,12 +56,63 @@ import java.awt.Paint;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Canvas  {
 	
+	// START KGU#854 2020-04-16: Text measurement is expensive and repeated on every layout
+	/** Maximum number of cached string widths */
+	private static final int WIDTH_CACHE_SIZE = 8192;
+	
+	/** Key of the string width cache: font, rendering context (transform, hints), and string */
+	private static final class WidthKey {
+		private final Font font;
+		private final FontRenderContext frc;
+		private final String text;
+		private final int hash;
+		
+		WidthKey(Font _font, FontRenderContext _frc, String _text)
+		{
+			font = _font;
+			frc = _frc;
+			text = _text;
+			hash = (_font.hashCode() * 31 + _frc.hashCode()) * 31 + _text.hashCode();
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object _other)
+		{
+			if (!(_other instanceof WidthKey)) {
+				return false;
+			}
+			WidthKey other = (WidthKey)_other;
+			return hash == other.hash && text.equals(other.text)
+					&& font.equals(other.font) && frc.equals(other.frc);
+		}
+	}
+	
+	/** Least-recently-used cache of string widths, shared by all canvases (synchronized on itself) */
+	@SuppressWarnings("serial")
+	private static final Map<WidthKey, Integer> widthCache = new LinkedHashMap<WidthKey, Integer>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<WidthKey, Integer> _eldest)
+		{
+			return size() > WIDTH_CACHE_SIZE;
+		}
+	};
+	// END KGU#854 2020-04-16
+	
 	protected Graphics2D canvas = null;
 	private int x;
 	private int y;
@@ -88,8 +140,25 @@ public class Canvas  {
 	
 	public int stringWidth(String _string)
 	{
-		Rectangle2D bounds = canvas.getFont().getStringBounds(_string, canvas.getFontRenderContext());
-		return Double.valueOf(bounds.getWidth()).intValue();
+		// START KGU#854 2020-04-16: Look up the cache first
+		//Rectangle2D bounds = canvas.getFont().getStringBounds(_string, canvas.getFontRenderContext());
+		//return Double.valueOf(bounds.getWidth()).intValue();
+		Font font = canvas.getFont();
+		FontRenderContext frc = canvas.getFontRenderContext();
+		WidthKey key = new WidthKey(font, frc, _string);
+		Integer width;
+		synchronized (widthCache) {
+			width = widthCache.get(key);
+		}
+		if (width == null) {
+			Rectangle2D bounds = font.getStringBounds(_string, frc);
+			width = Double.valueOf(bounds.getWidth()).intValue();
+			synchronized (widthCache) {
+				widthCache.put(key, width);
+			}
+		}
+		return width;
+		// END KGU#854 2020-04-16
 	}
 
 
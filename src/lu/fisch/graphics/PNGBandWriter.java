@@ -0,0 +1,304 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Schneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.graphics;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Streaming PNG encoder rendering large drawings band by band.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-24      First Issue (KGU#862)
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-24 (Kay Gürtzig)
+ *      - The PNG export used to paint the entire diagram into one BufferedImage before encoding it,
+ *        which exhausted the heap with huge diagrams. Here the region to be exported is rendered in
+ *        horizontal bands of limited height (with a clip) into a reusable band image, and the scanlines
+ *        are streamed into the PNG file. So the memory demand depends on the band size only.
+ *      - Filtering and deflating of the bands (the expensive part) is done concurrently: every band is
+ *        compressed as an independent raw deflate block sequence terminated by a sync flush (only the
+ *        last band finishes the stream), such that the outputs may simply be concatenated. The Adler-32
+ *        checksums of the bands are combined arithmetically. The rendering itself remains sequential
+ *        because drawing a diagram updates the cached geometry of its elements.
+ *      - The number of bands in progress is limited to keep the memory bounded.
+ *
+ ******************************************************************************************************/
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a (possibly huge) region of a drawing as 32 bit RGBA PNG image to a stream without
+ * ever holding the entire image in memory. The drawing is obtained band by band from a
+ * {@link BandRenderer}, the compression of the bands is done in parallel.
+ * @author Kay Gürtzig
+ */
+public class PNGBandWriter {
+
+	/**
+	 * Renders a horizontal band of the drawing
+	 */
+	public interface BandRenderer {
+		/**
+		 * Draws the region {@code _region} (in drawing coordinates) of the drawing onto the
+		 * graphics {@code _g}, which is already translated and clipped appropriately. The
+		 * background is transparent.
+		 * @param _g - the graphics of the band image
+		 * @param _region - the band bounds in drawing coordinates
+		 */
+		public void renderBand(Graphics2D _g, Rectangle _region);
+	}
+
+	/** Default height of the bands in pixels */
+	public static final int DEFAULT_BAND_HEIGHT = 256;
+
+	private static final byte[] PNG_SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	/** Default zlib stream header (deflate, 32K window, default compression) */
+	private static final byte[] ZLIB_HEADER = {0x78, (byte)0x9C};
+	private static final int ADLER_BASE = 65521;
+
+	/** The worker pool shared by all writers (lazily created) */
+	private static ForkJoinPool workerPool = null;
+
+	/** Result of the compression of a band */
+	private static final class Band {
+		final byte[] deflated;
+		final long adler;
+		final long length;
+		Band(byte[] _deflated, long _adler, long _length)
+		{
+			deflated = _deflated;
+			adler = _adler;
+			length = _length;
+		}
+	}
+
+	private final int bandHeight;
+
+	/**
+	 * Creates a writer rendering bands of at most {@code _bandHeight} pixels height.
+	 * @param _bandHeight - the band height (a value &lt; 1 means {@link #DEFAULT_BAND_HEIGHT})
+	 */
+	public PNGBandWriter(int _bandHeight)
+	{
+		bandHeight = _bandHeight < 1 ? DEFAULT_BAND_HEIGHT : _bandHeight;
+	}
+
+	/**
+	 * Renders the region {@code _region} of the drawing via {@code _renderer} band by band
+	 * and writes it as PNG image (of the size of the region) to {@code _out}. The stream is
+	 * not closed.
+	 * @param _out - the target stream
+	 * @param _region - the region to be exported (in drawing coordinates)
+	 * @param _renderer - the {@link BandRenderer} painting the drawing
+	 * @throws IOException if writing (or compressing) failed
+	 */
+	public void write(OutputStream _out, Rectangle _region, BandRenderer _renderer) throws IOException
+	{
+		final int width = _region.width;
+		final int height = _region.height;
+		if (width <= 0 || height <= 0) {
+			throw new IOException("Empty image region " + _region);
+		}
+		DataOutputStream out = new DataOutputStream(_out);
+		out.write(PNG_SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream hdr = new DataOutputStream(header);
+		hdr.writeInt(width);
+		hdr.writeInt(height);
+		hdr.writeByte(8);	// bit depth
+		hdr.writeByte(6);	// colour type RGBA
+		hdr.writeByte(0);	// deflate
+		hdr.writeByte(0);	// adaptive filtering
+		hdr.writeByte(0);	// no interlace
+		writeChunk(out, "IHDR", header.toByteArray());
+		writeChunk(out, "IDAT", ZLIB_HEADER);
+
+		ForkJoinPool pool = getWorkerPool();
+		int maxPending = pool.getParallelism() + 1;
+		ArrayDeque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+		long adler = 1L;
+		BufferedImage bandImage = new BufferedImage(width, Math.min(bandHeight, height), BufferedImage.TYPE_INT_ARGB);
+		try {
+			for (int top = 0; top < height; top += bandHeight) {
+				final int rows = Math.min(bandHeight, height - top);
+				Rectangle region = new Rectangle(_region.x, _region.y + top, width, rows);
+				// Clear the reused band image (transparent background)
+				Graphics2D g = bandImage.createGraphics();
+				try {
+					g.setComposite(AlphaComposite.Clear);
+					g.fillRect(0, 0, width, bandImage.getHeight());
+					g.setComposite(AlphaComposite.SrcOver);
+					g.translate(-region.x, -region.y);
+					g.setClip(region);
+					_renderer.renderBand(g, region);
+				}
+				finally {
+					g.dispose();
+				}
+				final int[] pixels = bandImage.getRGB(0, 0, width, rows, null, 0, width);
+				final boolean isLast = top + rows >= height;
+				pending.add(pool.submit(new Callable<Band>() {
+					@Override
+					public Band call() {
+						return compressBand(pixels, width, rows, isLast);
+					}
+				}));
+				while (pending.size() >= maxPending || isLast && !pending.isEmpty()) {
+					Band band = pending.poll().get();
+					writeChunk(out, "IDAT", band.deflated);
+					adler = combineAdler(adler, band.adler, band.length);
+				}
+			}
+		}
+		catch (InterruptedException | ExecutionException ex) {
+			for (Future<Band> future: pending) {
+				future.cancel(true);
+			}
+			throw new IOException("PNG compression failed", ex);
+		}
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream(4);
+		new DataOutputStream(trailer).writeInt((int)adler);
+		writeChunk(out, "IDAT", trailer.toByteArray());
+		writeChunk(out, "IEND", new byte[0]);
+		out.flush();
+	}
+
+	/**
+	 * Converts the given ARGB pixels to filtered RGBA scanlines (filter type "Sub") and deflates them.
+	 * @param _pixels - the ARGB pixels of the band
+	 * @param _width - the band width
+	 * @param _rows - the number of rows
+	 * @param _isLast - whether this is the final band (finishing the deflate stream)
+	 * @return the compressed band
+	 */
+	private static Band compressBand(int[] _pixels, int _width, int _rows, boolean _isLast)
+	{
+		int lineLength = 1 + 4 * _width;
+		byte[] raw = new byte[_rows * lineLength];
+		int ix = 0;
+		for (int row = 0; row < _rows; row++) {
+			raw[ix++] = 1;	// filter type Sub
+			int r0 = 0, g0 = 0, b0 = 0, a0 = 0;
+			for (int col = 0, px = row * _width; col < _width; col++, px++) {
+				int argb = _pixels[px];
+				int a = argb >>> 24, r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+				raw[ix++] = (byte)(r - r0);
+				raw[ix++] = (byte)(g - g0);
+				raw[ix++] = (byte)(b - b0);
+				raw[ix++] = (byte)(a - a0);
+				r0 = r; g0 = g; b0 = b; a0 = a;
+			}
+		}
+		Adler32 adler = new Adler32();
+		adler.update(raw, 0, raw.length);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 8 + 64);
+		byte[] buffer = new byte[32768];
+		try {
+			deflater.setInput(raw);
+			if (_isLast) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					deflated.write(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+			else {
+				// A sync flush ends on a byte boundary, so the next band's output may follow directly
+				int n;
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					deflated.write(buffer, 0, n);
+				} while (n == buffer.length);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+		return new Band(deflated.toByteArray(), adler.getValue(), raw.length);
+	}
+
+	/**
+	 * Combines the Adler-32 checksum {@code _adler1} of a first byte sequence with the
+	 * checksum {@code _adler2} of a subsequent sequence of length {@code _length2}.
+	 * @return the checksum of the concatenated sequences
+	 */
+	private static long combineAdler(long _adler1, long _adler2, long _length2)
+	{
+		long rem = _length2 % ADLER_BASE;
+		long sum1 = _adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (_adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((_adler1 >> 16) & 0xFFFF) + ((_adler2 >> 16) & 0xFFFF) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+		if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	/** Writes a PNG chunk of type {@code _type} with content {@code _data} to {@code _out} */
+	private static void writeChunk(DataOutputStream _out, String _type, byte[] _data) throws IOException
+	{
+		byte[] type = _type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(_data);
+		_out.writeInt(_data.length);
+		_out.write(type);
+		_out.write(_data);
+		_out.writeInt((int)crc.getValue());
+	}
+
+	/** @return the shared worker pool (created on demand) */
+	private static synchronized ForkJoinPool getWorkerPool()
+	{
+		if (workerPool == null) {
+			workerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return workerPool;
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Schneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.graphics;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Cache of bitmap tiles for the repeated painting of large drawings.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date			Description
+ *      ------			----			-----------
+ *      Kay Gürtzig     2020-04-17      First Issue (KGU#855)
+ *      Kay Gürtzig     2020-05-07      KGU#855: Capacity adjustable (setCapacity()) to the visible tile count
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-17 (Kay Gürtzig)
+ *      - The drawing area is divided into square tiles of fixed size (in drawing coordinates). Tiles
+ *        intersecting a region to be painted are rendered into images on demand and then just copied.
+ *      - The tile images are made in device resolution (the scale of the target graphics transform is
+ *        applied), such that HiDPI screens don't get blurred copies. Target graphics with rotation or
+ *        shear transforms are painted directly.
+ *      - The owner is responsible for the invalidation of the tiles affected by changes. Additionally,
+ *        a validity key is to be passed on painting - if it differs from the previous one then all tiles
+ *        are discarded.
+ *
+ ******************************************************************************************************/
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds rendered bitmap tiles of a drawing in order to replace the repeated drawing of
+ * unchanged regions by image copies. The number of retained tiles is bounded, the least
+ * recently used tiles are dropped first.
+ * @author Kay Gürtzig
+ */
+public class TileCache {
+
+	/**
+	 * Renders a region of the drawing
+	 */
+	public interface TileRenderer {
+		/**
+		 * Draws the region {@code _region} (in drawing coordinates) of the drawing onto the
+		 * graphics {@code _g}, which is already transformed and clipped appropriately.
+		 * @param _g - the graphics of the tile image
+		 * @param _region - the tile bounds in drawing coordinates
+		 */
+		public void renderTile(Graphics2D _g, Rectangle _region);
+	}
+
+	/** Default edge length of the tiles */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	private final int tileSize;
+	private int maxTiles;
+	/** The rendered tiles by tile index (column in the upper, row in the lower half) in LRU order */
+	private final LinkedHashMap<Long, BufferedImage> tiles;
+	/** Validity key (including the device scale) the cached tiles were rendered for */
+	private List<Object> validityKey = null;
+
+	/**
+	 * Creates an empty tile cache
+	 * @param _tileSize - edge length of the tiles in drawing coordinates
+	 * @param _maxTiles - maximum number of retained tiles
+	 */
+	@SuppressWarnings("serial")
+	public TileCache(int _tileSize, int _maxTiles)
+	{
+		tileSize = _tileSize;
+		maxTiles = _maxTiles;
+		tiles = new LinkedHashMap<Long, BufferedImage>(2 * _maxTiles, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> _eldest)
+			{
+				return size() > maxTiles;
+			}
+		};
+	}
+
+	// START KGU#855 2020-05-07: The capacity must exceed the number of visible tiles
+	/**
+	 * Sets the maximum number of retained tiles. It should exceed the number of tiles
+	 * covering the visible region, otherwise tiles are evicted while being painted.
+	 * @param _maxTiles - the new maximum number of retained tiles
+	 */
+	public synchronized void setCapacity(int _maxTiles)
+	{
+		if (_maxTiles < maxTiles) {
+			// Drop the least recently used tiles
+			Iterator<Long> iter = tiles.keySet().iterator();
+			for (int nDrop = tiles.size() - _maxTiles; nDrop > 0 && iter.hasNext(); nDrop--) {
+				iter.next();
+				iter.remove();
+			}
+		}
+		maxTiles = _maxTiles;
+	}
+
+	/**
+	 * @return the edge length of the tiles in drawing coordinates
+	 */
+	public int getTileSize()
+	{
+		return tileSize;
+	}
+	// END KGU#855 2020-05-07
+
+	/**
+	 * Discards all tiles.
+	 */
+	public synchronized void invalidateAll()
+	{
+		tiles.clear();
+	}
+
+	/**
+	 * Discards all tiles intersecting the given region.
+	 * @param _region - a changed region in drawing coordinates
+	 */
+	public synchronized void invalidate(Rectangle _region)
+	{
+		if (_region.isEmpty() || tiles.isEmpty()) {
+			return;
+		}
+		int col0 = Math.floorDiv(_region.x, tileSize);
+		int col1 = Math.floorDiv(_region.x + _region.width - 1, tileSize);
+		int row0 = Math.floorDiv(_region.y, tileSize);
+		int row1 = Math.floorDiv(_region.y + _region.height - 1, tileSize);
+		if ((long)(col1 - col0 + 1) * (row1 - row0 + 1) > tiles.size()) {
+			// Cheaper to inspect the existing tiles
+			Iterator<Long> iter = tiles.keySet().iterator();
+			while (iter.hasNext()) {
+				long index = iter.next();
+				int col = (int)(index >> 32);
+				int row = (int)index;
+				if (col >= col0 && col <= col1 && row >= row0 && row <= row1) {
+					iter.remove();
+				}
+			}
+		}
+		else {
+			for (int row = row0; row <= row1; row++) {
+				for (int col = col0; col <= col1; col++) {
+					tiles.remove(makeIndex(col, row));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Paints the region {@code _clip} of the drawing onto {@code _g}, using the cached tiles
+	 * and rendering the missing ones via {@code _renderer}.
+	 * @param _g - the target graphics
+	 * @param _clip - the region to be painted (in drawing coordinates)
+	 * @param _validityKey - a key describing the global rendering state (e.g. the drawing and the
+	 * font); if it differs from that of the previous call then all tiles are discarded
+	 * @param _background - the colour to fill the tiles with before rendering
+	 * @param _renderer - the {@link TileRenderer} for the missing tiles
+	 * @return the number of tiles that had to be rendered
+	 */
+	public synchronized int paint(Graphics2D _g, Rectangle _clip, Object _validityKey, Color _background, TileRenderer _renderer)
+	{
+		AffineTransform trans = _g.getTransform();
+		if (trans.getShearX() != 0 || trans.getShearY() != 0) {
+			// Tiles wouldn't fit here, so paint directly
+			_renderer.renderTile(_g, _clip);
+			return 1;
+		}
+		double scaleX = trans.getScaleX();
+		double scaleY = trans.getScaleY();
+		List<Object> key = Arrays.asList(_validityKey, scaleX, scaleY);
+		if (!key.equals(validityKey)) {
+			tiles.clear();
+			validityKey = key;
+		}
+		RenderingHints hints = _g.getRenderingHints();
+		int nRendered = 0;
+		int col0 = Math.floorDiv(_clip.x, tileSize);
+		int col1 = Math.floorDiv(_clip.x + _clip.width - 1, tileSize);
+		int row0 = Math.floorDiv(_clip.y, tileSize);
+		int row1 = Math.floorDiv(_clip.y + _clip.height - 1, tileSize);
+		// We draw the images in device space in order to avoid resampling
+		Graphics2D gDev = (Graphics2D)_g.create();
+		try {
+			gDev.setTransform(new AffineTransform());
+			for (int row = row0; row <= row1; row++) {
+				int y0 = (int)Math.round(row * tileSize * scaleY);
+				int y1 = (int)Math.round((row + 1) * tileSize * scaleY);
+				for (int col = col0; col <= col1; col++) {
+					int x0 = (int)Math.round(col * tileSize * scaleX);
+					int x1 = (int)Math.round((col + 1) * tileSize * scaleX);
+					Long index = makeIndex(col, row);
+					BufferedImage tile = tiles.get(index);
+					if (tile == null && x1 > x0 && y1 > y0) {
+						tile = new BufferedImage(x1 - x0, y1 - y0, BufferedImage.TYPE_INT_RGB);
+						Graphics2D gTile = tile.createGraphics();
+						try {
+							gTile.setRenderingHints(hints);
+							gTile.setColor(_background);
+							gTile.fillRect(0, 0, x1 - x0, y1 - y0);
+							gTile.translate(-x0, -y0);
+							gTile.scale(scaleX, scaleY);
+							Rectangle region = new Rectangle(col * tileSize, row * tileSize, tileSize, tileSize);
+							gTile.setClip(region);
+							gTile.setFont(_g.getFont());
+							gTile.setColor(_g.getColor());
+							_renderer.renderTile(gTile, region);
+						}
+						finally {
+							gTile.dispose();
+						}
+						tiles.put(index, tile);
+						nRendered++;
+					}
+					if (tile != null) {
+						gDev.drawImage(tile,
+								(int)Math.round(trans.getTranslateX()) + x0,
+								(int)Math.round(trans.getTranslateY()) + y0,
+								null);
+					}
+				}
+			}
+		}
+		finally {
+			gDev.dispose();
+		}
+		return nRendered;
+	}
+
+	/** @return the map key for the tile in column {@code _col} and row {@code _row} */
+	private static Long makeIndex(int _col, int _row)
+	{
+		return ((long)_col << 32) | (_row & 0xFFFFFFFFL);
+	}
+
+}
@@ -36,41 +36,123 @@ package lu.fisch.structorizer.archivar;
  *      Kay Gürtzig     2019-03-26      Enh. #697: Bugfixes in zipArrangement(), saveArrangement()
  *      Kay Gürtzig     2019-07-31      Bugfix #731 (also comprising #526): new static methods renameTo, copyFile
  *      Kay Gürtzig     2019-10-14      Bugfix #763: Missing references files now add to the problem list on loading
+ *      Kay Gürtzig     2020-04-28      KGU#866: Diagrams are read directly from arrz files instead of extracted copies,
+ *                                      index entry bug in getArrangementArchiveContent() fixed
+ *      Kay Gürtzig     2020-04-29      KGU#867: Diagrams of arrangements are parsed concurrently
+ *      Kay Gürtzig     2020-04-30      KGU#868: loadArrangementIndex(), parseDiagrams(), and placeholder roots for
+ *                                      the lazy loading of arrangements
+ *      Kay Gürtzig     2020-05-01      KGU#869: Arrangement archives are streamed (entries deflated concurrently)
+ *                                      into a temporary file atomically replacing the target, compressFiles() and
+ *                                      copyFromArchive() replaced by writeArchive()
+ *      Kay Gürtzig     2020-05-05      KGU#873: Arrangement cache (archive entry or sidecar file) with sizes,
+ *                                      signatures, and thumbnails of the diagrams, getContentKeys()
+ *      Kay Gürtzig     2020-05-06      KGU#874: Optional content-addressed DiagramStore shared by all instances
+ *                                      (parsed diagrams and files extracted into temp folders)
+ *      Kay Gürtzig     2020-05-07      KGU#869: Archive backup only if backups are enabled, diagrams with lost
+ *                                      files are serialized like virgin diagrams
+ *      Kay Gürtzig     2020-05-07      KGU#866: Fresh shadow folder per archive (getShadowDir()) instead of the
+ *                                      shared temp folder, loadArrangementIndex() reads the arr entry of an archive
+ *      Kay Gürtzig     2020-05-07      KGU#869: Member files with equal names from different folders get distinct
+ *                                      archive entries (makeEntryName(String, File, Set))
+ *      Kay Gürtzig     2020-05-07      KGU#874: DiagramStore holds the parsed diagrams themselves (no templates,
+ *                                      no extracted files), consulted by parseDiagrams(List, StringList, boolean)
+ *      Kay Gürtzig     2020-05-07      KGU#873: Cache items keyed by the final archive entry names
  *
  ******************************************************************************************************
  *
  *      Comment:
  *      2019-03-09 Kay Gürtzig
  *      - Initiated by issue #698
+ *      2020-04-28 Kay Gürtzig (KGU#866)
+ *      - Diagrams of an arrangement archive are now parsed directly from the zip entries. Such a diagram
+ *        gets a prospective shadow path (in the target or temp directory) which is not created unless the
+ *        diagram is saved from a Structorizer editor (which writes it and re-zips it into the archive).
+ *        Unmodified diagrams are re-compressed from their source archive on saving an arrangement.
+ *      - unzipArrangementArchive() is still used by the Arranger's interactive archive opening, which
+ *        relies on the editable extracted copies.
+ *      2020-04-29 Kay Gürtzig (KGU#867)
+ *      - loadArrangement() and getArrangementArchiveContent() parse the diagram files on a shared worker
+ *        pool. The variable retrieval of the parsed diagrams is done afterwards on the calling thread and
+ *        in the original order, since it may consult other diagrams (includables) of the routine pool.
+ *      2020-04-30 Kay Gürtzig (KGU#868)
+ *      - For the lazy loading of large arrangements, loadArrangementIndex() only resolves the diagram
+ *        references of an arrangement list (without parsing), ArchiveIndexEntry.createPlaceholder() makes
+ *        a body-less Root from the signature stored in the list, and parseDiagrams() parses the bodies
+ *        on demand (concurrently, without touching shared state, so the caller must adopt them).
+ *      2020-05-01 Kay Gürtzig (KGU#869)
+ *      - saveArrangement() no longer saves virgin diagrams to the target directory before zipping them,
+ *        they are serialized directly into their archive entry (the target directory only determines
+ *        their prospective shadow path). All entries are read and deflated on the worker pool and
+ *        written in order by a ParallelZipWriter into a temporary file next to the archive, which then
+ *        replaces the archive by an atomic move (the previous archive is kept as ".bak" file if backups
+ *        are enabled, like with the diagram files, see Element.E_MAKE_BACKUPS). So an
+ *        interrupted save cannot corrupt the archive, and there is no temporary archive left to be
+ *        moved by the caller anymore.
+ *      2020-05-05 Kay Gürtzig (KGU#873)
+ *      - saveArrangement() may be given ArrangementCache items for the diagrams, which are then written
+ *        as last archive entry, keyed by the CRCs and sizes of the diagram entries just written. Without
+ *        archive, the caller may write the cache as sidecar file via saveArrangementCache(). The cache is
+ *        retrieved by loadArrangementCache(), the keys of the diagram files by getContentKeys(), which
+ *        takes them from the zip directory for diagrams residing in an archive.
+ *      2020-05-06 Kay Gürtzig (KGU#874)
+ *      - parseDiagrams(List, StringList, boolean) consults a DiagramStore (unless disabled via
+ *        setDiagramStoreEnabled()): an archive entry with the content of a diagram parsed before (and
+ *        not modified since) yields that very Root rather than a new one, and entries with identical
+ *        content are parsed only once. The content keys are taken from the zip directory, so loose
+ *        files (which would have to be read) aren't shared. The Arranger unifies equal diagrams anyway
+ *        (one Diagram in several groups), so it merely doesn't parse them in vain anymore.
+ *      2020-05-07 Kay Gürtzig (KGU#866)
+ *      - The prospective shadow files of diagrams from an archive no longer reside in the common temp
+ *        folder, where a stale file of an earlier session or a namesake from another archive might be
+ *        taken for an edited diagram on saving the arrangement. Each archive gets its own shadow folder,
+ *        freshly created per session (getShadowDir()), so an existing shadow file can only be the result
+ *        of saving that diagram from an editor.
+ *      - loadArrangementIndex() accepts the virtual path of the arr entry within the archive, such that
+ *        the Arranger no longer extracts an archive on opening it (unless the user asks for a folder).
  *
  ******************************************************************************************************///
 
 import java.awt.Point;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
+import lu.fisch.structorizer.elements.Element;
 import lu.fisch.structorizer.elements.Root;
 import lu.fisch.structorizer.elements.Updater;
 import lu.fisch.structorizer.generators.XmlGenerator;
@@ -91,6 +173,21 @@ public class Archivar {
 	
 	private Logger logger;
 	
+	// START KGU#867 2020-04-29: Concurrent parsing of the diagrams of arrangements
+	/** The worker pool for the parsing of diagrams, shared by all instances (lazily created) */
+	private static ForkJoinPool workerPool = null;
+	// END KGU#867 2020-04-29
+	// START KGU#874 2020-05-06: Diagrams with identical content are parsed only once
+	/** The store of diagrams parsed from archives, shared by all instances */
+	private static final DiagramStore diagramStore = new DiagramStore();
+	/** Whether the {@link #diagramStore} is to be used */
+	private static volatile boolean useDiagramStore = true;
+	// END KGU#874 2020-05-06
+	// START KGU#866 2020-05-07
+	/** The shadow folders of the arrangement archives by absolute archive path (see {@link #getShadowDir(File)}) */
+	private static final HashMap<String, File> shadowDirs = new HashMap<String, File>();
+	// END KGU#866 2020-05-07
+	
 	public class ArchiveIndexEntry extends ArchiveRecord {
 		public String path;					// the true file path
 		public String virtPath = null;		// the virtual path (if inside an archive)
@@ -201,6 +298,12 @@ public class Archivar {
 					}
 					this.setRoot(archivar.loadNSDFile(this.getFile(), arrzFile, null));
 				}
+				// START KGU#866 2020-04-28: Read the entry directly from the archive
+				else if (this.virtPath != null) {
+					File virtFile = new File(this.virtPath);
+					this.setRoot(archivar.loadNSDFromArchive(virtFile.getParentFile(), virtFile.getName(), null, null));
+				}
+				// END KGU#866 2020-04-28
 			}
 			return this.root;
 		}
@@ -280,6 +383,59 @@ public class Archivar {
 			return signature;
 		}
 		
+		// START KGU#868 2020-04-30: Lazy loading of arrangements
+		/**
+		 * @return true if the signature (name and argument numbers) of the diagram is known
+		 * without loading it
+		 */
+		public boolean hasSignature()
+		{
+			return this.name != null && !this.name.isEmpty();
+		}
+		
+		/**
+		 * Creates a body-less {@link Root} representing the referenced diagram with its
+		 * signature (name, diagram type, and argument numbers, the parameters being named
+		 * generically, optional ones with a dummy default) and file association, e.g. as
+		 * placeholder for a diagram to be loaded later.
+		 * @return the placeholder {@link Root} (not cached in this entry)
+		 * @see #hasSignature()
+		 * @see Archivar#parseDiagrams(List, StringList)
+		 */
+		public Root createPlaceholder()
+		{
+			StringBuilder header = new StringBuilder(this.name == null ? "???" : this.name);
+			if (this.minArgs >= 0) {
+				header.append("(");
+				for (int i = 1; i <= Math.max(this.minArgs, this.maxArgs); i++) {
+					if (i > 1) {
+						header.append(", ");
+					}
+					header.append("arg" + i);
+					if (i > this.minArgs) {
+						header.append(" = 0");
+					}
+				}
+				header.append(")");
+			}
+			Root placeholder = new Root(StringList.getNew(header.toString()));
+			if (this.minArgs == -2) {
+				placeholder.setInclude();
+			}
+			else {
+				placeholder.setProgram(this.minArgs < 0);
+			}
+			if (this.virtPath != null) {
+				placeholder.filename = this.virtPath;
+				placeholder.shadowFilepath = this.path;
+			}
+			else if (this.path != null) {
+				placeholder.filename = this.path;
+			}
+			return placeholder;
+		}
+		// END KGU#868 2020-04-30
+		
 		/**
 		 * Compares this entry with other and checks whether the {@link Root} objects or
 		 * the files are equivalent. Signatures are not significant here.
@@ -559,6 +715,36 @@ public class Archivar {
 		}
 		return tempDir;
 	}
+	
+	// START KGU#866 2020-05-07: The shadow files of different archives and sessions must not mix
+	/**
+	 * Provides the folder for the (prospective) shadow files of the diagrams residing in
+	 * arrangement archive {@code _arrzFile}. The folder is created anew for every archive
+	 * in every session, so an existing shadow file can only stem from saving the respective
+	 * diagram from a Structorizer editor.
+	 * @param _arrzFile - the arrangement archive
+	 * @return the shadow folder of {@code _arrzFile}
+	 * @throws IOException if the folder could not be created
+	 */
+	private static File getShadowDir(File _arrzFile) throws IOException
+	{
+		String key = _arrzFile.getAbsolutePath();
+		synchronized (shadowDirs) {
+			File shadowDir = shadowDirs.get(key);
+			if (shadowDir == null || !shadowDir.isDirectory()) {
+				String prefix = _arrzFile.getName().toLowerCase();
+				if (prefix.endsWith(".arrz")) {
+					prefix = prefix.substring(0, prefix.length() - 5);
+				}
+				shadowDir = Files.createTempDirectory(findTempDir().toPath(), prefix + ".").toFile();
+				// Only succeeds if no diagram was saved, otherwise the files are kept as backup
+				shadowDir.deleteOnExit();
+				shadowDirs.put(key, shadowDir);
+			}
+			return shadowDir;
+		}
+	}
+	// END KGU#866 2020-05-07
 
 	/**
 	 * Ensures all {@link Root} objects given as {@code _roots} get saved and will be packed into
@@ -569,7 +755,8 @@ public class Archivar {
 	 * to the diagrams in the arr file, otherwise all will be given a dummy location of (-1, -1), indicating
 	 * a dynamic arrangement on loading by Arranger.
 	 * @param _troubles - a {@link StringList} the description of possible problems are appended to, or null. 
-	 * @return a temporary archive path if the intended {@code _archive} file had already existed, otherwise null
+	 * @return null (since an existing {@code _archive} is now replaced atomically, there is no temporary
+	 * archive to be moved anymore, see {@link #saveArrangement(Collection, String, File, File, Point, StringList)})
 	 * @throws ArchivarException if some problem occurred and {@code _troubles} was null
 	 */
 	public String zipArrangement(File _archive, Collection<Root> _roots, boolean _arrangeDiagonally, StringList _troubles) throws ArchivarException
@@ -616,18 +803,46 @@ public class Archivar {
 	 * from the {@link ArchiveRecord}s given in {@code _items}.<br/>
 	 * If the creation of an archive is intended (i.e. {@code _archive} is given) then the arranger
 	 * list file will only contain the pure file names (without absolute path) of the nsd files
-	 * of the archive items.
+	 * of the archive items. The archive is written into a temporary file first, which then replaces
+	 * {@code _archive} atomically (a previously existing archive is kept as backup with additional
+	 * extension ".bak" if backups are enabled, see {@link Element#E_MAKE_BACKUPS}).
 	 * @param _items - collection of @ArchiveRecord items to form the arrangement list from it
 	 * @param _arrFilePath - path for the arrangement list file to be created
 	 * @param _archive - {@link File} object holding the path for the arrangement archive or null
-	 * @param _virginTargetDir - a target directory where to save new (virgin) diagrams (if null they will be skipped)
+	 * @param _virginTargetDir - a target directory where to save new (virgin) diagrams (if null they will be skipped);
+	 * with an archive, virgin diagrams are directly serialized into the archive and get a prospective
+	 * shadow path in the shadow folder of the archive instead (so the directory itself doesn't matter)
 	 * @param _offset - either null or some positive coordinate offset to be subtracted from all locations
 	 * @param _troubles - a {@link StringList} to collect error messages. If null, then ArchivarException will be raised
-	 * @return the path of the created temporary file if the target file `zipFilename´ had existed
-	 * (otherwise null)
+	 * @return null (formerly the path of a temporary archive if the target file had existed, which is now
+	 * replaced directly)
 	 * @throws ArchivarException if {@code _troubles} is null
 	 */
 	public String saveArrangement(Collection<ArchiveRecord> _items, String _arrFilePath, File _archive, File _virginTargetDir, Point _offset, StringList _troubles) throws ArchivarException
+	// START KGU#873 2020-05-05: Delegates to the version with arrangement cache
+	{
+		return saveArrangement(_items, _arrFilePath, _archive, _virginTargetDir, _offset, null, _troubles);
+	}
+
+	/**
+	 * Creates an arrangement list with path {@code _arrFilePath}, and possibly an archive {@code _targetFile},
+	 * from the {@link ArchiveRecord}s given in {@code _items} as
+	 * {@link #saveArrangement(Collection, String, File, File, Point, StringList)} does. With an archive, the
+	 * given {@code _cacheItems} are added as {@link ArrangementCache} entry.
+	 * @param _items - collection of @ArchiveRecord items to form the arrangement list from it
+	 * @param _arrFilePath - path for the arrangement list file to be created
+	 * @param _archive - {@link File} object holding the path for the arrangement archive or null
+	 * @param _virginTargetDir - a target directory where to save new (virgin) diagrams (if null they will be skipped)
+	 * @param _offset - either null or some positive coordinate offset to be subtracted from all locations
+	 * @param _cacheItems - maps (unmodified) diagrams to their {@link ArrangementCache.Item}s, or null; ignored
+	 * without archive (see {@link #saveArrangementCache(File, Map)})
+	 * @param _troubles - a {@link StringList} to collect error messages. If null, then ArchivarException will be raised
+	 * @return null
+	 * @throws ArchivarException if {@code _troubles} is null
+	 */
+	public String saveArrangement(Collection<ArchiveRecord> _items, String _arrFilePath, File _archive, File _virginTargetDir, Point _offset,
+			Map<Root, ArrangementCache.Item> _cacheItems, StringList _troubles) throws ArchivarException
+	// END KGU#873 2020-05-05
 	{
 		String tmpArchive = null;
 		int offsetX = 0, offsetY = 0;
@@ -638,7 +853,44 @@ public class Archivar {
 		/////////////////////////////////////////////////////////////////
 		// First we must gather the Root info and create the arr file
 		/////////////////////////////////////////////////////////////////
-		StringList filePaths = new StringList();
+		// START KGU#869 2020-05-01: The archive entries are streamed from their sources
+		//StringList filePaths = new StringList();
+		List<EntrySource> entrySources = new ArrayList<EntrySource>();
+		// Virgin diagrams serialized into the archive with their entry names
+		HashMap<Root, String> virginEntries = new HashMap<Root, String>();
+		Set<String> entryNames = new HashSet<String>();
+		// START KGU#873 2020-05-05: Cache items by entry name
+		Map<String, ArrangementCache.Item> cacheEntries = new HashMap<String, ArrangementCache.Item>();
+		// END KGU#873 2020-05-05
+		// START KGU#869 2020-05-07: Member files with equal names from different folders need distinct entries
+		// Paths of the member files by entry name
+		HashMap<String, String> entryPaths = new HashMap<String, String>();
+		// Names of the entries to be copied from member files
+		Set<String> sourceNames = new HashSet<String>();
+		// END KGU#869 2020-05-07
+		if (_archive != null) {
+			// START KGU#869 2020-05-07: Members of _archive itself keep their entry names
+			//for (ArchiveRecord item: _items) {
+			//	String path = item.root.getPath();
+			//	if (!path.isEmpty()) {
+			//		entryNames.add(new File(path).getName());
+			//	}
+			//}
+			for (int pass = 0; pass < 2; pass++) {
+				for (ArchiveRecord item: _items) {
+					String path = item.root.getPath();
+					if (!path.isEmpty() && (pass == 0) == _archive.getAbsoluteFile().equals(new File(path).getParentFile())) {
+						String name = new File(path).getName();
+						if (entryNames.add(name)) {
+							entryPaths.put(name, path);
+						}
+					}
+				}
+			}
+			// END KGU#869 2020-05-07
+			entryNames.add(new File(_arrFilePath).getName());
+		}
+		// END KGU#869 2020-05-01
 		Writer out = null;
 		try {
 			FileOutputStream fos = new FileOutputStream(_arrFilePath);
@@ -646,14 +898,45 @@ public class Archivar {
 			for (ArchiveRecord item: _items) {
 				String path = item.root.getPath();
 				try {
-					if (path.isEmpty()) {
-						if (_virginTargetDir == null || !saveVirginNSD(item.root, _virginTargetDir)) {
+					// START KGU#869 2020-05-07: A diagram the file of which got lost is serialized as well
+					//if (path.isEmpty()) {
+					if (path.isEmpty() || _archive != null && !hasSourceFile(item.root)) {
+					// END KGU#869 2020-05-07
+						// START KGU#869 2020-05-01: Virgin diagrams needn't be saved as files for an archive
+						//if (_virginTargetDir == null || !saveVirginNSD(item.root, _virginTargetDir)) {
+						//	continue;
+						//}
+						//// START KGU#678 2019-03-26: Bugfix on occasion of enh. #697
+						//path = item.root.getPath();
+						//// END KGU#678 2019-03-26
+						if (_virginTargetDir == null) {
 							continue;
 						}
-						// START KGU#678 2019-03-26: Bugfix on occasion of enh. #697
-						path = item.root.getPath();
-						// END KGU#678 2019-03-26
+						else if (_archive != null) {
+							// START KGU#866 2020-05-07: The shadow file goes to the shadow folder of the archive
+							//path = makeEntryName(item.root, _virginTargetDir, entryNames);
+							path = makeEntryName(item.root, getShadowDir(_archive), entryNames);
+							// END KGU#866 2020-05-07
+							XmlGenerator xmlgen = new XmlGenerator();
+							entrySources.add(new EntrySource(path,
+									xmlgen.generateCode(item.root, "\t", true).getBytes(StandardCharsets.UTF_8)));
+							virginEntries.put(item.root, path);
+						}
+						else if (!saveVirginNSD(item.root, _virginTargetDir)) {
+							continue;
+						}
+						else {
+							path = item.root.getPath();
+						}
+						// END KGU#869 2020-05-01
 					}
+					// START KGU#873 2020-05-05
+					// START KGU#873 2020-05-07: Moved down, must be keyed by the final entry name
+					//if (_archive != null && _cacheItems != null && _cacheItems.containsKey(item.root)) {
+					//	cacheEntries.put(new File(path).getName(), _cacheItems.get(item.root));
+					//}
+					// END KGU#873 2020-05-07
+					// END KGU#873 2020-05-05
 					if (item.point != null) {
 						out.write(Integer.toString(Math.max(item.point.x - offsetX, 0)) + ",");
 						out.write(Integer.toString(Math.max(item.point.y - offsetY, 0)) + ",");
@@ -662,10 +945,29 @@ public class Archivar {
 						out.write("-1,-1,");
 					}
 					StringList entry = new StringList();
+					// START KGU#869 2020-05-07
+					String entryName = null;
+					// END KGU#869 2020-05-07
 					if (_archive != null)
 					{
+						// START KGU#869 2020-05-07
+						String memberPath = path;
+						// END KGU#869 2020-05-07
 						File nsdFile = new File(path);
 						path = nsdFile.getName();	// Only last part of path
+						// START KGU#869 2020-05-07: A namesake from another folder gets a name of its own
+						if (!virginEntries.containsKey(item.root) && !memberPath.equals(entryPaths.get(path))) {
+							String baseName = path.toLowerCase().endsWith(".nsd") ? path.substring(0, path.length() - 4) : path;
+							path = makeEntryName(baseName, getShadowDir(_archive), entryNames);
+							entryPaths.put(path, memberPath);
+						}
+						entryName = path;
+						// END KGU#869 2020-05-07
+						// START KGU#873 2020-05-07: Keyed by the entry name the diagram is going to have
+						if (_cacheItems != null && _cacheItems.containsKey(item.root)) {
+							cacheEntries.put(entryName, _cacheItems.get(item.root));
+						}
+						// END KGU#873 2020-05-07
 					}
 					entry.add(path);
 					// The following entries are new for enh. #696
@@ -680,10 +982,25 @@ public class Archivar {
 					}
 					out.write(entry.getCommaText() + ',' + minArgs + ',' + maxArgs + '\n');
 					
-					if ((path = item.root.shadowFilepath) == null) {
+					// START KGU#869 2020-05-01: Nothing more to do with virgin diagrams or without archive
+					if (_archive == null || virginEntries.containsKey(item.root)) {
+						continue;
+					}
+					// END KGU#869 2020-05-01
+					// START KGU#866 2020-04-28: The shadow file of a diagram read from an archive may not exist
+					//if ((path = item.root.shadowFilepath) == null) {
+					if ((path = item.root.shadowFilepath) == null || !(new File(path)).exists()) {
+					// END KGU#866 2020-04-28
 						path = item.root.getPath();
 					};
-					filePaths.add(path);
+					// START KGU#869 2020-05-01
+					//filePaths.add(path);
+					//entrySources.add(new EntrySource(new File(path)));
+					if (sourceNames.add(entryName)) {
+						// (Unless the same file is listed twice)
+						entrySources.add(new EntrySource(entryName, new File(path)));
+					}
+					// END KGU#869 2020-05-01
 				}
 				catch (IOException ex) {
 					if (_troubles != null) {
@@ -723,10 +1040,30 @@ public class Archivar {
 		// Now we may produce the arrangement archive if specified so
 		/////////////////////////////////////////////////////////////////		
 		if ((_troubles == null || _troubles.isEmpty()) && _archive != null) {
-			filePaths.add(_arrFilePath);
+			// START KGU#869 2020-05-01: Streamed into a temporary file replacing the archive atomically
+			//filePaths.add(_arrFilePath);
+			//try {
+			//	tmpArchive = compressFiles(_archive, filePaths);
+			//}
+			entrySources.add(new EntrySource(new File(_arrFilePath)));
 			try {
-				tmpArchive = compressFiles(_archive, filePaths);
+				// START KGU#873 2020-05-05
+				//writeArchive(_archive, entrySources);
+				writeArchive(_archive, entrySources,
+						ArrangementCache.getCacheName(new File(_arrFilePath).getName()), cacheEntries);
+				// END KGU#873 2020-05-05
+				// Now the virgin diagrams reside in the archive
+				for (java.util.Map.Entry<Root, String> virgin: virginEntries.entrySet()) {
+					Root root = virgin.getKey();
+					root.filename = _archive.getAbsolutePath() + File.separator + virgin.getValue();
+					// START KGU#866 2020-05-07
+					//root.shadowFilepath = new File(_virginTargetDir, virgin.getValue()).getAbsolutePath();
+					root.shadowFilepath = new File(getShadowDir(_archive), virgin.getValue()).getAbsolutePath();
+					// END KGU#866 2020-05-07
+					root.rememberSaved();
+				}
 			}
+			// END KGU#869 2020-05-01
 			catch (IOException ex) {
 				if (_troubles != null) {
 					_troubles.add(_archive.getAbsolutePath() + ": " + ex.toString());
@@ -741,6 +1078,25 @@ public class Archivar {
 	}
 	
 
+	// START KGU#869 2020-05-07
+	/**
+	 * Checks whether the content of {@code _root} may be taken from a file (i.e. an existing
+	 * shadow file or the associated file or archive) on saving an arrangement archive.
+	 * @param _root - a diagram
+	 * @return true if there is a source file, false if the diagram must be serialized (as
+	 * with a virgin diagram)
+	 * @see #saveArrangement(Collection, String, File, File, Point, Map, StringList)
+	 */
+	public static boolean hasSourceFile(Root _root)
+	{
+		if (_root.shadowFilepath != null && new File(_root.shadowFilepath).exists()) {
+			return true;
+		}
+		File file = _root.getFile();
+		return file != null && file.canRead();
+	}
+	// END KGU#869 2020-05-07
+
 	/**
 	 * Saves "virgin" (i.e. unsaved) {@link Root} to an NSD file with proposed name into directory
 	 * {@code _targetDir}.<br/>
@@ -778,73 +1134,225 @@ public class Archivar {
 		return done;
 	}
 	
+	// START KGU#869 2020-05-01: Streaming archive writing
 	/**
-	 * Compresses the files listed in {@code _filePaths} into {@code _archive}. If an archive with this
-	 * name had existed, however, then we will create the archive as "tmpArchivar.zip" in a standard
-	 * temp directory and return the actual path.
-	 * @param _archive - the target file
-	 * @param _filePaths - {@link StringList} of the absolute paths of the files to be compressed 
-	 * @return path of the temporary archive if the specified target file {@link _archive} had existed
-	 * @throws IOException in case some IO operation went wrong.
+	 * Source of an arrangement archive entry: either a file (the path may be a virtual path into
+	 * another archive) or the serialized content of a diagram.
 	 */
-	private String compressFiles(File _archive, StringList _filePaths) throws IOException
-	{
-		final int BUFSIZE = 2048;
-		String zipFilePath = _archive.getAbsolutePath();
-		boolean fileExisted = _archive.exists(); 
-		if (fileExisted)
+	private static final class EntrySource {
+		final String name;
+		final File file;
+		final byte[] content;
+		EntrySource(File _file)
+		{
+			name = _file.getName();
+			file = _file;
+			content = null;
+		}
+		// START KGU#869 2020-05-07
+		EntrySource(String _name, File _file)
 		{
-			// don't overwrite the original file but write to a temporary location instead
-			// e prefer a recognizable path rather than a unique path, such that the user may identify the file
-			File tmpDir = findTempDir();
-			zipFilePath = tmpDir.getAbsolutePath() + File.separator + TEMP_ARCHIVE_NAME;
-		}
-		BufferedInputStream origin = null;
-		FileOutputStream dest = new FileOutputStream(zipFilePath);
-		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-		try	{
-			byte buffer[] = new byte[BUFSIZE];
+			name = _name;
+			file = _file;
+			content = null;
+		}
+		// END KGU#869 2020-05-07
+		EntrySource(String _name, byte[] _content)
+		{
+			name = _name;
+			file = null;
+			content = _content;
+		}
+	}
 
-			int count = 0;
-			for (int i = 0; i < _filePaths.count(); i++) {
-				File file = new File(_filePaths.get(i));
-				FileInputStream fis = new FileInputStream(file);
-				origin = new BufferedInputStream(fis, BUFSIZE);
-				ZipEntry entry = new ZipEntry(file.getName());
-				// START KGU 2018-09-12: Preserve time attributes if possible
-				Path srcPath = file.toPath();
+	/**
+	 * Writes the entries given by {@code _sources} as arrangement archive {@code _archive}. The entries
+	 * are read and compressed concurrently and written into a temporary file in the target directory,
+	 * which finally replaces {@code _archive} by an atomic move. A previously existing archive is
+	 * retained as backup file (with additional extension ".bak") if {@link Element#E_MAKE_BACKUPS}
+	 * is set.
+	 * @param _archive - the target file
+	 * @param _sources - the {@link EntrySource}s of the entries in the intended order
+	 * @param _cacheName - the entry name for the arrangement cache
+	 * @param _cacheItems - maps entry names of diagrams to their {@link ArrangementCache.Item}s (if empty
+	 * then no cache entry is written)
+	 * @throws IOException in case some IO operation went wrong (the target file will not have been
+	 * changed then).
+	 */
+	// START KGU#873 2020-05-05: Optionally with an arrangement cache entry
+	//private void writeArchive(File _archive, List<EntrySource> _sources) throws IOException
+	private void writeArchive(File _archive, List<EntrySource> _sources, String _cacheName,
+			Map<String, ArrangementCache.Item> _cacheItems) throws IOException
+	// END KGU#873 2020-05-05
+	{
+		Path target = _archive.getAbsoluteFile().toPath();
+		// (Unlike Files.createTempFile(), this creates the file with the default permissions)
+		Path tmpPath = File.createTempFile(_archive.getName(), ".tmp", target.getParent().toFile()).toPath();
+		boolean done = false;
+		try {
+			HashMap<File, ZipFile> zipFiles = new HashMap<File, ZipFile>();
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpPath))) {
+				ForkJoinPool pool = getWorkerPool();
+				ParallelZipWriter writer = new ParallelZipWriter(out, pool, 2 * pool.getParallelism());
 				try {
-					BasicFileAttributes attrs = Files.readAttributes(srcPath, BasicFileAttributes.class);
-					FileTime modTime = attrs.lastModifiedTime();
-					FileTime creTime = attrs.creationTime();
-					if (modTime.toMillis() > 0) {
-						entry.setLastModifiedTime(modTime);
+					for (EntrySource source: _sources) {
+						addArchiveEntry(writer, source, zipFiles);
 					}
-					if (creTime.toMillis() > 0) {
-						entry.setCreationTime(creTime);
+					// START KGU#873 2020-05-05: The cache is keyed by the contents just written
+					if (!_cacheItems.isEmpty()) {
+						writer.flush();
+						final ArrangementCache cache = new ArrangementCache();
+						for (Map.Entry<String, ArrangementCache.Item> item: _cacheItems.entrySet()) {
+							long crc = writer.getCrc(item.getKey());
+							if (crc >= 0) {
+								cache.put(ArrangementCache.makeKey(crc, writer.getSize(item.getKey())), item.getValue());
+							}
+						}
+						cache.encodeThumbnails(pool);
+						writer.addEntry(_cacheName, System.currentTimeMillis(), new Callable<byte[]>() {
+							@Override
+							public byte[] call() throws IOException {
+								return cache.toByteArray();
+							}
+						});
 					}
-				} catch (IOException e) {
-					logger.log(Level.WARNING, "Failed to set attributes of " + file.getName() + " in " + zipFilePath, e);
-					// Let's go on...
+					// END KGU#873 2020-05-05
+					writer.finish();
 				}
-				// END KGU 2018-09-12
-				out.putNextEntry(entry);
-				while((count = origin.read(buffer, 0, BUFSIZE)) != -1)
-				{
-					out.write(buffer, 0, count);
+				finally {
+					// Has no effect after a successful finish
+					writer.abort();
 				}
-				origin.close();
 			}
+			finally {
+				// Must be closed before the target is replaced (it might be one of them)
+				for (ZipFile zipfile: zipFiles.values()) {
+					try {
+						zipfile.close();
+					}
+					catch (IOException ex) {}
+				}
+			}
+			// START KGU#869 2020-05-07: Only if backups are wanted (as with diagram files)
+			//if (Files.exists(target)) {
+			if (Element.E_MAKE_BACKUPS && Files.exists(target)) {
+			// END KGU#869 2020-05-07
+				Path backup = target.resolveSibling(_archive.getName() + ".bak");
+				Files.deleteIfExists(backup);
+				try {
+					// A hard link is cheapest and leaves the target in place until it gets replaced
+					Files.createLink(backup, target);
+				}
+				catch (IOException | UnsupportedOperationException ex) {
+					Files.copy(target, backup);
+				}
+			}
+			try {
+				Files.move(tmpPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			done = true;
 		}
 		finally {
-			out.close();
+			if (!done) {
+				Files.deleteIfExists(tmpPath);
+			}
 		}
-		if (!fileExisted) {
-			// If we could use the intended _targetFile then we should not return anything
-			zipFilePath = null;
+	}
+
+	/**
+	 * Schedules the entry described by {@code _source} with {@code _writer}. The content is
+	 * read on the worker pool. Virtual paths are resolved via the archives cached in
+	 * {@code _zipFiles} (opened on demand).
+	 * @throws IOException if the source does not exist
+	 */
+	private void addArchiveEntry(ParallelZipWriter _writer, EntrySource _source, HashMap<File, ZipFile> _zipFiles) throws IOException
+	{
+		if (_source.content != null) {
+			final byte[] content = _source.content;
+			_writer.addEntry(_source.name, System.currentTimeMillis(), new Callable<byte[]>() {
+				@Override
+				public byte[] call() {
+					return content;
+				}
+			});
+		}
+		else if (_source.file.exists()) {
+			final Path path = _source.file.toPath();
+			_writer.addEntry(_source.name, _source.file.lastModified(), new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return Files.readAllBytes(path);
+				}
+			});
+		}
+		else {
+			// Unmodified diagrams read from an archive are copied from there
+			File arrzFile = _source.file.getParentFile();
+			while (arrzFile != null && !arrzFile.isFile()) {
+				arrzFile = arrzFile.getParentFile();
+			}
+			if (arrzFile == null) {
+				throw new FileNotFoundException(_source.file.getAbsolutePath());
+			}
+			ZipFile zipfile = _zipFiles.get(arrzFile);
+			if (zipfile == null) {
+				zipfile = new ZipFile(arrzFile);
+				_zipFiles.put(arrzFile, zipfile);
+			}
+			final ZipFile srcArchive = zipfile;
+			final ZipEntry srcEntry = zipfile.getEntry(_source.file.getName());
+			if (srcEntry == null) {
+				throw new FileNotFoundException(_source.file.getAbsolutePath());
+			}
+			_writer.addEntry(_source.name, srcEntry.getTime(), new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					ByteArrayOutputStream content = new ByteArrayOutputStream((int)Math.max(srcEntry.getSize(), 32));
+					try (InputStream in = srcArchive.getInputStream(srcEntry)) {
+						byte buffer[] = new byte[8192];
+						int count;
+						while ((count = in.read(buffer)) != -1) {
+							content.write(buffer, 0, count);
+						}
+					}
+					return content.toByteArray();
+				}
+			});
 		}
-		return zipFilePath;
 	}
+
+	/**
+	 * Proposes an archive entry name for the virgin diagram {@code _root} that differs from all
+	 * names in {@code _names} and from all files in {@code _targetDir}. The name is added to
+	 * {@code _names}.
+	 */
+	private String makeEntryName(Root _root, File _targetDir, Set<String> _names)
+	// START KGU#869 2020-05-07: Also needed for namesakes of member files
+	{
+		return makeEntryName(_root.proposeFileName(), _targetDir, _names);
+	}
+
+	/**
+	 * Proposes an archive entry name based on {@code _baseName} that differs from all names
+	 * in {@code _names} and from all files in {@code _targetDir}. The name is added to
+	 * {@code _names}.
+	 */
+	private String makeEntryName(String _baseName, File _targetDir, Set<String> _names)
+	// END KGU#869 2020-05-07
+	{
+		String baseName = _baseName;
+		String name = baseName + ".nsd";
+		int count = 1;
+		while (_names.contains(name) || new File(_targetDir, name).exists()) {
+			name = baseName + "_" + count++ + ".nsd";
+		}
+		_names.add(name);
+		return name;
+	}
+	// END KGU#869 2020-05-01
 	
 	/**
 	 * Loads the arrangement described in {@code _arrFile} and returns the diagrams and their locations
@@ -861,6 +1369,10 @@ public class Archivar {
 	{
 		LinkedList<ArchiveRecord> items = null;
 		Scanner in;
+		// START KGU#867 2020-04-29: The diagrams are first collected, then parsed concurrently
+		List<LoadItem> loadItems = new ArrayList<LoadItem>();
+		HashMap<File, ZipFile> openArchives = new HashMap<File, ZipFile>();
+		// END KGU#867 2020-04-29
 		try {
 			in = new Scanner(_arrFile, "UTF8");
 			items = new LinkedList<ArchiveRecord>();
@@ -870,8 +1382,11 @@ public class Archivar {
 				StringList fields = StringList.explode(line, ",");
 				if (fields.count() >= 3)
 				{
-					boolean fileMissing = false;
-					Root root = null;
+					// START KGU#867 2020-04-29
+					//boolean fileMissing = false;
+					//Root root = null;
+					Callable<Root> job = null;
+					// END KGU#867 2020-04-29
 					Point point = new Point();
 					point.x = Integer.parseInt(fields.get(0));
 					point.y = Integer.parseInt(fields.get(1));
@@ -882,42 +1397,98 @@ public class Archivar {
 						nsdFileName = nsdFileName.substring(0, nsdFileName.length() - 1);
 					File nsd = new File(nsdFileName);
 					if (nsd.exists()) {
-						root = loadNSDFile(nsd, _fromArchive, _troubles);
+						// START KGU#867 2020-04-29
+						//root = loadNSDFile(nsd, _fromArchive, _troubles);
+						job = makeParseJob(nsd, _fromArchive);
+						// END KGU#867 2020-04-29
 					}
 					else if (!nsd.isAbsolute() && _tempDir != null) {
 						nsd = new File(_tempDir.getAbsolutePath() + File.separator + nsdFileName);
-						root = loadNSDFile(nsd, _fromArchive, _troubles);
+						// START KGU#867 2020-04-29
+						//root = loadNSDFile(nsd, _fromArchive, _troubles);
+						job = makeParseJob(nsd, _fromArchive);
+						// END KGU#867 2020-04-29
 					}
 					// It might be that the arr file refers to a virtual arrz path (#656)
 					else if (_fromArchive == null && nsdFileName.contains(".arrz")) {
 						File arrzFile = nsd.getParentFile();
 						String pureName = nsd.getName();
 						if (arrzFile.exists()) {
-							root = extractNSDFrom(arrzFile, pureName, null, _troubles);
+							// START KGU#867 2020-04-29
+							//root = extractNSDFrom(arrzFile, pureName, null, _troubles);
+							ZipFile zipfile = openArchives.get(arrzFile);
+							try {
+								if (zipfile == null) {
+									openArchives.put(arrzFile, zipfile = new ZipFile(arrzFile));
+								}
+								job = makeParseJob(zipfile, zipfile.getEntry(pureName), arrzFile);
+							}
+							catch (IOException ex) {
+								logger.log(Level.WARNING, "Failed to extract the NSD file " + pureName, ex);
+								_troubles.add(arrzFile + File.separator + pureName + ": " + ex.toString());
+								continue;
+							}
+							// END KGU#867 2020-04-29
 						}
 						// START KGU#749 2019-10-14: Bugfix #763 - we must inform about missing files
-						else {
-							fileMissing = true;
-						}
+						// START KGU#867 2020-04-29: Covered by job == null now
+						//else {
+						//	fileMissing = true;
+						//}
+						// END KGU#867 2020-04-29
 						// END KGU#749 2019-10-14
 					}
 					// START KGU#749 2019-10-14: Bugfix #763 - we must inform about missing files
-					else {
-						fileMissing = true;
-					}
-					// END KGU#749 2019-10-14
-					if (root != null) {
-						items.add(new ArchiveRecord(root, point));
-					}
-					// START KGU#749 2019-10-14: Bugfix #763 - we must inform about missing files
-					else if (fileMissing) {
-						_troubles.add(_arrFile.getName() + ": \"" + nsd.getAbsolutePath() + "\" MISSING!");
-					}
+					// START KGU#867 2020-04-29: Covered by job == null now
+					//else {
+					//	fileMissing = true;
+					//}
+					// END KGU#867 2020-04-29
 					// END KGU#749 2019-10-14
+					// START KGU#867 2020-04-29: Moved to the evaluation loop below
+					//if (root != null) {
+					//	items.add(new ArchiveRecord(root, point));
+					//}
+					//// START KGU#749 2019-10-14: Bugfix #763 - we must inform about missing files
+					//else if (fileMissing) {
+					//	_troubles.add(_arrFile.getName() + ": \"" + nsd.getAbsolutePath() + "\" MISSING!");
+					//}
+					//// END KGU#749 2019-10-14
+					loadItems.add(new LoadItem(point, nsd, job));
+					// END KGU#867 2020-04-29
 				}
 			}
 
 			in.close();
+			
+			// START KGU#867 2020-04-29: Parse all diagrams concurrently and collect them in order
+			List<Callable<Root>> jobs = new ArrayList<Callable<Root>>(loadItems.size());
+			for (LoadItem item: loadItems) {
+				if (item.job != null) {
+					jobs.add(item.job);
+				}
+			}
+			Iterator<Future<Root>> results = parseConcurrently(jobs).iterator();
+			for (LoadItem item: loadItems) {
+				if (item.job == null) {
+					// START KGU#749 2019-10-14: Bugfix #763 - we must inform about missing files
+					_troubles.add(_arrFile.getName() + ": \"" + item.nsdFile.getAbsolutePath() + "\" MISSING!");
+					// END KGU#749 2019-10-14
+					continue;
+				}
+				try {
+					Root root = getParsedRoot(results.next());
+					root.retrieveVarNames();	// Initialise the variable table, otherwise the highlighting won't work
+					items.add(new ArchiveRecord(root, item.point));
+				}
+				catch (InterruptedException ex) {
+					throw ex;
+				}
+				catch (Exception ex) {
+					_troubles.add(item.nsdFile.getAbsolutePath() + ": " + getErrorMessage(ex));
+				}
+			}
+			// END KGU#867 2020-04-29
 		} catch (FileNotFoundException e) {
 			_troubles.add(_arrFile.getAbsolutePath() + ": " + e.toString());
 			logger.log(Level.SEVERE, "Missing arrangement file: " + _arrFile.getAbsolutePath(), e);
@@ -925,9 +1496,504 @@ public class Archivar {
 			_troubles.add(_arrFile.getAbsolutePath() + ": " + ex.toString());
 			logger.log(Level.WARNING, "Trouble on loading arrangement: " + _arrFile.getAbsolutePath(), ex);
 		}
+		// START KGU#867 2020-04-29
+		finally {
+			for (ZipFile zipfile: openArchives.values()) {
+				try {
+					zipfile.close();
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, "Archive file " + zipfile.getName() + " couldn't be closed.", ex);
+				}
+			}
+		}
+		// END KGU#867 2020-04-29
 
 		return items;
 	}
+	
+	// START KGU#868 2020-04-30: Lazy loading of arrangements
+	/**
+	 * Reads the arrangement list {@code _arrFile} and resolves the referenced diagram files
+	 * in the same way as {@link #loadArrangement(File, File, File, StringList)} does, but
+	 * without loading them. The signatures of the diagrams are only available in the resulting
+	 * entries if the arrangement list contains them.
+	 * @param _arrFile - the arrangement list file containing the names or paths of the diagram files,
+	 * or the virtual path of the arrangement list entry within {@code _fromArchive}
+	 * (see {@link #getArrangementListPath(File)}), in which case the diagrams are referred to
+	 * within the archive as well (nothing is extracted)
+	 * @param _fromArchive - the arrangement archive file if the arangement originates in the archive
+	 * @param _tempDir - the directory to look for the diagram files if the paths aren't absolute.
+	 * @param _troubles - {@link StringList} to which missing files will be reported
+	 * @return the list of {@link ArchiveIndexEntry}s for the existing diagram files
+	 * @see ArchiveIndexEntry#createPlaceholder()
+	 * @see #parseDiagrams(List, StringList)
+	 */
+	public List<ArchiveIndexEntry> loadArrangementIndex(File _arrFile, File _fromArchive, File _tempDir, StringList _troubles)
+	{
+		List<ArchiveIndexEntry> entries = new ArrayList<ArchiveIndexEntry>();
+		HashMap<File, ZipFile> openArchives = new HashMap<File, ZipFile>();
+		// START KGU#866 2020-05-07: The arrangement list may be read directly from the archive
+		//try (Scanner in = new Scanner(_arrFile, "UTF8")) {
+		try (Scanner in = openArrangementList(_arrFile, _fromArchive, openArchives)) {
+			// The source archive if the arrangement list is read from it
+			ZipFile archive = _fromArchive == null ? null : openArchives.get(_fromArchive);
+		// END KGU#866 2020-05-07
+			while (in.hasNextLine())
+			{
+				String line = in.nextLine();
+				StringList fields = StringList.explode(line, ",");
+				if (fields.count() < 3) {
+					continue;
+				}
+				// Provides the location and (if given) the signature
+				ArchiveIndexEntry entry = new ArchiveIndexEntry(line, null, null);
+				String nsdFileName = fields.get(2);
+				if (nsdFileName.startsWith("\""))
+					nsdFileName = nsdFileName.substring(1);
+				if (nsdFileName.endsWith("\""))
+					nsdFileName = nsdFileName.substring(0, nsdFileName.length() - 1);
+				File nsd = new File(nsdFileName);
+				// START KGU#866 2020-05-07: Then the diagram is an entry of the archive, too
+				//if (!nsd.exists() && !nsd.isAbsolute() && _tempDir != null) {
+				if (archive != null && !nsd.isAbsolute()) {
+					nsd = new File(_fromArchive, nsdFileName);
+					if (archive.getEntry(nsdFileName) != null) {
+						entry.virtPath = nsd.getAbsolutePath();
+					}
+				}
+				else if (!nsd.exists() && !nsd.isAbsolute() && _tempDir != null) {
+				// END KGU#866 2020-05-07
+					nsd = new File(_tempDir.getAbsolutePath() + File.separator + nsdFileName);
+				}
+				if (nsd.exists()) {
+					entry.path = nsd.getAbsolutePath();
+					if (_fromArchive != null) {
+						entry.virtPath = _fromArchive.getAbsolutePath() + File.separator + nsd.getName();
+					}
+				}
+				// It might be that the arr file refers to a virtual arrz path (#656)
+				else if (_fromArchive == null && nsdFileName.contains(".arrz") && nsd.getParentFile().exists()) {
+					File arrzFile = nsd.getParentFile();
+					ZipFile zipfile = openArchives.get(arrzFile);
+					try {
+						if (zipfile == null) {
+							openArchives.put(arrzFile, zipfile = new ZipFile(arrzFile));
+						}
+						if (zipfile.getEntry(nsd.getName()) != null) {
+							entry.virtPath = nsd.getAbsolutePath();
+						}
+					}
+					catch (IOException ex) {
+						logger.log(Level.WARNING, "Failed to open the archive " + arrzFile, ex);
+					}
+				}
+				if (entry.path == null && entry.virtPath == null) {
+					_troubles.add(_arrFile.getName() + ": \"" + nsd.getAbsolutePath() + "\" MISSING!");
+				}
+				else {
+					entries.add(entry);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			_troubles.add(_arrFile.getAbsolutePath() + ": " + e.toString());
+			logger.log(Level.SEVERE, "Missing arrangement file: " + _arrFile.getAbsolutePath(), e);
+		} catch (Exception ex) {
+			_troubles.add(_arrFile.getAbsolutePath() + ": " + ex.toString());
+			logger.log(Level.WARNING, "Trouble on loading arrangement: " + _arrFile.getAbsolutePath(), ex);
+		}
+		finally {
+			for (ZipFile zipfile: openArchives.values()) {
+				try {
+					zipfile.close();
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, "Archive file " + zipfile.getName() + " couldn't be closed.", ex);
+				}
+			}
+		}
+		return entries;
+	}
+	
+	// START KGU#866 2020-05-07
+	/**
+	 * Opens the arrangement list {@code _arrFile} for reading, either as file or, if it doesn't
+	 * exist and {@code _fromArchive} is given, as the respective entry of the archive.
+	 * @param _arrFile - the arrangement list file or its virtual path within {@code _fromArchive}
+	 * @param _fromArchive - the arrangement archive the arrangement originates in, or null
+	 * @param _openArchives - maps the opened archives to their {@link ZipFile}s, which the caller
+	 * must close
+	 * @return a {@link Scanner} for the lines of the arrangement list
+	 * @throws IOException if neither the file nor the archive entry can be read
+	 */
+	private Scanner openArrangementList(File _arrFile, File _fromArchive, Map<File, ZipFile> _openArchives) throws IOException
+	{
+		if (_fromArchive == null || _arrFile.isFile()) {
+			return new Scanner(_arrFile, "UTF8");
+		}
+		ZipFile zipfile = new ZipFile(_fromArchive);
+		_openArchives.put(_fromArchive, zipfile);
+		ZipEntry entry = zipfile.getEntry(_arrFile.getName());
+		if (entry == null) {
+			throw new FileNotFoundException(_arrFile.getAbsolutePath());
+		}
+		return new Scanner(new InputStreamReader(zipfile.getInputStream(entry), "UTF-8"));
+	}
+	
+	/**
+	 * Finds the arrangement list within the arrangement archive {@code _arrzFile} without
+	 * extracting anything.
+	 * @param _arrzFile - the arrangement archive
+	 * @return the virtual path of the arrangement list entry (to be passed to
+	 * {@link #loadArrangementIndex(File, File, File, StringList)} with {@code _arrzFile}),
+	 * or null if there is none
+	 * @throws IOException if the archive can't be read
+	 */
+	public File getArrangementListPath(File _arrzFile) throws IOException
+	{
+		try (ZipFile zipfile = new ZipFile(_arrzFile)) {
+			Enumeration<? extends ZipEntry> entries = zipfile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (ArrFilter.isArr(entry.getName())) {
+					return new File(_arrzFile, entry.getName());
+				}
+			}
+		}
+		return null;
+	}
+	// END KGU#866 2020-05-07
+	
+	/**
+	 * Parses the diagrams referred to by the given {@code _entries} concurrently. Neither
+	 * the entries nor any shared state are modified, in particular the variable retrieval
+	 * of the obtained {@link Root}s is left to the caller.
+	 * @param _entries - the {@link ArchiveIndexEntry}s of the diagrams to be parsed
+	 * @param _troubles - a {@link StringList} error messages will be added to
+	 * @return the list of parsed {@link Root}s in the order of {@code _entries}, with null
+	 * for every diagram that failed to load
+	 * @see #loadArrangementIndex(File, File, File, StringList)
+	 */
+	public List<Root> parseDiagrams(List<ArchiveIndexEntry> _entries, StringList _troubles)
+	{
+		// START KGU#874 2020-05-07
+		//List<Callable<Root>> jobs = new ArrayList<Callable<Root>>(_entries.size());
+		//for (final ArchiveIndexEntry entry: _entries) {
+		//	jobs.add(new Callable<Root>() {
+		//		@Override
+		//		public Root call() throws Exception {
+		//			return parseDiagram(entry);
+		//		}
+		//	});
+		//}
+		//List<Root> roots = new ArrayList<Root>(_entries.size());
+		//Iterator<ArchiveIndexEntry> entries = _entries.iterator();
+		//for (Future<Root> result: parseConcurrently(jobs)) {
+		//	ArchiveIndexEntry entry = entries.next();
+		//	Root root = null;
+		//	try {
+		//		root = getParsedRoot(result);
+		//	}
+		//	catch (InterruptedException ex) {
+		//		Thread.currentThread().interrupt();
+		//		_troubles.add(entry.getPath() + ": " + ex.toString());
+		//	}
+		//	catch (Exception ex) {
+		//		_troubles.add(entry.getPath() + ": " + getErrorMessage(ex));
+		//	}
+		//	roots.add(root);
+		//}
+		//return roots;
+		return parseDiagrams(_entries, _troubles, false);
+		// END KGU#874 2020-05-07
+	}
+	
+	// START KGU#874 2020-05-07: Diagrams with identical content are parsed only once
+	/**
+	 * Parses the diagrams referred to by the given {@code _entries} concurrently, like
+	 * {@link #parseDiagrams(List, StringList)}. If {@code _shared} is true (and the diagram store
+	 * isn't disabled, see {@link #setDiagramStoreEnabled(boolean)}) then entries of arrangement
+	 * archives with identical content (according to the zip directory) are only parsed once, and
+	 * a diagram parsed by an earlier call and not modified since is returned instead of parsing
+	 * the entry again. So the result may contain the same {@link Root} several times, and the
+	 * returned {@link Root}s may already be in use (which only suits a caller that unifies equal
+	 * diagrams anyway, like the Arranger).
+	 * @param _entries - the {@link ArchiveIndexEntry}s of the diagrams to be parsed
+	 * @param _troubles - a {@link StringList} error messages will be added to
+	 * @param _shared - whether the diagrams may be shared
+	 * @return the list of {@link Root}s in the order of {@code _entries}, with null for every
+	 * diagram that failed to load
+	 */
+	public List<Root> parseDiagrams(List<ArchiveIndexEntry> _entries, StringList _troubles, boolean _shared)
+	{
+		int nEntries = _entries.size();
+		long[] keys = new long[nEntries];
+		java.util.Arrays.fill(keys, -1);
+		if (_shared && useDiagramStore) {
+			List<String> paths = new ArrayList<String>(nEntries);
+			for (ArchiveIndexEntry entry: _entries) {
+				// Only the keys of archive entries come for free
+				paths.add(entry.path == null ? entry.virtPath : null);
+			}
+			keys = getFileContentKeys(paths);
+		}
+		Root[] roots = new Root[nEntries];
+		// Index of the first entry with the respective content key
+		HashMap<Long, Integer> firstIndices = new HashMap<Long, Integer>();
+		List<Callable<Root>> jobs = new ArrayList<Callable<Root>>(nEntries);
+		List<Integer> jobIndices = new ArrayList<Integer>(nEntries);
+		for (int i = 0; i < nEntries; i++) {
+			final ArchiveIndexEntry entry = _entries.get(i);
+			if (keys[i] != -1) {
+				Root root = diagramStore.get(keys[i]);
+				if (root != null && (!entry.hasSignature() || entry.name.equals(root.getMethodName()))) {
+					roots[i] = root;
+					continue;
+				}
+				if (firstIndices.containsKey(keys[i])) {
+					continue;
+				}
+				firstIndices.put(keys[i], i);
+			}
+			jobs.add(new Callable<Root>() {
+				@Override
+				public Root call() throws Exception {
+					return parseDiagram(entry);
+				}
+			});
+			jobIndices.add(i);
+		}
+		Iterator<Integer> indices = jobIndices.iterator();
+		for (Future<Root> result: parseConcurrently(jobs)) {
+			int i = indices.next();
+			ArchiveIndexEntry entry = _entries.get(i);
+			try {
+				roots[i] = getParsedRoot(result);
+				if (keys[i] != -1) {
+					diagramStore.put(keys[i], roots[i]);
+				}
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				_troubles.add(entry.getPath() + ": " + ex.toString());
+			}
+			catch (Exception ex) {
+				_troubles.add(entry.getPath() + ": " + getErrorMessage(ex));
+			}
+		}
+		List<Root> rootList = new ArrayList<Root>(nEntries);
+		for (int i = 0; i < nEntries; i++) {
+			if (roots[i] == null && keys[i] != -1) {
+				// Same content as an entry parsed before
+				roots[i] = roots[firstIndices.get(keys[i])];
+			}
+			rootList.add(roots[i]);
+		}
+		return rootList;
+	}
+	// END KGU#874 2020-05-07
+	
+	/**
+	 * Parses the diagram referred to by {@code _entry} (either an NSD file or an entry of
+	 * an arrangement archive). Does not touch any shared state, so may be called from a
+	 * worker thread. The variable retrieval is left to the caller.
+	 * @param _entry - the {@link ArchiveIndexEntry} of the diagram
+	 * @return the parsed {@link Root}
+	 * @throws Exception if the file is missing or parsing fails
+	 */
+	private Root parseDiagram(ArchiveIndexEntry _entry) throws Exception
+	{
+		Root root = null;
+		if (_entry.path != null) {
+			File arrzFile = null;
+			if (_entry.virtPath != null) {
+				arrzFile = (new File(_entry.virtPath)).getParentFile();
+			}
+			root = parseNSDFile(new File(_entry.path), arrzFile);
+		}
+		else if (_entry.virtPath != null) {
+			File virtFile = new File(_entry.virtPath);
+			File arrzFile = virtFile.getParentFile();
+			try (ZipFile zipfile = new ZipFile(arrzFile)) {
+				ZipEntry entry = zipfile.getEntry(virtFile.getName());
+				if (entry == null) {
+					throw new FileNotFoundException(_entry.virtPath);
+				}
+				root = parseNSDEntry(zipfile, entry, arrzFile, null);
+			}
+		}
+		else {
+			throw new FileNotFoundException(String.valueOf(_entry.name));
+		}
+		return root;
+	}
+	// END KGU#868 2020-04-30
+
+	// START KGU#873 2020-05-05: Arrangement cache
+	/**
+	 * Retrieves the {@link ArrangementCache} associated with the arrangement list {@code _arrFile},
+	 * i.e. the sidecar file next to it or, if there is none, the respective entry of the
+	 * arrangement archive {@code _fromArchive}.
+	 * @param _arrFile - the arrangement list file
+	 * @param _fromArchive - the arrangement archive file if the arrangement originates in the archive, or null
+	 * @return the cache, or null if there is none or it is unreadable
+	 * @see #getContentKeys(List)
+	 */
+	public ArrangementCache loadArrangementCache(File _arrFile, File _fromArchive)
+	{
+		ArrangementCache cache = null;
+		File cacheFile = ArrangementCache.getCacheFile(_arrFile);
+		try {
+			if (cacheFile.isFile()) {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(cacheFile))) {
+					cache = ArrangementCache.read(in);
+				}
+			}
+			else if (_fromArchive != null && _fromArchive.isFile()) {
+				try (ZipFile zipfile = new ZipFile(_fromArchive)) {
+					ZipEntry entry = zipfile.getEntry(cacheFile.getName());
+					if (entry != null) {
+						try (InputStream in = new BufferedInputStream(zipfile.getInputStream(entry))) {
+							cache = ArrangementCache.read(in);
+						}
+					}
+				}
+			}
+		}
+		catch (IOException ex) {
+			// The cache is dispensable
+			logger.log(Level.INFO, "Ignoring the arrangement cache of " + _arrFile, ex);
+		}
+		return cache;
+	}
+
+	/**
+	 * Writes the {@link ArrangementCache} for the arrangement list {@code _arrFile} as sidecar file
+	 * (see {@link ArrangementCache#getCacheFile(File)}), the keys being derived from the current
+	 * content of the diagram files.
+	 * @param _arrFile - the arrangement list file
+	 * @param _cacheItems - maps (unmodified) diagrams to their {@link ArrangementCache.Item}s
+	 * @throws IOException if writing failed
+	 * @see #saveArrangement(Collection, String, File, File, Point, Map, StringList)
+	 */
+	public void saveArrangementCache(File _arrFile, Map<Root, ArrangementCache.Item> _cacheItems) throws IOException
+	{
+		List<Root> roots = new ArrayList<Root>(_cacheItems.keySet());
+		List<String> paths = new ArrayList<String>(roots.size());
+		for (Root root: roots) {
+			String path = root.shadowFilepath;
+			if (path == null || !(new File(path)).exists()) {
+				path = root.getPath();
+			}
+			paths.add(path.isEmpty() ? null : path);
+		}
+		long[] keys = getFileContentKeys(paths);
+		ArrangementCache cache = new ArrangementCache();
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != -1) {
+				cache.put(keys[i], _cacheItems.get(roots.get(i)));
+			}
+		}
+		cache.encodeThumbnails(getWorkerPool());
+		Files.write(ArrangementCache.getCacheFile(_arrFile).toPath(), cache.toByteArray());
+	}
+
+	/**
+	 * Determines the {@link ArrangementCache} keys of the diagram files referred to by {@code _entries}.
+	 * Files are read concurrently, for entries of an archive the checksum recorded in the archive is used.
+	 * @param _entries - the {@link ArchiveIndexEntry}s of the diagrams (see
+	 * {@link #loadArrangementIndex(File, File, File, StringList)})
+	 * @return the keys in the order of {@code _entries}, -1 where the file couldn't be read
+	 * @see ArrangementCache#makeKey(byte[])
+	 */
+	public long[] getContentKeys(List<ArchiveIndexEntry> _entries)
+	{
+		List<String> paths = new ArrayList<String>(_entries.size());
+		for (ArchiveIndexEntry entry: _entries) {
+			// Same preference as with parsing
+			paths.add(entry.path != null ? entry.path : entry.virtPath);
+		}
+		return getFileContentKeys(paths);
+	}
+
+	/**
+	 * Determines the {@link ArrangementCache} keys of the files given by {@code _paths}, which may
+	 * also be virtual paths into arrangement archives.
+	 * @param _paths - the file paths (null elements are allowed)
+	 * @return the keys in the order of {@code _paths}, -1 where the file couldn't be read
+	 */
+	private long[] getFileContentKeys(List<String> _paths)
+	{
+		long[] keys = new long[_paths.size()];
+		java.util.Arrays.fill(keys, -1);
+		List<Callable<Long>> jobs = new ArrayList<Callable<Long>>();
+		List<Integer> jobIndices = new ArrayList<Integer>();
+		HashMap<File, ZipFile> openArchives = new HashMap<File, ZipFile>();
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				String path = _paths.get(i);
+				if (path == null) {
+					continue;
+				}
+				File file = new File(path);
+				if (file.isFile()) {
+					final Path filePath = file.toPath();
+					jobs.add(new Callable<Long>() {
+						@Override
+						public Long call() throws IOException {
+							return ArrangementCache.makeKey(Files.readAllBytes(filePath));
+						}
+					});
+					jobIndices.add(i);
+					continue;
+				}
+				File arrzFile = file.getParentFile();
+				while (arrzFile != null && !arrzFile.isFile()) {
+					arrzFile = arrzFile.getParentFile();
+				}
+				if (arrzFile == null) {
+					continue;
+				}
+				try {
+					ZipFile zipfile = openArchives.get(arrzFile);
+					if (zipfile == null) {
+						openArchives.put(arrzFile, zipfile = new ZipFile(arrzFile));
+					}
+					ZipEntry entry = zipfile.getEntry(file.getName());
+					if (entry != null && entry.getCrc() != -1 && entry.getSize() != -1) {
+						keys[i] = ArrangementCache.makeKey(entry.getCrc(), entry.getSize());
+					}
+				}
+				catch (IOException ex) {
+					logger.log(Level.WARNING, "Failed to open the archive " + arrzFile, ex);
+				}
+			}
+		}
+		finally {
+			for (ZipFile zipfile: openArchives.values()) {
+				try {
+					zipfile.close();
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, "Archive file " + zipfile.getName() + " couldn't be closed.", ex);
+				}
+			}
+		}
+		try {
+			Iterator<Integer> indices = jobIndices.iterator();
+			for (Future<Long> result: getWorkerPool().invokeAll(jobs)) {
+				int index = indices.next();
+				try {
+					keys[index] = result.get();
+				}
+				catch (ExecutionException ex) {
+					// Then the file simply misses the cache
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return keys;
+	}
+	// END KGU#873 2020-05-05
 
 	/**
 	 * Loads the {@link Root} from the given file {@code _nsdFile}. If the file had been
@@ -940,29 +2006,37 @@ public class Archivar {
 	 * @return the loaded {@link Root} or null (in case loading failed for some reason)
 	 * @throws Exception if some problem occurs and {@code _troubles} is null
 	 * @see #extractNSDFrom(File, String, File, StringList)
-	 * @see #unzipArrangement(File, File)
+	 * @see #unzipArrangementArchive(File, File)
 	 */
 	private Root loadNSDFile(File _nsdFile, File _fromArchive, StringList _troubles) throws Exception {
 		Root root = null;
-		// open an existing file
-		NSDParser parser = new NSDParser();
+		// START KGU#867 2020-04-29: Parsing decomposed for concurrent loading
+		//// open an existing file
+		//NSDParser parser = new NSDParser();
+		// END KGU#867 2020-04-29
 		try {
-			// The second argument improves attribute information for temporary legacy nsd files extracted from arrz files (KGU#363)
-			root = parser.parse(_nsdFile, _fromArchive);
-
-			root.filename = _nsdFile.getAbsolutePath();
-			// Enh. #318 Allow nsd files to "reside" in arrz files
-			if (_fromArchive != null) {
-				root.filename = _fromArchive.getAbsolutePath() + File.separator + _nsdFile.getName();
-				root.shadowFilepath = _nsdFile.getAbsolutePath();
-			}
+			// START KGU#867 2020-04-29
+			//// The second argument improves attribute information for temporary legacy nsd files extracted from arrz files (KGU#363)
+			//root = parser.parse(_nsdFile, _fromArchive);
+			//
+			//root.filename = _nsdFile.getAbsolutePath();
+			//// Enh. #318 Allow nsd files to "reside" in arrz files
+			//if (_fromArchive != null) {
+			//	root.filename = _fromArchive.getAbsolutePath() + File.separator + _nsdFile.getName();
+			//	root.shadowFilepath = _nsdFile.getAbsolutePath();
+			//}
+			root = parseNSDFile(_nsdFile, _fromArchive);
+			// END KGU#867 2020-04-29
 			root.retrieveVarNames();	// Initialise the variable table, otherwise the highlighting won't work
 		}
 		catch (Exception ex) {
-			String errorMessage = ex.getLocalizedMessage();
-			if (errorMessage == null && (errorMessage = ex.getMessage()) == null) {
-				errorMessage = ex.toString();
-			}
+			// START KGU#867 2020-04-29
+			//String errorMessage = ex.getLocalizedMessage();
+			//if (errorMessage == null && (errorMessage = ex.getMessage()) == null) {
+			//	errorMessage = ex.toString();
+			//}
+			String errorMessage = getErrorMessage(ex);
+			// END KGU#867 2020-04-29
 			if (_troubles != null) {
 				_troubles.add(_nsdFile.getAbsolutePath() + ": " + errorMessage);
 			}
@@ -972,72 +2046,358 @@ public class Archivar {
 		}
 		return root;
 	}
+	
+	// START KGU#867 2020-04-29: Parsing decomposed for concurrent loading
+	/** A diagram reference of an arrangement with the job to parse it (if available) */
+	private static final class LoadItem {
+		final Point point;
+		final File nsdFile;
+		/** The parsing job or null if the file is missing */
+		final Callable<Root> job;
+		LoadItem(Point _point, File _nsdFile, Callable<Root> _job)
+		{
+			point = _point;
+			nsdFile = _nsdFile;
+			job = _job;
+		}
+	}
+	
+	/**
+	 * Creates a job parsing file {@code _nsdFile}.
+	 * @see #parseNSDFile(File, File)
+	 */
+	private Callable<Root> makeParseJob(final File _nsdFile, final File _fromArchive)
+	{
+		return new Callable<Root>() {
+			@Override
+			public Root call() throws Exception {
+				return parseNSDFile(_nsdFile, _fromArchive);
+			}
+		};
+	}
+	
+	/**
+	 * Creates a job parsing entry {@code _entry} of the opened archive {@code _zipfile}.
+	 * @return the job or null if {@code _entry} is null
+	 * @see #parseNSDEntry(ZipFile, ZipEntry, File, File)
+	 */
+	private Callable<Root> makeParseJob(final ZipFile _zipfile, final ZipEntry _entry, final File _arrzFile)
+	{
+		if (_entry == null) {
+			return null;
+		}
+		return new Callable<Root>() {
+			@Override
+			public Root call() throws Exception {
+				return parseNSDEntry(_zipfile, _entry, _arrzFile, null);
+			}
+		};
+	}
+	
+	/**
+	 * Parses the given file {@code _nsdFile} and sets the file path (and, if {@code _fromArchive}
+	 * is given, the virtual and shadow path) of the resulting {@link Root}. Does not touch any
+	 * shared state, so may be called from a worker thread. The variable retrieval is left to
+	 * the caller.
+	 * @param _nsdFile - the NSD file to load
+	 * @param _fromArchive - the archive file {@code _nsdFile} was extracted from, or null.
+	 * @return the loaded {@link Root}
+	 * @throws Exception if parsing fails
+	 * @see #loadNSDFile(File, File, StringList)
+	 */
+	private Root parseNSDFile(File _nsdFile, File _fromArchive) throws Exception
+	{
+		// open an existing file
+		NSDParser parser = new NSDParser();
+		// The second argument improves attribute information for temporary legacy nsd files extracted from arrz files (KGU#363)
+		Root root = parser.parse(_nsdFile, _fromArchive);
+
+		root.filename = _nsdFile.getAbsolutePath();
+		// Enh. #318 Allow nsd files to "reside" in arrz files
+		if (_fromArchive != null) {
+			root.filename = _fromArchive.getAbsolutePath() + File.separator + _nsdFile.getName();
+			root.shadowFilepath = _nsdFile.getAbsolutePath();
+		}
+		return root;
+	}
+	
+	/**
+	 * @param ex - an exception
+	 * @return the (localized) message of {@code ex} or its string representation
+	 */
+	private static String getErrorMessage(Exception ex)
+	{
+		String errorMessage = ex.getLocalizedMessage();
+		if (errorMessage == null && (errorMessage = ex.getMessage()) == null) {
+			errorMessage = ex.toString();
+		}
+		return errorMessage;
+	}
+	// END KGU#867 2020-04-29
 
 	/**
-	 * Selectively extracts a single NSD file with name {@code _nsdName} (no path!) from the
-	 * arrangement archive {@code _arrzFile} into target directory {@code _targetDir} and loads
-	 * it, returning the resulting {@link Root} if all went well.
+	 * Selectively loads a single NSD file with name {@code _nsdName} (no path!) from the
+	 * arrangement archive {@code _arrzFile}, returning the resulting {@link Root} if all went well.<br/>
+	 * The file is read directly from the archive, nothing is extracted. But the {@link Root} gets
+	 * a shadow path in {@code _targetDir} such that it may be saved from a Structorizer editor.
 	 * @param _arrzFile - the arrangement archive
 	 * @param _nsdName - the pure file name (without path)
-	 * @param _targetDir - the extraction target folder (if null, a temp folder will be used)
+	 * @param _targetDir - the folder for the shadow file (if null, the shadow folder of the archive will be used)
 	 * @param _troubles - a {@link StringList} collecting possible error messages
 	 * @return - the extracted {@link Root} object, or null if something went wrong.
 	 */
 	public Root extractNSDFrom(File _arrzFile, String _nsdName, File _targetDir, StringList _troubles) {
-		final int BUFSIZE = 2048;
-		if (_targetDir == null) {
-			_targetDir = findTempDir();
-		}
+		// START KGU#866 2020-04-28: No longer extract the file, parse the entry directly
+//		final int BUFSIZE = 2048;
+//		if (_targetDir == null) {
+//			_targetDir = findTempDir();
+//		}
+//		Root root = null;
+//		ZipFile zipfile = null;
+//		try {
+//			BufferedOutputStream dest = null;
+//			BufferedInputStream bistr = null;
+//			zipfile = new ZipFile(_arrzFile);
+//			Enumeration<? extends ZipEntry> entries = zipfile.entries();
+//			while(entries.hasMoreElements()) {
+//				ZipEntry entry = (ZipEntry) entries.nextElement();
+//				if (_nsdName.equals(entry.getName())) {
+//					File targetFile = new File(_targetDir.getAbsolutePath() + File.separator + _nsdName);
+//					bistr = new BufferedInputStream
+//							(zipfile.getInputStream(entry));
+//					int count;
+//					byte buffer[] = new byte[BUFSIZE];
+//					FileOutputStream fostr = new FileOutputStream(targetFile);
+//					dest = new BufferedOutputStream(fostr, BUFSIZE);
+//					while ((count = bistr.read(buffer, 0, BUFSIZE))	!= -1)
+//					{
+//						dest.write(buffer, 0, count);
+//					}
+//					dest.flush();
+//					dest.close();
+//					bistr.close();
+//					// Preserve at least the modification time if possible
+//					Path destPath = (targetFile).toPath();
+//					try {
+//						Files.setLastModifiedTime(destPath, entry.getLastModifiedTime());
+//					} catch (IOException e) {}
+//					if (targetFile.exists()) {
+//						root = this.loadNSDFile(targetFile, _arrzFile, _troubles);
+//					}
+//					break;
+//				}
+//			}
+//		} catch(Exception ex) {
+//			logger.log(Level.WARNING, "Failed to extract the NSD file " + _nsdName, ex);
+//			_troubles.add(_arrzFile + File.separator + _nsdName + ": " + ex.toString());
+//		}
+//		finally {
+//			if (zipfile != null) {
+//				try {
+//					zipfile.close();
+//				} catch (IOException ex) {
+//					logger.log(Level.WARNING, "Archive file " + _arrzFile.getAbsolutePath() + " couldn't be closed.", ex);
+//				}
+//			}
+//		}
+		// START KGU#866 2020-05-07: The common temp folder might contain stale namesakes
+		//if (_targetDir == null) {
+		//	_targetDir = findTempDir();
+		//}
+		// (A missing _targetDir is replaced by the shadow folder of the archive in parseNSDEntry())
+		// END KGU#866 2020-05-07
 		Root root = null;
-		ZipFile zipfile = null;
 		try {
-			BufferedOutputStream dest = null;
-			BufferedInputStream bistr = null;
-			zipfile = new ZipFile(_arrzFile);
-			Enumeration<? extends ZipEntry> entries = zipfile.entries();
-			while(entries.hasMoreElements()) {
-				ZipEntry entry = (ZipEntry) entries.nextElement();
-				if (_nsdName.equals(entry.getName())) {
-					File targetFile = new File(_targetDir.getAbsolutePath() + File.separator + _nsdName);
-					bistr = new BufferedInputStream
-							(zipfile.getInputStream(entry));
-					int count;
-					byte buffer[] = new byte[BUFSIZE];
-					FileOutputStream fostr = new FileOutputStream(targetFile);
-					dest = new BufferedOutputStream(fostr, BUFSIZE);
-					while ((count = bistr.read(buffer, 0, BUFSIZE))	!= -1)
-					{
-						dest.write(buffer, 0, count);
-					}
-					dest.flush();
-					dest.close();
-					bistr.close();
-					// Preserve at least the modification time if possible
-					Path destPath = (targetFile).toPath();
-					try {
-						Files.setLastModifiedTime(destPath, entry.getLastModifiedTime());
-					} catch (IOException e) {}
-					if (targetFile.exists()) {
-						root = this.loadNSDFile(targetFile, _arrzFile, _troubles);
-					}
-					break;
-				}
-			}
-		} catch(Exception ex) {
+			root = loadNSDFromArchive(_arrzFile, _nsdName, _targetDir, _troubles);
+		}
+		catch (Exception ex) {
 			logger.log(Level.WARNING, "Failed to extract the NSD file " + _nsdName, ex);
-			_troubles.add(_arrzFile + File.separator + _nsdName + ": " + ex.toString());
+			if (_troubles != null) {
+				_troubles.add(_arrzFile + File.separator + _nsdName + ": " + ex.toString());
+			}
 		}
-		finally {
-			if (zipfile != null) {
-				try {
-					zipfile.close();
-				} catch (IOException ex) {
-					logger.log(Level.WARNING, "Archive file " + _arrzFile.getAbsolutePath() + " couldn't be closed.", ex);
-				}
+		// END KGU#866 2020-04-28
+		return root;
+	}
+	
+	// START KGU#866 2020-04-28
+	/**
+	 * Loads the NSD file with name {@code _nsdName} directly from arrangement archive {@code _arrzFile}.
+	 * @param _arrzFile - the arrangement archive
+	 * @param _nsdName - the pure entry name (without path)
+	 * @param _shadowDir - the folder for the (prospective) shadow file or null for the shadow folder of the archive
+	 * @param _troubles - a {@link StringList} collecting possible error messages, or null
+	 * @return the loaded {@link Root} or null (in case loading failed for some reason)
+	 * @throws Exception if something goes wrong and {@code _troubles} is null
+	 * @see #loadNSDEntry(ZipFile, ZipEntry, File, File, StringList)
+	 */
+	private Root loadNSDFromArchive(File _arrzFile, String _nsdName, File _shadowDir, StringList _troubles) throws Exception
+	{
+		Root root = null;
+		try (ZipFile zipfile = new ZipFile(_arrzFile)) {
+			ZipEntry entry = zipfile.getEntry(_nsdName);
+			if (entry != null) {
+				root = loadNSDEntry(zipfile, entry, _arrzFile, _shadowDir, _troubles);
+			}
+			else if (_troubles != null) {
+				_troubles.add(_arrzFile.getName() + ": \"" + _nsdName + "\" MISSING!");
+			}
+			else {
+				throw new FileNotFoundException(_arrzFile.getAbsolutePath() + File.separator + _nsdName);
+			}
+		}
+		return root;
+	}
+	
+	/**
+	 * Parses the {@link Root} from entry {@code _entry} of the opened arrangement archive
+	 * {@code _zipfile} without extracting it. The virtual path into the archive will be the
+	 * file path of the {@link Root}, the shadow path is only prospective (the shadow file is
+	 * not created here).
+	 * @param _zipfile - the opened arrangement archive
+	 * @param _entry - the entry of the NSD file within {@code _zipfile}
+	 * @param _arrzFile - the archive file (for attribute inference and the virtual path)
+	 * @param _shadowDir - the folder for the shadow file or null for the shadow folder of the archive
+	 * @param _troubles - a {@link StringList} error messages may be added to, or null
+	 * @return the loaded {@link Root} or null (in case loading failed for some reason)
+	 * @throws Exception if some problem occurs and {@code _troubles} is null
+	 * @see #loadNSDFile(File, File, StringList)
+	 */
+	private Root loadNSDEntry(ZipFile _zipfile, ZipEntry _entry, File _arrzFile, File _shadowDir, StringList _troubles) throws Exception
+	{
+		Root root = null;
+		String virtPath = _arrzFile.getAbsolutePath() + File.separator + _entry.getName();
+		// START KGU#867 2020-04-29: Parsing decomposed for concurrent loading
+		//try (InputStream in = new BufferedInputStream(_zipfile.getInputStream(_entry))) {
+		//	root = new NSDParser().parse(in, _entry, _arrzFile);
+		//	root.filename = virtPath;
+		//	if (_shadowDir == null) {
+		//		_shadowDir = findTempDir();
+		//	}
+		//	root.shadowFilepath = _shadowDir.getAbsolutePath() + File.separator + _entry.getName();
+		try {
+			root = parseNSDEntry(_zipfile, _entry, _arrzFile, _shadowDir);
+		// END KGU#867 2020-04-29
+			root.retrieveVarNames();	// Initialise the variable table, otherwise the highlighting won't work
+		}
+		catch (Exception ex) {
+			// START KGU#867 2020-04-29
+			//String errorMessage = ex.getLocalizedMessage();
+			//if (errorMessage == null && (errorMessage = ex.getMessage()) == null) {
+			//	errorMessage = ex.toString();
+			//}
+			String errorMessage = getErrorMessage(ex);
+			// END KGU#867 2020-04-29
+			if (_troubles != null) {
+				_troubles.add(virtPath + ": " + errorMessage);
+			}
+			else {
+				throw ex;
 			}
 		}
 		return root;
 	}
+	// END KGU#866 2020-04-28
+	
+	// START KGU#867 2020-04-29: Parsing decomposed for concurrent loading
+	/**
+	 * Parses the {@link Root} from entry {@code _entry} of the opened arrangement archive
+	 * {@code _zipfile} and sets its virtual and (prospective) shadow path. Does not touch
+	 * any shared state, so may be called from a worker thread. The variable retrieval is
+	 * left to the caller.
+	 * @param _zipfile - the opened arrangement archive
+	 * @param _entry - the entry of the NSD file within {@code _zipfile}
+	 * @param _arrzFile - the archive file (for attribute inference and the virtual path)
+	 * @param _shadowDir - the folder for the shadow file or null for the shadow folder of the archive
+	 * @return the loaded {@link Root}
+	 * @throws Exception if parsing fails
+	 * @see #loadNSDEntry(ZipFile, ZipEntry, File, File, StringList)
+	 */
+	private Root parseNSDEntry(ZipFile _zipfile, ZipEntry _entry, File _arrzFile, File _shadowDir) throws Exception
+	{
+		Root root = null;
+		try (InputStream in = new BufferedInputStream(_zipfile.getInputStream(_entry))) {
+			root = new NSDParser().parse(in, _entry, _arrzFile);
+		}
+		root.filename = _arrzFile.getAbsolutePath() + File.separator + _entry.getName();
+		if (_shadowDir == null) {
+			// START KGU#866 2020-05-07: The common temp folder might contain stale namesakes
+			//_shadowDir = findTempDir();
+			_shadowDir = getShadowDir(_arrzFile);
+			// END KGU#866 2020-05-07
+		}
+		root.shadowFilepath = _shadowDir.getAbsolutePath() + File.separator + _entry.getName();
+		return root;
+	}
+	
+	/**
+	 * Submits the given parsing jobs to the shared worker pool. The caller should fetch
+	 * the results in order and do the variable retrieval for the obtained {@link Root}s
+	 * itself (this depends on other diagrams and is not thread-safe).
+	 * @param _jobs - the parsing jobs
+	 * @return the futures of the parsed {@link Root}s in the order of {@code _jobs}
+	 * @see #getParsedRoot(Future)
+	 */
+	private static List<Future<Root>> parseConcurrently(List<Callable<Root>> _jobs)
+	{
+		List<Future<Root>> results = new ArrayList<Future<Root>>(_jobs.size());
+		ForkJoinPool pool = getWorkerPool();
+		for (Callable<Root> job: _jobs) {
+			// A FutureTask (unlike ForkJoinPool.submit()) reports the original exception of a job
+			FutureTask<Root> task = new FutureTask<Root>(job);
+			pool.execute(task);
+			results.add(task);
+		}
+		return results;
+	}
+	
+	/**
+	 * Waits for the given parsing result and returns the parsed {@link Root}, re-throwing the
+	 * original exception if parsing failed.
+	 * @param _result - a future obtained from {@link #parseConcurrently(List)}
+	 * @return the parsed {@link Root}
+	 * @throws Exception if parsing failed or the thread was interrupted
+	 */
+	private static Root getParsedRoot(Future<Root> _result) throws Exception
+	{
+		try {
+			return _result.get();
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			}
+			throw ex;
+		}
+	}
+	
+	// START KGU#874 2020-05-06
+	/**
+	 * Enables or disables the store shared by all Archivar instances, which avoids parsing
+	 * identical archive entries again (enabled by default). Disabling it drops the stored
+	 * diagrams.
+	 * @param _enabled - whether diagrams are to be shared via the store
+	 * @see #parseDiagrams(List, StringList, boolean)
+	 */
+	public static void setDiagramStoreEnabled(boolean _enabled)
+	{
+		useDiagramStore = _enabled;
+		if (!_enabled) {
+			diagramStore.clear();
+		}
+	}
+	// END KGU#874 2020-05-06
+	
+	/** @return the shared worker pool for parsing (created on demand) */
+	private static synchronized ForkJoinPool getWorkerPool()
+	{
+		if (workerPool == null) {
+			workerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return workerPool;
+	}
+	// END KGU#867 2020-04-29
 
 	/**
 	 * Extracts all files contained in the archive file given by {@code _arrzFile} into the
@@ -1104,49 +2464,143 @@ public class Archivar {
 
 	/**
 	 * Inspects the content of the arrangement archive specified by {@code _arrzFile} and 
-	 * derives an {@link ArchiveIndex} of it without extracting the files themselves unless
-	 * the arrangement is of legacy format without signature and {@code _targetDir} is given,
-	 * in which case the {@link Root}s will be extracted in order to get the signature info
-	 * of the contained diagrams.
+	 * derives an {@link ArchiveIndex} of it without extracting the files. If the arrangement
+	 * is of legacy format without signatures then the respective {@link Root}s will be loaded
+	 * directly from the archive in order to get the signature info of the contained diagrams.
 	 * @param _arrzFile - the archive file to be inspected
-	 * @param _targetDir - an extraction directory: if not null and the arranger list doesn't
-	 * contain the signatures then the arranger list file and the NSD files will be extracted
-	 * there.
+	 * @param _targetDir - a directory for the shadow files of the {@link Root}s loaded from the
+	 * archive (they are only created on saving from a Structorizer editor), may be null
 	 * @return the content overview
+	 * @see #getArrangementArchiveContent(File, File, boolean)
 	 */
 	public ArchiveIndex getArrangementArchiveContent(File _arrzFile, File _targetDir)
+	{
+		return getArrangementArchiveContent(_arrzFile, _targetDir, false);
+	}
+	
+	/**
+	 * Inspects the content of the arrangement archive specified by {@code _arrzFile} and 
+	 * derives an {@link ArchiveIndex} of it without extracting the files. If {@code _loadAll}
+	 * is true or the arrangement is of legacy format without signatures then the {@link Root}s
+	 * will be loaded directly from the archive.
+	 * @param _arrzFile - the archive file to be inspected
+	 * @param _targetDir - a directory for the shadow files of the {@link Root}s loaded from the
+	 * archive (they are only created on saving from a Structorizer editor), may be null
+	 * @param _loadAll - whether all diagrams are to be loaded at once
+	 * @return the content overview
+	 * @see #getArrangementArchiveContent(File, File)
+	 */
+	public ArchiveIndex getArrangementArchiveContent(final File _arrzFile, final File _targetDir, boolean _loadAll)
 	{
 		ArchiveIndex archiveIndex = null;
 		String arrFileName = null;
-		final int BUFSIZE = 2048;
+		// START KGU#866 2020-04-28: Keep the archive open for the loading of the diagrams
+		//final int BUFSIZE = 2048;
+		// END KGU#866 2020-04-28
 		ZipFile zipfile = null;
 		StringList arrContents = null;
 		try {
-			BufferedInputStream bistr = null;
+			// START KGU#866 2020-04-28: The arr file was decoded chunk-wise (corrupting multi-byte characters)
+			//BufferedInputStream bistr = null;
+			// END KGU#866 2020-04-28
 			zipfile = new ZipFile(_arrzFile);
 			Enumeration<? extends ZipEntry> entries = zipfile.entries();
 			while(entries.hasMoreElements()) {
 				ZipEntry entry = (ZipEntry) entries.nextElement();
-				StringBuilder strb = new StringBuilder();
+				// START KGU#866 2020-04-28
+				//StringBuilder strb = new StringBuilder();
+				// END KGU#866 2020-04-28
 				if (ArrFilter.isArr(entry.getName())) {
 					arrFileName = _arrzFile.getAbsolutePath() + File.separator + entry.getName();
-					bistr = new BufferedInputStream
-							(zipfile.getInputStream(entry));
+					// START KGU#866 2020-04-28
+					//bistr = new BufferedInputStream
+					//		(zipfile.getInputStream(entry));
+					//try {
+					//int count;
+					//byte buffer[] = new byte[BUFSIZE];
+					//while ((count = bistr.read(buffer, 0, BUFSIZE))	!= -1)
+					//{
+					//	strb.append((new String(buffer, "UTF-8")).substring(0, count));
+					//}
+					//}
+					//finally {
+					//	if (bistr != null) bistr.close();
+					//}
+					//arrContents = StringList.explode(strb.toString(), "\n");
+					arrContents = new StringList();
+					try (Scanner in = new Scanner(new InputStreamReader(zipfile.getInputStream(entry), "UTF-8"))) {
+						while (in.hasNextLine()) {
+							String line = in.nextLine();
+							if (!line.trim().isEmpty()) {
+								arrContents.add(line);
+							}
+						}
+					}
+					// END KGU#866 2020-04-28
+					break;
+				}
+			}
+			// START KGU#866 2020-04-28: Moved up here to read the diagrams from the opened archive
+			if (arrContents != null) {
+				List<ArchiveIndexEntry> indexEntries = new LinkedList<ArchiveIndexEntry>();
+				// START KGU#867 2020-04-29: Diagrams to be loaded are parsed concurrently
+				List<ArchiveIndexEntry> entriesToLoad = new ArrayList<ArchiveIndexEntry>();
+				List<Callable<Root>> jobs = new ArrayList<Callable<Root>>();
+				// END KGU#867 2020-04-29
+				for (int i = 0; i < arrContents.count(); i++) {
+					ArchiveIndexEntry entry = new ArchiveIndexEntry(arrContents.get(i), _arrzFile, null);
+					if (_loadAll || entry.getSignature() == null) {
+						// START KGU#867 2020-04-29
+						//StringList troubles = new StringList();
+						// END KGU#867 2020-04-29
+						//entry.root = extractNSDFrom(_arrzFile, entry.getPath(), _targetDir, troubles);
+						ZipEntry nsdEntry = null;
+						if (entry.virtPath != null) {
+							nsdEntry = zipfile.getEntry(new File(entry.virtPath).getName());
+						}
+						if (nsdEntry != null) {
+							// START KGU#867 2020-04-29
+							//entry.setRoot(loadNSDEntry(zipfile, nsdEntry, _arrzFile, _targetDir, troubles));
+							final ZipFile zipFile = zipfile;
+							final ZipEntry zipEntry = nsdEntry;
+							jobs.add(new Callable<Root>() {
+								@Override
+								public Root call() throws Exception {
+									return parseNSDEntry(zipFile, zipEntry, _arrzFile, _targetDir);
+								}
+							});
+							entriesToLoad.add(entry);
+							// END KGU#867 2020-04-29
+						}
+						// START KGU#867 2020-04-29
+						//if (!troubles.isEmpty()) {
+						//	logger.log(Level.WARNING, troubles.getText());
+						//}
+						// END KGU#867 2020-04-29
+					}
+					//entries.add(new ArchiveIndexEntry(arrContents.get(i), _arrzFile, null));
+					indexEntries.add(entry);
+				}
+				// START KGU#867 2020-04-29
+				Iterator<ArchiveIndexEntry> iter = entriesToLoad.iterator();
+				for (Future<Root> result: parseConcurrently(jobs)) {
+					ArchiveIndexEntry entry = iter.next();
 					try {
-					int count;
-					byte buffer[] = new byte[BUFSIZE];
-					while ((count = bistr.read(buffer, 0, BUFSIZE))	!= -1)
-					{
-						strb.append((new String(buffer, "UTF-8")).substring(0, count));
+						Root root = getParsedRoot(result);
+						root.retrieveVarNames();	// Initialise the variable table, otherwise the highlighting won't work
+						entry.setRoot(root);
 					}
+					catch (InterruptedException ex) {
+						throw ex;
 					}
-					finally {
-						if (bistr != null) bistr.close();
+					catch (Exception ex) {
+						logger.log(Level.WARNING, entry.virtPath + ": " + getErrorMessage(ex));
 					}
-					arrContents = StringList.explode(strb.toString(), "\n");
-					break;
 				}
+				// END KGU#867 2020-04-29
+				archiveIndex = new ArchiveIndex(new File(arrFileName), indexEntries, null);
 			}
+			// END KGU#866 2020-04-28
 		} catch(Exception ex) {
 			logger.log(Level.WARNING, "Failed to inspect the arr file of " + _arrzFile.getAbsolutePath(), ex);
 		}
@@ -1159,18 +2613,20 @@ public class Archivar {
 				}
 			}
 		}
-		if (arrContents != null) {
-			List<ArchiveIndexEntry> entries = new LinkedList<ArchiveIndexEntry>();
-			for (int i = 0; i < arrContents.count(); i++) {
-				ArchiveIndexEntry entry = new ArchiveIndexEntry(arrContents.get(i), _arrzFile, null);
-				if (entry.getSignature() == null) {
-					StringList troubles = new StringList();
-					entry.root = extractNSDFrom(_arrzFile, entry.getPath(), _targetDir, troubles);
-				}
-				entries.add(new ArchiveIndexEntry(arrContents.get(i), _arrzFile, null));
-			}
-			archiveIndex = new ArchiveIndex(new File(arrFileName), entries, null);
-		}
+		// START KGU#866 2020-04-28: Moved into the try block above
+		//if (arrContents != null) {
+		//	List<ArchiveIndexEntry> entries = new LinkedList<ArchiveIndexEntry>();
+		//	for (int i = 0; i < arrContents.count(); i++) {
+		//		ArchiveIndexEntry entry = new ArchiveIndexEntry(arrContents.get(i), _arrzFile, null);
+		//		if (entry.getSignature() == null) {
+		//			StringList troubles = new StringList();
+		//			entry.root = extractNSDFrom(_arrzFile, entry.getPath(), _targetDir, troubles);
+		//		}
+		//		entries.add(new ArchiveIndexEntry(arrContents.get(i), _arrzFile, null));
+		//	}
+		//	archiveIndex = new ArchiveIndex(new File(arrFileName), entries, null);
+		//}
+		// END KGU#866 2020-04-28
 		return archiveIndex;
 	}
 	
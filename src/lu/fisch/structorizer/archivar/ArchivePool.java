@@ -32,6 +32,9 @@ package lu.fisch.structorizer.archivar;
  *      Author          Date            Description
  *      ------          ----            -----------
  *      Kay Gürtzig     2019-03-12      First issue for Enh. Requ. #696, #697, #698
+ *      Kay Gürtzig     2020-04-28      KGU#866: addArchive() no longer extracts the archive into a temp folder
+ *      Kay Gürtzig     2020-05-02      KGU#870: Results of findRoutinesBySignature() cached per name and arity
+ *      Kay Gürtzig     2020-05-07      KGU#870: Results affected by a retrieval failure are no longer cached
  *
  ******************************************************************************************************
  *
@@ -72,6 +75,14 @@ public class ArchivePool implements IRoutinePool {
 	 */
 	private HashMap<String, ArchiveIndex> nameMap = new HashMap<String, ArchiveIndex>();
 	
+	// START KGU#870 2020-05-02: Routine lookup index
+	/**
+	 * Maps {@code <name>#<argument count>} to the routines found by
+	 * {@link #findRoutinesBySignature(String, int, Root)}, cleared whenever an entry is added
+	 */
+	private HashMap<String, Vector<Root>> signatureMap = new HashMap<String, Vector<Root>>();
+	// END KGU#870 2020-05-02
+	
 	/**
 	 * Creates an empty ArchivePool with name {@code name}
 	 * @param name - the archive name
@@ -116,6 +127,9 @@ public class ArchivePool implements IRoutinePool {
 			this.nameMap.put(name, index = archivar.makeEmptyIndex());
 		}
 		if (index.addEntryFor(root, null)) {
+			// START KGU#870 2020-05-02
+			this.signatureMap.clear();
+			// END KGU#870 2020-05-02
 			this.notifyPoolListeners(IRoutinePoolListener.RPC_POOL_CHANGED);
 		}
 	}
@@ -127,13 +141,16 @@ public class ArchivePool implements IRoutinePool {
 			this.name = arrangementArchive.getName();
 		}
 		ArchiveIndex newIndex = null;
-		File targetDir = Archivar.makeTempDir(arrangementArchive.getName().replace(".arrz", ".unzip"));
-		if (lazy) {
-			newIndex = archivar.getArrangementArchiveContent(arrangementArchive, targetDir);
-		}
-		else {
-			newIndex = archivar.unzipArrangementArchive(arrangementArchive, targetDir);
-		}
+		// START KGU#866 2020-04-28: The diagrams are now read directly from the archive
+		//File targetDir = Archivar.makeTempDir(arrangementArchive.getName().replace(".arrz", ".unzip"));
+		//if (lazy) {
+		//	newIndex = archivar.getArrangementArchiveContent(arrangementArchive, targetDir);
+		//}
+		//else {
+		//	newIndex = archivar.unzipArrangementArchive(arrangementArchive, targetDir);
+		//}
+		newIndex = archivar.getArrangementArchiveContent(arrangementArchive, null, !lazy);
+		// END KGU#866 2020-04-28
 		if (newIndex != null) {
 			for (Iterator<ArchiveIndexEntry> iter = newIndex.iterator(); iter.hasNext();) {
 				added = putToNameMap(iter.next()) || added;
@@ -161,6 +178,11 @@ public class ArchivePool implements IRoutinePool {
 				this.nameMap.put(entry.name, index = archivar.makeEmptyIndex());
 			}
 			added = index.add(entry, true);
+			// START KGU#870 2020-05-02
+			if (added) {
+				this.signatureMap.clear();
+			}
+			// END KGU#870 2020-05-02
 		}
 		return added;
 	}
@@ -222,7 +244,17 @@ public class ArchivePool implements IRoutinePool {
 	 */
 	@Override
 	public Vector<Root> findRoutinesBySignature(String rootName, int argCount, Root caller) {
+		// START KGU#870 2020-05-02: Look up the index first (the result doesn't depend on the caller)
+		String key = rootName + "#" + argCount;
+		Vector<Root> cached = this.signatureMap.get(key);
+		if (cached != null) {
+			return new Vector<Root>(cached);
+		}
+		// END KGU#870 2020-05-02
 		Vector<Root> roots = new Vector<Root>();
+		// START KGU#870 2020-05-07: A failed retrieval may succeed next time
+		boolean complete = true;
+		// END KGU#870 2020-05-07
 		ArchiveIndex index = this.nameMap.get(rootName);
 		if (index != null && !index.isEmpty()) {
 			int maxArgs = Integer.MAX_VALUE;
@@ -235,6 +267,9 @@ public class ArchivePool implements IRoutinePool {
 					} catch (Exception e) {
 						System.err.println(this.getClass().getName() + ": " + e);
 						logger.log(Level.SEVERE, entry.getSignature() + " couldn't be retrieved", e);
+						// START KGU#870 2020-05-07
+						complete = false;
+						// END KGU#870 2020-05-07
 					}
 				}
 				if (root != null && root.isSubroutine() && entry.minArgs >= 0 && entry.minArgs <= argCount && entry.maxArgs >= argCount) {
@@ -246,6 +281,14 @@ public class ArchivePool implements IRoutinePool {
 				}
 			}
 		}
+		// START KGU#870 2020-05-02
+		// START KGU#870 2020-05-07: Don't cache results affected by a retrieval failure
+		//this.signatureMap.put(key, new Vector<Root>(roots));
+		if (complete) {
+			this.signatureMap.put(key, new Vector<Root>(roots));
+		}
+		// END KGU#870 2020-05-07
+		// END KGU#870 2020-05-02
 		return roots;
 	}
 
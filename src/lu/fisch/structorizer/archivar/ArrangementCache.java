@@ -0,0 +1,405 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lu.fisch.structorizer.archivar;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Persistent cache of the sizes, signatures and thumbnails of arrangement members.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-05-05      First Issue (KGU#873)
+ *      Kay Gürtzig     2020-05-07      KGU#873: Thumbnail lengths read from a cache are bounded
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-05-05 (Kay Gürtzig)
+ *      - A lazily loaded arrangement used to show its unloaded diagrams as mere outlines of default size,
+ *        so the layout of a large arrangement wasn't recognisable before all bodies had been parsed. On
+ *        saving a large arrangement, the Arranger now stores the size, the signature and a small PNG
+ *        thumbnail of every member in a cache, which is written as additional archive entry (or as
+ *        sidecar file next to an arrangement list) with the extension ".arrcache".
+ *      - The items are keyed by the content of the diagram files (CRC-32 and length, i.e. the values a
+ *        zip archive records for its entries anyway), so a diagram file modified elsewhere simply misses
+ *        the cache, and no invalidation is needed.
+ *      - Binary format: magic number, version, number of items, and for each item the key, the name, the
+ *        argument numbers, width and height, and the length and bytes of the PNG data.
+ *
+ ******************************************************************************************************///
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import lu.fisch.structorizer.elements.Root;
+
+/**
+ * Maps the contents of diagram files (see {@link #makeKey(byte[])}) to the extent, signature,
+ * and a thumbnail image of the respective diagram, such that an arrangement may be presented
+ * without parsing its diagrams. Not thread-safe.
+ * @author Kay Gürtzig
+ */
+public class ArrangementCache {
+
+	/** File name extension of the cache file or archive entry */
+	public static final String EXTENSION = "arrcache";
+	/** Maximum width or height of a stored thumbnail in pixels */
+	public static final int MAX_EXTENT = 256;
+
+	// START KGU#873 2020-05-07: Protection against corrupt files
+	/** Upper bound for the PNG data of a thumbnail (raw RGBA size plus generous overhead) */
+	private static final int MAX_THUMBNAIL_BYTES = 4 * MAX_EXTENT * MAX_EXTENT + 0x10000;
+	// END KGU#873 2020-05-07
+
+	private static final int MAGIC = 0x53414331;	// "SAC1"
+	private static final int VERSION = 1;
+
+	/** Cached information about a diagram */
+	public static final class Item {
+		/** Diagram name */
+		public final String name;
+		/** Minimum and maximum number of routine arguments, -1 for a program, -2 for an includable */
+		public final int minArgs, maxArgs;
+		/** Extent of the diagram (in true coordinates) */
+		public final int width, height;
+		private byte[] thumbnail;
+		private BufferedImage image;
+
+		/**
+		 * Creates an item from explicitly given values.
+		 * @param _name - diagram name
+		 * @param _minArgs - minimum argument number (-1 for main, -2 for includable)
+		 * @param _maxArgs - maximum argument number (-1 for main, -2 for includable)
+		 * @param _width - width of the diagram
+		 * @param _height - height of the diagram
+		 * @param _thumbnail - PNG data of the thumbnail (or null)
+		 */
+		public Item(String _name, int _minArgs, int _maxArgs, int _width, int _height, byte[] _thumbnail)
+		{
+			name = _name;
+			minArgs = _minArgs;
+			maxArgs = _maxArgs;
+			width = _width;
+			height = _height;
+			thumbnail = _thumbnail;
+		}
+
+		/**
+		 * Creates an item for {@code _root} with the signature of the diagram and either an image
+		 * (to be encoded on storing, downscaled if it exceeds {@link ArrangementCache#MAX_EXTENT}),
+		 * or already encoded PNG data.
+		 * @param _root - the diagram (may also be a placeholder)
+		 * @param _width - width of the diagram
+		 * @param _height - height of the diagram
+		 * @param _image - the thumbnail image, or null
+		 * @param _thumbnail - PNG data of the thumbnail if {@code _image} is null
+		 */
+		public Item(Root _root, int _width, int _height, BufferedImage _image, byte[] _thumbnail)
+		{
+			int nMin = -1, nMax = -1;
+			if (_root.isInclude()) {
+				nMin = nMax = -2;
+			}
+			else if (_root.isSubroutine()) {
+				nMin = _root.getMinParameterCount();
+				nMax = _root.getParameterNames().count();
+			}
+			name = _root.getMethodName();
+			minArgs = nMin;
+			maxArgs = nMax;
+			width = _width;
+			height = _height;
+			image = _image;
+			thumbnail = _image == null ? _thumbnail : null;
+		}
+
+		/** @return the PNG data of the thumbnail, or null if there is none (or it isn't encoded yet) */
+		public byte[] getThumbnailData()
+		{
+			return thumbnail;
+		}
+
+		/** Encodes a pending thumbnail image as PNG (if not done yet) */
+		private void encode() throws IOException
+		{
+			if (thumbnail != null || image == null) {
+				return;
+			}
+			BufferedImage img = image;
+			int extent = Math.max(img.getWidth(), img.getHeight());
+			if (extent > MAX_EXTENT) {
+				double factor = (double)MAX_EXTENT / extent;
+				img = new BufferedImage(
+						Math.max((int)Math.round(image.getWidth() * factor), 1),
+						Math.max((int)Math.round(image.getHeight() * factor), 1),
+						BufferedImage.TYPE_INT_ARGB);
+				Graphics2D g = img.createGraphics();
+				try {
+					g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+					g.drawImage(image, 0, 0, img.getWidth(), img.getHeight(), null);
+				}
+				finally {
+					g.dispose();
+				}
+			}
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(img, "png", png);
+			thumbnail = png.toByteArray();
+			image = null;
+		}
+	}
+
+	private final HashMap<Long, Item> items = new HashMap<Long, Item>();
+
+	/**
+	 * Derives the cache key from the CRC-32 and the length of some diagram file content, as
+	 * e.g. recorded by a zip entry.
+	 * @param _crc - the CRC-32 checksum of the content
+	 * @param _size - the length of the content
+	 * @return the key
+	 */
+	public static long makeKey(long _crc, long _size)
+	{
+		return (_size << 32) | (_crc & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Derives the cache key from the given diagram file content.
+	 * @param _content - the file content
+	 * @return the key
+	 * @see #makeKey(long, long)
+	 */
+	public static long makeKey(byte[] _content)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(_content);
+		return makeKey(crc.getValue(), _content.length);
+	}
+
+	/**
+	 * @param _arrFileName - name of an arrangement list file
+	 * @return the name of the associated cache file (or archive entry)
+	 */
+	public static String getCacheName(String _arrFileName)
+	{
+		int posDot = _arrFileName.lastIndexOf('.');
+		if (posDot > 0) {
+			_arrFileName = _arrFileName.substring(0, posDot);
+		}
+		return _arrFileName + "." + EXTENSION;
+	}
+
+	/**
+	 * @param _arrFile - an arrangement list file
+	 * @return the associated cache file (in the same directory)
+	 */
+	public static File getCacheFile(File _arrFile)
+	{
+		return new File(_arrFile.getAbsoluteFile().getParentFile(), getCacheName(_arrFile.getName()));
+	}
+
+	/**
+	 * @param _key - a key as obtained by {@link #makeKey(byte[])}
+	 * @return the cached item or null
+	 */
+	public Item get(long _key)
+	{
+		return items.get(_key);
+	}
+
+	/**
+	 * Associates {@code _item} with {@code _key}.
+	 * @param _key - a key as obtained by {@link #makeKey(byte[])}
+	 * @param _item - the item to be cached
+	 */
+	public void put(long _key, Item _item)
+	{
+		items.put(_key, _item);
+	}
+
+	/** @return the number of cached items */
+	public int size()
+	{
+		return items.size();
+	}
+
+	/** @return true if there are no items */
+	public boolean isEmpty()
+	{
+		return items.isEmpty();
+	}
+
+	/**
+	 * Encodes the pending thumbnail images concurrently on {@code _pool}.
+	 * @param _pool - the worker pool
+	 * @throws IOException if some image couldn't be encoded
+	 */
+	public void encodeThumbnails(ExecutorService _pool) throws IOException
+	{
+		List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+		for (final Item item: items.values()) {
+			if (item.image != null) {
+				jobs.add(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						item.encode();
+						return null;
+					}
+				});
+			}
+		}
+		try {
+			for (Future<Void> result: _pool.invokeAll(jobs)) {
+				result.get();
+			}
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException("Failed to encode thumbnails", cause);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Thumbnail encoding interrupted", ex);
+		}
+	}
+
+	/**
+	 * Serializes the cache (thumbnail images not encoded yet are encoded here).
+	 * @return the content of the cache file
+	 * @throws IOException if some thumbnail couldn't be encoded
+	 * @see #encodeThumbnails(ExecutorService)
+	 * @see #read(InputStream)
+	 */
+	public byte[] toByteArray() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(items.size());
+		for (java.util.Map.Entry<Long, Item> entry: items.entrySet()) {
+			Item item = entry.getValue();
+			item.encode();
+			out.writeLong(entry.getKey());
+			out.writeUTF(item.name == null ? "" : item.name);
+			out.writeInt(item.minArgs);
+			out.writeInt(item.maxArgs);
+			out.writeInt(item.width);
+			out.writeInt(item.height);
+			if (item.thumbnail == null) {
+				out.writeInt(0);
+			}
+			else {
+				out.writeInt(item.thumbnail.length);
+				out.write(item.thumbnail);
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a cache from {@code _in} (as written with the content of {@link #toByteArray()}).
+	 * @param _in - the stream to read from (not closed here)
+	 * @return the cache
+	 * @throws IOException if the content is corrupt or of an unknown version
+	 */
+	public static ArrangementCache read(InputStream _in) throws IOException
+	{
+		DataInputStream in = new DataInputStream(_in);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("No arrangement cache");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported arrangement cache version " + version);
+		}
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Corrupt arrangement cache");
+		}
+		ArrangementCache cache = new ArrangementCache();
+		for (int i = 0; i < count; i++) {
+			long key = in.readLong();
+			String name = in.readUTF();
+			int minArgs = in.readInt();
+			int maxArgs = in.readInt();
+			int width = in.readInt();
+			int height = in.readInt();
+			int length = in.readInt();
+			// START KGU#873 2020-05-07: A corrupt length mustn't provoke a huge allocation
+			//if (length < 0 || width < 0 || height < 0) {
+			if (length < 0 || length > MAX_THUMBNAIL_BYTES || width < 0 || height < 0) {
+			// END KGU#873 2020-05-07
+				throw new IOException("Corrupt arrangement cache");
+			}
+			byte[] thumbnail = null;
+			if (length > 0) {
+				thumbnail = new byte[length];
+				in.readFully(thumbnail);
+			}
+			cache.put(key, new Item(name, minArgs, maxArgs, width, height, thumbnail));
+		}
+		return cache;
+	}
+
+	/**
+	 * Decodes PNG thumbnail data as obtained from {@link Item#getThumbnailData()}.
+	 * @param _thumbnail - the PNG data
+	 * @return the image or null if the data can't be decoded
+	 */
+	public static BufferedImage decodeThumbnail(byte[] _thumbnail)
+	{
+		try {
+			return ImageIO.read(new ByteArrayInputStream(_thumbnail));
+		}
+		catch (IOException ex) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lu.fisch.structorizer.archivar;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Content-keyed store of the diagrams parsed from arrangement archives.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-05-06      First Issue (KGU#874)
+ *      Kay Gürtzig     2020-05-07      KGU#874: Holds the parsed diagrams themselves (weakly) instead of
+ *                                      templates and extracted files
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-05-06 (Kay Gürtzig)
+ *      - Arrangements often contain the same diagrams (e.g. library routines copied into several
+ *        archives, or the same archive opened more than once). Every occurrence used to be parsed anew,
+ *        only for the Arranger to find an equal diagram already present and to drop the new one.
+ *      2020-05-07 (Kay Gürtzig)
+ *      - The store maps the content keys of archive entries (CRC-32 and size from the zip directory,
+ *        see ArrangementCache.makeKey(long, long)) to the very Root objects parsed from them, such that
+ *        an identical entry of another archive needn't be parsed again but is mapped to the same Root.
+ *      - A Root is only handed out while its change version is the one it had when it was stored, i.e.
+ *        as long as it still represents the content it was parsed from. Once edited, the next archive
+ *        with that content gets a fresh diagram again.
+ *      - The diagrams are only weakly referenced, so the store doesn't keep closed diagrams alive.
+ *
+ ******************************************************************************************************///
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lu.fisch.structorizer.elements.Root;
+
+/**
+ * Content-keyed store of diagrams parsed from arrangement archives, shared by all
+ * {@link Archivar} instances. Thread-safe.
+ * @author Kay Gürtzig
+ * @see Archivar#parseDiagrams(java.util.List, lu.fisch.utils.StringList, boolean)
+ */
+final class DiagramStore {
+
+	/** Weak reference to a stored diagram, remembering its key and change version */
+	private static final class RootRef extends WeakReference<Root> {
+		final long key;
+		final long changeVersion;
+
+		RootRef(long _key, Root _root, ReferenceQueue<Root> _queue)
+		{
+			super(_root, _queue);
+			key = _key;
+			changeVersion = _root.getChangeVersion();
+		}
+	}
+
+	/** The stored diagrams by content key */
+	private final ConcurrentHashMap<Long, RootRef> roots = new ConcurrentHashMap<Long, RootRef>();
+	/** Collects the references of discarded diagrams */
+	private final ReferenceQueue<Root> discarded = new ReferenceQueue<Root>();
+
+	/**
+	 * Returns the diagram stored for content key {@code _key} if there is one and it hasn't
+	 * been modified since.
+	 * @param _key - the content key (see {@link ArrangementCache#makeKey(long, long)})
+	 * @return the stored diagram or null
+	 * @see #put(long, Root)
+	 */
+	Root get(long _key)
+	{
+		RootRef ref = roots.get(_key);
+		Root root = ref == null ? null : ref.get();
+		if (root != null && root.getChangeVersion() != ref.changeVersion) {
+			// No longer the parsing result of this content
+			roots.remove(_key, ref);
+			root = null;
+		}
+		return root;
+	}
+
+	/**
+	 * Stores the freshly parsed diagram {@code _root} for content key {@code _key}.
+	 * @param _key - the content key (see {@link ArrangementCache#makeKey(long, long)})
+	 * @param _root - the diagram parsed from a content with key {@code _key}
+	 * @see #get(long)
+	 */
+	void put(long _key, Root _root)
+	{
+		RootRef ref;
+		while ((ref = (RootRef)discarded.poll()) != null) {
+			roots.remove(ref.key, ref);
+		}
+		roots.put(_key, new RootRef(_key, _root, discarded));
+	}
+
+	/** Drops all stored diagrams. */
+	void clear()
+	{
+		roots.clear();
+	}
+
+}
@@ -36,6 +36,7 @@ package lu.fisch.structorizer.archivar;
  *      Kay Gürtzig     2019-01-04      Enh. #657: new flag for changed positions (to be reflected in groups)
  *      Kay Gürtzig     2019-01-12      Enh. #662/2: new flag for group colour or visibility change
  *      Kay Gürtzig     2019-03-13      Enh. #698: Moved from executor to archivar package
+ *      Kay Gürtzig     2020-04-12      KGU#850: new flag for updated analysis results
  *
  ******************************************************************************************************
  *
@@ -62,6 +63,9 @@ public interface IRoutinePoolListener {
 	// START KGU#630 2019-01-12: Enh. #662/2 - Notification of color or visibility changes of a group
 	public static final int RPC_GROUP_COLOR_CHANGED = 0x8;
 	// END KGU#630 2019-01-12
+	// START KGU#850 2020-04-12: Notification of completed (background) analysis of pool members
+	public static final int RPC_ANALYSIS_CHANGED = 0x10;
+	// END KGU#850 2020-04-12
 	
 	/**
 	 * Notification method<br/>
@@ -69,7 +73,7 @@ public interface IRoutinePoolListener {
 	 * of a selection (or possibly an arrangement) change.
 	 * @param _source - The notifying routine pool (implementer of {@link IRoutinePool})
 	 * @param _flags - any combination of {@link #RPC_POOL_CHANGED}, {@link #RPC_SELECTION_CHANGED},
-	 * {@link #RPC_POSITIONS_CHANGED}, or {@link #RPC_GROUP_COLOR_CHANGED}.
+	 * {@link #RPC_POSITIONS_CHANGED}, {@link #RPC_GROUP_COLOR_CHANGED}, or {@link #RPC_ANALYSIS_CHANGED}.
 	 */
 	// START KGU#624 2018-12-21: Enh. #655
 	//public void routinePoolChanged(IRoutinePool _source);
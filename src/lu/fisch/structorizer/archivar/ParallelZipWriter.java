@@ -0,0 +1,382 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lu.fisch.structorizer.archivar;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Zip archive writer compressing the entries concurrently.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-05-01      First Issue (KGU#869)
+ *      Kay Gürtzig     2020-05-05      KGU#873: flush(), getCrc(), and getSize() for the arrangement cache
+ *      Kay Gürtzig     2020-05-07      KGU#869: Duplicate entry names rejected (as by ZipOutputStream)
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-05-01 (Kay Gürtzig)
+ *      - A ZipOutputStream deflates entry by entry on the writing thread. Since every zip entry is
+ *        compressed independently anyway, this writer obtains and deflates the entry contents on a
+ *        worker pool and writes the finished entries (local header with known sizes and CRC, data)
+ *        in the order of addition, followed by the central directory.
+ *      - The number of entries in progress is limited to keep the memory bounded.
+ *      - Zip64 extensions are not supported (arrangement archives don't come near the limits), so
+ *        more than 65535 entries or an archive size beyond 4 GiB cause an IOException.
+ *      2020-05-05 (Kay Gürtzig)
+ *      - The arrangement cache entry is keyed by the CRCs and sizes of the diagram entries, so it can
+ *        only be added after they have been written (see flush()).
+ *
+ ******************************************************************************************************///
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive to a stream, where the entry contents are obtained and deflated
+ * concurrently on a given worker pool. The entries are written in the order of their
+ * addition. Not thread-safe itself, i.e. entries are to be added by a single thread.
+ * @author Kay Gürtzig
+ */
+class ParallelZipWriter {
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+	/** Version 2.0 (needed for deflate) */
+	private static final int VERSION = 20;
+	/** General purpose flag: entry names are UTF-8 encoded */
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final int METHOD_DEFLATED = 8;
+	private static final long MAX_32BIT = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	/** An entry with compressed content, ready to be written */
+	private static final class Entry {
+		final byte[] name;
+		final int dosTime;
+		final byte[] deflated;
+		final long crc;
+		final long size;
+		long offset = 0;
+		Entry(byte[] _name, int _dosTime, byte[] _deflated, long _crc, long _size)
+		{
+			name = _name;
+			dosTime = _dosTime;
+			deflated = _deflated;
+			crc = _crc;
+			size = _size;
+		}
+	}
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final ArrayDeque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+	/** The written entries (for the central directory) */
+	private final List<Entry> written = new ArrayList<Entry>();
+	// START KGU#873 2020-05-05
+	/** The written entries by name */
+	private final HashMap<String, Entry> writtenByName = new HashMap<String, Entry>();
+	// END KGU#873 2020-05-05
+	// START KGU#869 2020-05-07
+	/** The names of all added entries */
+	private final HashSet<String> names = new HashSet<String>();
+	// END KGU#869 2020-05-07
+	private long position = 0;
+	private int nEntries = 0;
+
+	/**
+	 * Creates a writer producing a zip archive on {@code _out}.
+	 * @param _out - the target stream (not closed by this writer)
+	 * @param _pool - the worker pool for obtaining and compressing the entry contents
+	 * @param _maxPending - the maximum number of entries in progress (at least 1)
+	 */
+	ParallelZipWriter(OutputStream _out, ExecutorService _pool, int _maxPending)
+	{
+		out = _out;
+		pool = _pool;
+		maxPending = Math.max(_maxPending, 1);
+	}
+
+	/**
+	 * Schedules an entry with name {@code _name}, the content of which is obtained from
+	 * {@code _content} and compressed on the worker pool. Writes finished entries (in
+	 * order) if too many are in progress.
+	 * @param _name - the entry name
+	 * @param _modTime - the modification time in milliseconds (or a value &lt;= 0 for now)
+	 * @param _content - provides the uncompressed content
+	 * @throws ZipException if there is already an entry named {@code _name}
+	 * @throws IOException if obtaining or compressing some previous entry or writing failed
+	 */
+	void addEntry(String _name, long _modTime, final Callable<byte[]> _content) throws IOException
+	{
+		// START KGU#869 2020-05-07: The second entry would be unreachable
+		if (!names.add(_name)) {
+			throw new ZipException("duplicate entry: " + _name);
+		}
+		// END KGU#869 2020-05-07
+		if (++nEntries > MAX_ENTRIES) {
+			throw new IOException("Too many archive entries");
+		}
+		final byte[] name = _name.getBytes(StandardCharsets.UTF_8);
+		final int dosTime = toDosTime(_modTime > 0 ? _modTime : System.currentTimeMillis());
+		FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+			@Override
+			public Entry call() throws Exception {
+				return compress(name, dosTime, _content.call());
+			}
+		});
+		pool.execute(task);
+		pending.add(task);
+		while (pending.size() >= maxPending) {
+			writeEntry(pending.poll());
+		}
+	}
+
+	/**
+	 * Writes all pending entries and the central directory. The stream is flushed but
+	 * not closed.
+	 * @throws IOException if obtaining or compressing some entry or writing failed
+	 */
+	void finish() throws IOException
+	{
+		// START KGU#873 2020-05-05
+		//while (!pending.isEmpty()) {
+		//	writeEntry(pending.poll());
+		//}
+		flush();
+		// END KGU#873 2020-05-05
+		long dirOffset = position;
+		for (Entry entry: written) {
+			ByteArrayOutputStream header = new ByteArrayOutputStream(46 + entry.name.length);
+			writeInt(header, CENTRAL_HEADER_SIG);
+			writeShort(header, VERSION);	// version made by
+			writeShort(header, VERSION);	// version needed to extract
+			writeShort(header, FLAG_UTF8);
+			writeShort(header, METHOD_DEFLATED);
+			writeInt(header, entry.dosTime);
+			writeInt(header, (int)entry.crc);
+			writeInt(header, entry.deflated.length);
+			writeInt(header, (int)entry.size);
+			writeShort(header, entry.name.length);
+			writeShort(header, 0);	// extra field length
+			writeShort(header, 0);	// comment length
+			writeShort(header, 0);	// disk number
+			writeShort(header, 0);	// internal attributes
+			writeInt(header, 0);	// external attributes
+			writeInt(header, (int)entry.offset);
+			header.write(entry.name);
+			write(header.toByteArray());
+		}
+		long dirSize = position - dirOffset;
+		if (position > MAX_32BIT) {
+			throw new IOException("Archive too large");
+		}
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream(22);
+		writeInt(trailer, END_OF_CENTRAL_DIR_SIG);
+		writeShort(trailer, 0);	// number of this disk
+		writeShort(trailer, 0);	// disk with the central directory
+		writeShort(trailer, written.size());
+		writeShort(trailer, written.size());
+		writeInt(trailer, (int)dirSize);
+		writeInt(trailer, (int)dirOffset);
+		writeShort(trailer, 0);	// comment length
+		write(trailer.toByteArray());
+		out.flush();
+	}
+
+	// START KGU#873 2020-05-05
+	/**
+	 * Waits for all entries in progress and writes them, such that their CRCs and sizes
+	 * become available. Further entries may be added afterwards.
+	 * @throws IOException if obtaining or compressing some entry or writing failed
+	 * @see #getCrc(String)
+	 * @see #getSize(String)
+	 */
+	void flush() throws IOException
+	{
+		while (!pending.isEmpty()) {
+			writeEntry(pending.poll());
+		}
+	}
+
+	/**
+	 * @param _name - the name of an entry
+	 * @return the CRC-32 of the uncompressed content of the written entry {@code _name},
+	 * or -1 if no such entry has been written (yet)
+	 * @see #flush()
+	 */
+	long getCrc(String _name)
+	{
+		Entry entry = writtenByName.get(_name);
+		return entry == null ? -1 : entry.crc;
+	}
+
+	/**
+	 * @param _name - the name of an entry
+	 * @return the uncompressed size of the written entry {@code _name}, or -1 if no such
+	 * entry has been written (yet)
+	 * @see #flush()
+	 */
+	long getSize(String _name)
+	{
+		Entry entry = writtenByName.get(_name);
+		return entry == null ? -1 : entry.size;
+	}
+	// END KGU#873 2020-05-05
+
+	/**
+	 * Cancels all entries still in progress (e.g. after a failure).
+	 */
+	void abort()
+	{
+		for (Future<Entry> future: pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+	}
+
+	/** Waits for the given entry and writes its local header and compressed data */
+	private void writeEntry(Future<Entry> _future) throws IOException
+	{
+		Entry entry;
+		try {
+			entry = _future.get();
+		}
+		catch (ExecutionException ex) {
+			abort();
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException("Failed to compress archive entry", cause);
+		}
+		catch (InterruptedException ex) {
+			abort();
+			Thread.currentThread().interrupt();
+			throw new IOException("Archive writing interrupted", ex);
+		}
+		if (position > MAX_32BIT || entry.size > MAX_32BIT || entry.deflated.length > MAX_32BIT) {
+			throw new IOException("Archive too large");
+		}
+		entry.offset = position;
+		ByteArrayOutputStream header = new ByteArrayOutputStream(30 + entry.name.length);
+		writeInt(header, LOCAL_HEADER_SIG);
+		writeShort(header, VERSION);
+		writeShort(header, FLAG_UTF8);
+		writeShort(header, METHOD_DEFLATED);
+		writeInt(header, entry.dosTime);
+		writeInt(header, (int)entry.crc);
+		writeInt(header, entry.deflated.length);
+		writeInt(header, (int)entry.size);
+		writeShort(header, entry.name.length);
+		writeShort(header, 0);	// extra field length
+		header.write(entry.name);
+		write(header.toByteArray());
+		write(entry.deflated);
+		written.add(entry);
+		// START KGU#873 2020-05-05
+		writtenByName.put(new String(entry.name, StandardCharsets.UTF_8), entry);
+		// END KGU#873 2020-05-05
+	}
+
+	private void write(byte[] _bytes) throws IOException
+	{
+		out.write(_bytes);
+		position += _bytes.length;
+	}
+
+	/** Computes the CRC and the raw deflate data of {@code _content} */
+	private static Entry compress(byte[] _name, int _dosTime, byte[] _content)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(_content);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(_content.length / 4 + 64);
+		byte[] buffer = new byte[8192];
+		try {
+			deflater.setInput(_content);
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflated.write(buffer, 0, deflater.deflate(buffer));
+			}
+		}
+		finally {
+			deflater.end();
+		}
+		return new Entry(_name, _dosTime, deflated.toByteArray(), crc.getValue(), _content.length);
+	}
+
+	/** Converts {@code _millis} into MS-DOS date (high word) and time (low word) in local time */
+	private static int toDosTime(long _millis)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(_millis);
+		int year = cal.get(Calendar.YEAR);
+		if (year < 1980) {
+			// The earliest representable date: 1980-01-01 00:00
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25
+				| (cal.get(Calendar.MONTH) + 1) << 21
+				| cal.get(Calendar.DAY_OF_MONTH) << 16
+				| cal.get(Calendar.HOUR_OF_DAY) << 11
+				| cal.get(Calendar.MINUTE) << 5
+				| cal.get(Calendar.SECOND) >> 1;
+	}
+
+	/** Writes the lower 16 bits of {@code _value} in little-endian order */
+	private static void writeShort(ByteArrayOutputStream _out, int _value)
+	{
+		_out.write(_value & 0xFF);
+		_out.write((_value >>> 8) & 0xFF);
+	}
+
+	/** Writes {@code _value} in little-endian order */
+	private static void writeInt(ByteArrayOutputStream _out, int _value)
+	{
+		writeShort(_out, _value);
+		writeShort(_out, _value >>> 16);
+	}
+
+}
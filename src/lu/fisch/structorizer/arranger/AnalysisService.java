@@ -0,0 +1,654 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lu.fisch.structorizer.arranger;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Arranger-wide Analyser service, analysing sets of diagrams in parallel.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-12      First Issue (KGU#850)
+ *      Kay Gürtzig     2020-05-07      KGU#868: Bodies of lazily loaded diagrams are loaded before the workers start,
+ *                                      isWorkerThread() added
+ *      Kay Gürtzig     2020-05-07      KGU#850: Levels analysed on detached copies off the EDT, results published
+ *                                      via invokeLater, error counts of modified diagrams dropped
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-12 (Kay Gürtzig)
+ *      - When an includable diagram is modified, all diagrams including it (directly or indirectly) lose
+ *        their cached variable and type information. Re-analysing them one after the other on the EDT
+ *        was expensive with many diagrams in the Arranger, so this service collects the affected diagrams
+ *        and analyses them on a fork/join pool.
+ *      - The lazily cached information of a Root (variable names, constants, type map) is not thread-safe.
+ *        Therefore the diagrams are partitioned into levels according to their include dependencies:
+ *        level 0 consists of diagrams not including any available diagram, level n of diagrams including
+ *        diagrams of level n-1 at most. The levels are processed one after the other, the diagrams within
+ *        a level concurrently. So all includables are prepared (getTypeInfo()) before any includer accesses
+ *        them and will only be read afterwards. Includables that are not to be analysed themselves are
+ *        only prepared.
+ *      - (Obsolete) The caller waits for the completion of all levels. This way the Arranger cannot be
+ *        modified while the worker threads are analysing.
+ *      2020-05-07 (Kay Gürtzig)
+ *      - With a lazily loaded arrangement, the routine pool would have to load the bodies of the includables
+ *        and called routines for the workers on the EDT, which is blocked by the waiting caller. Hence the
+ *        includables (found on level determination) and the routines called by the involved diagrams are
+ *        looked up on the EDT before, which loads their bodies; the workers then only hit loaded diagrams.
+ *      - Waiting for the workers froze the GUI for the duration of the entire analysis. Now a snapshot is
+ *        taken on the EDT instead: detached copies of all involved diagrams (see Root.copyForAnalysis())
+ *        and a SnapshotPool holding the include and call resolutions among them, as found in the routine
+ *        pool. The levels are then processed on the copies by a single background task, which hands the
+ *        results back to the EDT via invokeLater. Results of diagrams modified in the meantime (detected
+ *        by Root.getChangeVersion()) are discarded, the respective diagrams re-scheduled. For the same
+ *        reason, getErrorCount() drops the counts of diagrams modified since their analysis.
+ *
+ ******************************************************************************************************///
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import lu.fisch.structorizer.archivar.IRoutinePool;
+import lu.fisch.structorizer.archivar.IRoutinePoolListener;
+import lu.fisch.structorizer.elements.Call;
+import lu.fisch.structorizer.elements.Element;
+import lu.fisch.structorizer.elements.Root;
+import lu.fisch.structorizer.executor.Function;
+
+/**
+ * Analyses sets of diagrams held by an {@link IRoutinePool} (usually the Arranger {@link Surface})
+ * concurrently on a shared {@link ForkJoinPool}, respecting the include dependencies among them,
+ * and retains the number of Analyser complaints per diagram.
+ * @author Kay Gürtzig
+ */
+public class AnalysisService {
+
+	public static final Logger logger = Logger.getLogger(AnalysisService.class.getName());
+
+	/** The worker pool shared by all service instances (lazily created) */
+	private static ForkJoinPool workerPool = null;
+
+	/** The routine pool the diagrams are retrieved from (for include resolution) */
+	private final IRoutinePool routinePool;
+
+	/** Diagrams waiting for analysis */
+	private final Set<Root> pendingRoots = new LinkedHashSet<Root>();
+	/** Whether a deferred analysis of {@link #pendingRoots} has already been scheduled */
+	private boolean isScheduled = false;
+
+	/** Numbers of Analyser complaints of the diagrams analysed by this service (weak keys, dropped diagrams vanish) */
+	// START KGU#850 2020-05-07: Counts are only valid for the analysed version of the diagram
+	//private final Map<Root, Integer> errorCounts = new WeakHashMap<Root, Integer>();
+	private final Map<Root, ErrorCount> errorCounts = new WeakHashMap<Root, ErrorCount>();
+	
+	/** The number of Analyser complaints for a certain version of a diagram */
+	private static final class ErrorCount
+	{
+		final long version;
+		final int count;
+		
+		ErrorCount(long _version, int _count)
+		{
+			version = _version;
+			count = _count;
+		}
+	}
+	
+	/**
+	 * Provides the include and call resolutions a background analysis needs, as they were found in
+	 * the routine pool when the analysis started, with the involved diagrams replaced by their copies.
+	 * Holds no reference to the routine pool and doesn't support any modification.
+	 */
+	private static final class SnapshotPool implements IRoutinePool
+	{
+		/** Maps diagram copies and include names to the resolved includables (copies) */
+		private final Map<Root, Map<String, Vector<Root>>> includes = new HashMap<Root, Map<String, Vector<Root>>>();
+		/** Maps diagram copies and called signatures to the found routines (copies) */
+		private final Map<Root, Map<String, Vector<Root>>> routines = new HashMap<Root, Map<String, Vector<Root>>>();
+		/** The found routines per signature, regardless of the caller */
+		private final Map<String, Vector<Root>> routinesBySignature = new HashMap<String, Vector<Root>>();
+		/** All diagram copies */
+		private final Set<Root> roots = new HashSet<Root>();
+		
+		void putIncludes(Root _includer, String _name, Vector<Root> _includables)
+		{
+			Map<String, Vector<Root>> map = includes.get(_includer);
+			if (map == null) {
+				includes.put(_includer, map = new HashMap<String, Vector<Root>>());
+			}
+			map.put(_name, _includables);
+		}
+		
+		void putRoutines(Root _caller, String _name, int _argCount, Vector<Root> _routines)
+		{
+			String signature = _name + "#" + _argCount;
+			Map<String, Vector<Root>> map = routines.get(_caller);
+			if (map == null) {
+				routines.put(_caller, map = new HashMap<String, Vector<Root>>());
+			}
+			map.put(signature, _routines);
+			routinesBySignature.put(signature, _routines);
+		}
+		
+		@Override
+		public String getName() {
+			return "Analysis snapshot";
+		}
+		
+		@Override
+		public void addDiagram(Root root) {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public boolean addArchive(File arrangementArchive, boolean lazy) {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public Vector<Root> findDiagramsByName(String rootName) {
+			Vector<Root> found = new Vector<Root>();
+			for (Root root: roots) {
+				if (root.getMethodName().equals(rootName)) {
+					found.add(root);
+				}
+			}
+			return found;
+		}
+		
+		@Override
+		public Vector<Root> findIncludesByName(String rootName, Root includer) {
+			Map<String, Vector<Root>> map = includes.get(includer);
+			Vector<Root> found = null;
+			if (map != null) {
+				found = map.get(rootName);
+			}
+			return found == null ? new Vector<Root>() : new Vector<Root>(found);
+		}
+		
+		@Override
+		public Vector<Root> findRoutinesBySignature(String rootName, int argCount, Root caller) {
+			String signature = rootName + "#" + argCount;
+			Map<String, Vector<Root>> map = routines.get(caller);
+			Vector<Root> found = null;
+			if (map != null) {
+				found = map.get(signature);
+			}
+			if (found == null) {
+				found = routinesBySignature.get(signature);
+			}
+			return found == null ? new Vector<Root>() : new Vector<Root>(found);
+		}
+		
+		@Override
+		public Set<Root> getAllRoots() {
+			return Collections.unmodifiableSet(roots);
+		}
+		
+		@Override
+		public void clearExecutionStatus() {
+		}
+		
+		@Override
+		public void addChangeListener(IRoutinePoolListener _listener) {
+		}
+		
+		@Override
+		public void removeChangeListener(IRoutinePoolListener _listener) {
+		}
+	}
+	// END KGU#850 2020-05-07
+
+	/** A Runnable to be executed (on the EDT) after a completed deferred analysis, may be null */
+	private Runnable completionHandler = null;
+
+	/**
+	 * A fork/join task preparing (and possibly analysing) all diagrams of one dependency level.
+	 */
+	@SuppressWarnings("serial")
+	private class LevelTask extends RecursiveAction
+	{
+		private final List<Root> roots;
+		// START KGU#850 2020-05-07: Works on copies now, results are collected for publication
+		//private final Set<Root> rootsToAnalyse;
+		private final Map<Root, Integer> results;
+		private final SnapshotPool snapshot;
+		// END KGU#850 2020-05-07
+		private final int from, to;
+
+		// START KGU#850 2020-05-07
+		//LevelTask(List<Root> _roots, Set<Root> _rootsToAnalyse, int _from, int _to)
+		/**
+		 * @param _roots - the diagram copies of the level
+		 * @param _results - maps the copies to be analysed to their future error counts
+		 * @param _snapshot - the pool to resolve includables from
+		 * @param _from - index of the first diagram to handle
+		 * @param _to - index beyond the last diagram to handle
+		 */
+		LevelTask(List<Root> _roots, Map<Root, Integer> _results, SnapshotPool _snapshot, int _from, int _to)
+		// END KGU#850 2020-05-07
+		{
+			roots = _roots;
+			// START KGU#850 2020-05-07
+			//rootsToAnalyse = _rootsToAnalyse;
+			results = _results;
+			snapshot = _snapshot;
+			// END KGU#850 2020-05-07
+			from = _from;
+			to = _to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) / 2;
+				// START KGU#850 2020-05-07
+				//invokeAll(new LevelTask(roots, rootsToAnalyse, from, mid),
+				//		new LevelTask(roots, rootsToAnalyse, mid, to));
+				invokeAll(new LevelTask(roots, results, snapshot, from, mid),
+						new LevelTask(roots, results, snapshot, mid, to));
+				// END KGU#850 2020-05-07
+			}
+			else if (to > from) {
+				Root root = roots.get(from);
+				try {
+					// Fill the caches the including diagrams of higher levels are going to read
+					// START KGU#850 2020-05-07
+					//root.getTypeInfo(routinePool);
+					root.getTypeInfo(snapshot);
+					// END KGU#850 2020-05-07
+					root.getVarNames();
+					// START KGU#850 2020-05-07
+					//if (rootsToAnalyse.contains(root)) {
+					//	int nErrors = root.analyse().size();
+					//	synchronized (errorCounts) {
+					//		errorCounts.put(root, nErrors);
+					//	}
+					//}
+					boolean toAnalyse;
+					synchronized (results) {
+						toAnalyse = results.containsKey(root);
+					}
+					if (toAnalyse) {
+						int nErrors = root.analyse().size();
+						synchronized (results) {
+							results.put(root, nErrors);
+						}
+					}
+					// END KGU#850 2020-05-07
+				}
+				catch (Exception ex) {
+					logger.log(Level.WARNING, "Analysis of " + root.getSignatureString(false) + " failed", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates an analysis service for the diagrams of the given {@code _pool}
+	 * @param _pool - the {@link IRoutinePool} includables are to be retrieved from
+	 */
+	public AnalysisService(IRoutinePool _pool)
+	{
+		routinePool = _pool;
+	}
+
+	/**
+	 * Specifies a {@link Runnable} to be run on the event dispatch thread whenever a
+	 * deferred analysis (see {@link #scheduleAnalysis(Collection)}) has been completed.
+	 * @param _handler - the {@link Runnable} or null
+	 */
+	public void setCompletionHandler(Runnable _handler)
+	{
+		completionHandler = _handler;
+	}
+
+	/**
+	 * Registers the given diagrams for an analysis to be performed as soon as the event
+	 * dispatch thread has finished the current event, i.e. usually after the modification
+	 * having invalidated them will have been accomplished. Several requests arriving before
+	 * are merged.
+	 * @param _roots - the diagrams to be re-analysed
+	 * @see #analyse(Collection)
+	 */
+	public void scheduleAnalysis(Collection<Root> _roots)
+	{
+		if (_roots.isEmpty()) {
+			return;
+		}
+		synchronized (pendingRoots) {
+			pendingRoots.addAll(_roots);
+			if (isScheduled) {
+				return;
+			}
+			isScheduled = true;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				Collection<Root> roots;
+				synchronized (pendingRoots) {
+					roots = new ArrayList<Root>(pendingRoots);
+					pendingRoots.clear();
+					isScheduled = false;
+				}
+				// START KGU#850 2020-05-07: The completion handler is run on publishing the results
+				//if (analyse(roots) && completionHandler != null) {
+				//	completionHandler.run();
+				//}
+				analyse(roots);
+				// END KGU#850 2020-05-07
+			}
+		});
+	}
+
+	/**
+	 * Starts a parallel analysis of all given diagrams (if the Analyser is enabled) in the
+	 * background and returns immediately. Includables the diagrams depend on are prepared
+	 * before. The analysis works on copies of the diagrams (so it must be called on the
+	 * event dispatch thread), its results are adopted on the event dispatch thread where
+	 * the diagrams haven't been modified in the meantime, after which the completion handler
+	 * (see {@link #setCompletionHandler(Runnable)}) is run.
+	 * @param _roots - the diagrams to be analysed
+	 * @return true if an analysis was started
+	 * @see #scheduleAnalysis(Collection)
+	 * @see #getErrorCount(Root)
+	 */
+	public boolean analyse(Collection<Root> _roots)
+	{
+		if (!Element.E_ANALYSER || _roots.isEmpty()) {
+			return false;
+		}
+		Set<Root> rootsToAnalyse = new HashSet<Root>(_roots);
+		Map<Root, Integer> levelMap = new HashMap<Root, Integer>();
+		Set<Root> visiting = new HashSet<Root>();
+		int maxLevel = 0;
+		for (Root root: _roots) {
+			maxLevel = Math.max(maxLevel, getLevel(root, levelMap, visiting));
+		}
+		// START KGU#850 2020-05-07: Take a snapshot the workers can analyse without touching the originals
+		final SnapshotPool snapshot = new SnapshotPool();
+		// Maps the involved diagrams to their copies and vice versa
+		final Map<Root, Root> copies = new HashMap<Root, Root>();
+		final Map<Root, Root> originals = new HashMap<Root, Root>();
+		// The change versions of the involved diagrams on taking the snapshot
+		final Map<Root, Long> versions = new HashMap<Root, Long>();
+		for (Root root: levelMap.keySet()) {
+			addCopy(root, snapshot, copies, originals, versions);
+		}
+		// END KGU#850 2020-05-07
+		List<List<Root>> levels = new ArrayList<List<Root>>(maxLevel + 1);
+		for (int i = 0; i <= maxLevel; i++) {
+			levels.add(new ArrayList<Root>());
+		}
+		for (Map.Entry<Root, Integer> entry: levelMap.entrySet()) {
+			// START KGU#850 2020-05-07
+			//levels.get(entry.getValue()).add(entry.getKey());
+			levels.get(entry.getValue()).add(copies.get(entry.getKey()));
+			// END KGU#850 2020-05-07
+		}
+		// START KGU#868 2020-05-07: The workers mustn't depend on the (blocked) EDT for loading
+		// The includables have been looked up (and thus loaded) by getLevel(), now the called routines
+		for (Root root: levelMap.keySet()) {
+			// START KGU#850 2020-05-07: Register the resolutions in the snapshot
+			Root copy = copies.get(root);
+			if (root.includeList != null) {
+				for (int i = 0; i < root.includeList.count(); i++) {
+					String name = root.includeList.get(i);
+					Vector<Root> found = new Vector<Root>();
+					for (Root incl: routinePool.findIncludesByName(name, root)) {
+						found.add(copies.get(incl));
+					}
+					snapshot.putIncludes(copy, name, found);
+				}
+			}
+			// END KGU#850 2020-05-07
+			for (Call call: root.collectCalls()) {
+				Function called = call.getCalledRoutine();
+				if (called != null) {
+					// START KGU#850 2020-05-07
+					//routinePool.findRoutinesBySignature(called.getName(), called.paramCount(), root);
+					Vector<Root> found = new Vector<Root>();
+					for (Root routine: routinePool.findRoutinesBySignature(called.getName(), called.paramCount(), root)) {
+						found.add(addCopy(routine, snapshot, copies, originals, versions));
+					}
+					snapshot.putRoutines(copy, called.getName(), called.paramCount(), found);
+					// END KGU#850 2020-05-07
+				}
+			}
+		}
+		// END KGU#868 2020-05-07
+		// START KGU#850 2020-05-07: Don't block the EDT while the workers are analysing
+		//ForkJoinPool pool = getWorkerPool();
+		//for (List<Root> level: levels) {
+		//	pool.invoke(new LevelTask(level, rootsToAnalyse, 0, level.size()));
+		//}
+		// Maps the copies to be analysed to their error counts (null while pending)
+		final Map<Root, Integer> results = new HashMap<Root, Integer>();
+		for (Root root: rootsToAnalyse) {
+			results.put(copies.get(root), null);
+		}
+		final List<List<Root>> copyLevels = levels;
+		getWorkerPool().execute(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				for (List<Root> level: copyLevels) {
+					new LevelTask(level, results, snapshot, 0, level.size()).invoke();
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						publish(results, originals, versions);
+					}
+				});
+			}
+		});
+		// END KGU#850 2020-05-07
+		return true;
+	}
+
+	// START KGU#850 2020-05-07
+	/**
+	 * Registers a detached copy of diagram {@code _root} in {@code _snapshot} unless already done.
+	 * @param _root - the original diagram
+	 * @param _snapshot - the {@link SnapshotPool} to be consulted by the copy
+	 * @param _copies - maps the originals to their copies
+	 * @param _originals - maps the copies to their originals
+	 * @param _versions - maps the originals to their change version at copy time
+	 * @return the copy of {@code _root}
+	 */
+	private Root addCopy(Root _root, SnapshotPool _snapshot, Map<Root, Root> _copies,
+			Map<Root, Root> _originals, Map<Root, Long> _versions)
+	{
+		Root copy = _copies.get(_root);
+		if (copy == null) {
+			copy = _root.copyForAnalysis(_snapshot);
+			_copies.put(_root, copy);
+			_originals.put(copy, _root);
+			_versions.put(_root, _root.getChangeVersion());
+			_snapshot.roots.add(copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * Adopts the results of a background analysis (to be called on the event dispatch thread).
+	 * Error counts of diagrams modified after the snapshot are discarded and the diagrams
+	 * re-scheduled, the gathered variable information is only handed over if none of the involved
+	 * diagrams has been modified.
+	 * @param _results - maps the analysed copies to their error counts
+	 * @param _originals - maps the copies to their originals
+	 * @param _versions - maps the originals to their change versions on taking the snapshot
+	 */
+	private void publish(Map<Root, Integer> _results, Map<Root, Root> _originals, Map<Root, Long> _versions)
+	{
+		boolean consistent = true;
+		for (Map.Entry<Root, Long> entry: _versions.entrySet()) {
+			if (entry.getKey().getChangeVersion() != entry.getValue()) {
+				consistent = false;
+				break;
+			}
+		}
+		List<Root> outdated = new ArrayList<Root>();
+		synchronized (errorCounts) {
+			for (Map.Entry<Root, Integer> entry: _results.entrySet()) {
+				Root root = _originals.get(entry.getKey());
+				long version = _versions.get(root);
+				if (root.getChangeVersion() != version) {
+					outdated.add(root);
+				}
+				else if (entry.getValue() != null) {
+					errorCounts.put(root, new ErrorCount(version, entry.getValue()));
+				}
+			}
+		}
+		if (consistent) {
+			for (Map.Entry<Root, Root> entry: _originals.entrySet()) {
+				entry.getValue().adoptVarInfoOf(entry.getKey());
+			}
+		}
+		scheduleAnalysis(outdated);
+		if (completionHandler != null) {
+			completionHandler.run();
+		}
+	}
+	// END KGU#850 2020-05-07
+
+	/**
+	 * Returns the number of Analyser complaints found for the given diagram on its latest
+	 * analysis by this service. If the diagram has been modified since then, the count is
+	 * dropped and a new analysis of the diagram is scheduled.
+	 * @param _root - a diagram
+	 * @return the error count or -1 if {@code _root} hasn't been analysed by this service
+	 * (in its current version)
+	 * @see #scheduleAnalysis(Collection)
+	 */
+	public int getErrorCount(Root _root)
+	{
+		// START KGU#850 2020-05-07: Outdated counts must not be reported
+		//synchronized (errorCounts) {
+		//	Integer count = errorCounts.get(_root);
+		//	if (count == null) {
+		//		return -1;
+		//	}
+		//	return count;
+		//}
+		synchronized (errorCounts) {
+			ErrorCount count = errorCounts.get(_root);
+			if (count == null) {
+				return -1;
+			}
+			if (count.version == _root.getChangeVersion()) {
+				return count.count;
+			}
+			errorCounts.remove(_root);
+		}
+		scheduleAnalysis(Collections.singleton(_root));
+		return -1;
+		// END KGU#850 2020-05-07
+	}
+
+	/**
+	 * Determines the include dependency level of diagram {@code _root}, i.e. 0 if it doesn't
+	 * include any available diagram, otherwise 1 + the maximum level of its includables.
+	 * All includables are registered in {@code _levelMap} as well.
+	 * @param _root - the diagram
+	 * @param _levelMap - maps the diagrams to their already determined levels
+	 * @param _visiting - the diagrams currently being inspected (for cycle detection)
+	 * @return the level
+	 */
+	private int getLevel(Root _root, Map<Root, Integer> _levelMap, Set<Root> _visiting)
+	{
+		Integer level = _levelMap.get(_root);
+		if (level != null) {
+			return level;
+		}
+		if (!_visiting.add(_root)) {
+			// Cyclic inclusion - will be reported by the Analyser
+			return 0;
+		}
+		int lev = 0;
+		if (_root.includeList != null) {
+			for (int i = 0; i < _root.includeList.count(); i++) {
+				for (Root incl: routinePool.findIncludesByName(_root.includeList.get(i), _root)) {
+					if (incl != _root) {
+						lev = Math.max(lev, getLevel(incl, _levelMap, _visiting) + 1);
+					}
+				}
+			}
+		}
+		_visiting.remove(_root);
+		_levelMap.put(_root, lev);
+		return lev;
+	}
+
+	// START KGU#868 2020-05-07
+	/**
+	 * Checks whether the current thread is a worker of the analysis (which works on a snapshot
+	 * and must not cause the loading of diagram bodies).
+	 * @return true if called by an analysis worker thread
+	 */
+	public static boolean isWorkerThread()
+	{
+		ForkJoinPool pool;
+		synchronized (AnalysisService.class) {
+			pool = workerPool;
+		}
+		return pool != null && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool;
+	}
+	// END KGU#868 2020-05-07
+
+	/** @return the shared worker pool (created on demand) */
+	private static synchronized ForkJoinPool getWorkerPool()
+	{
+		if (workerPool == null) {
+			// Leave a processor for the GUI if possible
+			workerPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+		}
+		return workerPool;
+	}
+
+}
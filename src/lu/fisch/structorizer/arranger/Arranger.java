@@ -77,6 +77,9 @@ package lu.fisch.structorizer.arranger;
  *      Kay Gürtzig     2019-03-28  Enh. #657: New argument for subdiagram retrieval methods
  *      Kay Gürtzig     2019-10-05  Bugfix #759: Exception catch in routinePoolChanged() as emergency workaround
  *      Kay Gürtzig     2020-01-20  Enh. #801: Key F1 now tries to open the PDF help file if offline
+ *      Kay Gürtzig     2020-04-12  KGU#850: Methods scheduleAnalysis() and getAnalysisErrorCount() added
+ *      Kay Gürtzig     2020-04-27  KGU#865: Ini property arrangerLodZoom saved
+ *      Kay Gürtzig     2020-04-30  KGU#868: Methods getAllRoots(boolean) and loadDiagramBodies() for lazy loading
  *
  ******************************************************************************************************
  *
@@ -1769,6 +1772,32 @@ public class Arranger extends LangFrame implements WindowListener, KeyListener,
     }
     // END KGU#703 2019-03-30
 
+    // START KGU#850 2020-04-12: Parallel analysis of dependent diagrams
+    /**
+     * Has the given diagrams analysed in parallel as soon as the current GUI event
+     * will have been handled. Listeners will be notified with flag
+     * {@link IRoutinePoolListener#RPC_ANALYSIS_CHANGED} afterwards.
+     * @param roots - the diagrams to be (re-)analysed
+     * @see #getAnalysisErrorCount(Root)
+     */
+    public void scheduleAnalysis(Collection<Root> roots)
+    {
+        surface.scheduleAnalysis(roots);
+    }
+
+    /**
+     * Returns the number of Analyser complaints the latest Arranger-driven analysis
+     * of diagram {@code root} had produced.
+     * @param root - a diagram held by the Arranger
+     * @return the number of detected errors or -1 if there is no such analysis result
+     * @see #scheduleAnalysis(Collection)
+     */
+    public int getAnalysisErrorCount(Root root)
+    {
+        return surface.getAnalysisErrorCount(root);
+    }
+    // END KGU#850 2020-04-12
+
     // START KGU#258 2016-09-26: Enh. #253: We need to traverse all roots for refactoring
     /* (non-Javadoc)
      * @see lu.fisch.structorizer.executor.IRoutinePool#getAllRoots()
@@ -1780,6 +1809,32 @@ public class Arranger extends LangFrame implements WindowListener, KeyListener,
     }
     // END KGU#258 2016-09-26
 
+    // START KGU#868 2020-04-30: Lazy loading of large arrangements
+    /**
+     * Returns the set of all {@link Root}s held by Arranger.
+     * @param _loadBodies - whether placeholders of lazily loaded diagrams are to get their
+     * bodies (not necessary e.g. for emptiness or modification checks)
+     * @return the set of {@link Root}s
+     * @see #getAllRoots()
+     */
+    public Set<Root> getAllRoots(boolean _loadBodies)
+    {
+        return surface.getAllRoots(_loadBodies);
+    }
+
+    /**
+     * Makes sure that the given {@link Root}s have their bodies loaded (lazily loaded diagrams
+     * of large arrangements are placeholders carrying the signature only before). The {@link Root}s
+     * obtained via {@link #getSortedRoots()} or {@link Group#getSortedRoots()} must be passed here
+     * before their contents are inspected.
+     * @param _roots - the {@link Root}s of interest
+     */
+    public void loadDiagramBodies(Collection<Root> _roots)
+    {
+        surface.loadDiagramBodies(_roots);
+    }
+    // END KGU#868 2020-04-30
+
     // START KGU#305 2016-12-16: Code revision
     // Shares the sorted list of Root elements held by the Surface object
     /**
@@ -1888,7 +1943,15 @@ public class Arranger extends LangFrame implements WindowListener, KeyListener,
 		if ((_flags & RPC_POOL_CHANGED) != 0) {
 		// END KGU#624 2018-12-21
 			routines.clear();
-			routines.addAll(_source.getAllRoots());
+			// START KGU#868 2020-04-30: Signatures suffice here, the bodies may stay unloaded
+			//routines.addAll(_source.getAllRoots());
+			if (_source == surface) {
+				routines.addAll(surface.getAllRoots(false));
+			}
+			else {
+				routines.addAll(_source.getAllRoots());
+			}
+			// END KGU#868 2020-04-30
 			Collections.sort(routines, Root.SIGNATURE_ORDER);
 			// START KGU#626 2018-12-31: Enh. #657
 			groups.clear();
@@ -1944,7 +2007,10 @@ public class Arranger extends LangFrame implements WindowListener, KeyListener,
 	public boolean removeAllDiagrams(Component initiator) {
 		boolean done = false;
 		if (initiator == null) initiator = this;
-		if (surface != null && !this.getAllRoots().isEmpty()) {
+		// START KGU#868 2020-04-30: No need to load diagram bodies for this
+		//if (surface != null && !this.getAllRoots().isEmpty()) {
+		if (surface != null && !this.getAllRoots(false).isEmpty()) {
+		// END KGU#868 2020-04-30
 			if (JOptionPane.showConfirmDialog(initiator == null ? this : initiator, 
 					msgConfirmRemoveAll.getText(), 
 					msgTitleWarning.getText(),
@@ -2044,6 +2110,9 @@ public class Arranger extends LangFrame implements WindowListener, KeyListener,
 	public void updateProperties(Ini ini)
 	{
 		ini.setProperty("arrangerZoom", Float.toString(surface.getZoom()));
+		// START KGU#865 2020-04-27: Level of detail for overview zoom levels
+		ini.setProperty("arrangerLodZoom", Float.toString(surface.getLodZoom()));
+		// END KGU#865 2020-04-27
 		// START KGU#623 2018-12-20: Enh. #654
 		ini.setProperty("arrangerDirectory", surface.currentDirectory.getAbsolutePath());
 		// END KGU#623 2018-12-20
@@ -2062,7 +2131,10 @@ public class Arranger extends LangFrame implements WindowListener, KeyListener,
 	 * @return true in case there is a dirty {@link Root} other than {@code toBeIgnored}
 	 */
 	public boolean hasUnsavedChanges(Root toBeIgnored) {
-		for (Root root: surface.getAllRoots()) {
+		// START KGU#868 2020-04-30: Unloaded placeholders can't have changed
+		//for (Root root: surface.getAllRoots()) {
+		for (Root root: surface.getAllRoots(false)) {
+		// END KGU#868 2020-04-30
 			if (root.hasChanged() && root != toBeIgnored) {
 				return true;
 			}
@@ -41,6 +41,11 @@ package lu.fisch.structorizer.arranger;
  *      Kay Gürtzig     2019-03-30      Enh. #720: tree node for dependent diagrams (includers/callers) added
  *      Kay Gürtzig     2020-03-16      Enh. #828: New popup submenu for code export of a group (or diagram)
  *      Kay Gürtzig     2020-04-01      Enh. #440: Group export to PapDesigner inserted in popup menu
+ *      Kay Gürtzig     2020-04-12      KGU#850: Number of Analyser complaints shown with the diagram nodes
+ *      Kay Gürtzig     2020-04-30      KGU#868: retrieveCallers() ensures the diagram bodies are loaded
+ *      Kay Gürtzig     2020-05-04      KGU#872: update() modifies the tree model incrementally (fine-grained events)
+ *      Kay Gürtzig     2020-05-07      KGU#872: Node labels comprise the Analyser complaints, refreshLabels() for
+ *                                      analysis and locale changes
  *
  ******************************************************************************************************
  *
@@ -49,6 +54,12 @@ package lu.fisch.structorizer.arranger;
  *      - This class comprises the different Arranger-related aspects that had slowly invaded the
  *        lu.fisch.structorizer.gui.Editor class. It is a kind of bridge between the Mainform/Editor/Diagram
  *        and the Arranger/Surface worlds. 
+ *      2020-05-04 (Kay Gürtzig)
+ *      - On every pool change notification, update() used to rebuild the entire tree and to reload the model,
+ *        which collapsed everything (expansion had to be restored by row numbers) and made the JTree measure
+ *        all nodes again. Now the existing nodes are reconciled with the groups and their sorted members,
+ *        such that only inserted, removed, moved, or relabelled nodes are reported to the tree. Expansion
+ *        and selection of the retained nodes thus persist; moved nodes get their state restored.
  *
  ******************************************************************************************************///
 
@@ -131,6 +142,12 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 	private final DefaultMutableTreeNode arrangerIndexTop;
 	//protected final JTree arrangerIndex = new JTree(arrangerIndexTop);
 	private final HashSet<DefaultMutableTreeNode> expandedGroupNodes = new HashSet<DefaultMutableTreeNode>();
+	// START KGU#872 2020-05-04: Incremental model update
+	/** Maps the groups to their nodes in the tree */
+	private final HashMap<Group, DefaultMutableTreeNode> groupNodes = new HashMap<Group, DefaultMutableTreeNode>();
+	/** The labels the group and diagram nodes were last reported with (to detect relabelled nodes) */
+	private final HashMap<DefaultMutableTreeNode, String> nodeLabels = new HashMap<DefaultMutableTreeNode, String>();
+	// END KGU#872 2020-05-04
 	/** Original (standard) Arranger index background color  - may get wrong with an L&F change! */
 	private Color arrangerIndexBackground = null;
 	private static final Color ARRANGER_INDEX_UNFOCUSSED_BACKGROUND = Color.LIGHT_GRAY;
@@ -249,6 +266,9 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 	protected static final LangTextHolder msgMembersComplete = new LangTextHolder("Group is complete: No outward references");
 	protected static final LangTextHolder msgGroupMembersChanged = new LangTextHolder("The set of member diagrams was modified.");
 	protected static final LangTextHolder msgGroupMembersMoved = new LangTextHolder("The coordinates of some member diagrams were changed.");
+	// START KGU#850 2020-04-12: Results of the parallel Arranger analysis
+	protected static final LangTextHolder msgAnalyserComplaints = new LangTextHolder("(% Analyser complaints)");
+	// END KGU#850 2020-04-12
 	
 	public static class ArrangerIndexCellRenderer extends DefaultTreeCellRenderer {
 		private final static ImageIcon mainIcon = IconLoader.getIcon(22);
@@ -267,8 +287,18 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 			Object content = ((DefaultMutableTreeNode)value).getUserObject();
 			if (content instanceof Root) {
 				Root root = (Root)content;
-				String s = root.getSignatureString(true);
+				// START KGU#872 2020-05-07: Label composition outsourced (also needed for change detection)
+				//String s = root.getSignatureString(true);
+				// END KGU#872 2020-05-07
 				boolean covered = Element.E_COLLECTRUNTIMEDATA && root.deeplyCovered; 
+				// START KGU#850 2020-04-12: Show the error count of the latest Arranger analysis
+				//int nErrors = -1;
+				//if (Element.E_ANALYSER && Arranger.hasInstance()
+				//		&& (nErrors = Arranger.getInstance().getAnalysisErrorCount(root)) > 0) {
+				//	s += " " + msgAnalyserComplaints.getText().replace("%", Integer.toString(nErrors));
+				//}
+				String s = makeLabel(root);
+				// END KGU#850 2020-04-12
 				setText(s);
 				// Enh. #319, #389: show coverage status of (imported) main diagrams
 				if (root.isProgram()) {
@@ -637,6 +667,9 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 			// END KGU#396 2020-04-08
 		}
 		// END KGU#815 2020-03-16
+		// START KGU#872 2020-05-07: The node labels contain this text
+		msgAnalyserComplaints.addLangEventListener(this);
+		// END KGU#872 2020-05-07
 		
 		popupIndex.add(popupIndexCovered);
 		popupIndexCovered.addActionListener(new ActionListener() { public void actionPerformed(ActionEvent event) { arrangerIndexToggleCovered(); } });
@@ -736,45 +769,232 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 	}
 	
 	/**
-	 * Rebuilds the Arranger index from scratch according to the group information give
-	 * with {@code _groups}.
+	 * Updates the Arranger index according to the group information given with {@code _groups}
+	 * (only the differences to the current tree are applied, expansion and selection are kept).
 	 * @param _groups - sorted list of all currently held {@link Group} objects
 	 */
 	public void update(Vector<Group> _groups)
+	// START KGU#872 2020-05-04: Incremental modification instead of rebuilding
 	{
-		// Attempt to maintain expansions - the nodes will be replaced, so identify the associated groups
-		HashSet<Group> expandedGroups = new HashSet<Group>();
-		for (DefaultMutableTreeNode node: expandedGroupNodes) {
-			expandedGroups.add((Group)node.getUserObject());
+		DefaultTreeModel model = (DefaultTreeModel)getModel();
+		TreePath[] selectedPaths = this.getSelectionPaths();
+		if (_groups == null) {
+			_groups = new Vector<Group>();
 		}
-		expandedGroupNodes.clear();
-		
-		// Now rebuild the tree from scratch 
-		Vector<Integer> rowsToExpand = new Vector<Integer>(expandedGroups.size());
-		arrangerIndexTop.removeAllChildren();
-		if (_groups != null) {
-			for (int i = 0; i < _groups.size(); i++) {
-				Group group = _groups.get(i);
-				if (expandedGroups.contains(group)) {
-					rowsToExpand.add(i);
-				}
-				DefaultMutableTreeNode groupNode = new DefaultMutableTreeNode(group);
+		// Remove the nodes of vanished groups (and the sample content of the initial JTree model)
+		HashSet<Group> groupSet = new HashSet<Group>(_groups);
+		for (int i = arrangerIndexTop.getChildCount() - 1; i >= 0; i--) {
+			DefaultMutableTreeNode groupNode = (DefaultMutableTreeNode)arrangerIndexTop.getChildAt(i);
+			Object group = groupNode.getUserObject();
+			if (!(group instanceof Group) || !groupSet.contains(group)) {
+				groupNodes.remove(group);
+				forgetNode(groupNode);
+				model.removeNodeFromParent(groupNode);
+			}
+		}
+		// Insert, move or reconcile the remaining ones in the given order
+		for (int i = 0; i < _groups.size(); i++) {
+			Group group = _groups.get(i);
+			DefaultMutableTreeNode groupNode = groupNodes.get(group);
+			if (groupNode == null) {
+				groupNode = new DefaultMutableTreeNode(group);
 				for (Root aRoot: group.getSortedRoots()) {
-					groupNode.add(new DefaultMutableTreeNode(aRoot));
+					DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode(aRoot);
+					nodeLabels.put(rootNode, makeLabel(aRoot));
+					groupNode.add(rootNode);
 				}
-				arrangerIndexTop.add(groupNode);
+				nodeLabels.put(groupNode, group.toString());
+				groupNodes.put(group, groupNode);
+				model.insertNodeInto(groupNode, arrangerIndexTop, i);
+				continue;
+			}
+			if (arrangerIndexTop.getIndex(groupNode) != i) {
+				// Sort position changed (e.g. renamed group), the node keeps its children
+				model.removeNodeFromParent(groupNode);
+				model.insertNodeInto(groupNode, arrangerIndexTop, i);
 			}
+			String label = group.toString();
+			if (!label.equals(nodeLabels.put(groupNode, label))) {
+				model.nodeChanged(groupNode);
+			}
+			updateGroupNode(model, groupNode, group.getSortedRoots());
+		}
+		// The invisible top node must be expanded, otherwise the groups wouldn't show
+		if (!arrangerIndexTop.isLeaf()) {
+			this.expandPath(new TreePath(arrangerIndexTop));
 		}
-		((DefaultTreeModel)getModel()).reload();
-		if (!this.arrangerIndexTop.isLeaf()) {
-			/* Try to restore the original expansion (in backward direction, otherwise we
-			 * would invalidate the subsequent row numbers) */
-			for (int i = rowsToExpand.size() - 1; i >= 0; i--) {
-				this.expandRow(rowsToExpand.get(i));
+		// Restore the expansion and selection of moved nodes (other nodes retain their state anyway)
+		for (DefaultMutableTreeNode groupNode: expandedGroupNodes.toArray(new DefaultMutableTreeNode[expandedGroupNodes.size()])) {
+			if (groupNode.getParent() == arrangerIndexTop) {
+				this.expandPath(new TreePath(groupNode.getPath()));
+			}
+			else {
+				expandedGroupNodes.remove(groupNode);
+			}
+		}
+		if (selectedPaths != null) {
+			Vector<TreePath> pathsToSelect = new Vector<TreePath>(selectedPaths.length);
+			for (TreePath path: selectedPaths) {
+				DefaultMutableTreeNode node = (DefaultMutableTreeNode)path.getLastPathComponent();
+				if (node.getRoot() == arrangerIndexTop && node != arrangerIndexTop) {
+					pathsToSelect.add(new TreePath(node.getPath()));
+				}
 			}
+			this.setSelectionPaths(pathsToSelect.toArray(new TreePath[pathsToSelect.size()]));
 		}
 		this.doButtonsLocal();
 	}
+	
+	/**
+	 * Reconciles the children of {@code _groupNode} with the sorted member list {@code _roots}:
+	 * nodes of former members are removed, nodes for new members inserted, nodes out of order
+	 * moved, and nodes with changed label reported as changed to {@code _model}.
+	 */
+	private void updateGroupNode(DefaultTreeModel _model, DefaultMutableTreeNode _groupNode, Vector<Root> _roots)
+	{
+		// Remove the nodes of former members (all in one event)
+		HashSet<Root> members = new HashSet<Root>(_roots);
+		Vector<Integer> removedIndices = new Vector<Integer>();
+		Vector<DefaultMutableTreeNode> removedNodes = new Vector<DefaultMutableTreeNode>();
+		HashMap<Root, DefaultMutableTreeNode> rootNodes = new HashMap<Root, DefaultMutableTreeNode>();
+		for (int j = 0; j < _groupNode.getChildCount(); j++) {
+			DefaultMutableTreeNode rootNode = (DefaultMutableTreeNode)_groupNode.getChildAt(j);
+			Root aRoot = (Root)rootNode.getUserObject();
+			if (!members.contains(aRoot) || rootNodes.containsKey(aRoot)) {
+				removedIndices.add(j);
+				removedNodes.add(rootNode);
+			}
+			else {
+				rootNodes.put(aRoot, rootNode);
+			}
+		}
+		if (!removedNodes.isEmpty()) {
+			int[] indices = new int[removedIndices.size()];
+			for (int k = removedIndices.size() - 1; k >= 0; k--) {
+				indices[k] = removedIndices.get(k);
+				_groupNode.remove(indices[k]);
+				nodeLabels.remove(removedNodes.get(k));
+			}
+			_model.nodesWereRemoved(_groupNode, indices, removedNodes.toArray());
+		}
+		// Now establish the order of _roots, inserting nodes for new members
+		Vector<Integer> changedIndices = new Vector<Integer>();
+		for (int j = 0; j < _roots.size(); j++) {
+			Root aRoot = _roots.get(j);
+			DefaultMutableTreeNode rootNode = rootNodes.get(aRoot);
+			String label = makeLabel(aRoot);
+			if (rootNode == null) {
+				rootNode = new DefaultMutableTreeNode(aRoot);
+				nodeLabels.put(rootNode, label);
+				_model.insertNodeInto(rootNode, _groupNode, j);
+				continue;
+			}
+			if (_groupNode.getIndex(rootNode) != j) {
+				_model.removeNodeFromParent(rootNode);
+				_model.insertNodeInto(rootNode, _groupNode, j);
+			}
+			if (!label.equals(nodeLabels.put(rootNode, label))) {
+				changedIndices.add(j);
+			}
+		}
+		if (!changedIndices.isEmpty()) {
+			int[] indices = new int[changedIndices.size()];
+			for (int k = 0; k < indices.length; k++) {
+				indices[k] = changedIndices.get(k);
+			}
+			_model.nodesChanged(_groupNode, indices);
+		}
+	}
+	
+	// START KGU#872 2020-05-07
+	/**
+	 * Composes the label of the node for diagram {@code _root}: the signature and, if
+	 * the latest Arranger analysis found problems, the number of Analyser complaints.
+	 * @param _root - a diagram
+	 * @return the label text
+	 */
+	private static String makeLabel(Root _root)
+	{
+		String label = _root.getSignatureString(true);
+		int nErrors = -1;
+		if (Element.E_ANALYSER && Arranger.hasInstance()
+				&& (nErrors = Arranger.getInstance().getAnalysisErrorCount(_root)) > 0) {
+			label += " " + msgAnalyserComplaints.getText().replace("%", Integer.toString(nErrors));
+		}
+		return label;
+	}
+	
+	/**
+	 * Re-composes the labels of all diagram nodes and reports the changed ones to the tree
+	 * model, e.g. after an analysis or a locale change (the tree structure isn't touched).
+	 */
+	public void refreshLabels()
+	{
+		DefaultTreeModel model = (DefaultTreeModel)getModel();
+		for (DefaultMutableTreeNode groupNode: groupNodes.values()) {
+			Vector<Integer> changedIndices = new Vector<Integer>();
+			for (int j = 0; j < groupNode.getChildCount(); j++) {
+				DefaultMutableTreeNode rootNode = (DefaultMutableTreeNode)groupNode.getChildAt(j);
+				String label = makeLabel((Root)rootNode.getUserObject());
+				if (!label.equals(nodeLabels.put(rootNode, label))) {
+					changedIndices.add(j);
+				}
+			}
+			if (!changedIndices.isEmpty()) {
+				int[] indices = new int[changedIndices.size()];
+				for (int k = 0; k < indices.length; k++) {
+					indices[k] = changedIndices.get(k);
+				}
+				model.nodesChanged(groupNode, indices);
+			}
+		}
+	}
+	// END KGU#872 2020-05-07
+	
+	/** Drops the cached labels of {@code _node} and its descendants */
+	private void forgetNode(DefaultMutableTreeNode _node)
+	{
+		nodeLabels.remove(_node);
+		for (int i = 0; i < _node.getChildCount(); i++) {
+			nodeLabels.remove(_node.getChildAt(i));
+		}
+	}
+	
+	// END KGU#872 2020-05-04
+//	{
+//		// Attempt to maintain expansions - the nodes will be replaced, so identify the associated groups
+//		HashSet<Group> expandedGroups = new HashSet<Group>();
+//		for (DefaultMutableTreeNode node: expandedGroupNodes) {
+//			expandedGroups.add((Group)node.getUserObject());
+//		}
+//		expandedGroupNodes.clear();
+//		
+//		// Now rebuild the tree from scratch 
+//		Vector<Integer> rowsToExpand = new Vector<Integer>(expandedGroups.size());
+//		arrangerIndexTop.removeAllChildren();
+//		if (_groups != null) {
+//			for (int i = 0; i < _groups.size(); i++) {
+//				Group group = _groups.get(i);
+//				if (expandedGroups.contains(group)) {
+//					rowsToExpand.add(i);
+//				}
+//				DefaultMutableTreeNode groupNode = new DefaultMutableTreeNode(group);
+//				for (Root aRoot: group.getSortedRoots()) {
+//					groupNode.add(new DefaultMutableTreeNode(aRoot));
+//				}
+//				arrangerIndexTop.add(groupNode);
+//			}
+//		}
+//		((DefaultTreeModel)getModel()).reload();
+//		if (!this.arrangerIndexTop.isLeaf()) {
+//			/* Try to restore the original expansion (in backward direction, otherwise we
+//			 * would invalidate the subsequent row numbers) */
+//			for (int i = rowsToExpand.size() - 1; i >= 0; i--) {
+//				this.expandRow(rowsToExpand.get(i));
+//			}
+//		}
+//		this.doButtonsLocal();
+//	}
 	// END KGU#626 2019-01-01
 
 	// START KGU#626 2019-01-04: Enh. #657
@@ -1286,6 +1506,9 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 	/** @return a sorted vector of diagrams calling the given subroutine (under group aspect) */
 	private Vector<Root> retrieveCallers(Root subRoutine) {
 		Vector<Root> callers = new Vector<Root>();
+		// START KGU#868 2020-04-30: The calls can't be found in placeholders
+		Arranger.getInstance().loadDiagramBodies(Arranger.getSortedRoots());
+		// END KGU#868 2020-04-30
 		for (Root candidate: Arranger.getSortedRoots()) {
 			for (Call call: candidate.collectCalls()) {
 				Function fct = call.getCalledRoutine();
@@ -1559,6 +1782,11 @@ public class ArrangerIndex extends LangTree implements MouseListener, LangEventL
 		if (evt.getSource() == Menu.msgExportTooltip) {
 			popupIndexExportPap.setToolTipText(Menu.msgExportTooltip.getText().replace("%", "https://www.heise.de/download/product/papdesigner-51889"));
 		}		
+		// START KGU#872 2020-05-07: The complaint counts must be re-labelled (and re-measured)
+		else if (evt.getSource() == msgAnalyserComplaints) {
+			refreshLabels();
+		}
+		// END KGU#872 2020-05-07
 	}
 	// END KGU#396/KGU#815 2020-04-08
 
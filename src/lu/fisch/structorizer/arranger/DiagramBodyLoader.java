@@ -0,0 +1,379 @@
+/*
+    Structorizer :: Arranger
+    A little tool which you can use to arrange Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.structorizer.arranger;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Lazy loading and eviction of the diagram bodies of large arrangements.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-30      First Issue (KGU#868)
+ *      Kay Gürtzig     2020-05-07      KGU#868: load() returns at once if there is nothing to load, never waits
+ *                                      for the EDT from an analysis worker (deadlock)
+ *      Kay Gürtzig     2020-05-07      KGU#850: Comments adapted to the snapshot-based analysis
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-30 (Kay Gürtzig)
+ *      - Loading an arrangement of hundreds of diagrams used to parse every member diagram. Beyond a
+ *        configurable number of diagrams, Surface now only creates placeholder Roots from the signatures
+ *        stored in the arrangement list (name, type, argument numbers, file). Their bodies are parsed
+ *        when they get visible (deferred, several at once on the worker pool of the Archivar) or
+ *        synchronously when they are requested via the routine pool, for editing, or for export.
+ *      - A placeholder is the very Root object that will hold the body later (the body is adopted via
+ *        Root.adoptContentsOf()), since the Roots are referenced by many other components (Arranger index,
+ *        groups, editors, executor). The adoption is always done on the event dispatch thread.
+ *      - If the heap gets short (detected by the clearing of a softly referenced sentinel) then the bodies
+ *        of idle diagrams are replaced by placeholders again. A diagram is idle if it hasn't been used for
+ *        a while, is neither visible, selected, edited, modified, nor involved in an execution.
+ *      2020-05-07 (Kay Gürtzig)
+ *      - load() is also called from worker threads (executor, routine lookups of the AnalysisService),
+ *        so the set of unloaded diagrams is kept in a concurrent set, which allows it to return without
+ *        an EDT round trip if all requested bodies are present. The AnalysisService occupies the EDT
+ *        while its workers run, so these must never wait for the EDT; it loads the needed bodies in
+ *        advance, its workers just get the placeholders otherwise.
+ *
+ ******************************************************************************************************///
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import lu.fisch.structorizer.archivar.Archivar;
+import lu.fisch.structorizer.archivar.Archivar.ArchiveIndexEntry;
+import lu.fisch.structorizer.elements.Root;
+import lu.fisch.structorizer.executor.Executor;
+import lu.fisch.utils.StringList;
+
+/**
+ * Keeps track of the {@link Diagram}s of a {@link Surface} that were added as body-less
+ * placeholders and loads their bodies on demand. Bodies of idle diagrams may be dropped
+ * again under memory shortage. Except {@link #load(Collection)} and {@link #isUnloaded(Diagram)},
+ * the methods are only to be used on the event dispatch thread.
+ * @author Kay Gürtzig
+ */
+final class DiagramBodyLoader {
+
+	/** Maximum number of bodies loaded in one deferred loading step */
+	private static final int MAX_BATCH = 64;
+	/** Time in milliseconds a loaded body must not have been used before it may be evicted */
+	private static final long IDLE_TIME = 60000;
+
+	private static final Logger logger = Logger.getLogger(DiagramBodyLoader.class.getName());
+
+	private final Surface surface;
+	private final Archivar archivar = new Archivar();
+	/** The sources of all lazily managed diagrams (whether currently loaded or not) */
+	private final HashMap<Diagram, ArchiveIndexEntry> sources = new HashMap<Diagram, ArchiveIndexEntry>();
+	/** Last use times of the loaded lazily managed diagrams, absent for unloaded ones */
+	private final HashMap<Diagram, Long> lastUse = new HashMap<Diagram, Long>();
+	// START KGU#868 2020-05-07: Also to be inspected from other threads
+	/** The lazily managed diagrams with unloaded bodies (i.e. in {@link #sources} but not in {@link #lastUse}) */
+	private final Set<Diagram> unloaded = Collections.newSetFromMap(new ConcurrentHashMap<Diagram, Boolean>());
+	// END KGU#868 2020-05-07
+	/** Unloaded diagrams waiting for deferred loading */
+	private final LinkedHashSet<Diagram> pending = new LinkedHashSet<Diagram>();
+	/** Whether a deferred loading step has been scheduled */
+	private boolean isScheduled = false;
+	/** Cleared by the garbage collector under memory shortage */
+	private SoftReference<Object> sentinel = new SoftReference<Object>(new Object());
+
+	private final Runnable loadTask = new Runnable() {
+		@Override
+		public void run() {
+			loadPending();
+		}
+	};
+
+	/**
+	 * Creates a body loader for the diagrams of {@code _surface}.
+	 * @param _surface - the owning {@link Surface} (to be updated when bodies change)
+	 */
+	DiagramBodyLoader(Surface _surface)
+	{
+		surface = _surface;
+	}
+
+	/**
+	 * Registers {@code diagram} as placeholder the body of which is to be loaded from
+	 * {@code source} on demand.
+	 * @param diagram - a {@link Diagram} holding a placeholder {@link Root}
+	 * @param source - the {@link ArchiveIndexEntry} the placeholder was made from
+	 * @see ArchiveIndexEntry#createPlaceholder()
+	 */
+	void register(Diagram diagram, ArchiveIndexEntry source)
+	{
+		sources.put(diagram, source);
+		lastUse.remove(diagram);
+		// START KGU#868 2020-05-07
+		unloaded.add(diagram);
+		// END KGU#868 2020-05-07
+	}
+
+	/** Forgets {@code diagram} (e.g. because it was removed from the surface) */
+	void remove(Diagram diagram)
+	{
+		sources.remove(diagram);
+		lastUse.remove(diagram);
+		pending.remove(diagram);
+		// START KGU#868 2020-05-07
+		unloaded.remove(diagram);
+		// END KGU#868 2020-05-07
+	}
+
+	/** Forgets all diagrams */
+	void clear()
+	{
+		sources.clear();
+		lastUse.clear();
+		pending.clear();
+		// START KGU#868 2020-05-07
+		unloaded.clear();
+		// END KGU#868 2020-05-07
+	}
+
+	/**
+	 * @return true if {@code diagram} is a placeholder the body of which hasn't been loaded
+	 * (may be called from any thread)
+	 */
+	boolean isUnloaded(Diagram diagram)
+	{
+		// START KGU#868 2020-05-07
+		//return sources.containsKey(diagram) && !lastUse.containsKey(diagram);
+		return unloaded.contains(diagram);
+		// END KGU#868 2020-05-07
+	}
+
+	/**
+	 * Schedules the deferred loading of {@code diagram} if it is an unloaded placeholder,
+	 * otherwise just records the use.
+	 * @param diagram - a visible {@link Diagram}
+	 */
+	void request(Diagram diagram)
+	{
+		if (isUnloaded(diagram)) {
+			pending.add(diagram);
+			if (!isScheduled) {
+				isScheduled = true;
+				SwingUtilities.invokeLater(loadTask);
+			}
+		}
+		else if (lastUse.containsKey(diagram)) {
+			lastUse.put(diagram, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Loads the bodies of all unloaded placeholders among {@code diagrams} (parsing them
+	 * concurrently) and waits for it. May also be called from another thread than the event
+	 * dispatch thread (e.g. by the executor), the adoption of the bodies is done on the event
+	 * dispatch thread anyway. A worker of the {@link AnalysisService} doesn't get the bodies
+	 * loaded, however, since it is supposed to work on a snapshot prepared in advance.
+	 * @param diagrams - the {@link Diagram}s the bodies of which are needed
+	 * @see AnalysisService#isWorkerThread()
+	 */
+	void load(final Collection<Diagram> diagrams)
+	{
+		// START KGU#868 2020-05-07: Avoid needless (and possibly deadlocking) EDT round trips
+		boolean anyUnloaded = false;
+		for (Diagram diagram: diagrams) {
+			if (unloaded.contains(diagram)) {
+				anyUnloaded = true;
+				break;
+			}
+		}
+		if (!anyUnloaded) {
+			return;
+		}
+		// END KGU#868 2020-05-07
+		if (SwingUtilities.isEventDispatchThread()) {
+			doLoad(diagrams);
+		}
+		// START KGU#868 2020-05-07: The analysis workers must only work on their snapshot
+		else if (AnalysisService.isWorkerThread()) {
+			logger.log(Level.FINE, "Diagram bodies requested by an analysis worker weren't loaded in advance");
+		}
+		// END KGU#868 2020-05-07
+		else {
+			try {
+				SwingUtilities.invokeAndWait(new Runnable() {
+					@Override
+					public void run() {
+						doLoad(diagrams);
+					}
+				});
+			} catch (InvocationTargetException ex) {
+				logger.log(Level.WARNING, "Failed to load diagrams", ex.getCause());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Evicts the bodies of idle diagrams if the garbage collector has signalled memory
+	 * shortage since the last check.
+	 * @param inUse - diagrams the bodies of which must be retained (e.g. the visible or
+	 * selected ones)
+	 * @return true if some bodies were evicted
+	 */
+	boolean evictIfMemoryShort(Collection<Diagram> inUse)
+	{
+		if (sentinel.get() != null) {
+			return false;
+		}
+		sentinel = new SoftReference<Object>(new Object());
+		Executor executor = Executor.getInstance();
+		if (executor != null && executor.isRunning()) {
+			// Running subroutines must not lose their bodies
+			return false;
+		}
+		long idleSince = System.currentTimeMillis() - IDLE_TIME;
+		List<Diagram> evicted = new ArrayList<Diagram>();
+		Iterator<Map.Entry<Diagram, Long>> iter = lastUse.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Diagram, Long> used = iter.next();
+			Diagram diagram = used.getKey();
+			Root root = diagram.root;
+			ArchiveIndexEntry source = sources.get(diagram);
+			if (!root.filename.equals(source.virtPath != null ? source.virtPath : source.path)) {
+				// Saved elsewhere meanwhile, so we can't reload it from the source anymore
+				sources.remove(diagram);
+				iter.remove();
+			}
+			else if (used.getValue() < idleSince && !inUse.contains(diagram) && diagram.mainform == null
+					&& !root.hasChanged() && !root.isCalling && !root.isIncluding && !root.isExecuted()) {
+				// The signature might have been changed by an edited and saved version
+				source.name = root.getMethodName();
+				if (root.isInclude()) {
+					source.minArgs = source.maxArgs = -2;
+				}
+				else if (root.isSubroutine()) {
+					source.minArgs = root.getMinParameterCount();
+					source.maxArgs = root.getParameterNames().count();
+				}
+				else {
+					source.minArgs = source.maxArgs = -1;
+				}
+				root.adoptContentsOf(source.createPlaceholder());
+				iter.remove();
+				// START KGU#868 2020-05-07
+				unloaded.add(diagram);
+				// END KGU#868 2020-05-07
+				evicted.add(diagram);
+			}
+		}
+		for (Diagram diagram: evicted) {
+			surface.update(diagram.root);
+		}
+		if (!evicted.isEmpty()) {
+			logger.log(Level.INFO, "Evicted {0} idle diagram bodies due to memory shortage", evicted.size());
+		}
+		return !evicted.isEmpty();
+	}
+
+	/**
+	 * Loads a batch of the pending diagrams and reschedules itself if there are more.
+	 */
+	private void loadPending()
+	{
+		isScheduled = false;
+		List<Diagram> batch = new ArrayList<Diagram>(Math.min(pending.size(), MAX_BATCH));
+		Iterator<Diagram> iter = pending.iterator();
+		while (iter.hasNext() && batch.size() < MAX_BATCH) {
+			batch.add(iter.next());
+			iter.remove();
+		}
+		doLoad(batch);
+		if (!pending.isEmpty()) {
+			isScheduled = true;
+			SwingUtilities.invokeLater(loadTask);
+		}
+	}
+
+	/**
+	 * Parses the bodies of the unloaded placeholders among {@code diagrams} concurrently and
+	 * lets the placeholder {@link Root}s adopt them. Must be called on the event dispatch thread.
+	 */
+	private void doLoad(Collection<Diagram> diagrams)
+	{
+		List<Diagram> toLoad = new ArrayList<Diagram>();
+		List<ArchiveIndexEntry> entries = new ArrayList<ArchiveIndexEntry>();
+		for (Diagram diagram: diagrams) {
+			if (isUnloaded(diagram) && !toLoad.contains(diagram)) {
+				toLoad.add(diagram);
+				entries.add(sources.get(diagram));
+				pending.remove(diagram);
+			}
+		}
+		if (toLoad.isEmpty()) {
+			return;
+		}
+		StringList troubles = new StringList();
+		List<Root> bodies = archivar.parseDiagrams(entries, troubles);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < toLoad.size(); i++) {
+			Diagram diagram = toLoad.get(i);
+			Root body = bodies.get(i);
+			if (body == null) {
+				// Don't try again, the placeholder stays as it is
+				sources.remove(diagram);
+				// START KGU#868 2020-05-07
+				unloaded.remove(diagram);
+				// END KGU#868 2020-05-07
+				continue;
+			}
+			Root root = diagram.root;
+			root.adoptContentsOf(body);
+			root.retrieveVarNames();	// Initialise the variable table, otherwise the highlighting won't work
+			lastUse.put(diagram, now);
+			// START KGU#868 2020-05-07: Only now other threads may access the body
+			unloaded.remove(diagram);
+			// END KGU#868 2020-05-07
+			surface.update(root);
+		}
+		if (!troubles.isEmpty()) {
+			logger.log(Level.WARNING, "Failed to load diagram bodies:\n{0}", troubles.getText());
+		}
+	}
+
+}
@@ -0,0 +1,326 @@
+/*
+    Structorizer :: Arranger
+    A little tool which you can use to arrange Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.structorizer.arranger;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Spatial index of the diagram bounds on the Arranger surface.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-26      First Issue (KGU#864)
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-26 (Kay Gürtzig)
+ *      - With hundreds or thousands of diagrams, Surface used to prepare and draw every diagram on each
+ *        repaint and scanned all diagrams on every mouse click or drag. This quad-tree allows to retrieve
+ *        only the diagrams intersecting the clip bounds or a query rectangle.
+ *      - Every entry keeps a sequence number reflecting the order of addition, which is the drawing
+ *        (z) order of the diagrams in Surface, so query results come in drawing order without sorting
+ *        against the diagram vector. Entries straddling a quadrant border stay in the parent node.
+ *      - The covered space grows on demand (the tree is rebuilt then), since diagrams may be placed
+ *        anywhere. Not thread-safe, like Surface, it is only to be used on the event dispatch thread.
+ *
+ ******************************************************************************************************///
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Quad-tree mapping {@link Diagram}s to their bounds (in true, i.e. zoom-compensated,
+ * coordinates) for fast retrieval of the diagrams intersecting some area.
+ * @author Kay Gürtzig
+ */
+final class DiagramQuadTree {
+
+	/** Maximum number of entries in a leaf before it gets split */
+	private static final int MAX_ENTRIES = 8;
+	/** Maximum depth of the tree */
+	private static final int MAX_DEPTH = 12;
+	/** Initial edge length of the covered square */
+	private static final int INITIAL_SIZE = 4096;
+
+	/** Indexed diagram with bounds and z-order sequence number */
+	private static final class Entry {
+		final Diagram diagram;
+		final Rectangle bounds;
+		final long sequence;
+		Entry(Diagram _diagram, Rectangle _bounds, long _sequence)
+		{
+			diagram = _diagram;
+			bounds = _bounds;
+			sequence = _sequence;
+		}
+	}
+
+	/** Orders entries by sequence number, i.e. drawing order */
+	private static final Comparator<Entry> DRAWING_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry entry1, Entry entry2) {
+			return Long.compare(entry1.sequence, entry2.sequence);
+		}
+	};
+
+	/** A quadrant of the tree */
+	private static final class Node {
+		final Rectangle area;
+		final int depth;
+		/** Entries not fitting entirely into a single child (or all entries of a leaf) */
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
+		/** The four sub-quadrants or null for a leaf */
+		Node[] children = null;
+
+		Node(Rectangle _area, int _depth)
+		{
+			area = _area;
+			depth = _depth;
+		}
+
+		void insert(Entry entry)
+		{
+			if (children != null) {
+				Node child = getChildContaining(entry.bounds);
+				if (child != null) {
+					child.insert(entry);
+					return;
+				}
+			}
+			entries.add(entry);
+			if (children == null && entries.size() > MAX_ENTRIES && depth < MAX_DEPTH
+					&& area.width > 1 && area.height > 1) {
+				split();
+			}
+		}
+
+		boolean remove(Entry entry)
+		{
+			if (children != null) {
+				Node child = getChildContaining(entry.bounds);
+				if (child != null) {
+					return child.remove(entry);
+				}
+			}
+			return entries.remove(entry);
+		}
+
+		void collect(Rectangle query, List<Entry> result)
+		{
+			for (Entry entry: entries) {
+				if (query == null || query.intersects(entry.bounds)) {
+					result.add(entry);
+				}
+			}
+			if (children != null) {
+				for (Node child: children) {
+					if (query == null || query.intersects(child.area)) {
+						child.collect(query, result);
+					}
+				}
+			}
+		}
+
+		private Node getChildContaining(Rectangle bounds)
+		{
+			for (Node child: children) {
+				if (child.area.contains(bounds)) {
+					return child;
+				}
+			}
+			return null;
+		}
+
+		private void split()
+		{
+			int w1 = area.width / 2, h1 = area.height / 2;
+			int w2 = area.width - w1, h2 = area.height - h1;
+			children = new Node[] {
+					new Node(new Rectangle(area.x, area.y, w1, h1), depth + 1),
+					new Node(new Rectangle(area.x + w1, area.y, w2, h1), depth + 1),
+					new Node(new Rectangle(area.x, area.y + h1, w1, h2), depth + 1),
+					new Node(new Rectangle(area.x + w1, area.y + h1, w2, h2), depth + 1)
+			};
+			ArrayList<Entry> oldEntries = new ArrayList<Entry>(entries);
+			entries.clear();
+			for (Entry entry: oldEntries) {
+				insert(entry);
+			}
+		}
+	}
+
+	private final HashMap<Diagram, Entry> entries = new HashMap<Diagram, Entry>();
+	private Node root = new Node(new Rectangle(0, 0, INITIAL_SIZE, INITIAL_SIZE), 0);
+	private long nextSequence = 0;
+	/** Cached union of all bounds (null if to be recomputed) */
+	private Rectangle extent = new Rectangle();
+
+	/**
+	 * Adds {@code diagram} with the given {@code bounds} on top of all other diagrams (if it
+	 * had been indexed before then it is moved to the top).
+	 * @param diagram - the {@link Diagram}
+	 * @param bounds - its bounds in true coordinates
+	 */
+	public void add(Diagram diagram, Rectangle bounds)
+	{
+		remove(diagram);
+		insert(new Entry(diagram, new Rectangle(bounds), nextSequence++));
+	}
+
+	/**
+	 * Updates the bounds of {@code diagram} without changing its drawing order (adds it
+	 * on top if it hadn't been indexed).
+	 * @param diagram - the {@link Diagram}
+	 * @param bounds - its new bounds in true coordinates
+	 */
+	public void update(Diagram diagram, Rectangle bounds)
+	{
+		Entry entry = entries.get(diagram);
+		if (entry == null) {
+			add(diagram, bounds);
+		}
+		else if (!entry.bounds.equals(bounds)) {
+			remove(diagram);
+			insert(new Entry(diagram, new Rectangle(bounds), entry.sequence));
+		}
+	}
+
+	/**
+	 * Removes {@code diagram} from the index.
+	 * @return true if the diagram had been indexed
+	 */
+	public boolean remove(Diagram diagram)
+	{
+		Entry entry = entries.remove(diagram);
+		if (entry != null) {
+			root.remove(entry);
+			extent = null;
+		}
+		return entry != null;
+	}
+
+	/** Removes all diagrams from the index */
+	public void clear()
+	{
+		entries.clear();
+		root = new Node(new Rectangle(0, 0, INITIAL_SIZE, INITIAL_SIZE), 0);
+		extent = new Rectangle();
+	}
+
+	/** @return the number of indexed diagrams */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Retrieves the diagrams the bounds of which intersect {@code area}.
+	 * @param area - the query rectangle in true coordinates, null for all diagrams
+	 * @return the intersecting diagrams in drawing order (bottom-most first)
+	 */
+	public List<Diagram> query(Rectangle area)
+	{
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		root.collect(area, found);
+		Collections.sort(found, DRAWING_ORDER);
+		ArrayList<Diagram> result = new ArrayList<Diagram>(found.size());
+		for (Entry entry: found) {
+			result.add(entry.diagram);
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieves the diagrams the bounds of which contain the point ({@code x}, {@code y}).
+	 * @return the diagrams in drawing order (bottom-most first)
+	 */
+	public List<Diagram> query(int x, int y)
+	{
+		return query(new Rectangle(x, y, 1, 1));
+	}
+
+	/**
+	 * @return the union of the bounds of all indexed diagrams (an empty rectangle at (0,0)
+	 * if there aren't any)
+	 */
+	public Rectangle getExtent()
+	{
+		if (extent == null) {
+			extent = new Rectangle();
+			for (Entry entry: entries.values()) {
+				if (extent.isEmpty()) {
+					extent.setBounds(entry.bounds);
+				}
+				else {
+					extent.add(entry.bounds);
+				}
+			}
+		}
+		return new Rectangle(extent);
+	}
+
+	private void insert(Entry entry)
+	{
+		entries.put(entry.diagram, entry);
+		if (extent != null) {
+			if (entries.size() == 1) {
+				extent = new Rectangle(entry.bounds);
+			}
+			else {
+				extent.add(entry.bounds);
+			}
+		}
+		if (!root.area.contains(entry.bounds)) {
+			grow(entry.bounds);
+		}
+		else {
+			root.insert(entry);
+		}
+	}
+
+	/**
+	 * Rebuilds the tree with a covered square large enough for all entries and {@code bounds}
+	 * (the new entry is contained in {@link #entries} already).
+	 */
+	private void grow(Rectangle bounds)
+	{
+		Rectangle area = root.area.union(bounds);
+		int size = Math.max(root.area.width, 1);
+		while (size < area.width || size < area.height) {
+			size = size < Integer.MAX_VALUE / 2 ? 2 * size : Integer.MAX_VALUE;
+		}
+		root = new Node(new Rectangle(area.x, area.y, size, size), 0);
+		for (Entry entry: entries.values()) {
+			root.insert(entry);
+		}
+	}
+
+}
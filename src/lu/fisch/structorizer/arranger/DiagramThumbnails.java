@@ -0,0 +1,372 @@
+/*
+    Structorizer :: Arranger
+    A little tool which you can use to arrange Nassi-Shneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.structorizer.arranger;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Cache of downscaled diagram images for zoomed-out Arranger views.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-27      First Issue (KGU#865)
+ *      Kay Gürtzig     2020-05-05      KGU#873: Previews from the arrangement cache, getCurrent()
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-27 (Kay Gürtzig)
+ *      - At small zoom levels the Arranger drew every diagram element by element with unreadably tiny
+ *        text. Beyond a configurable zoom factor, Surface now draws thumbnail images from this cache
+ *        instead, or a mere outline as long as no thumbnail is available.
+ *      - Thumbnails are not rendered while painting but collected and rendered afterwards in time slices
+ *        on the event dispatch thread. A worker thread is not an option because drawing a Root updates
+ *        the cached geometry of its elements, which the Arranger and the Structorizer editor rely on.
+ *        The thumbnail of a modified diagram stays in use until its successor is ready.
+ *      - The images are only softly referenced, so they may be dropped under memory shortage (and will
+ *        be re-rendered on demand).
+ *      2020-05-05 (Kay Gürtzig)
+ *      - Thumbnails of unloaded diagrams may be provided as PNG data from the arrangement cache (previews).
+ *        They are decoded on demand (and again if the image was dropped) and replaced by a rendered
+ *        thumbnail once the diagram body has been loaded.
+ *
+ ******************************************************************************************************///
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import javax.swing.SwingUtilities;
+
+import lu.fisch.graphics.Rect;
+import lu.fisch.structorizer.archivar.ArrangementCache;
+import lu.fisch.structorizer.elements.Element;
+import lu.fisch.structorizer.elements.Root;
+
+/**
+ * Holds downscaled images of the {@link Diagram}s of a {@link Surface} for level-of-detail
+ * drawing and renders missing or outdated ones in the background (i.e. deferred, on the
+ * event dispatch thread). Only to be used on the event dispatch thread.
+ * @author Kay Gürtzig
+ */
+final class DiagramThumbnails {
+
+	/** Maximum width or height of a thumbnail image in pixels */
+	private static final int MAX_EXTENT = 512;
+	/** Time in milliseconds after which a rendering slice yields to other events */
+	private static final long TIME_SLICE = 25;
+
+	/** A cached image with the size of the diagram it was rendered from */
+	static final class Thumbnail {
+		// START KGU#873 2020-05-05: Not final anymore (may be re-decoded)
+		//private final SoftReference<BufferedImage> image;
+		private SoftReference<BufferedImage> image;
+		// END KGU#873 2020-05-05
+		/** Size of the diagram (in true coordinates) when rendered */
+		final int width, height;
+		private boolean isStale = false;
+		// START KGU#873 2020-05-05
+		/** PNG data of a preview from the arrangement cache, null for rendered thumbnails */
+		private final byte[] data;
+		// END KGU#873 2020-05-05
+
+		Thumbnail(BufferedImage _image, int _width, int _height)
+		{
+			image = new SoftReference<BufferedImage>(_image);
+			width = _width;
+			height = _height;
+			// START KGU#873 2020-05-05
+			data = null;
+			// END KGU#873 2020-05-05
+		}
+
+		// START KGU#873 2020-05-05
+		/** Creates a preview thumbnail from PNG data (decoded on demand) */
+		Thumbnail(byte[] _data, int _width, int _height)
+		{
+			image = new SoftReference<BufferedImage>(null);
+			width = _width;
+			height = _height;
+			data = _data;
+		}
+
+		/** @return the PNG data of a preview from the arrangement cache, or null */
+		byte[] getData()
+		{
+			return data;
+		}
+		// END KGU#873 2020-05-05
+
+		/** @return the image or null if it has been dropped */
+		BufferedImage getImage()
+		{
+			// START KGU#873 2020-05-05: Previews are (re-)decoded
+			//return image.get();
+			BufferedImage img = image.get();
+			if (img == null && data != null) {
+				img = ArrangementCache.decodeThumbnail(data);
+				image = new SoftReference<BufferedImage>(img);
+			}
+			return img;
+			// END KGU#873 2020-05-05
+		}
+	}
+
+	private final Surface surface;
+	private final HashMap<Diagram, Thumbnail> thumbnails = new HashMap<Diagram, Thumbnail>();
+	/** Diagrams waiting for a thumbnail to be rendered */
+	private final LinkedHashSet<Diagram> pending = new LinkedHashSet<Diagram>();
+	/** Whether a rendering slice has been scheduled */
+	private boolean isScheduled = false;
+	/** The scale factor for the thumbnails (unless they would exceed {@link #MAX_EXTENT}) */
+	private float scale;
+
+	private final Runnable renderTask = new Runnable() {
+		@Override
+		public void run() {
+			renderPending();
+		}
+	};
+
+	/**
+	 * Creates a thumbnail cache for the diagrams of {@code _surface}.
+	 * @param _surface - the owning {@link Surface} (to be repainted when thumbnails are ready)
+	 * @param _scale - the scale factor for the images (between 0 and 1)
+	 */
+	DiagramThumbnails(Surface _surface, float _scale)
+	{
+		surface = _surface;
+		scale = _scale;
+	}
+
+	/**
+	 * Changes the scale factor of the thumbnails, drops all cached images if it differs.
+	 * @param _scale - the new scale factor (between 0 and 1)
+	 */
+	void setScale(float _scale)
+	{
+		if (_scale != scale) {
+			scale = _scale;
+			clear();
+		}
+	}
+
+	/**
+	 * Returns the cached thumbnail of {@code diagram}, which may be outdated. If there is
+	 * none or it is outdated then (re-)rendering is scheduled.
+	 * @param diagram - the {@link Diagram} to be drawn
+	 * @return the {@link Thumbnail} or null if there is none (yet)
+	 */
+	Thumbnail get(Diagram diagram)
+	{
+		Thumbnail thumbnail = thumbnails.get(diagram);
+		if (thumbnail == null || thumbnail.isStale || thumbnail.getImage() == null) {
+			request(diagram);
+			if (thumbnail != null && thumbnail.getImage() == null) {
+				thumbnail = null;
+			}
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * Marks the thumbnail of {@code diagram} as outdated (e.g. because the diagram was modified).
+	 * It will be re-rendered when requested next.
+	 */
+	void invalidate(Diagram diagram)
+	{
+		Thumbnail thumbnail = thumbnails.get(diagram);
+		if (thumbnail != null) {
+			thumbnail.isStale = true;
+		}
+	}
+
+	/** Marks all thumbnails as outdated */
+	void invalidateAll()
+	{
+		for (Thumbnail thumbnail: thumbnails.values()) {
+			thumbnail.isStale = true;
+		}
+	}
+
+	// START KGU#873 2020-05-05: Previews of unloaded diagrams
+	/**
+	 * Provides a preview for the unloaded {@code diagram} from the arrangement cache.
+	 * @param diagram - a {@link Diagram} holding a placeholder
+	 * @param data - the PNG data of the thumbnail
+	 * @param width - the width of the diagram
+	 * @param height - the height of the diagram
+	 */
+	void putPreview(Diagram diagram, byte[] data, int width, int height)
+	{
+		thumbnails.put(diagram, new Thumbnail(data, width, height));
+		pending.remove(diagram);
+	}
+
+	/**
+	 * Returns the thumbnail of {@code diagram}, even if outdated, without scheduling any
+	 * rendering, e.g. as preview of a diagram the body of which hasn't been loaded. Note
+	 * that its image may have been dropped (rendered thumbnail) or be undecodable (preview).
+	 * @param diagram - the {@link Diagram} to be drawn
+	 * @return the {@link Thumbnail} or null if there is none
+	 */
+	Thumbnail getPreview(Diagram diagram)
+	{
+		return thumbnails.get(diagram);
+	}
+
+	/**
+	 * Returns an up-to-date thumbnail of {@code diagram}, rendering it immediately if
+	 * necessary (e.g. for the arrangement cache).
+	 * @param diagram - a {@link Diagram} with loaded body
+	 * @return the {@link Thumbnail} or null if the diagram can't be drawn
+	 */
+	Thumbnail getCurrent(Diagram diagram)
+	{
+		Thumbnail thumbnail = thumbnails.get(diagram);
+		if (thumbnail == null || thumbnail.isStale || thumbnail.getImage() == null) {
+			pending.remove(diagram);
+			thumbnail = render(diagram);
+			if (thumbnail != null) {
+				thumbnails.put(diagram, thumbnail);
+			}
+		}
+		return thumbnail;
+	}
+	// END KGU#873 2020-05-05
+
+	/** Drops the thumbnail of {@code diagram} (e.g. because it was removed from the surface) */
+	void remove(Diagram diagram)
+	{
+		thumbnails.remove(diagram);
+		pending.remove(diagram);
+	}
+
+	/** Drops all thumbnails */
+	void clear()
+	{
+		thumbnails.clear();
+		pending.clear();
+	}
+
+	private void request(Diagram diagram)
+	{
+		pending.add(diagram);
+		if (!isScheduled) {
+			isScheduled = true;
+			SwingUtilities.invokeLater(renderTask);
+		}
+	}
+
+	/**
+	 * Renders pending thumbnails until the time slice is exhausted, then reschedules itself
+	 * if there are more and has the surface repainted.
+	 */
+	private void renderPending()
+	{
+		isScheduled = false;
+		long deadline = System.currentTimeMillis() + TIME_SLICE;
+		boolean rendered = false;
+		Iterator<Diagram> iter = pending.iterator();
+		while (iter.hasNext() && (!rendered || System.currentTimeMillis() < deadline)) {
+			Diagram diagram = iter.next();
+			iter.remove();
+			Thumbnail thumbnail = render(diagram);
+			if (thumbnail != null) {
+				thumbnails.put(diagram, thumbnail);
+				rendered = true;
+			}
+		}
+		if (!pending.isEmpty()) {
+			isScheduled = true;
+			SwingUtilities.invokeLater(renderTask);
+		}
+		if (rendered) {
+			surface.repaint();
+		}
+	}
+
+	/**
+	 * Draws {@code diagram} downscaled into a new image. The diagram is drawn at its actual
+	 * position (with compensating translation) such that the element geometry remains the same
+	 * as with ordinary drawing on the surface.
+	 * @return the thumbnail or null if the diagram can't be drawn
+	 */
+	private Thumbnail render(Diagram diagram)
+	{
+		Root root = diagram.root;
+		if (root == null) {
+			return null;
+		}
+		BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = scratch.createGraphics();
+		Rect rect;
+		try {
+			// Returns immediately if the diagram is prepared
+			rect = root.prepareDraw(g);
+		}
+		finally {
+			g.dispose();
+		}
+		int width = rect.right - rect.left;
+		int height = rect.bottom - rect.top;
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		float factor = Math.min(scale, (float)MAX_EXTENT / Math.max(width, height));
+		BufferedImage image = new BufferedImage(
+				Math.max((int)Math.ceil(width * factor), 1),
+				Math.max((int)Math.ceil(height * factor), 1),
+				BufferedImage.TYPE_INT_ARGB);
+		Point point = new Point(diagram.point);
+		g = image.createGraphics();
+		// The selection is to be shown by the surface, not to be frozen in the image
+		boolean wasSelected = root.getSelected(Element.DrawingContext.DC_ARRANGER);
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.scale(factor, factor);
+			g.translate(-point.x, -point.y);
+			if (wasSelected) {
+				root.setSelected(false, Element.DrawingContext.DC_ARRANGER);
+			}
+			root.drawWithoutNotification(g, point, null, Element.DrawingContext.DC_ARRANGER, false);
+		}
+		finally {
+			if (wasSelected) {
+				root.setSelected(true, Element.DrawingContext.DC_ARRANGER);
+			}
+			g.dispose();
+		}
+		return new Thumbnail(image, width, height);
+	}
+
+}
@@ -125,6 +125,23 @@ package lu.fisch.structorizer.arranger;
  *      Kay Gürtzig     2019-11-28      Bugfix #788: Offered arrz extraction to user-chosen folder was ignored
  *      Kay Gürtzig     2020-02-16      Issue #815: Combined ArrangerFilter introduced for convenience
  *      Kay Gürtzig     2020-02-17      Bugfix #818: Strong inconsistencies by outdated method replace() mended.
+ *      Kay Gürtzig     2020-04-12      KGU#850: Parallel analysis of dependent diagrams via an AnalysisService
+ *      Kay Gürtzig     2020-04-26      KGU#864: Quad-tree index of diagram bounds for drawing, hit tests and
+ *                                      rubber-band selection restricted to the affected diagrams
+ *      Kay Gürtzig     2020-04-27      KGU#865: Level-of-detail drawing (thumbnails/outlines) beyond zoom factor lodZoom
+ *      Kay Gürtzig     2020-04-29      KGU#867: Loaded arrangements are added as batch with a single notification
+ *      Kay Gürtzig     2020-04-30      KGU#868: Large arrangements are loaded lazily (placeholders from the signatures,
+ *                                      bodies loaded on demand via a DiagramBodyLoader), ini option arrangerLazyThreshold
+ *      Kay Gürtzig     2020-05-02      KGU#870: findRoutinesBySignature() answered from a name#arity index, only the
+ *                                      matching diagrams get their bodies loaded
+ *      Kay Gürtzig     2020-05-05      KGU#873: Arrangement cache (sizes, signatures, and thumbnails) written on saving
+ *                                      large arrangements, unloaded diagrams are shown with the cached previews
+ *      Kay Gürtzig     2020-05-06      KGU#874: ini option arrangerDiagramStore (sharing of identical diagram files)
+ *      Kay Gürtzig     2020-05-07      KGU#874: Diagrams of arrangements are parsed via the diagram store
+ *      Kay Gürtzig     2020-05-07      KGU#869: Virgin diagrams are no longer saved to the temp folder before
+ *                                      being archived
+ *      Kay Gürtzig     2020-05-07      KGU#866: Arrangement archives are no longer extracted on opening unless the
+ *                                      user chooses a target folder
  *
  ******************************************************************************************************
  *
@@ -186,9 +203,13 @@ import java.awt.EventQueue;
 import java.awt.Frame;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Image;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.ClipboardOwner;
@@ -214,6 +235,7 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -222,9 +244,11 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -241,7 +265,9 @@ import javax.swing.filechooser.FileFilter;
 import lu.fisch.graphics.Rect;
 import lu.fisch.structorizer.archivar.Archivar;
 import lu.fisch.structorizer.archivar.Archivar.ArchiveIndex;
+import lu.fisch.structorizer.archivar.Archivar.ArchiveIndexEntry;
 import lu.fisch.structorizer.archivar.ArchiveRecord;
+import lu.fisch.structorizer.archivar.ArrangementCache;
 import lu.fisch.structorizer.archivar.IRoutinePool;
 import lu.fisch.structorizer.archivar.IRoutinePoolListener;
 import lu.fisch.structorizer.elements.Call;
@@ -288,9 +314,28 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	private final HashMap<String, Vector<Diagram>> nameMap = new HashMap<String, Vector<Diagram>>();
 	private final HashMap<Root, Diagram> rootMap = new HashMap<Root, Diagram>();
 	// END KGU#624 2018-12-26
+	// START KGU#870 2020-05-02: Routine lookup index "name#arity" -> matching diagrams
+	/**
+	 * Cached results of the signature matching in {@link #findRoutinesBySignature(String, int, Root)}
+	 * (before group filtering), keyed by {@code <name>#<argument count>}. Cleared whenever the name
+	 * map changes or a diagram signature changes. May be accessed by the executor thread.
+	 */
+	private final ConcurrentHashMap<String, Vector<Diagram>> signatureIndex = new ConcurrentHashMap<String, Vector<Diagram>>();
+	/** Incremented on every invalidation of {@link #signatureIndex} (avoids caching outdated results) */
+	private volatile int signatureGeneration = 0;
+	// END KGU#870 2020-05-02
 	// START KGU#626 2018-12-23: Enh. #657
 	private final HashMap<String, Group> groups = new HashMap<String, Group>();
 	// END KGU#626 2018-12-23
+	// START KGU#850 2020-04-12: Parallel analysis of diagrams depending on modified includables
+	private final AnalysisService analysisService = new AnalysisService(this);
+	// END KGU#850 2020-04-12
+	// START KGU#864 2020-04-26: Spatial index for visibility culling and hit tests
+	/** Quad-tree of the diagram bounds (true coordinates), in sync with {@link #diagrams} */
+	private final DiagramQuadTree diagramIndex = new DiagramQuadTree();
+	/** Diagrams the size of which may have changed since they were indexed last */
+	private final Set<Diagram> diagramsResized = new HashSet<Diagram>();
+	// END KGU#864 2020-04-26
 	
 	/** Default minimum distance between diagrams when allocated */ 
 	private static final int DEFAULT_GAP = 10;
@@ -325,6 +370,26 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	/** The factor by which the drawing is currently downscaled */
 	private float zoomFactor = 2.0f;
 	// END KGU#497 2018-02-17
+	// START KGU#865 2020-04-27: Level of detail for overview zoom levels
+	/** Zoom factor from which on diagrams are drawn as thumbnails or outlines (0 = never) */
+	private float lodZoom = 4.0f;
+	/** Cache of downscaled diagram images for zoom factors beyond {@link #lodZoom} */
+	private final DiagramThumbnails thumbnails = new DiagramThumbnails(this, 1.0f / lodZoom);
+	// END KGU#865 2020-04-27
+	// START KGU#867 2020-04-29: Batched addition of loaded diagrams
+	/** Whether diagrams are being added as a batch (notifications and layout adaptation postponed) */
+	private boolean isAddingBatch = false;
+	/** The notification flags collected while {@link #isAddingBatch} is set */
+	private int batchNotificationFlags = 0;
+	/** The area to be scrolled to at the end of the batch (null if none) */
+	private Rectangle batchScrollRect = null;
+	// END KGU#867 2020-04-29
+	// START KGU#868 2020-04-30: Lazy loading of large arrangements
+	/** Minimum number of diagrams from which on an arrangement is loaded lazily (0 = never) */
+	private int lazyThreshold = 100;
+	/** Loads the bodies of diagrams added as placeholders on demand */
+	private final DiagramBodyLoader bodyLoader = new DiagramBodyLoader(this);
+	// END KGU#868 2020-04-30
 	// START KGU#110 2015-12-21: Enh. #62, also supports PNG export
 	public File currentDirectory = new File(System.getProperty("user.home"));
 	// END KGU#110 2015-12-21
@@ -461,17 +526,20 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			// START KGU#497 2018-02-17: Enh. #512
 			Graphics2D g2d = (Graphics2D) g;
 			// START KGU#572 2018-09-09: Bugfix #508/#512 - ensure all diagrams have shape without rounding defects
-			for(int d = 0; d < diagrams.size(); d++)
-			{
-				// START KGU#624 2018-12.24: Enh. #655
-				//diagrams.get(d).root.prepareDraw(g2d);
-				Diagram diagr = diagrams.get(d);
-				if ((!onlySelected || this.diagramsSelected.contains(diagr)) && diagr.root != null) {
-					// If the diagram had already been drawn or prepared this will return immediately
-					diagr.root.prepareDraw(g2d);
-				}
-				// END KGU#624 2018-12-24
-			}
+			// START KGU#864 2020-04-26: Only diagrams that may have changed need preparation, others are up to date
+			//for(int d = 0; d < diagrams.size(); d++)
+			//{
+			//	// START KGU#624 2018-12.24: Enh. #655
+			//	//diagrams.get(d).root.prepareDraw(g2d);
+			//	Diagram diagr = diagrams.get(d);
+			//	if ((!onlySelected || this.diagramsSelected.contains(diagr)) && diagr.root != null) {
+			//		// If the diagram had already been drawn or prepared this will return immediately
+			//		diagr.root.prepareDraw(g2d);
+			//	}
+			//	// END KGU#624 2018-12-24
+			//}
+			refreshDiagramIndex(g2d);
+			// END KGU#864 2020-04-26
 			// END KGU#572 2018-09-09
 			// START KGU#497 2018-03-19: Enh. #512
 			//g2d.scale(1/zoomFactor, 1/zoomFactor);
@@ -526,9 +594,24 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			// END KGU#630 2019-01-19
 			
 //			System.out.println("Surface.paintComponent()");
-			for(int d=0; d<diagrams.size(); d++)
+			// START KGU#864 2020-04-26: Only draw the diagrams intersecting the clip bounds
+			//for(int d=0; d<diagrams.size(); d++)
+			//{
+			//	Diagram diagram = diagrams.get(d);
+			Rectangle queryRect = null;
+			if (visibleRect != null) {
+				// The pin icon juts out a little beyond the upper right corner
+				int margin = getPinMargin();
+				queryRect = new Rectangle(visibleRect);
+				queryRect.translate(offsetX, offsetY);
+				queryRect.grow(margin, margin);
+			}
+			// START KGU#865 2020-04-27: Beyond lodZoom, the diagram texts would be illegible anyway
+			boolean drawThumbnails = !compensateZoom && lodZoom > 0 && zoomFactor >= lodZoom;
+			// END KGU#865 2020-04-27
+			for (Diagram diagram: diagramIndex.query(queryRect))
 			{
-				Diagram diagram = diagrams.get(d);
+			// END KGU#864 2020-04-26
 				// START KGU#624 2018-12-24: Enh. #655
 				if (onlySelected && !this.diagramsSelected.contains(diagram)) {
 					continue;
@@ -545,7 +628,27 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				// END KGU#624 2018-12-24
 				// START KGU#88 2015-11-24
 				//root.draw(g, point, this);
-				Rect rect = root.draw(g2d, point, visibleRect, this, Element.DrawingContext.DC_ARRANGER, wasContented);
+				// START KGU#865 2020-04-27: Level of detail
+				//Rect rect = root.draw(g2d, point, visibleRect, this, Element.DrawingContext.DC_ARRANGER, wasContented);
+				Rect rect;
+				if (drawThumbnails) {
+					rect = drawThumbnail(g2d, diagram, point);
+				}
+				else {
+					// START KGU#868 2020-04-30: Placeholders get their bodies when they become visible
+					bodyLoader.request(diagram);
+					// END KGU#868 2020-04-30
+					// START KGU#873 2020-05-05: A cached preview is better than the bare placeholder
+					//rect = root.draw(g2d, point, visibleRect, this, Element.DrawingContext.DC_ARRANGER, wasContented);
+					if (bodyLoader.isUnloaded(diagram) && thumbnails.getPreview(diagram) != null) {
+						rect = drawThumbnail(g2d, diagram, point);
+					}
+					else {
+						rect = root.draw(g2d, point, visibleRect, this, Element.DrawingContext.DC_ARRANGER, wasContented);
+					}
+					// END KGU#873 2020-05-05
+				}
+				// END KGU#865 2020-04-27
 				if (diagram.isPinned)
 				{
 					if (pinIcon == null)
@@ -566,10 +669,29 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				}
 				// END KGU#88 2015_11-24
 				// START KGU#85 2017-10-23: Enh. #35 - take advantage of this opportunity to check scroll dimensions
-				if (rect.right > area.width) area.width = rect.right;
-				if (rect.bottom > area.height) area.height = rect.bottom;
+				// START KGU#864 2020-04-26: The area is now obtained from the index (not all diagrams are drawn)
+				//if (rect.right > area.width) area.width = rect.right;
+				//if (rect.bottom > area.height) area.height = rect.bottom;
+				indexDiagram(diagram, false);
+				// END KGU#864 2020-04-26
 				// END KGU#85 2017-10-23
 			}
+			// START KGU#868 2020-04-30: Under memory shortage drop the bodies of idle placeholders
+			if (!compensateZoom) {
+				Set<Diagram> inUse = new HashSet<Diagram>(this.diagramsSelected);
+				if (visibleRect != null) {
+					inUse.addAll(diagramIndex.query(queryRect));
+				}
+				bodyLoader.evictIfMemoryShort(inUse);
+			}
+			// END KGU#868 2020-04-30
+			// START KGU#864 2020-04-26
+			Rectangle extent = diagramIndex.getExtent();
+			if (!extent.isEmpty()) {
+				area.width = Math.max(extent.x + extent.width - 1, 0);
+				area.height = Math.max(extent.y + extent.height - 1, 0);
+			}
+			// END KGU#864 2020-04-26
 			// START KGU#624 2018-12-23: Enh. #655 - draw the dragArea
 			if (dragArea != null) {
 				g2d.drawRect(dragArea.x, dragArea.y, dragArea.width, dragArea.height);
@@ -1088,7 +1210,16 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				// name for the arr file to be zipped into the target file
 				arrFilename = tempDir + File.separator + (new File(filename)).getName() + ".arr";
 				// START KGU#650 2019-02-11: Issue #677 save all virgin group members to the temp dir
-				savedRoots = saveVirginRootsToTempDir(group, tempDir);
+				// START KGU#869 2020-05-07: The Archivar serializes them directly into the archive
+				//savedRoots = saveVirginRootsToTempDir(group, tempDir);
+				savedRoots = new LinkedList<Root>();
+				for (Diagram diagr: group.getDiagrams()) {
+					if (!Archivar.hasSourceFile(diagr.root)) {
+						// This one will get a new archive entry
+						savedRoots.add(diagr.root);
+					}
+				}
+				// END KGU#869 2020-05-07
 				// END KGU#650 2019-02-11
 			}
 			else if (file.exists())
@@ -1133,9 +1264,24 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			Archivar archivar = new Archivar();
 			// START KGU#752 2019-10-14: Bugfix #764 - the update of the arr file if portable==false was averted
 			//tmpFilename = archivar.saveArrangement(itemsToSave, arrFilename, (portable ? file : null), (portable ? tempDir : null), offset, null);
-			String tmpArrzName = archivar.saveArrangement(itemsToSave, arrFilename, (portable ? file : null), (portable ? tempDir : null), offset, null);
+			// START KGU#873 2020-05-05: Arrangements to be loaded lazily get a cache of sizes and thumbnails
+			//String tmpArrzName = archivar.saveArrangement(itemsToSave, arrFilename, (portable ? file : null), (portable ? tempDir : null), offset, null);
+			Map<Root, ArrangementCache.Item> cacheItems = null;
+			if (lazyThreshold > 0 && itemsToSave.size() >= lazyThreshold) {
+				cacheItems = makeCacheItems(itemsToSave);
+			}
+			String tmpArrzName = archivar.saveArrangement(itemsToSave, arrFilename, (portable ? file : null), (portable ? tempDir : null), offset,
+					cacheItems, null);
+			// END KGU#873 2020-05-05
 			if (portable) {
 				tmpFilename = tmpArrzName;
+				// START KGU#869 2020-05-07: The archived virgin diagrams are saved now
+				for (Diagram diagr: groupMembers) {
+					if (diagr.mainform != null && savedRoots.contains(diagr.root)) {
+						diagr.mainform.doButtons();
+					}
+				}
+				// END KGU#869 2020-05-07
 			}
 			// END KGU#752 2019-10-14
 			// END KGU#679 2019-03-11
@@ -1180,6 +1326,17 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				group.setFile(new File(outFilename), null, false);
 			}
 			// END KGU#626 2019-01-02
+			// START KGU#873 2020-05-05: Without archive, the cache becomes a sidecar file
+			if (!portable && cacheItems != null) {
+				try {
+					archivar.saveArrangementCache(new File(outFilename), cacheItems);
+				}
+				catch (IOException ex) {
+					// The cache is dispensable
+					logger.log(Level.WARNING, "Failed to write the arrangement cache for " + outFilename, ex);
+				}
+			}
+			// END KGU#873 2020-05-05
 			// START KGU#650 2019-02-11: Issue #677 - let the archived virgin diagrams reside in the archive
 			// START KGU#680 2019-03-11: Bugfix #699 - all files in the archive must be ensured their virtual path is set properly 
 			//if (savedVirginRoots != null) {
@@ -1221,6 +1378,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 						Diagram diagram = new Diagram(copiedRoot, new Point(diagr.point));
 						// END KGU#718 2019-07-31
 						diagrams.add(diagram);
+						// START KGU#864 2020-04-26
+						indexDiagram(diagram, true);
+						// END KGU#864 2020-04-26
 						rootMap.put(copiedRoot, diagram);
 						String rootName = copiedRoot.getMethodName();
 						addToNameMap(rootName, diagram);
@@ -1231,7 +1391,10 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 						// FIXME: change selection?
 					}
 					// In the other cases the diagram already resides in the archive or can be shared
-					else if (diagr.root.shadowFilepath == null) {
+					// START KGU#869 2020-05-07: Virgin diagrams got their shadow path from the Archivar
+					//else if (diagr.root.shadowFilepath == null) {
+					else if (diagr.root.shadowFilepath == null || savedRoots.contains(diagr.root)) {
+					// END KGU#869 2020-05-07
 						sharedDiagrams.addOrdered(diagr.root.getSignatureString(false) + ": " +
 								groupNames.concatenate(", ").replace(Group.DEFAULT_GROUP_NAME, ArrangerIndex.msgDefaultGroupName.getText()));
 						if (savedRoots.contains(diagr.root)) {
@@ -1284,6 +1447,40 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		return done;
 	}
 
+	// START KGU#873 2020-05-05: Arrangement cache
+	/**
+	 * Compiles the {@link ArrangementCache} items for the diagrams among {@code items}, i.e. their
+	 * sizes, signatures, and thumbnails. Missing or outdated thumbnails of loaded diagrams are rendered
+	 * now, unloaded diagrams contribute their previews (if any). Modified diagrams are skipped since
+	 * the cache refers to the file contents.
+	 * @param items - the {@link Diagram}s to be saved
+	 * @return the cache items by diagram
+	 */
+	private Map<Root, ArrangementCache.Item> makeCacheItems(Collection<ArchiveRecord> items)
+	{
+		Map<Root, ArrangementCache.Item> cacheItems = new HashMap<Root, ArrangementCache.Item>();
+		for (ArchiveRecord item: items) {
+			Diagram diagram = rootMap.get(item.root);
+			if (diagram == null) {
+				continue;
+			}
+			DiagramThumbnails.Thumbnail thumbnail = null;
+			if (bodyLoader.isUnloaded(diagram)) {
+				thumbnail = thumbnails.getPreview(diagram);
+			}
+			else if (!diagram.root.hasChanged()) {
+				thumbnail = thumbnails.getCurrent(diagram);
+			}
+			if (thumbnail != null) {
+				byte[] data = thumbnail.getData();
+				cacheItems.put(diagram.root, new ArrangementCache.Item(diagram.root, thumbnail.width, thumbnail.height,
+						data == null ? thumbnail.getImage() : null, data));
+			}
+		}
+		return cacheItems;
+	}
+	// END KGU#873 2020-05-05
+
 	// START KGU#650 2019-02-11: Issue #677 - Inconveniences on saving arrangement archives
 	/** Tries to save all unsaved group members in the given temporary directory, ensuring
 	 * unique names. Raises a message box with the names of all diagrams the saving attempt
@@ -1585,7 +1782,10 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				// START KGU#679 2019-03-12: Enh. #698 Ensure that loaded arrangements occur in the recent file lists
 				if (done) {
 					for (Mainform form: this.activeMainforms()) {
-						form.addRecentFile(file);
+						// START KGU#866 2020-05-07: The arr file may now be a virtual path within the archive
+						//form.addRecentFile(file);
+						form.addRecentFile(unzippedFrom != null ? unzippedFrom : file);
+						// END KGU#866 2020-05-07
 					}
 				}
 				// END KGU#679 2019-03-12
@@ -1598,8 +1798,8 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	 * Restores the diagram arrangement stored in arr file `filename´ if possible
 	 * (i.e. given the referred nsd file paths exist and the nsd files may be parsed)
 	 * @param frame - owning frame component
-	 * @param arrFile - the arrangement list file to be reloaded
-	 * @param unzippedFrom - the arrangement archive file if shadowed to temporary directory, null otherwise
+	 * @param arrFile - the arrangement list file to be reloaded (or its virtual path within {@code unzippedFrom})
+	 * @param unzippedFrom - the arrangement archive file if extracted or read directly, null otherwise
 	 * @return true if at lest some of the referred diagrams could be arranged again.
 	 */
 	// START KGU#316 2016-12-28: Enh. #318 API change to support shadow paths in unzipped Roots
@@ -1738,15 +1938,101 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 //			in.close();
 			
 			StringList problems = new StringList();
-			List<ArchiveRecord> records = (new Archivar()).loadArrangement(arrFile, unzippedFrom, currentDirectory, problems);
+			// START KGU#868 2020-04-30: Large arrangements are only loaded as placeholders (if possible)
+			//List<ArchiveRecord> records = (new Archivar()).loadArrangement(arrFile, unzippedFrom, currentDirectory, problems);
+			Archivar archivar = new Archivar();
+			List<ArchiveIndexEntry> entries = archivar.loadArrangementIndex(arrFile, unzippedFrom, currentDirectory, problems);
+			boolean lazy = lazyThreshold > 0 && entries.size() >= lazyThreshold;
+			// START KGU#873 2020-05-05: The arrangement cache provides sizes, signatures, and previews
+			ArrangementCache.Item[] cachedItems = new ArrangementCache.Item[entries.size()];
+			ArrangementCache cache = lazy ? archivar.loadArrangementCache(arrFile, unzippedFrom) : null;
+			if (cache != null && !cache.isEmpty()) {
+				long[] keys = archivar.getContentKeys(entries);
+				for (int i = 0; i < keys.length; i++) {
+					ArrangementCache.Item item = cachedItems[i] = cache.get(keys[i]);
+					ArchiveIndexEntry entry = entries.get(i);
+					if (item != null && !entry.hasSignature() && !item.name.isEmpty()) {
+						// Legacy arrangement list without signatures
+						entry.name = item.name;
+						entry.minArgs = item.minArgs;
+						entry.maxArgs = item.maxArgs;
+					}
+				}
+			}
+			int entryIndex = 0;
+			// END KGU#873 2020-05-05
+			List<ArchiveIndexEntry> toParse = new ArrayList<ArchiveIndexEntry>();
+			for (ArchiveIndexEntry entry: entries) {
+				if (!lazy || !entry.hasSignature()) {
+					toParse.add(entry);
+				}
+			}
+			// START KGU#874 2020-05-07: Identical archive entries are mapped to the same diagram
+			//Iterator<Root> parsed = archivar.parseDiagrams(toParse, problems).iterator();
+			Iterator<Root> parsed = archivar.parseDiagrams(toParse, problems, true).iterator();
+			// END KGU#874 2020-05-07
+			// END KGU#868 2020-04-30
 			if (!problems.isEmpty()) {
 				errorMessage = problems.getText().replace(" MISSING!", msgFileMissing.getText());
 			}
 			Mainform form = (frame instanceof Mainform) ? (Mainform)frame : null;
-			for (ArchiveRecord record: records) {
-				addDiagram(record.root, form, record.point, group);
-				nLoaded++;
+			// START KGU#867 2020-04-29: Add all diagrams as a batch with a single notification
+			//for (ArchiveRecord record: records) {
+			//	addDiagram(record.root, form, record.point, group);
+			//	nLoaded++;
+			//}
+			beginBatch();
+			try {
+				// START KGU#868 2020-04-30
+				//for (ArchiveRecord record: records) {
+				//	addDiagram(record.root, form, record.point, group);
+				//	nLoaded++;
+				//}
+				for (ArchiveIndexEntry entry: entries) {
+					// START KGU#873 2020-05-05
+					ArrangementCache.Item cachedItem = cachedItems[entryIndex++];
+					// END KGU#873 2020-05-05
+					Root root = null;
+					boolean isPlaceholder = lazy && entry.hasSignature();
+					if (isPlaceholder) {
+						root = entry.createPlaceholder();
+						// A placeholder doesn't resemble an unchanged diagram of the same file (see findDiagram())
+						Vector<Diagram> namesakes = nameMap.get(entry.name);
+						for (int i = 0; namesakes != null && i < namesakes.size(); i++) {
+							Root namesake = namesakes.get(i).root;
+							if (!namesake.hasChanged() && namesake.getPath().equals(root.getPath())) {
+								root = namesake;
+								isPlaceholder = false;
+								break;
+							}
+						}
+					}
+					else if ((root = parsed.next()) != null) {
+						root.retrieveVarNames();	// Initialise the variable table, otherwise the highlighting won't work
+					}
+					else {
+						continue;
+					}
+					addDiagram(root, form, entry.point, group);
+					Diagram diagram = rootMap.get(root);
+					if (isPlaceholder && diagram != null) {
+						// The placeholder itself was added (not an equivalent diagram already present)
+						bodyLoader.register(diagram, entry);
+						// START KGU#873 2020-05-05
+						if (cachedItem != null) {
+							thumbnails.putPreview(diagram, cachedItem.getThumbnailData(), cachedItem.width, cachedItem.height);
+							indexDiagram(diagram, false);
+						}
+						// END KGU#873 2020-05-05
+					}
+					nLoaded++;
+				}
+				// END KGU#868 2020-04-30
+			}
+			finally {
+				endBatch();
 			}
+			// END KGU#867 2020-04-29
 // END KGU#679 2019-03-10
 
 			done = true;
@@ -1785,10 +2071,12 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 					"Error", JOptionPane.ERROR_MESSAGE, null);   		
 		}
 		// START KGU#278 2016-10-11: Enh. #267
-		if (nLoaded > 0)
-		{
-			notifyChangeListeners(IRoutinePoolListener.RPC_POOL_CHANGED);
-		}
+		// START KGU#867 2020-04-29: Already done by endBatch()
+		//if (nLoaded > 0)
+		//{
+		//	notifyChangeListeners(IRoutinePoolListener.RPC_POOL_CHANGED);
+		//}
+		// END KGU#867 2020-04-29
 		// END KGU#278 2016-10-11
 		return done;
 	}
@@ -1843,10 +2131,12 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	// START KGU#110 2016-07-01: Enh. 62
 	/**
 	 * Extracts the files contained in the zip file given by `filename´ into the
-	 * directory `targetDir´ or a temporary directory (if not given).
+	 * directory `targetDir´. If no target directory is given then nothing is extracted,
+	 * the diagrams will be read directly from the archive.
 	 * @param arrzFile - path of the arrz file
 	 * @param targetDir - target directory for the unzipping (may be null)
-	 * @return the arr file found in the extracted archive (or otherwise null) 
+	 * @return the arr file found in the extracted archive or, without {@code targetDir},
+	 * the virtual path of the arr file within the archive (or otherwise null)
 	 */
 	private File unzipArrangement(File arrzFile, File targetDir)
 	{
@@ -1923,6 +2213,17 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 //		}
 //		return arrFile;
 		Archivar archivar = new Archivar();
+		// START KGU#866 2020-05-07: No extraction into a temp folder anymore
+		if (targetDir == null) {
+			try {
+				return archivar.getArrangementListPath(arrzFile);
+			}
+			catch (IOException ex) {
+				logger.log(Level.WARNING, "Failed to open the arrangement archive " + arrzFile.getAbsolutePath(), ex);
+				return null;
+			}
+		}
+		// END KGU#866 2020-05-07
 		// START KGU#775 2019-11-29: Bugfix #788 - the extraction target dir was ignored
 		//ArchiveIndex archiveIndex = archivar.unzipArrangementArchive(arrzFile, null);
 		ArchiveIndex archiveIndex = archivar.unzipArrangementArchive(arrzFile, targetDir);
@@ -1964,6 +2265,18 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				filename+=".png";
 			}
 
+			// START KGU#868 2020-04-30: Lazily loaded diagrams are to be exported with their bodies
+			if (diagrams != null) {
+				bodyLoader.load(this.diagramsSelected.isEmpty() ? this.diagrams : this.diagramsSelected);
+				Graphics2D g2d = (Graphics2D)this.getGraphics();
+				if (g2d != null) {
+					// Get the actual sizes of the loaded diagrams
+					refreshDiagramIndex(g2d);
+					g2d.dispose();
+				}
+			}
+			// END KGU#868 2020-04-30
+
 			// temporarily deselect any diagram
 			if (diagrams != null)
 			{
@@ -1996,8 +2309,12 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				rect.right -= offsetX;
 				rect.bottom -= offsetY;
 			}
-			int width = this.getWidth() - Math.round(offsetX / zoomFactor);
-			int height = this.getHeight() - Math.round(offsetY / zoomFactor);
+			// START KGU#868 2020-04-30: Loaded diagram bodies may have enlarged the area (not yet revalidated)
+			//int width = this.getWidth() - Math.round(offsetX / zoomFactor);
+			//int height = this.getHeight() - Math.round(offsetY / zoomFactor);
+			int width = Math.max(this.getWidth(), Math.round((rect.right + offsetX) / zoomFactor)) - Math.round(offsetX / zoomFactor);
+			int height = Math.max(this.getHeight(), Math.round((rect.bottom + offsetY) / zoomFactor)) - Math.round(offsetY / zoomFactor);
+			// END KGU#868 2020-04-30
 			// END KGU#624 2018-12-24
 			if (logger.isLoggable(Level.CONFIG)) {
 				logger.log(Level.CONFIG, "{0} x {1}", new Object[]{width, height});
@@ -2456,7 +2773,10 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			/* The bounds of the computed silhouette as a first rough approach
 			 * (hardly better than getDrawingRect(), the major aim is the computation
 			 * of the silhouette */
-			Rect rect = getDrawingRect(silhouette);
+			// START KGU#867 2020-04-29: Only needed if we have to find a location
+			//Rect rect = getDrawingRect(silhouette);
+			Rect rect = pointGiven ? new Rect(0, 0, 0, 0) : getDrawingRect(silhouette);
+			// END KGU#867 2020-04-29
 			// END KGU#499 2018-02-22
 
 			int top = DEFAULT_GAP;
@@ -2497,6 +2817,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			// END KGU 2016-03-14
 			/*Diagram*/ diagram = new Diagram(root,point);
 			diagrams.add(diagram);
+			// START KGU#864 2020-04-26
+			indexDiagram(diagram, true);
+			// END KGU#864 2020-04-26
 			// START KGU#624 2018-12-26: Enh. #655 Attempt to make search faster
 			rootMap.put(root, diagram);
 			String rootName = root.getMethodName();
@@ -2526,6 +2849,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			if (!pointGiven) {
 				point = findPreferredLocation(silhouette, rec.getRectangle());
 				diagram.point = point;
+				// START KGU#864 2020-04-26
+				indexDiagram(diagram, false);
+				// END KGU#864 2020-04-26
 				// START KGU 2019-03-11
 				rec = root.getRect(point);
 				//if (draftRec != null) {
@@ -2538,12 +2864,25 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			}
 			// END KGU#499 2018-02-21
 			// START KGU#85 2015-11-18
-			adaptLayout();
+			// START KGU#867 2020-04-29: In batch mode this is done once at the end
+			//adaptLayout();
+			if (!isAddingBatch) {
+				adaptLayout();
+			}
+			// END KGU#867 2020-04-29
 			// END KGU#85 2015-11-18
 			// START KGU#497 2018-12-23: Bugfix for enh. #512
 			rec = rec.scale(1/this.zoomFactor);
 			// END KGU#497 2018-12-23
-			this.scrollRectToVisible(rec.getRectangle());
+			// START KGU#867 2020-04-29
+			//this.scrollRectToVisible(rec.getRectangle());
+			if (isAddingBatch) {
+				batchScrollRect = rec.getRectangle();
+			}
+			else {
+				this.scrollRectToVisible(rec.getRectangle());
+			}
+			// END KGU#867 2020-04-29
 			// START KGU#88 2015-12-20: It ought to be pinned if form wasn't null (KGU#804 2020-02-17: now done in both cases)
 			//if (form != null)
 			//{
@@ -2577,6 +2916,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		else if (point != null)
 		{
 			diagram.setLocation(point.x, point.y);
+			// START KGU#864 2020-04-26
+			indexDiagram(diagram, false);
+			// END KGU#864 2020-04-26
 			// START KGU#626 2019-01-01 Enh. #657 Moved after the alternative (to be done in both branches)
 //			// START KGU 2016-12-12: First unselect the selected diagram (if any)
 //			// START KGU#624 2018-12-21: Enh. #655 Multiple selection - just add the diagram
@@ -2634,9 +2976,16 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		// END KGU 2016-12-12
 		// START KGU#701 2019-03-30: Issue #718
 		if (root.isInclude()) {
-			for (Root ref: this.findIncludingRoots(root.getMethodName(), true)) {
+			// START KGU#850 2020-04-12: Have the dependent diagrams re-analysed in parallel
+			//for (Root ref: this.findIncludingRoots(root.getMethodName(), true)) {
+			//	ref.clearVarAndTypeInfo(false);
+			//}
+			Set<Root> refs = this.findIncludingRoots(root.getMethodName(), true);
+			for (Root ref: refs) {
 				ref.clearVarAndTypeInfo(false);
 			}
+			this.scheduleAnalysis(refs);
+			// END KGU#850 2020-04-12
 		}
 		// END KGU#701 2019-03-30
 		// START KGU#624 2018-12-21: Enh. #655
@@ -2819,11 +3168,21 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		}
 		// END KGU#626 2018-12-30
 		diagrams.remove(diagr);
+		// START KGU#864 2020-04-26
+		unindexDiagram(diagr);
+		// END KGU#864 2020-04-26
 		// START KGU#701 2019-03-30: Issue #718
 		if (diagr.root.isInclude()) {
-			for (Root ref: this.findIncludingRoots(diagr.root.getMethodName(), true)) {
+			// START KGU#850 2020-04-12: Have the dependent diagrams re-analysed in parallel
+			//for (Root ref: this.findIncludingRoots(diagr.root.getMethodName(), true)) {
+			//	ref.clearVarAndTypeInfo(false);
+			//}
+			Set<Root> refs = this.findIncludingRoots(diagr.root.getMethodName(), true);
+			for (Root ref: refs) {
 				ref.clearVarAndTypeInfo(false);
 			}
+			this.scheduleAnalysis(refs);
+			// END KGU#850 2020-04-12
 		}
 		// END KGU#701 2019-03-30
 		adaptLayout();
@@ -2855,6 +3214,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		if (okay)
 		// END KGU#624 2018-12-21
 		{
+			// START KGU#868 2020-04-30: Make sure the body is loaded
+			bodyLoader.load(this.diagramsSelected);
+			// END KGU#868 2020-04-30
 			XmlGenerator xmlgen = new XmlGenerator();
 			// START KGU#642 2018-12-21: Enh. #655
 			//StringSelection toClip = new StringSelection(xmlgen.generateCode(this.mouseSelected.root,"\t"));
@@ -3033,6 +3395,15 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	{
 		initComponents();
 		create();
+		// START KGU#850 2020-04-12
+		analysisService.setCompletionHandler(new Runnable() {
+			@Override
+			public void run() {
+				notifyChangeListeners(IRoutinePoolListener.RPC_ANALYSIS_CHANGED);
+				repaint();
+			}
+		});
+		// END KGU#850 2020-04-12
 	}
 
 	/**
@@ -3060,6 +3431,28 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			logger.log(Level.WARNING, "Corrupt zoom factor in ini", ex);
 		}
 		// END KGU#497 2018-02-17
+		// START KGU#865 2020-04-27: Level of detail
+		try {
+			this.lodZoom = Math.max(Float.parseFloat(Ini.getInstance().getProperty("arrangerLodZoom", "4.0")), 0);
+			if (this.lodZoom > 1) {
+				this.thumbnails.setScale(1.0f / this.lodZoom);
+			}
+		}
+		catch (NumberFormatException ex) {
+			logger.log(Level.WARNING, "Corrupt level-of-detail zoom factor in ini", ex);
+		}
+		// END KGU#865 2020-04-27
+		// START KGU#868 2020-04-30: Lazy loading of large arrangements
+		try {
+			this.lazyThreshold = Math.max(Integer.parseInt(Ini.getInstance().getProperty("arrangerLazyThreshold", "100")), 0);
+		}
+		catch (NumberFormatException ex) {
+			logger.log(Level.WARNING, "Corrupt lazy loading threshold in ini", ex);
+		}
+		// END KGU#868 2020-04-30
+		// START KGU#874 2020-05-06: Identical diagram files are parsed only once
+		Archivar.setDiagramStoreEnabled(!Ini.getInstance().getProperty("arrangerDiagramStore", "true").equals("false"));
+		// END KGU#874 2020-05-06
 	}// </editor-fold>//GEN-END:initComponents
 
 //	/**
@@ -3299,6 +3692,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 					this.removeFromNameMap(diagr.root.getMethodName(), diagr);
 					// END KGU#624 2018-12-26
 					diagrams.remove(diagr);
+					// START KGU#864 2020-04-26
+					unindexDiagram(diagr);
+					// END KGU#864 2020-04-26
 				}
 				// START KGU#626 2018-12-31: Enh. #657
 				groups.clear();
@@ -3357,6 +3753,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 
 		// First remove all diagrams from the vector (they should all be held by the groups as well)
 		diagrams.clear();
+		// START KGU#864 2020-04-26
+		diagramIndex.clear();
+		// END KGU#864 2020-04-26
 
 		// Now traverse the groups and start a new level for every group
 		int groupOffsetY = 0;	// height offset of the current group
@@ -3401,6 +3800,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			Point newPoint = this.findPreferredLocation(silhouette, rec.getRectangle());
 			diagr.setLocation(newPoint.x, newPoint.y);
 			diagrams.add(diagr);
+			// START KGU#864 2020-04-26
+			indexDiagram(diagr, true);
+			// END KGU#864 2020-04-26
 			rearrangedDiagrams.add(diagr);
 		}
 		groupOffsetY = getDrawingRect(null).bottom;
@@ -3426,6 +3828,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 					// Don't do anything if no diagram is selected
 					return;
 				}
+				// START KGU#868 2020-04-30: A placeholder must get its body before being edited
+				bodyLoader.load(Collections.singleton(diagr1));
+				// END KGU#868 2020-04-30
 				// create editor
 				Mainform form = diagr1.mainform;
 				// This loop is a precaution against stale Mainform (bugfix #132)
@@ -3619,6 +4024,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			int newX = Math.max(0, diagr.point.x + deltaX);
 			int newY = Math.max(0, diagr.point.y + deltaY);
 			diagr.setLocation(newX, newY);
+			// START KGU#864 2020-04-26
+			indexDiagram(diagr, false);
+			// END KGU#864 2020-04-26
 		}
 		adaptLayout();
 		repaint();
@@ -3690,6 +4098,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 								diagramsSelected.add(diagr);
 								if (diagrams.remove(diagr)) {
 									diagrams.add(diagr);
+									// START KGU#864 2020-04-26
+									indexDiagram(diagr, true);
+									// END KGU#864 2020-04-26
 								}
 								notifyChangeListeners(IRoutinePoolListener.RPC_SELECTION_CHANGED);
 							}});
@@ -3719,6 +4130,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 									diagramsSelected.add(diagr);
 									if (diagrams.remove(diagr)) {
 										diagrams.add(diagr);
+										// START KGU#864 2020-04-26
+										indexDiagram(diagr, true);
+										// END KGU#864 2020-04-26
 									}
 								}
 								notifyChangeListeners(IRoutinePoolListener.RPC_SELECTION_CHANGED);
@@ -3745,9 +4159,16 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	private Diagram getHitDiagram(int trueX, int trueY)
 	{
 		Diagram hitDiagram = null;
-		for (int d = diagrams.size()-1; d >= 0 && hitDiagram == null; d--)
+		// START KGU#864 2020-04-26: Only check the diagrams with bounds containing the point
+		//for (int d = diagrams.size()-1; d >= 0 && hitDiagram == null; d--)
+		//{
+		//	Diagram diagram = diagrams.get(d);
+		refreshDiagramIndex(null);
+		List<Diagram> candidates = diagramIndex.query(trueX, trueY);
+		for (int d = candidates.size()-1; d >= 0 && hitDiagram == null; d--)
 		{
-			Diagram diagram = diagrams.get(d);
+			Diagram diagram = candidates.get(d);
+		// END KGU#864 2020-04-26
 			Root root = diagram.root;
 
 			Element ele = root.getElementByCoord(
@@ -3773,9 +4194,16 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	private List<Diagram> getHitDiagrams(int trueX, int trueY)
 	{
 		List<Diagram> hitDiagrams = new LinkedList<Diagram>();
-		for (int d = diagrams.size()-1; d >= 0; d--)
+		// START KGU#864 2020-04-26: Only check the diagrams with bounds containing the point
+		//for (int d = diagrams.size()-1; d >= 0; d--)
+		//{
+		//	Diagram diagram = diagrams.get(d);
+		refreshDiagramIndex(null);
+		List<Diagram> candidates = diagramIndex.query(trueX, trueY);
+		for (int d = candidates.size()-1; d >= 0; d--)
 		{
-			Diagram diagram = diagrams.get(d);
+			Diagram diagram = candidates.get(d);
+		// END KGU#864 2020-04-26
 			Root root = diagram.root;
 
 			Element ele = root.getElementByCoord(
@@ -3819,7 +4247,11 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	{
 		Set<Diagram> containedDiagrams = new HashSet<Diagram>();
 		
-		for (Diagram diagram: diagrams) {
+		// START KGU#864 2020-04-26: Only check the diagrams intersecting the bounds
+		//for (Diagram diagram: diagrams) {
+		refreshDiagramIndex(null);
+		for (Diagram diagram: diagramIndex.query(bounds)) {
+		// END KGU#864 2020-04-26
 			Root root = diagram.root;
 			if (root != null) {
 				Rectangle rect = root.getRect(diagram.point).getRectangle();
@@ -3834,6 +4266,175 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	}
 	// END KGU#624 2018-12-22
 
+	// START KGU#864 2020-04-26: Maintenance of the spatial index
+	/**
+	 * Enters the current bounds of {@code diagram} into the {@link #diagramIndex}.
+	 * @param diagram - a {@link Diagram} held in {@link #diagrams}
+	 * @param onTop - true if the diagram has just been (re-)added at the end of {@link #diagrams},
+	 * false if only its position or size may have changed
+	 */
+	private void indexDiagram(Diagram diagram, boolean onTop)
+	{
+		Rectangle bounds;
+		// START KGU#873 2020-05-05: Unloaded diagrams may know their size from the arrangement cache
+		DiagramThumbnails.Thumbnail preview = null;
+		// END KGU#873 2020-05-05
+		if (diagram.root == null) {
+			bounds = new Rectangle(diagram.point.x, diagram.point.y, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+		}
+		// START KGU#873 2020-05-05
+		else if (bodyLoader.isUnloaded(diagram) && (preview = thumbnails.getPreview(diagram)) != null) {
+			bounds = new Rectangle(diagram.point.x, diagram.point.y, preview.width + 1, preview.height + 1);
+		}
+		// END KGU#873 2020-05-05
+		else {
+			Rect rect = diagram.root.getRect(diagram.point);
+			// A diagram never drawn before has no extension yet
+			int width = rect.right > rect.left ? rect.right - rect.left : DEFAULT_WIDTH;
+			int height = rect.bottom > rect.top ? rect.bottom - rect.top : DEFAULT_HEIGHT;
+			bounds = new Rectangle(rect.left, rect.top, width + 1, height + 1);
+		}
+		if (onTop) {
+			diagramIndex.add(diagram, bounds);
+			diagramsResized.add(diagram);
+		}
+		else {
+			diagramIndex.update(diagram, bounds);
+		}
+	}
+
+	/**
+	 * Removes {@code diagram} from the {@link #diagramIndex}.
+	 * @param diagram - a {@link Diagram} just removed from {@link #diagrams}
+	 */
+	private void unindexDiagram(Diagram diagram)
+	{
+		diagramIndex.remove(diagram);
+		diagramsResized.remove(diagram);
+		// START KGU#865 2020-04-27
+		thumbnails.remove(diagram);
+		// END KGU#865 2020-04-27
+		// START KGU#868 2020-04-30
+		bodyLoader.remove(diagram);
+		// END KGU#868 2020-04-30
+	}
+
+	/**
+	 * Updates the index entries of the diagrams that may have changed their size since
+	 * they were indexed last.
+	 * @param g - a graphics object to prepare the diagrams for drawing with, or null (in this
+	 * case the diagrams are re-indexed with their current extension but remain registered as
+	 * possibly resized)
+	 */
+	private void refreshDiagramIndex(Graphics2D g)
+	{
+		if (!diagramsResized.isEmpty()) {
+			for (Diagram diagram: diagramsResized) {
+				if (g != null && diagram.root != null) {
+					// If the diagram had already been drawn or prepared this will return immediately
+					diagram.root.prepareDraw(g);
+				}
+				indexDiagram(diagram, false);
+			}
+			if (g != null) {
+				diagramsResized.clear();
+			}
+		}
+	}
+
+	/** @return the distance the pin icon may exceed the diagram bounds */
+	private int getPinMargin()
+	{
+		if (pinIcon == null) {
+			return DEFAULT_GAP;
+		}
+		return Math.max(pinIcon.getWidth(null), pinIcon.getHeight(null)) / 4 + 1;
+	}
+	// END KGU#864 2020-04-26
+
+	// START KGU#865 2020-04-27: Level-of-detail drawing
+	/**
+	 * Draws {@code diagram} at {@code point} as cached thumbnail or - if there is no thumbnail
+	 * yet - as outline with name and header line in legible size. Selected diagrams are tinted.
+	 * @param g2d - the graphics (scaled by 1/{@link #zoomFactor})
+	 * @param diagram - the {@link Diagram} to be drawn
+	 * @param point - the drawing position
+	 * @return the occupied area
+	 */
+	private Rect drawThumbnail(Graphics2D g2d, Diagram diagram, Point point)
+	{
+		Root root = diagram.root;
+		// START KGU#868 2020-04-30: A placeholder is drawn as outline (a thumbnail would be worthless)
+		//DiagramThumbnails.Thumbnail thumbnail = thumbnails.get(diagram);
+		// START KGU#873 2020-05-05: ... unless there is a preview from the arrangement cache
+		//DiagramThumbnails.Thumbnail thumbnail = bodyLoader.isUnloaded(diagram) ? null : thumbnails.get(diagram);
+		DiagramThumbnails.Thumbnail thumbnail = bodyLoader.isUnloaded(diagram) ? thumbnails.getPreview(diagram) : thumbnails.get(diagram);
+		// END KGU#873 2020-05-05
+		// END KGU#868 2020-04-30
+		BufferedImage image = thumbnail == null ? null : thumbnail.getImage();
+		Rect rect;
+		if (image != null) {
+			rect = new Rect(point.x, point.y, point.x + thumbnail.width, point.y + thumbnail.height);
+			Object interpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.drawImage(image, point.x, point.y, thumbnail.width, thumbnail.height, null);
+			if (interpolation != null) {
+				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+			}
+		}
+		else {
+			// START KGU#873 2020-05-05: A preview without image still knows the size
+			//rect = root.getRect(point);
+			if (thumbnail != null && bodyLoader.isUnloaded(diagram)) {
+				rect = new Rect(point.x, point.y, point.x + thumbnail.width, point.y + thumbnail.height);
+			}
+			else {
+				rect = root.getRect(point);
+			}
+			// END KGU#873 2020-05-05
+			if (rect.right <= rect.left) rect.right = rect.left + DEFAULT_WIDTH;
+			if (rect.bottom <= rect.top) rect.bottom = rect.top + DEFAULT_HEIGHT;
+			int width = rect.right - rect.left;
+			int height = rect.bottom - rect.top;
+			g2d.setColor(Color.WHITE);
+			g2d.fillRect(rect.left, rect.top, width, height);
+			g2d.setColor(Color.GRAY);
+			g2d.drawRect(rect.left, rect.top, width, height);
+			// Text is to appear in normal size despite the zoom
+			Font oldFont = g2d.getFont();
+			Font font = Element.getFont();
+			g2d.setFont(font.deriveFont(Font.BOLD, font.getSize2D() * zoomFactor));
+			FontMetrics fm = g2d.getFontMetrics();
+			int padding = Math.round(Element.getPadding() * zoomFactor / 2);
+			int y = rect.top + padding + fm.getAscent();
+			Shape oldClip = g2d.getClip();
+			g2d.clipRect(rect.left, rect.top, width, height);
+			g2d.setColor(Color.BLACK);
+			g2d.drawString(diagram.getName(), rect.left + padding, y);
+			if (root.getText().count() > 0) {
+				g2d.setFont(font.deriveFont(font.getSize2D() * zoomFactor));
+				g2d.drawString(root.getText().get(0), rect.left + padding, y + fm.getHeight());
+			}
+			g2d.setClip(oldClip);
+			g2d.setFont(oldFont);
+		}
+		if (root.getSelected(Element.DrawingContext.DC_ARRANGER)) {
+			Color selColor = Element.E_DRAWCOLOR;
+			g2d.setColor(new Color(selColor.getRed(), selColor.getGreen(), selColor.getBlue(), 128));
+			g2d.fillRect(rect.left, rect.top, rect.right - rect.left, rect.bottom - rect.top);
+		}
+		return rect;
+	}
+
+	/**
+	 * Return the zoom factor from which on diagrams are drawn in reduced detail
+	 * @return the level-of-detail zoom factor (0 if detail is never reduced)
+	 */
+	public float getLodZoom() {
+		return this.lodZoom;
+	}
+	// END KGU#865 2020-04-27
+
 	// START KGU#624 2018-12-21: Enh. #655 - multiple selection opportunity
 	/**
 	 * Unselects all available diagrams and repaints
@@ -3934,6 +4535,14 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		//Diagram diagr = this.findDiagram(source, 1);
 		Diagram diagr = rootMap.get(source);
 		// END KGU#624 2018-12-26
+		// START KGU#864 2020-04-26: The size of the diagram may have changed
+		if (diagr != null) {
+			diagramsResized.add(diagr);
+			// START KGU#865 2020-04-27
+			thumbnails.invalidate(diagr);
+			// END KGU#865 2020-04-27
+		}
+		// END KGU#864 2020-04-26
 		// START KGU#624 2018-12-26: Enh. #655
 		//if (diagr != null && diagr.checkSignatureChange()) {
 		//	this.notifyChangeListeners(IRoutinePoolListener.RPC_POOL_CHANGED);
@@ -3941,6 +4550,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		if (diagr != null) {
 			String oldRootName = diagr.getName();
 			if (diagr.checkSignatureChange()) {
+				// START KGU#870 2020-05-02
+				invalidateSignatureIndex();
+				// END KGU#870 2020-05-02
 				String newRootName = source.getMethodName();
 				if (!oldRootName.equals(newRootName)) {
 					removeFromNameMap(oldRootName, diagr);
@@ -3977,6 +4589,31 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		// END KGU#330 2017-01-13
 	}
 
+	// START KGU#850 2020-04-12: Parallel analysis of dependent diagrams
+	/**
+	 * Schedules a parallel analysis of the given diagrams to be performed as soon
+	 * as the current GUI event will have been handled. Listeners will be notified
+	 * with flag {@link IRoutinePoolListener#RPC_ANALYSIS_CHANGED} afterwards.
+	 * @param roots - the diagrams to be (re-)analysed
+	 * @see #getAnalysisErrorCount(Root)
+	 */
+	public void scheduleAnalysis(Collection<Root> roots)
+	{
+		analysisService.scheduleAnalysis(roots);
+	}
+
+	/**
+	 * Returns the number of Analyser complaints the latest Arranger-driven analysis
+	 * of diagram {@code root} had produced.
+	 * @param root - a diagram
+	 * @return the number of detected errors or -1 if there is no such analysis result
+	 */
+	public int getAnalysisErrorCount(Root root)
+	{
+		return analysisService.getErrorCount(root);
+	}
+	// END KGU#850 2020-04-12
+
 	// START KGU#155 2016-03-08: Bugfix #97 extension
 	/**
 	 * Invalidates the cached prepareDraw info of all diagrams residing here
@@ -3993,6 +4630,12 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			{
 				this.diagrams.get(d).resetDrawingInfo(_exceptDiagr);
 			}
+			// START KGU#864 2020-04-26
+			this.diagramsResized.addAll(this.diagrams);
+			// END KGU#864 2020-04-26
+			// START KGU#865 2020-04-27
+			this.thumbnails.invalidateAll();
+			// END KGU#865 2020-04-27
 		}
 	}
 	// END KGU#155 2016-03-08
@@ -4159,6 +4802,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		//}
 		Vector<Diagram> diagramList = this.nameMap.get(rootName);
 		if (diagramList != null) {
+			// START KGU#868 2020-04-30: The caller is going to inspect or execute them
+			bodyLoader.load(diagramList);
+			// END KGU#868 2020-04-30
 			for (int d = 0; d < diagramList.size(); d++) {
 				functions.add(diagramList.get(d).root);
 			}
@@ -4207,31 +4853,24 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		 * be unique anyway) and only to check group membership if the result
 		 * consists of more than one Root.
 		 */
-		Vector<Root> functionsAny = findDiagramsByName(rootName);
-		Vector<Root> functions = new Vector<Root>();
-		// START KGU#371 2019-03-07: Enh. #385 - In a second attempt look for closest matching routines with defaults
-		int minDefaults = Integer.MAX_VALUE;
-		// END KGU#371 2019-03-07
-		for (int i = 0; i < functionsAny.size(); i++)
-		{
-			Root root = functionsAny.get(i);
-			// START KGU#371 2019-03-07: Enh. #385 - In a second attempt look for closest matching routines with defaults
-			//if (root.isSubroutine() && root.getParameterNames().count() == argCount)
-			//{
-			//	functions.add(root);
-			//}
-			if (root.isSubroutine()) {
-				int nDflts = root.acceptsArgCount(argCount);
-				if (nDflts >= 0 && nDflts <= minDefaults) {
-					if (nDflts < minDefaults) {
-						functions.clear();
-						minDefaults = nDflts;
-					}
-					functions.add(root);
-				}
-			}
-			// END KGU#371 2019-03-07
-		}
+		// START KGU#870 2020-05-02: Matching is cached per name and arity, see getRoutineCandidates()
+		//Vector<Root> functionsAny = findDiagramsByName(rootName);
+		//Vector<Root> functions = new Vector<Root>();
+		//...
+		Vector<Diagram> candidates;
+		int generation;
+		do {
+			generation = signatureGeneration;
+			candidates = getRoutineCandidates(rootName, argCount);
+			// Only the matching placeholders need their bodies (the signature is known without)
+			bodyLoader.load(candidates);
+			// If a loaded body had a different signature than its placeholder then we must retry
+		} while (generation != signatureGeneration);
+		Vector<Root> functions = new Vector<Root>(candidates.size());
+		for (int i = 0; i < candidates.size(); i++) {
+			functions.add(candidates.get(i).root);
+		}
+		// END KGU#870 2020-05-02
 		// START KGU#700 2019-03-28: Enh. #657 Check for group membership?
 		if (functions.size() > 0 && caller != null) {
 			functions = filterRootsByGroups(caller, functions, false);
@@ -4240,6 +4879,60 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		return functions;
 	}
 	// END KGU#2 2015-11-24
+	
+	// START KGU#870 2020-05-02: Routine lookup index
+	/**
+	 * Returns the {@link Diagram}s with name {@code rootName} that are subroutines accepting
+	 * {@code argCount} arguments (preferring those needing the fewest default values), from the
+	 * {@link #signatureIndex} if available. The result must not be modified.
+	 * @param rootName - the routine name
+	 * @param argCount - the number of arguments
+	 * @return the (cached) vector of matching {@link Diagram}s, possibly empty
+	 */
+	private Vector<Diagram> getRoutineCandidates(String rootName, int argCount)
+	{
+		String key = rootName + "#" + argCount;
+		Vector<Diagram> candidates = signatureIndex.get(key);
+		if (candidates == null) {
+			int generation = signatureGeneration;
+			candidates = new Vector<Diagram>();
+			Vector<Diagram> namesakes = this.nameMap.get(rootName);
+			if (namesakes != null) {
+				// START KGU#371 2019-03-07: Enh. #385 - In a second attempt look for closest matching routines with defaults
+				int minDefaults = Integer.MAX_VALUE;
+				for (int i = 0; i < namesakes.size(); i++) {
+					Diagram diagr = namesakes.get(i);
+					Root root = diagr.root;
+					if (root.isSubroutine()) {
+						int nDflts = root.acceptsArgCount(argCount);
+						if (nDflts >= 0 && nDflts <= minDefaults) {
+							if (nDflts < minDefaults) {
+								candidates.clear();
+								minDefaults = nDflts;
+							}
+							candidates.add(diagr);
+						}
+					}
+				}
+				// END KGU#371 2019-03-07
+			}
+			if (generation == signatureGeneration) {
+				signatureIndex.put(key, candidates);
+			}
+		}
+		return candidates;
+	}
+	
+	/**
+	 * Drops all cached routine lookup results (to be called on any change of the name map or
+	 * of a diagram signature).
+	 */
+	private void invalidateSignatureIndex()
+	{
+		signatureGeneration++;
+		signatureIndex.clear();
+	}
+	// END KGU#870 2020-05-02
 
 	// START KGU#258 2016-09-26: Enh. #253: We need to traverse all roots for refactoring
 	/* (non-Javadoc)
@@ -4248,8 +4941,28 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	@Override
 	public Set<Root> getAllRoots()
 	{
+		// START KGU#868 2020-04-30: Placeholders have to be loaded
+		return getAllRoots(true);
+	}
+
+	/**
+	 * Returns the set of all {@link Root}s held here.
+	 * @param _loadBodies - whether placeholders of lazily loaded diagrams are to get their
+	 * bodies (otherwise some of the returned {@link Root}s may be mere signature placeholders,
+	 * which is okay e.g. for identity checks or name retrieval)
+	 * @return the set of {@link Root}s
+	 * @see #getAllRoots()
+	 */
+	public Set<Root> getAllRoots(boolean _loadBodies)
+	{
+		// END KGU#868 2020-04-30
 		Set<Root> roots = new HashSet<Root>();
 		if (this.diagrams != null) {
+			// START KGU#868 2020-04-30
+			if (_loadBodies) {
+				bodyLoader.load(this.diagrams);
+			}
+			// END KGU#868 2020-04-30
 			for (int d = 0; d < this.diagrams.size(); d++)
 			{
 				Diagram diagram = this.diagrams.get(d);
@@ -4259,6 +4972,27 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		return roots;
 	}
 	// END KGU#258 2016-09-26
+
+	// START KGU#868 2020-04-30: Lazy loading of large arrangements
+	/**
+	 * Makes sure that those of the given {@link Root}s that are placeholders of lazily loaded
+	 * diagrams get their bodies (waits for it).
+	 * @param roots - {@link Root}s to be inspected, exported, or the like
+	 */
+	protected void loadDiagramBodies(Collection<Root> roots)
+	{
+		List<Diagram> toLoad = new ArrayList<Diagram>();
+		for (Root root: roots) {
+			Diagram diagram = rootMap.get(root);
+			if (diagram != null && bodyLoader.isUnloaded(diagram)) {
+				toLoad.add(diagram);
+			}
+		}
+		if (!toLoad.isEmpty()) {
+			bodyLoader.load(toLoad);
+		}
+	}
+	// END KGU#868 2020-04-30
 	
 	// START KGU#624 2018-12-22: Enh. #655
 	/**
@@ -4489,6 +5223,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 			if (setAtTop) {
 				this.diagrams.remove(diagr);
 				this.diagrams.add(diagr);
+				// START KGU#864 2020-04-26
+				indexDiagram(diagr, true);
+				// END KGU#864 2020-04-26
 				// START KGU#624 2018-12-21: Enh. #655 - replace the previous selection (really?)
 				//if (mouseSelected != null && mouseSelected != diagr && mouseSelected.root != null)
 				//{
@@ -4602,6 +5339,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	{
 		if (diagramsSelected.size() == 1)
 		{
+			// START KGU#868 2020-04-30: Make sure the body is loaded
+			bodyLoader.load(diagramsSelected);
+			// END KGU#868 2020-04-30
 			return diagramsSelected.iterator().next().root;
 		}
 		return null;
@@ -4628,6 +5368,9 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	 */
 	protected Set<Diagram> expandRootSet(Set<Root> selectedRoots, StringList missingSignatures,
 			StringList duplicateSignatures) {
+		// START KGU#868 2020-04-30: The calls can't be found in placeholders
+		loadDiagramBodies(selectedRoots);
+		// END KGU#868 2020-04-30
 		LinkedList<Root> rootQueue = new LinkedList<Root>(selectedRoots);
 		Set<Diagram> addedDiagrams = new HashSet<Diagram>();
 		while (!rootQueue.isEmpty()) {
@@ -4725,6 +5468,12 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 	private void notifyChangeListeners(int _flags)
 	// END KGU#624 2018-12-21
 	{
+		// START KGU#867 2020-04-29: Notifications are collected while a batch is added
+		if (isAddingBatch) {
+			batchNotificationFlags |= _flags;
+			return;
+		}
+		// END KGU#867 2020-04-29
 		for (IRoutinePoolListener listener: listeners) {
 			// START KGU#624 2018-12-21: Enh. #655
 			//listener.routinePoolChanged(this);
@@ -4733,6 +5482,39 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		}
 	}
 	// END KGU#305 2016-12-16
+	
+	// START KGU#867 2020-04-29: Batched addition of loaded diagrams
+	/**
+	 * Starts the addition of a batch of diagrams: Listener notifications, layout adaptation,
+	 * and scrolling are postponed until {@link #endBatch()}.
+	 */
+	private void beginBatch()
+	{
+		isAddingBatch = true;
+		batchNotificationFlags = 0;
+		batchScrollRect = null;
+	}
+	
+	/**
+	 * Ends the addition of a batch of diagrams started with {@link #beginBatch()}: adapts the
+	 * layout, scrolls to the last added diagram and notifies the listeners once about all
+	 * collected changes.
+	 */
+	private void endBatch()
+	{
+		isAddingBatch = false;
+		adaptLayout();
+		if (batchScrollRect != null) {
+			this.scrollRectToVisible(batchScrollRect);
+			batchScrollRect = null;
+		}
+		if (batchNotificationFlags != 0) {
+			notifyChangeListeners(batchNotificationFlags);
+			batchNotificationFlags = 0;
+		}
+		repaint();
+	}
+	// END KGU#867 2020-04-29
 
 	// START KGU#497 2018-02-17: Enh. #512
 	/**
@@ -4805,6 +5587,11 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 		else if (!diagrs.contains(diagr)) {
 			added = diagrs.add(diagr);
 		}
+		// START KGU#870 2020-05-02
+		if (added) {
+			invalidateSignatureIndex();
+		}
+		// END KGU#870 2020-05-02
 		return added;
 	}
 	
@@ -4827,6 +5614,11 @@ public class Surface extends LangPanel implements MouseListener, MouseMotionList
 				this.nameMap.remove(name);
 			}
 		}
+		// START KGU#870 2020-05-02
+		if (removed) {
+			invalidateSignatureIndex();
+		}
+		// END KGU#870 2020-05-02
 		return removed;
 	}
 	// END KGU#624 2018-12-26
@@ -112,6 +112,10 @@ package lu.fisch.structorizer.elements;
  *      Kay Gürtzig     2019-12-02      KGU#782: identifyExprType now also tries to detect char type
  *      Kay Gürtzig     2020-01-30      Missing newlines in E_THANKS (About > Implicated persons) inserted.
  *      Kay Gürtzig     2020-02-04      Bugfix #805 - method saveToINI decomposed
+ *      Kay Gürtzig     2020-04-15      KGU#853: Highlighting units and measured text widths survive drawing
+ *                                      info resets unless the highlighting context of the Root changed
+ *      Kay Gürtzig     2020-04-25      KGU#863: Element ids and specialSigns made safe for concurrent use
+ *      Kay Gürtzig     2020-05-07      KGU#853: Cached highlighting also keyed by the enclosing catch blocks
  *
  ******************************************************************************************************
  *
@@ -211,6 +215,7 @@ import lu.fisch.structorizer.io.*;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.font.TextAttribute;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -269,7 +274,7 @@ public abstract class Element {
 	public static final String E_HELP_FILE = "structorizer_user_guide.pdf";
 	public static final String E_DOWNLOAD_PAGE = "https://www.fisch.lu/Php/download.php";
 	// END KGU#791 2020-01-20
-	public static final String E_VERSION = "3.30-07";
+	public static final String E_VERSION = "3.30-08";
 	public static final String E_THANKS =
 	"Developed and maintained by\n"+
 	" - Robert Fisch <robert.fisch@education.lu>\n"+
@@ -638,6 +643,18 @@ public abstract class Element {
 	/** Maps text lines to preprocessed highlighting units (string + colour + style flags) */
 	protected HashMap<String, Vector<HighlightUnit>> highlightCache = new HashMap<String, Vector<HighlightUnit>>();
 	// END KGU#701 2019-03-29
+	// START KGU#853 2020-04-15: Incremental layout - measurements are kept while their inputs don't change
+	/** Maps text lines to their measured (highlighted) widths for the font {@link #widthCacheFont} */
+	private HashMap<String, Integer> widthCache = new HashMap<String, Integer>();
+	/** The canvas font the entries of {@link #widthCache} were measured with */
+	private Font widthCacheFont = null;
+	/** The highlighting context (see {@link Root#getHighlightContext()}) {@link #highlightCache} and {@link #widthCache} refer to */
+	private Object highlightContext = null;
+	// END KGU#853 2020-04-15
+	// START KGU#853 2020-05-07: Exception variables are only highlighted within catch blocks
+	/** The {@link Try} elements in the catch blocks of which this element resided when {@link #highlightCache} was filled */
+	private ArrayList<Try> catchContext = null;
+	// END KGU#853 2020-05-07
 	
 	/** If the element is to be displayed rotated by 90° counter-clockwise (only used within CASE structures) */
 	public boolean rotated = false;
@@ -706,7 +723,10 @@ public abstract class Element {
 	// END KGU#502/KGU#524/KGU#553 2019-03-14
 
 	/** Strings to be highlighted in the element text (lazy initialisation) */
-	private static StringList specialSigns = null;
+	// START KGU#863 2020-04-25: Diagrams may be drawn concurrently (batch image export)
+	//private static StringList specialSigns = null;
+	private static volatile StringList specialSigns = null;
+	// END KGU#863 2020-04-25
 
 	// START KGU#261 2017-01-19: Enh. #259 prepare the variable type map
 	private static long lastId = 0;
@@ -716,7 +736,12 @@ public abstract class Element {
 	private long id = 0;
 	private void makeNewId()
 	{
-		id = ++lastId;
+		// START KGU#863 2020-04-25: Diagrams may be built concurrently (batch image export)
+		//id = ++lastId;
+		synchronized (Element.class) {
+			id = ++lastId;
+		}
+		// END KGU#863 2020-04-25
 	}
 	public long getId()
 	{
@@ -755,7 +780,9 @@ public abstract class Element {
 		this.rotated = false;
 		// END KGU#401 2017-05-17
 		// START KGU#701 2019-03-29: Issue #718
-		this.highlightCache.clear();
+		// START KGU#853 2020-04-15: Text-keyed, so only to be dropped on a change of the highlighting context
+		//this.highlightCache.clear();
+		// END KGU#853 2020-04-15
 		// END KGU#701 2019-03-29
 	}
 	/**
@@ -898,7 +925,9 @@ public abstract class Element {
 		_ele.collapsed = this.collapsed;
 		
 		// START KGU#701 2019-03-29: Issue #718 It should not cause harm to share this info (it's a map!)
-		_ele.highlightCache = this.highlightCache;
+		// START KGU#853 2020-04-15: It does since the cache is no longer cleared on every reset
+		//_ele.highlightCache = this.highlightCache;
+		// END KGU#853 2020-04-15
 		// END KGU#701 2019-03-29
 	}
 	// END KGU#213 2016-08-01
@@ -3408,8 +3437,35 @@ public abstract class Element {
 				// START KGU#701 2019-03-29: Issue #718 - highlighting acceleration by caching
 				// backup the original font
 				Font backupFont = _canvas.getFont();
+				// START KGU#853 2020-04-15: Measurements are reused as long as the context is the same
+				Object hlContext = root.getHighlightContext();
+				// START KGU#853 2020-05-07: The exception variables depend on the enclosing catch blocks
+				//if (_this.highlightContext != hlContext) {
+				ArrayList<Try> catchContext = _this.getCatchContext();
+				if (_this.highlightContext != hlContext || !catchContext.equals(_this.catchContext)) {
+				// END KGU#853 2020-05-07
+					_this.highlightCache.clear();
+					_this.widthCache.clear();
+					_this.highlightContext = hlContext;
+					// START KGU#853 2020-05-07
+					_this.catchContext = catchContext;
+					// END KGU#853 2020-05-07
+				}
+				if (!_actuallyDraw && backupFont.equals(_this.widthCacheFont)) {
+					Integer width = _this.widthCache.get(_text);
+					if (width != null) {
+						return width;
+					}
+				}
+				// END KGU#853 2020-04-15
 				Vector<HighlightUnit> hlUnits = _this.highlightCache.get(_text);
 				if (hlUnits == null) {
+					// START KGU#853 2020-04-15: Get rid of the entries for obsolete text versions
+					if (_this.highlightCache.size() > 2 * (_this.text.count() + _this.comment.count()) + 8) {
+						_this.highlightCache.clear();
+						_this.widthCache.clear();
+					}
+					// END KGU#853 2020-04-15
 					_this.highlightCache.put(_text, hlUnits = new Vector<HighlightUnit>());
 				// END KGU#701 2019-03-29 part 1
 					// START KGU#686 2019-03-16: Enh. #56
@@ -3432,7 +3488,10 @@ public abstract class Element {
 					//StringList specialSigns = new StringList();
 					if (specialSigns == null)	// lazy initialisation
 					{
-						specialSigns = new StringList();
+						// START KGU#863 2020-04-25: Filled locally and only published when complete
+						//specialSigns = new StringList();
+						StringList specialSigns = new StringList();
+						// END KGU#863 2020-04-25
 						// END KGU#64 2015-11-03
 						// START KGU#425 2017-09-29: Add the possible ellipses, too
 						specialSigns.add("...");
@@ -3519,6 +3578,9 @@ public abstract class Element {
 						// The quotes will only occur as tokens if they are unpaired!
 						specialSigns.add("'");
 						specialSigns.add("\"");
+						// START KGU#863 2020-04-25
+						Element.specialSigns = specialSigns;
+						// END KGU#863 2020-04-25
 						// START KGU#64 2015-11-03: See above
 					}
 					// END KGU#64 2015-11-03
@@ -3729,6 +3791,13 @@ public abstract class Element {
 				// reset font
 				_canvas.setFont(backupFont);
 				// END KGU#701 2019-03-29
+				// START KGU#853 2020-04-15
+				if (!backupFont.equals(_this.widthCacheFont)) {
+					_this.widthCache.clear();
+					_this.widthCacheFont = backupFont;
+				}
+				_this.widthCache.put(_text, total);
+				// END KGU#853 2020-04-15
 			}
 			else
 			{
@@ -3768,6 +3837,27 @@ public abstract class Element {
 	}
 	// END KGU#686 2019-03-16
 	
+	// START KGU#853 2020-05-07
+	/**
+	 * Collects the {@link Try} elements this element is (directly or indirectly) placed in the
+	 * catch blocks of, i.e. whose exception variables it may refer to (see {@link #getVariableSetFor(Element)}).
+	 * Element moves may change this context without changing the text or the variable set.
+	 * @return the enclosing {@link Try} elements from inside to outside (compare by identity)
+	 */
+	private ArrayList<Try> getCatchContext()
+	{
+		ArrayList<Try> tries = new ArrayList<Try>();
+		Element ele = this;
+		while (ele.parent != null) {
+			if (ele.parent instanceof Try && ele == ((Try)ele.parent).qCatch) {
+				tries.add((Try)ele.parent);
+			}
+			ele = ele.parent;
+		}
+		return tries;
+	}
+	// END KGU#853 2020-05-07
+	
 	// START KGU#227 2016-07-29: Enh. #128
 	/**
 	 * Writes the non-empty comment lines at position _x, _y to _canvas with 2/3 font height and in dark gray
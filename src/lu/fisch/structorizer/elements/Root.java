@@ -154,11 +154,28 @@ package lu.fisch.structorizer.elements;
  *      Kay Gürtzig     2019-11-21      Enh. #739: Bug in extractEnumerationConstants() fixed
  *      Kay Gürtzig     2020-02-21      Bugfix #825: The subsections of TRY elements hadn't been analysed
  *      Kay Gürtzig     2020-03-29      Bugfix #841: Analyser check for missing or misplaced parameter list didn't work
+ *      Kay Gürtzig     2020-04-12      KGU#850: Parallel Arranger analysis of dependent diagrams on includable changes,
+ *                                      static keyword tables made safe for concurrent analysis
+ *      Kay Gürtzig     2020-04-13      KGU#851: Line-wise memo of variable definitions for incremental variable
+ *                                      retrieval, split keywords cached per parser configuration
+ *      Kay Gürtzig     2020-04-15      KGU#853: Highlighting context token for the reuse of text measurements
+ *      Kay Gürtzig     2020-04-17      KGU#855: Methods notifyUpdaters() and drawWithoutNotification() for tiled drawing
+ *      Kay Gürtzig     2020-04-28      KGU#866: fetchAuthorDates(ZipEntry, File) for diagrams read directly from arrz files
+ *      Kay Gürtzig     2020-04-30      KGU#868: Method adoptContentsOf(Root) for lazily loaded Arranger diagrams
+ *      Kay Gürtzig     2020-05-02      KGU#870: Parsed signature (name, parameters, result type) cached as a whole
+ *      Kay Gürtzig     2020-05-07      KGU#855: Change version (getChangeVersion()) for the validity of tile images
+ *      Kay Gürtzig     2020-05-07      KGU#850: copyForAnalysis() and adoptVarInfoOf() for background analyses,
+ *                                      the Analyser checks #15 and #23 prefer the specialRoutinePool
  *      
  ******************************************************************************************************
  *
  *      Comment:		/
  *      
+ *      2020-05-02 (KGU#870)
+ *      - Routine lookup (Arranger, executor, Analyser) asks the same diagrams for name, parameter counts,
+ *        and result type again and again. The whole parsed signature is now cached in an immutable object
+ *        keyed by the header lines and the diagram type, so it stays valid until the header text changes
+ *        (even if the text StringList is modified in place) and can be read from any thread.
  *      2019-03-07 (KGU#371)
  *      - Parameter list analysis has become still more complex, so it seemed sensible to cache the
  *        parameter list while the text doesn't change.
@@ -205,6 +222,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileOwnerAttributeView;
+import java.util.zip.ZipEntry;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.awt.Color;
@@ -217,6 +235,9 @@ import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+// START KGU#851 2020-04-13
+import java.util.Arrays;
+// END KGU#851 2020-04-13
 import java.util.Comparator;
 import java.util.Date;
 
@@ -288,6 +309,10 @@ public class Root extends Element {
 	//public boolean hasChanged = false;
 	private boolean hasChanged = false;		// Now only for global, not undoable changes
 	private int undoLevelOfLastSave = 0;	// Undo stack level recorded on saving
+	// START KGU#855 2020-05-07: Tiled drawing
+	/** Incremented on every undoable change, undo, redo, or content replacement */
+	private long changeVersion = 0;
+	// END KGU#855 2020-05-07
 	// END KGU#137 2016-01-11
 	//public boolean highlightVars = false;
 	// START KGU#2 (#9) 2015-11-13:
@@ -341,9 +366,61 @@ public class Root extends Element {
 	public String origin = "Structorizer " + E_VERSION;
 	
 	// START KGU#371 2019-03-07: Enh. #385 for performance reasons, we cache the parameter list here
-	/** Cached parameter list, each entry is composed of name, type, and default, each as Strings (defaults may be null) */
-	private ArrayList<Param> parameterList = null;
+	///** Cached parameter list, each entry is composed of name, type, and default, each as Strings (defaults may be null) */
+	//private ArrayList<Param> parameterList = null;
 	// END KGU#371 2019-03-07
+	// START KGU#870 2020-05-02: The entire parsed signature is cached now
+	/**
+	 * Result of the signature analysis of the Root text (name, parameters, result type).
+	 * Immutable, valid as long as the header lines and the diagram type are the same.
+	 */
+	private static final class Signature {
+		/** The header lines the signature was parsed from */
+		private final String[] lines;
+		private final DiagramType type;
+		/** Diagram name (blanks not replaced) */
+		final String name;
+		/** Parameter list, each entry is composed of name, type, and default (must not be modified) */
+		final ArrayList<Param> params;
+		/** Whether the header contains a parameter list at all */
+		final boolean hasParamList;
+		/** Minimum number of arguments (parameters without default at the end counted) */
+		final int minArgs;
+		final String resultType;
+
+		Signature(String[] _lines, DiagramType _type, String _name, ArrayList<Param> _params,
+				boolean _hasParamList, String _resultType)
+		{
+			lines = _lines;
+			type = _type;
+			name = _name;
+			params = _params;
+			hasParamList = _hasParamList;
+			int nMin = _params.size();
+			while (nMin > 0 && _params.get(nMin-1).defaultValue != null) {
+				nMin--;
+			}
+			minArgs = nMin;
+			resultType = _resultType;
+		}
+
+		/** @return true if this signature was parsed from {@code _text} with diagram type {@code _type} */
+		boolean matches(StringList _text, DiagramType _type)
+		{
+			if (_type != type || _text.count() != lines.length) {
+				return false;
+			}
+			for (int i = 0; i < lines.length; i++) {
+				if (!lines[i].equals(_text.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	/** Cached signature, replaced when outdated (see {@link #getSignature()}) */
+	private volatile Signature signature = null;
+	// END KGU#870 2020-05-02
 	
 	// START KGU#376 2017-06-30: Enh. #389: Includable diagrams now managed directly by Root
 	/** List of the names of the diagrams to be included by this Root (may be null!) */
@@ -578,6 +655,40 @@ public class Root extends Element {
 		}
 	}
 	// END KGU#363 2017-05-21
+	// START KGU#866 2020-04-28: Diagrams may be read from arrz files without extraction
+	/**
+	 * Like {@link #fetchAuthorDates(File, File)} but for a diagram read directly from entry
+	 * {@code _entry} of arrangement archive {@code _arrzFile} (i.e. without extraction): the
+	 * modification time is taken from the entry, creation time and owner from the archive.
+	 * @param _entry - the archive entry this diagram is loaded from
+	 * @param _arrzFile - the containing arrz file
+	 * @see #fetchAuthorDates(Attributes)
+	 */
+	public void fetchAuthorDates(ZipEntry _entry, File _arrzFile) {
+		this.created = null;
+		this.author = "???";
+		this.licenseName = null;
+		try {
+			Path ownerPath = _arrzFile.toPath();
+			BasicFileAttributes attrs = Files.readAttributes(ownerPath, BasicFileAttributes.class);
+			long createTime = attrs.creationTime().toMillis();
+			long modTime = _entry.getTime();
+			if (modTime <= 0) {
+				modTime = attrs.lastModifiedTime().toMillis();
+			}
+			this.modified = new Date(modTime);
+			FileOwnerAttributeView view = Files.getFileAttributeView(ownerPath, FileOwnerAttributeView.class);
+			// Same heuristics as in fetchAuthorDates(File, File)
+			if (createTime > 0 && createTime < modTime) {
+				this.created = new Date(createTime);
+				this.author = view.getOwner().getName();
+			}
+			else {
+				this.modifiedby = view.getOwner().getName();
+			}
+		} catch (IOException e) {}
+	}
+	// END KGU#866 2020-04-28
 
 	/**
 	 * Names of variables defined within this diagram (may be null after changes,
@@ -645,7 +756,66 @@ public class Root extends Element {
 	// END KGU#261 2017-01-19
 	// START KGU#163 2016-03-25: Added to solve the complete detection of unknown/uninitialised identifiers
 	// Pre-processed parser preference keywords to match them against tokenized strings
-	private static Vector<StringList> splitKeywords = new Vector<StringList>();
+	// START KGU#851 2020-04-13: Cached per parser configuration and replaced as a whole (thread safety)
+	//private static Vector<StringList> splitKeywords = new Vector<StringList>();
+	/**
+	 * The parser keywords along with their token sequences as were valid for a certain
+	 * parser configuration (see {@link Root#getKeywordInfo()}).
+	 */
+	private static final class KeywordInfo {
+		/** The configured parser keywords (in the order of {@link CodeParser#getAllProperties()}) */
+		final String[] keywords;
+		/** The case-sensitivity mode the split keywords were made for */
+		final boolean ignoreCase;
+		/** The token sequences of the {@link #keywords} (same order) */
+		final Vector<StringList> splitKeywords;
+		
+		KeywordInfo(String[] _keywords)
+		{
+			keywords = _keywords;
+			ignoreCase = CodeParser.ignoreCase;
+			splitKeywords = new Vector<StringList>(_keywords.length);
+			for (int k = 0; k < _keywords.length; k++)
+			{
+				splitKeywords.add(Element.splitLexically(_keywords[k], false));
+			}
+		}
+		
+		/** @return true if the given keywords match the current configuration */
+		boolean isValidFor(String[] _keywords)
+		{
+			return ignoreCase == CodeParser.ignoreCase && Arrays.equals(keywords, _keywords);
+		}
+	}
+	/** Split keywords for the most recently used parser configuration (see {@link #getKeywordInfo()}) */
+	private static volatile KeywordInfo keywordInfo = null;
+	
+	/**
+	 * The variable definitions found in a single unbroken text line by
+	 * {@link Root#getVarNames(StringList, HashMap)}, memoized in {@link Root#lineDefinitions}.
+	 */
+	private static final class LineDefinitions {
+		/** Assigned or input variable names in order of occurrence (may contain duplicates) */
+		final StringList names = new StringList();
+		/** The constant value expressions for the {@link #names} (null for non-constants) */
+		final ArrayList<String> constExprs = new ArrayList<String>();
+	}
+	/**
+	 * Memo of the variable definitions per text line, valid for parser configuration
+	 * {@link #lineDefKeywords}. Since the lines are their own keys, an edited element
+	 * simply misses the cache, such that only its lines will have to be re-analysed
+	 * on the next variable retrieval.
+	 */
+	private final HashMap<String, LineDefinitions> lineDefinitions = new HashMap<String, LineDefinitions>();
+	/** The keyword configuration {@link #lineDefinitions} were gathered with */
+	private KeywordInfo lineDefKeywords = null;
+	// END KGU#851 2020-04-13
+	// START KGU#853 2020-04-15: Incremental layout
+	/** The inputs of the syntax highlighting {@link #highlightToken} stands for */
+	private ArrayList<Object> highlightSignature = null;
+	/** Identifies the current highlighting context (see {@link #getHighlightContext()}) */
+	private Object highlightToken = null;
+	// END KGU#853 2020-04-15
 	private String[] operatorsAndLiterals = {"false", "true", "div"};
 	// END KGU#163 2016-03-25
 
@@ -803,11 +973,18 @@ public class Root extends Element {
 	}
 	// END KGU#456 2017-11-05
 	// Mapping keyword -> generator titles
-	private static Hashtable<String, StringList> caseAwareKeywords = null;
-	private static Hashtable<String, StringList> caseUnawareKeywords = null;
+	// START KGU#850 2020-04-12: Now concurrently read by parallel analysis
+	//private static Hashtable<String, StringList> caseAwareKeywords = null;
+	//private static Hashtable<String, StringList> caseUnawareKeywords = null;
+	private static volatile Hashtable<String, StringList> caseAwareKeywords = null;
+	private static volatile Hashtable<String, StringList> caseUnawareKeywords = null;
+	// END KGU#850 2020-04-12
 	// END KGU#239 2016-08-12
 	// START KGU#239 2017-04-11: Some structorizer-internal keywords are also to be checked against
-	private static Set<String> structorizerKeywords = new HashSet<String>();
+	// START KGU#850 2020-04-12: Will be replaced as a whole (rather than refilled) for parallel analysis
+	//private static Set<String> structorizerKeywords = new HashSet<String>();
+	private static volatile Set<String> structorizerKeywords = new HashSet<String>();
+	// END KGU#850 2020-04-12
 	// END KGU#239 2017-04-11
 
 	private Vector<Updater> updaters = new Vector<Updater>();
@@ -860,14 +1037,20 @@ public class Root extends Element {
 	public void setText(String _text)
 	{
 		text.setText(_text);
-		parameterList = null;
+		// START KGU#870 2020-05-02
+		//parameterList = null;
+		signature = null;
+		// END KGU#870 2020-05-02
 	}
 
 	@Override
 	public void setText(StringList _text)
 	{
 		text = _text;
-		parameterList = null;
+		// START KGU#870 2020-05-02
+		//parameterList = null;
+		signature = null;
+		// END KGU#870 2020-05-02
 	}
 	// END KGU#371 2019-03-07
 
@@ -919,6 +1102,9 @@ public class Root extends Element {
     public void setChanged(boolean setModifiedAttrs)
     {
     	this.hasChanged = true;
+    	// START KGU#855 2020-05-07
+    	this.changeVersion++;
+    	// END KGU#855 2020-05-07
     	// START KGU#363 2017-03-10: Enh. #372, KGU#363 2018-09-12 made dependent on argument
     	if (setModifiedAttrs) {
     		// END KGU#363 2018-09-12
@@ -978,6 +1164,9 @@ public class Root extends Element {
 	{
 		// START KGU#136 2016-03-01: Bugfix #97 (prepared)
 		if (this.isRect0UpToDate) return rect0.copy();
+		// START KGU#853 2020-04-15: Find out whether the elements may reuse their text measurements
+		this.updateHighlightContext();
+		// END KGU#853 2020-04-15
 		// START KGU#516 2018-04-04: Directly to work on field rect0 was not so good an idea for re-entrance
 		//pt0Sub.x = 0;
 		// END KGU#516 2018-04-04
@@ -1076,6 +1265,66 @@ public class Root extends Element {
 		return rect0.copy();
 	}
 
+	// START KGU#853 2020-04-15: Incremental layout
+	/**
+	 * Returns a token identifying the current state of all inputs the syntax highlighting
+	 * of the element texts depends on (variable and type names, parser keywords, display
+	 * options). As long as the token doesn't change, the elements may reuse their cached
+	 * highlighting units and text widths even after their drawing info had been reset.
+	 * @return the highlighting context token (compare by identity)
+	 * @see #prepareDraw(Canvas)
+	 */
+	public Object getHighlightContext()
+	{
+		if (this.highlightToken == null) {
+			this.updateHighlightContext();
+		}
+		return this.highlightToken;
+	}
+
+	/**
+	 * Gathers the current inputs of the syntax highlighting and replaces the highlighting
+	 * context token if they differ from the ones the current token stands for.
+	 * @see #getHighlightContext()
+	 */
+	private void updateHighlightContext()
+	{
+		ArrayList<Object> signature = new ArrayList<Object>();
+		signature.add(E_VARHIGHLIGHT);
+		if (E_VARHIGHLIGHT) {
+			signature.add(isSwitchTextCommentMode());
+			signature.add(E_SHOW_UNICODE_OPERATORS);
+			signature.add(E_APPLY_ALIASES);
+			signature.add(new HashMap<String, String>(controllerAlias2Name));
+			signature.add(Element.font);
+			signature.add(Arrays.asList(CodeParser.getAllProperties()));
+			signature.add(CodeParser.ignoreCase);
+			signature.add(this.getVarNames().getText());
+			signature.add(new HashSet<String>(this.getTypeInfo().keySet()));
+			// Exception variables of TRY elements are highlighted within the catch sections
+			final StringList exceptionVars = new StringList();
+			this.traverse(new IElementVisitor() {
+				@Override
+				public boolean visitPreOrder(Element _ele) {
+					if (_ele instanceof Try) {
+						exceptionVars.add(String.valueOf(((Try)_ele).getExceptionVarName()));
+					}
+					return true;
+				}
+				@Override
+				public boolean visitPostOrder(Element _ele) {
+					return true;
+				}
+			});
+			signature.add(exceptionVars.getText());
+		}
+		if (this.highlightToken == null || !signature.equals(this.highlightSignature)) {
+			this.highlightToken = new Object();
+			this.highlightSignature = signature;
+		}
+	}
+	// END KGU#853 2020-04-15
+
 	public void drawBuffered(Canvas _canvas, Rect _top_left)
 	{
 		// save reference to output canvas
@@ -1704,6 +1953,37 @@ public class Root extends Element {
         ).start();/**/
 
         // inform updaters
+        // START KGU#855 2020-04-17: Decomposed for tiled drawing
+        //for (int u = 0; u < updaters.size(); u++)
+        //{
+        //    if (updaters.get(u) != _prohibitedUpdater)
+        //    {
+        //        updaters.get(u).update(this);
+        //    }
+        //}
+        //
+        //Canvas canvas = new Canvas((Graphics2D) _g);
+        //canvas.setFont(Element.getFont()); //?
+        //Rect myrect = this.prepareDraw(canvas);
+        //myrect.left += _point.x;
+        //myrect.top += _point.y;
+        //myrect.right += _point.x;
+        //myrect.bottom += _point.y;
+        //this.draw(canvas, myrect, _viewport, _inContention, _drawingContext);
+        //
+        //return myrect;
+        notifyUpdaters(_prohibitedUpdater);
+
+        return drawWithoutNotification(_g, _point, _viewport, _drawingContext, _inContention);
+    }
+
+    /**
+     * Informs all registered {@link Updater}s except {@code _prohibitedUpdater} that
+     * this diagram was (or is going to be) redrawn.
+     * @param _prohibitedUpdater - an {@link Updater} not to be informed (or null)
+     */
+    public void notifyUpdaters(Updater _prohibitedUpdater)
+    {
         for (int u = 0; u < updaters.size(); u++)
         {
             if (updaters.get(u) != _prohibitedUpdater)
@@ -1711,6 +1991,22 @@ public class Root extends Element {
                 updaters.get(u).update(this);
             }
         }
+    }
+
+    /**
+     * Draws the diagram at {@code _point} without informing the {@link Updater}s,
+     * e.g. if a drawing is composed of several partial drawings (tiles).
+     * @param _g - the target graphics
+     * @param _point - the upper left corner of the drawing
+     * @param _viewport - the region to be drawn (null for the entire diagram)
+     * @param _drawingContext - the drawing context (for the selection display)
+     * @param _inContention - whether drawing is done under heavy contention
+     * @return the bounds of the diagram
+     * @see #notifyUpdaters(Updater)
+     */
+    public Rect drawWithoutNotification(Graphics _g, Point _point, Rectangle _viewport, DrawingContext _drawingContext, boolean _inContention)
+    {
+        setDrawPoint(_point);
 
         Canvas canvas = new Canvas((Graphics2D) _g);
         canvas.setFont(Element.getFont()); //?
@@ -1723,6 +2019,7 @@ public class Root extends Element {
 
         return myrect;
     }
+    // END KGU#855 2020-04-17
 
 //    public Rect draw(Graphics _g, Point _point)
 //    {
@@ -1810,6 +2107,103 @@ public class Root extends Element {
             return ele;
     }
     
+    // START KGU#868 2020-04-30: Lazy loading of diagram bodies in the Arranger
+    /**
+     * Replaces the entire content of this diagram (header, body, attributes, and file
+     * association) by that of {@code _source}, which is typically a freshly parsed version
+     * of the same file, whereas the identity of this Root (id, registered {@link Updater}s,
+     * selection flags) is retained. The undo and redo stacks are cleared, the diagram is
+     * regarded as unchanged afterwards.<br/>
+     * Note: The body of {@code _source} is taken over rather than copied, so {@code _source}
+     * must not be used anymore.
+     * @param _source - the diagram to take the contents from
+     */
+    public void adoptContentsOf(Root _source)
+    {
+        this.setText(_source.getText());
+        this.setComment(_source.getComment());
+        this.setColor(_source.getColor());
+        this.disabled = _source.disabled;
+        this.isBoxed = _source.isBoxed;
+        this.diagrType = _source.diagrType;
+        this.children = _source.children;
+        this.children.parent = this;
+        this.includeList = _source.includeList;
+        this.storedParserPrefs = _source.storedParserPrefs;
+        this.author = _source.author;
+        this.created = _source.created;
+        this.modified = _source.modified;
+        this.modifiedby = _source.modifiedby;
+        this.modifiedby0 = _source.modifiedby0;
+        this.licenseName = _source.licenseName;
+        this.licenseText = _source.licenseText;
+        this.origin = _source.origin;
+        this.filename = _source.filename;
+        this.shadowFilepath = _source.shadowFilepath;
+        this.undoList.clear();
+        this.redoList.clear();
+        this.undoLevelOfLastSave = 0;
+        this.hasChanged = false;
+        this.clearVarAndTypeInfo(true);
+        // START KGU#855 2020-05-07
+        this.changeVersion++;
+        // END KGU#855 2020-05-07
+    }
+    // END KGU#868 2020-04-30
+    
+    // START KGU#855 2020-05-07: Tiled drawing
+    /**
+     * Returns a counter that is incremented on every undoable change (see {@link #addUndo()}),
+     * on undo and redo, on {@link #setChanged(boolean)}, and on {@link #adoptContentsOf(Root)}.
+     * Cached renderings of this diagram are outdated if the version differs.
+     * @return the current change version
+     */
+    public long getChangeVersion()
+    {
+        return this.changeVersion;
+    }
+    // END KGU#855 2020-05-07
+    
+    // START KGU#850 2020-05-07: Analysis of detached copies on worker threads
+    /**
+     * Creates a detached copy of this diagram (text, body, include list, diagram type) to be
+     * analysed on another thread while this diagram may be edited. Unlike {@link #copy()}, no
+     * attributes are modified, neither here nor in the copy. Includables and called routines
+     * will be retrieved from {@code _pool} (see {@link #specialRoutinePool}).
+     * @param _pool - the routine pool to be consulted by the copy
+     * @return the copy
+     * @see #adoptVarInfoOf(Root)
+     */
+    public Root copyForAnalysis(IRoutinePool _pool)
+    {
+        Root ele = new Root(this.getText().copy());
+        copyDetails(ele, false);
+        ele.diagrType = this.diagrType;
+        ele.children = (Subqueue) this.children.copy();
+        ele.children.parent = ele;
+        if (this.includeList != null) {
+            ele.includeList = this.includeList.copy();
+        }
+        ele.specialRoutinePool = _pool;
+        return ele;
+    }
+    
+    /**
+     * Takes over the variable names and constants retrieved by {@code _copy} unless they
+     * have already been retrieved here. {@code _copy} must have been obtained by
+     * {@link #copyForAnalysis(IRoutinePool)} from this diagram without modifications since.
+     * @param _copy - the analysed copy of this diagram
+     */
+    public void adoptVarInfoOf(Root _copy)
+    {
+        if (this.variables == null && _copy.variables != null) {
+            this.variables = _copy.variables.copy();
+            this.constants.clear();
+            this.constants.putAll(_copy.constants);
+        }
+    }
+    // END KGU#850 2020-05-07
+    
 	// START KGU#119 2016-01-02: Bugfix #78
 	/**
 	 * Returns true iff _another is of same class, all persistent attributes are equal, and
@@ -1917,6 +2311,9 @@ public class Root extends Element {
 	 */
 	public void addUndo(boolean _cacheAttributes)
 	{
+		// START KGU#855 2020-05-07
+		this.changeVersion++;
+		// END KGU#855 2020-05-07
 
 		Subqueue oldChildren = (Subqueue)children.copy(); 
 		// START KGU#120 2016-01-02: Bugfix #85 - park my StringList attributes on the stack top
@@ -1954,9 +2351,16 @@ public class Root extends Element {
 		// END KGU#117 2016-03-07
 		// START KGU#701/KGU#703 2019-03-30: Issue #718
 		if (this.isInclude() && Arranger.hasInstance()) {
-			for (Root ref: Arranger.getInstance().findIncludingRoots(this.getMethodName(), true)) {
+			// START KGU#850 2020-04-12: Have the dependent diagrams re-analysed in parallel
+			//for (Root ref: Arranger.getInstance().findIncludingRoots(this.getMethodName(), true)) {
+			//	ref.clearVarAndTypeInfo(false);
+			//}
+			Set<Root> refs = Arranger.getInstance().findIncludingRoots(this.getMethodName(), true);
+			for (Root ref: refs) {
 				ref.clearVarAndTypeInfo(false);
 			}
+			Arranger.getInstance().scheduleAnalysis(refs);
+			// END KGU#850 2020-04-12
 		}
 		// END KGU#701/KGU#703 2019-03-30
 		// START KGU#363 2017-03-10: Enh. #372
@@ -2057,6 +2461,9 @@ public class Root extends Element {
             // START KGU#137 2016-01-11: Bugfix #103 - rely on undoList level comparison 
             //this.hasChanged=true;
             // END KGU#137 2016-01-11
+            // START KGU#855 2020-05-07
+            this.changeVersion++;
+            // END KGU#855 2020-05-07
             // START KGU#365 2017-03-19: Enh. #380
             if (redoable) {
             // END KGU#365 2017-03-19
@@ -2120,9 +2527,16 @@ public class Root extends Element {
             // END KGU#136/KGU#261/KGU#444/KGU#618/KGU#701 2019-03-30
             // START KGU#703 2019-03-30: Issue #718
             if (this.isInclude() && Arranger.hasInstance()) {
-                for (Root ref: Arranger.getInstance().findIncludingRoots(this.getMethodName(), true)) {
+                // START KGU#850 2020-04-12: Have the dependent diagrams re-analysed in parallel
+                //for (Root ref: Arranger.getInstance().findIncludingRoots(this.getMethodName(), true)) {
+                //    ref.clearVarAndTypeInfo(false);
+                //}
+                Set<Root> refs = Arranger.getInstance().findIncludingRoots(this.getMethodName(), true);
+                for (Root ref: refs) {
                     ref.clearVarAndTypeInfo(false);
                 }
+                Arranger.getInstance().scheduleAnalysis(refs);
+                // END KGU#850 2020-04-12
             }
             // END KGU#703 2019-03-30
         }
@@ -2152,6 +2566,9 @@ public class Root extends Element {
             // START KGU#137 2016-01-11: Bugfix #103 - rely on undoList level comparison 
             //this.hasChanged=true;
             // END KGU#137 2016-01-11
+            // START KGU#855 2020-05-07
+            this.changeVersion++;
+            // END KGU#855 2020-05-07
             undoList.add((Subqueue)children.copy());
             // START KGU#120 2016-01-02: Bugfix #85 - park my StringList attributes on the stack top
             undoList.peek().setText(this.text.copy());
@@ -2198,9 +2615,16 @@ public class Root extends Element {
             // END KGU#136/KGU#261 2019-03-20
             // START KGU#703 2019-03-30: Issue #720
             if (this.isInclude() && Arranger.hasInstance()) {
-                for (Root ref: Arranger.getInstance().findIncludingRoots(this.getMethodName(), true)) {
+                // START KGU#850 2020-04-12: Have the dependent diagrams re-analysed in parallel
+                //for (Root ref: Arranger.getInstance().findIncludingRoots(this.getMethodName(), true)) {
+                //    ref.clearVarAndTypeInfo(false);
+                //}
+                Set<Root> refs = Arranger.getInstance().findIncludingRoots(this.getMethodName(), true);
+                for (Root ref: refs) {
                     ref.clearVarAndTypeInfo(false);
                 }
+                Arranger.getInstance().scheduleAnalysis(refs);
+                // END KGU#850 2020-04-12
             }
             // END KGU#703 2019-03-30
         }
@@ -2623,18 +3047,31 @@ public class Root extends Element {
 
 		Element.unifyOperators(tokens, false);
 
+		// START KGU#851 2020-04-13: The split keywords no longer depend on a preceding getVarNames() call
+		KeywordInfo kwInfo = getKeywordInfo();
+		// END KGU#851 2020-04-13
 		// Replace all split keywords by the respective configured strings
 		// This replacement will be aware of the case sensitivity preference
-		for (int kw = 0; kw < _keywords.length; kw++)
+		// START KGU#851 2020-04-13
+		//for (int kw = 0; kw < _keywords.length; kw++)
+		//{
+		//	if (_keywords[kw].trim().length() > 0)
+		//	{
+		//		StringList keyTokens = splitKeywords.elementAt(kw);
+		for (int kw = 0; kw < kwInfo.keywords.length; kw++)
 		{
-			if (_keywords[kw].trim().length() > 0)
+			if (kwInfo.keywords[kw].trim().length() > 0)
 			{
-				StringList keyTokens = splitKeywords.elementAt(kw);
+				StringList keyTokens = kwInfo.splitKeywords.elementAt(kw);
+		// END KGU#851 2020-04-13
 				int keyLength = keyTokens.count();
 				int pos = -1;
 				while ((pos = tokens.indexOf(keyTokens, pos + 1, !CodeParser.ignoreCase)) >= 0)
 				{
-					tokens.set(pos, _keywords[kw]);
+					// START KGU#851 2020-04-13
+					//tokens.set(pos, _keywords[kw]);
+					tokens.set(pos, kwInfo.keywords[kw]);
+					// END KGU#851 2020-04-13
 					for (int j=1; j < keyLength; j++)
 					{
 						tokens.delete(pos+1);
@@ -2827,108 +3264,198 @@ public class Root extends Element {
      */
     public StringList getVarNames(StringList lines, HashMap<String, String> constantDefs)
     {
+    	// START KGU#851 2020-04-13: Incremental retrieval via line-wise memo
+    	return getVarNames(lines, constantDefs, false);
+    }
+
+    /**
+     * Get the names of defined variables out of a bunch of text lines, see
+     * {@link #getVarNames(StringList, HashMap)}.<br/>
+     * The definitions of the lines are retrieved from the line memo {@link #lineDefinitions}
+     * where available, only unknown (i.e. new or modified) lines are analysed. The merging of
+     * the line results works exactly as a complete analysis would have done.
+     * @param lines - the text lines extracted from one or more elements 
+     * @param constantDefs - a map of constant definitions
+     * @param _pruneMemo - whether the line memo is to be reduced to the given lines (in case
+     * {@code lines} comprise the entire diagram)
+     * @return - the StringList of identified variable names
+     */
+    private StringList getVarNames(StringList lines, HashMap<String, String> constantDefs, boolean _pruneMemo)
+    {
+    	// END KGU#851 2020-04-13
     	StringList varNames = new StringList();
 
     	// START KGU#163 2016-03-25: Pre-processed match patterns for identifier search
-    	splitKeywords.clear();
-    	String[] keywords = CodeParser.getAllProperties();
-    	for (int k = 0; k < keywords.length; k++)
-    	{
-    		splitKeywords.add(Element.splitLexically(keywords[k], false));
-    	}
+    	// START KGU#851 2020-04-13: Cached now, the memo depends on the configuration
+    	//splitKeywords.clear();
+    	//String[] keywords = CodeParser.getAllProperties();
+    	//for (int k = 0; k < keywords.length; k++)
+    	//{
+    	//	splitKeywords.add(Element.splitLexically(keywords[k], false));
+    	//}
+    	KeywordInfo kwInfo = getKeywordInfo();
+    	// END KGU#851 2020-04-13
     	// END KGU#163 2016-03-25
 
-    	for(int i=0; i<lines.count(); i++)
-    	{
-    		String allText = lines.get(i);
-    		// modify "inc" and "dec" function (Pascal)
-    		// START KGU#575 2018-09-17: Issue #594 - replace obsolete 3rd-party Regex library
-    		//Regex r;
-    		//r = new Regex(BString.breakup("inc")+"[(](.*?)[,](.*?)[)](.*?)","$1 <- $1 + $2"); allText=r.replaceAll(allText);
-    		//r = new Regex(BString.breakup("inc")+"[(](.*?)[)](.*?)","$1 <- $1 + 1"); allText=r.replaceAll(allText);
-    		//r = new Regex(BString.breakup("dec")+"[(](.*?)[,](.*?)[)](.*?)","$1 <- $1 - $2"); allText=r.replaceAll(allText);
-    		//r = new Regex(BString.breakup("dec")+"[(](.*?)[)](.*?)","$1 <- $1 - 1"); allText=r.replaceAll(allText);
-    		allText = transform_inc_dec(allText);
-    		// END KGU#575 2018-09-17
-
-    		StringList tokens = Element.splitLexically(allText, true);
-
-    		Element.unifyOperators(tokens, false);
-
-    		// Replace all split keywords by the respective configured strings
-    		// This replacement will be aware of the case sensitivity preference
-    		for (int kw = 0; kw < keywords.length; kw++)
-    		{    				
-    			if (keywords[kw].trim().length() > 0)
-    			{
-    				StringList keyTokens = splitKeywords.elementAt(kw);
-    				int keyLength = keyTokens.count();
-    				int pos = -1;
-    				while ((pos = tokens.indexOf(keyTokens, pos + 1, !CodeParser.ignoreCase)) >= 0)
-    				{
-    					tokens.set(pos, keywords[kw]);
-    					for (int j=1; j < keyLength; j++)
-    					{
-    						tokens.delete(pos+1);
-    					}
+    	// START KGU#851 2020-04-13: Only lines not having been analysed before must be tokenized
+    	synchronized (lineDefinitions) {
+    		if (lineDefKeywords != kwInfo) {
+    			// The parser preferences have changed, so all line results are obsolete
+    			lineDefinitions.clear();
+    			lineDefKeywords = kwInfo;
+    		}
+    		for (int i = 0; i < lines.count(); i++)
+    		{
+    			String line = lines.get(i);
+    			LineDefinitions defs = lineDefinitions.get(line);
+    			if (defs == null) {
+    				defs = analyseLineDefinitions(line, kwInfo);
+    				lineDefinitions.put(line, defs);
+    			}
+    			for (int j = 0; j < defs.names.count(); j++) {
+    				String varName = defs.names.get(j);
+    				boolean wasNew = varNames.addOrderedIfNew(varName);
+    				// Register it as constant if marked as such and not having been declared before
+    				String constExpr = defs.constExprs.get(j);
+    				if (constExpr != null && wasNew && !constantDefs.containsKey(varName)) {
+    					constantDefs.put(varName, constExpr);
     				}
     			}
     		}
-
-    		// Unify FOR-IN loops and FOR loops for the purpose of variable analysis
-    		if (!CodeParser.getKeyword("postForIn").trim().isEmpty())
-    		{
-    			tokens.replaceAll(CodeParser.getKeyword("postForIn"), "<-");
+    		if (_pruneMemo && lineDefinitions.size() > lines.count()) {
+    			// Drop the results of lines that don't exist anymore
+    			lineDefinitions.keySet().retainAll(new HashSet<String>(Arrays.asList(lines.toArray())));
     		}
+    	}
 
-    		// Here all the unification, alignment, reduction is done, now the actual analysis begins
+    	return varNames;
+    }
 
-    		int asgnPos = tokens.indexOf("<-");
-    		if (asgnPos > 0)
+    /**
+     * Analyses a single text line for variable definitions (assignments, input
+     * instructions, loop variables) as described for {@link #getVarNames(StringList, HashMap)}
+     * @param allText - an unbroken text line
+     * @param _kwInfo - the split keywords of the current parser configuration
+     * @return the definitions of the line in order of occurrence
+     */
+    private LineDefinitions analyseLineDefinitions(String allText, KeywordInfo _kwInfo)
+    {
+    	LineDefinitions defs = new LineDefinitions();
+    	// END KGU#851 2020-04-13
+    	// modify "inc" and "dec" function (Pascal)
+    	// START KGU#575 2018-09-17: Issue #594 - replace obsolete 3rd-party Regex library
+    	//Regex r;
+    	//r = new Regex(BString.breakup("inc")+"[(](.*?)[,](.*?)[)](.*?)","$1 <- $1 + $2"); allText=r.replaceAll(allText);
+    	//r = new Regex(BString.breakup("inc")+"[(](.*?)[)](.*?)","$1 <- $1 + 1"); allText=r.replaceAll(allText);
+    	//r = new Regex(BString.breakup("dec")+"[(](.*?)[,](.*?)[)](.*?)","$1 <- $1 - $2"); allText=r.replaceAll(allText);
+    	//r = new Regex(BString.breakup("dec")+"[(](.*?)[)](.*?)","$1 <- $1 - 1"); allText=r.replaceAll(allText);
+    	allText = transform_inc_dec(allText);
+    	// END KGU#575 2018-09-17
+
+    	StringList tokens = Element.splitLexically(allText, true);
+
+    	Element.unifyOperators(tokens, false);
+
+    	// Replace all split keywords by the respective configured strings
+    	// This replacement will be aware of the case sensitivity preference
+    	String[] keywords = _kwInfo.keywords;
+    	for (int kw = 0; kw < keywords.length; kw++)
+    	{    				
+    		if (keywords[kw].trim().length() > 0)
     		{
-    			String s = tokens.subSequence(0, asgnPos).concatenate();
-    			// (KGU#141 2016-01-16: type elimination moved to extractVarName())
-    			//System.out.println("Adding to initialised var names: " + extractVarName(allText.trim()));
-    			String varName = extractVarName(s.trim());
-    			boolean wasNew = varNames.addOrderedIfNew(varName);
-    			// START KGU#375 2017-03-31: Enh. #388 collect constant definitions
-    			// Register it as constant if marked as such and not having been declared before
-    			if (tokens.get(0).equals("const") && wasNew && !constantDefs.containsKey(varName)) {
-    				constantDefs.put(varName, tokens.subSequence(asgnPos+1, tokens.count()).concatenate().trim());
+    			StringList keyTokens = _kwInfo.splitKeywords.elementAt(kw);
+    			int keyLength = keyTokens.count();
+    			int pos = -1;
+    			while ((pos = tokens.indexOf(keyTokens, pos + 1, !CodeParser.ignoreCase)) >= 0)
+    			{
+    				tokens.set(pos, keywords[kw]);
+    				for (int j=1; j < keyLength; j++)
+    				{
+    					tokens.delete(pos+1);
+    				}
     			}
     		}
+    	}
+
+    	// Unify FOR-IN loops and FOR loops for the purpose of variable analysis
+    	if (!CodeParser.getKeyword("postForIn").trim().isEmpty())
+    	{
+    		tokens.replaceAll(CodeParser.getKeyword("postForIn"), "<-");
+    	}
 
+    	// Here all the unification, alignment, reduction is done, now the actual analysis begins
 
-    		// get names from read statements
-    		int inpPos = tokens.indexOf(CodeParser.getKeyword("input"));
-    		if (inpPos >= 0)
+    	int asgnPos = tokens.indexOf("<-");
+    	if (asgnPos > 0)
+    	{
+    		String s = tokens.subSequence(0, asgnPos).concatenate();
+    		// (KGU#141 2016-01-16: type elimination moved to extractVarName())
+    		//System.out.println("Adding to initialised var names: " + extractVarName(allText.trim()));
+    		String varName = extractVarName(s.trim());
+    		// START KGU#851 2020-04-13: The registration is now done on merging (see getVarNames(StringList, HashMap))
+    		//boolean wasNew = varNames.addOrderedIfNew(varName);
+    		//// START KGU#375 2017-03-31: Enh. #388 collect constant definitions
+    		//// Register it as constant if marked as such and not having been declared before
+    		//if (tokens.get(0).equals("const") && wasNew && !constantDefs.containsKey(varName)) {
+    		//	constantDefs.put(varName, tokens.subSequence(asgnPos+1, tokens.count()).concatenate().trim());
+    		//}
+    		String constExpr = null;
+    		if (tokens.get(0).equals("const")) {
+    			constExpr = tokens.subSequence(asgnPos+1, tokens.count()).concatenate().trim();
+    		}
+    		defs.names.add(varName);
+    		defs.constExprs.add(constExpr);
+    		// END KGU#851 2020-04-13
+    	}
+
+
+    	// get names from read statements
+    	int inpPos = tokens.indexOf(CodeParser.getKeyword("input"));
+    	if (inpPos >= 0)
+    	{
+    		// START KGU#281 2016-10-12: Issue #271 - there may be a prompt string literal to be skipped
+    		//String s = tokens.subSequence(inpPos + 1, tokens.count()).concatenate().trim();
+    		inpPos++;
+    		// START KGU#281 2016-12-23: Enh. #271 - allow comma between prompt and variable name
+    		//while (inpPos < tokens.count() && (tokens.get(inpPos).trim().isEmpty() || tokens.get(inpPos).matches("^[\"\'].*[\"\']$")))
+    		while (inpPos < tokens.count() && (tokens.get(inpPos).trim().isEmpty() || tokens.get(inpPos).trim().equals(",") || tokens.get(inpPos).matches("^[\"\'].*[\"\']$")))
+    		// END KGU#281 2016-12-23
     		{
-    			// START KGU#281 2016-10-12: Issue #271 - there may be a prompt string literal to be skipped
-    			//String s = tokens.subSequence(inpPos + 1, tokens.count()).concatenate().trim();
     			inpPos++;
-    			// START KGU#281 2016-12-23: Enh. #271 - allow comma between prompt and variable name
-    			//while (inpPos < tokens.count() && (tokens.get(inpPos).trim().isEmpty() || tokens.get(inpPos).matches("^[\"\'].*[\"\']$")))
-    			while (inpPos < tokens.count() && (tokens.get(inpPos).trim().isEmpty() || tokens.get(inpPos).trim().equals(",") || tokens.get(inpPos).matches("^[\"\'].*[\"\']$")))
-    			// END KGU#281 2016-12-23
-    			{
-    				inpPos++;
-    			}
-    			//String s = tokens.subSequence(inpPos, tokens.count()).concatenate().trim();
-    			// END KGU#281 2016-10-12
-    			// A mere splitting by comma would spoil function calls as indices etc.
-    			StringList parts = Element.splitExpressionList(tokens.subSequence(inpPos, tokens.count()), ",", false);
-    			for (int p = 0; p < parts.count(); p++)
-    			{
-    				varNames.addOrderedIfNew(extractVarName(parts.get(p).trim()));
-    			}
     		}
+    		//String s = tokens.subSequence(inpPos, tokens.count()).concatenate().trim();
+    		// END KGU#281 2016-10-12
+    		// A mere splitting by comma would spoil function calls as indices etc.
+    		StringList parts = Element.splitExpressionList(tokens.subSequence(inpPos, tokens.count()), ",", false);
+    		for (int p = 0; p < parts.count(); p++)
+    		{
+    			// START KGU#851 2020-04-13
+    			//varNames.addOrderedIfNew(extractVarName(parts.get(p).trim()));
+    			defs.names.add(extractVarName(parts.get(p).trim()));
+    			defs.constExprs.add(null);
+    			// END KGU#851 2020-04-13
+    		}
+    	}
 
+    	return defs;
+    }
 
-    		//lines.set(i, allText);
+    // START KGU#851 2020-04-13
+    /**
+     * Provides the configured parser keywords together with their token sequences,
+     * re-splitting them only if the parser preferences have changed since the last call.
+     * @return the current {@link KeywordInfo}
+     */
+    private static KeywordInfo getKeywordInfo()
+    {
+    	String[] keywords = CodeParser.getAllProperties();
+    	KeywordInfo info = keywordInfo;
+    	if (info == null || !info.isValidFor(keywords)) {
+    		keywordInfo = info = new KeywordInfo(keywords);
     	}
-
-    	return varNames;
+    	return info;
     }
+    // END KGU#851 2020-04-13
 
     /**
      * Extract all variable names of the entire program and store them in
@@ -3047,7 +3574,10 @@ public class Root extends Element {
                     // START KGU#39 2015-10-16
             }
             
-            varNames.add(getVarNames(lines, this.constants));
+            // START KGU#851 2020-04-13: Keep the line memo lean
+            //varNames.add(getVarNames(lines, this.constants));
+            varNames.add(getVarNames(lines, this.constants, _entireProg && _ele == this));
+            // END KGU#851 2020-04-13
 
             varNames = varNames.reverse();	// FIXME (KGU): What is intended by reversing?
             if (_entireProg) {
@@ -3305,14 +3835,17 @@ public class Root extends Element {
         //}
 
         //return resultVars;
-        if (parameterList == null) {
-            // Method fills parameterList
-            collectParameters(null, null, null);
-        }
-        if (parameterList == null) {
-        	return new ArrayList<Param>();
-        }
-        return parameterList;
+        // START KGU#870 2020-05-02: The list is part of the cached signature now
+        //if (parameterList == null) {
+        //    // Method fills parameterList
+        //    collectParameters(null, null, null);
+        //}
+        //if (parameterList == null) {
+        //	return new ArrayList<Param>();
+        //}
+        //return parameterList;
+        return getSignature().params;
+        // END KGU#870 2020-05-02
         // END KGU#371 2019-03-07
     }    
     // END BFI 2015-12-10
@@ -4095,9 +4628,17 @@ public class Root extends Element {
 			if ((!this.getMethodName().equals(subName) || subArgCount != this.getParameterNames().count()))
 			{
 				int count = 0;	// Number of matching routines
-				if (Arranger.hasInstance()) {
+				// START KGU#850 2020-05-07: Background analyses provide a pool of their own
+				//if (Arranger.hasInstance()) {
+				//	count = Arranger.getInstance().findRoutinesBySignature(subName, subArgCount, this).size();
+				//}
+				if (specialRoutinePool != null) {
+					count = specialRoutinePool.findRoutinesBySignature(subName, subArgCount, this).size();
+				}
+				else if (Arranger.hasInstance()) {
 					count = Arranger.getInstance().findRoutinesBySignature(subName, subArgCount, this).size();
 				}
+				// END KGU#850 2020-05-07
 				if (count == 0) {
 					//error  = new DetectedError("The called subroutine «<routine_name>(<arg_count>)» is currently not available.",(Element) _node.getElement(i));
 					addError(_errors, new DetectedError(errorMsg(Menu.error15_2, subName + "(" + subArgCount + ")"), ele), 15);
@@ -4829,9 +5370,17 @@ public class Root extends Element {
 		for (int i = 0; i < includeList.count(); i++) {
 			String name = includeList.get(i);
 			int count = 0;	// Number of matching routines
-			if (Arranger.hasInstance()) {
+			// START KGU#850 2020-05-07: Background analyses provide a pool of their own
+			//if (Arranger.hasInstance()) {
+			//	count = Arranger.getInstance().findIncludesByName(name, this).size();
+			//}
+			if (specialRoutinePool != null) {
+				count = specialRoutinePool.findIncludesByName(name, this).size();
+			}
+			else if (Arranger.hasInstance()) {
 				count = Arranger.getInstance().findIncludesByName(name, this).size();
 			}
+			// END KGU#850 2020-05-07
 			if (count == 0) {
 				//error  = new DetectedError("An includable diagram «<diagram_name>» is currently not available.", this);
 				addError(_errors, new DetectedError(errorMsg(Menu.error23_5, name), this), 23);
@@ -4853,8 +5402,13 @@ public class Root extends Element {
 				StringList path = _analysedImports.get(name);
 				addError(_errors, new DetectedError(errorMsg(Menu.error23_3, new String[]{name, path.concatenate("<-")}), this), 23);    									
 			}
-			else if (Arranger.hasInstance()) {
-				Vector<Root> roots = Arranger.getInstance().findIncludesByName(name, this);
+			// START KGU#850 2020-05-07: Background analyses provide a pool of their own
+			//else if (Arranger.hasInstance()) {
+			//	Vector<Root> roots = Arranger.getInstance().findIncludesByName(name, this);
+			else if (specialRoutinePool != null || Arranger.hasInstance()) {
+				IRoutinePool pool = specialRoutinePool != null ? specialRoutinePool : Arranger.getInstance();
+				Vector<Root> roots = pool.findIncludesByName(name, this);
+			// END KGU#850 2020-05-07
 				if (roots.size() == 1) {
 					Root importedRoot = roots.get(0);
 					Vector<DetectedError> impErrors = new Vector<DetectedError>();
@@ -5257,20 +5811,41 @@ public class Root extends Element {
      */
     public int getMinParameterCount()
     {
-    	StringList params = new StringList();
-    	StringList defaults = new StringList();
-    	collectParameters(params, null, defaults);
-    	int minParams = params.count();
-    	while (minParams > 0) {
-    		if (defaults.get(minParams-1) != null) {
-    			minParams--;
-    		}
-    		else {
-    			break;
-    		}
+    	// START KGU#870 2020-05-02: Retrieved from the cached signature
+    	//StringList params = new StringList();
+    	//StringList defaults = new StringList();
+    	//collectParameters(params, null, defaults);
+    	//int minParams = params.count();
+    	//while (minParams > 0) {
+    	//	if (defaults.get(minParams-1) != null) {
+    	//		minParams--;
+    	//	}
+    	//	else {
+    	//		break;
+    	//	}
+    	//}
+    	//return minParams;
+    	if (!this.isSubroutine()) {
+    		return 0;
+    	}
+    	return getSignature().minArgs;
+    	// END KGU#870 2020-05-02
+    }
+    
+    // START KGU#870 2020-05-02
+    /**
+     * @return the maximum number of arguments this subroutine may obtain (i.e. the number of
+     * parameters), 0 if this is not a subroutine.
+     * @see #getMinParameterCount()
+     */
+    public int getMaxParameterCount()
+    {
+    	if (!this.isSubroutine()) {
+    		return 0;
     	}
-    	return minParams;
+    	return getSignature().params.size();
     }
+    // END KGU#870 2020-05-02
     
     /**
      * Checks whether a call with {@code nArgs} arguments may use this routine diagram. If so,
@@ -5281,19 +5856,30 @@ public class Root extends Element {
      */
     public int acceptsArgCount(int nArgs)
     {
-    	StringList params = new StringList();
-    	StringList defaults = new StringList();
-    	collectParameters(params, null, defaults);
-    	int nDefaults = params.count() - nArgs;
-    	for (int i = nArgs; nDefaults > 0 && i < defaults.count(); i++) {
-    		if (defaults.get(i) != null) {
-    			nDefaults--;
-    		}
-    		else {
-    			nDefaults = -1;
-    		}
+    	// START KGU#870 2020-05-02: Use the cached signature without allocations
+    	//StringList params = new StringList();
+    	//StringList defaults = new StringList();
+    	//collectParameters(params, null, defaults);
+    	//int nDefaults = params.count() - nArgs;
+    	//for (int i = nArgs; nDefaults > 0 && i < defaults.count(); i++) {
+    	//	if (defaults.get(i) != null) {
+    	//		nDefaults--;
+    	//	}
+    	//	else {
+    	//		nDefaults = -1;
+    	//	}
+    	//}
+    	//return nDefaults;
+    	if (!this.isSubroutine()) {
+    		return -nArgs;
+    	}
+    	Signature sig = getSignature();
+    	int nDefaults = sig.params.size() - nArgs;
+    	if (nDefaults > 0) {
+    		nDefaults = (nArgs >= sig.minArgs) ? 0 : -1;
     	}
     	return nDefaults;
+    	// END KGU#870 2020-05-02
     }
     // END KGU 2019-03-07
     
@@ -5330,6 +5916,22 @@ public class Root extends Element {
      */
     public String getMethodName(boolean _replaceBlanks)
     // END KGU#456 2017-11-04
+    // START KGU#870 2020-05-02: Retrieved from the cached signature
+    {
+    	String programName = getSignature().name;
+    	if (_replaceBlanks) {
+    		programName = programName.replace(' ', '_');
+    	}
+    	return programName;
+    }
+    
+    /**
+     * Extracts the diagram name from the Root text (without caching).
+     * @return the program/subroutine name with blanks retained
+     * @see #getMethodName(boolean)
+     */
+    private String parseMethodName()
+    // END KGU#870 2020-05-02
     {
     	String rootText = getText().getLongString();
     	int pos;
@@ -5387,9 +5989,11 @@ public class Root extends Element {
     	// START KGU 2015-10-16: Just in case...
     	// START KGU#457 2017-11-04: Issue #454
 		//programName = programName.replace(' ', '_');
-    	if (_replaceBlanks) {
-    		programName = programName.replace(' ', '_');
-    	}
+    	// START KGU#870 2020-05-02: Now done by getMethodName(boolean)
+    	//if (_replaceBlanks) {
+    	//	programName = programName.replace(' ', '_');
+    	//}
+    	// END KGU#870 2020-05-02
     	// END KGU#457 2017-11-04
     	// END KGU 2015-10-16
 
@@ -5406,6 +6010,18 @@ public class Root extends Element {
      * @see #isSubroutine()
      */
     public String getResultType()
+    // START KGU#870 2020-05-02: Retrieved from the cached signature
+    {
+    	return getSignature().resultType;
+    }
+    
+    /**
+     * Extracts the result type from the Root text (without caching).
+     * @return null or a string possibly representing some data type
+     * @see #getResultType()
+     */
+    private String parseResultType()
+    // END KGU#870 2020-05-02
     {
         // FIXME: This is not consistent to getMethodName()!
     	String resultType = null;
@@ -5482,85 +6098,121 @@ public class Root extends Element {
         // END KGU#253 2016-09-22
         if (this.isSubroutine())
         {
+        	// START KGU#870 2020-05-02: The parameter list is always taken from the cached signature
         	// START KGU#371 2019-03-07: Enh. #385 Use cached values if available, otherwise fill cache
-        	if (parameterList != null) {
-        		synchronized(this) {
-        			for (Param param: parameterList) {
-        				if (paramNames != null) {
-        					paramNames.add(param.name);
-        				}
-        				if (paramTypes != null) {
-        					paramTypes.add(param.type);
-        				}
-        				if (paramDefaults != null) {
-        					paramDefaults.add(param.defaultValue);
-        				}
-        			}
+        	//if (parameterList != null) {
+        	//	...
+        	//}
+        	Signature sig = getSignature();
+        	for (Param param: sig.params) {
+        		if (paramNames != null) {
+        			paramNames.add(param.name);
+        		}
+        		if (paramTypes != null) {
+        			paramTypes.add(param.type);
+        		}
+        		if (paramDefaults != null) {
+        			paramDefaults.add(param.defaultValue);
         		}
-        		// Nothing more to do here
-        		// START KGU#836 2020-03-29: Bugfix #841
-        		//return true;
-        		String rootText = this.getText().getLongString();
-        		int posPar1 = rootText.indexOf("(");
-        		return posPar1 >= 0 && rootText.indexOf(")", posPar1+1) >= 0;
-        		// END KGU#836 2020-03-29
-        	}
-        	// Compute the parameter list from scratch, make sure all three lists exist
-        	if (paramNames == null) {
-        		paramNames = new StringList();
-        	}
-        	if (paramTypes == null) {
-        		paramTypes = new StringList();
-        	}
-        	if (paramDefaults == null) {
-        		paramDefaults = new StringList();
         	}
+        	hasParamList = sig.hasParamList;
         	// END KGU#371 2019-03-07
-        	try
+        	// END KGU#870 2020-05-02
+        }
+        // START KGU#253 2016-09-22: Enh. #249 - is there a parameter list?
+        return hasParamList;
+        // START KGU#253 2016-09-22
+    }
+    
+    // START KGU#870 2020-05-02: Signature cache
+    /**
+     * Returns the parsed signature of this diagram, parses the header text again if it has
+     * changed since the last analysis (or the diagram type has).
+     * @return the up-to-date {@link Signature}
+     */
+    private Signature getSignature()
+    {
+    	Signature sig = signature;
+    	StringList header = this.text;
+    	if (sig == null || !sig.matches(header, diagrType)) {
+    		// Take the key before parsing, such that concurrent changes will be detected next time
+    		String[] lines = header.toArray();
+    		DiagramType type = diagrType;
+    		ArrayList<Param> params = new ArrayList<Param>();
+    		boolean hasParamList = false;
+    		if (type == DiagramType.DT_SUB) {
+    			StringList paramNames = new StringList();
+    			StringList paramTypes = new StringList();
+    			StringList paramDefaults = new StringList();
+    			hasParamList = parseParameters(paramNames, paramTypes, paramDefaults);
+    			params.ensureCapacity(paramNames.count());
+    			for (int i = 0; i < paramNames.count(); i++) {
+    				params.add(new Param(paramNames.get(i), paramTypes.get(i), paramDefaults.get(i)));
+    			}
+    		}
+    		sig = new Signature(lines, type, parseMethodName(), params, hasParamList, parseResultType());
+    		signature = sig;
+    	}
+    	return sig;
+    }
+    
+    /**
+     * Extracts parameter names, types, and defaults from the parenthesis content of the Root text
+     * (without caching) and adds them synchronously to the given lists.
+     * @param paramNames - {@link StringList} to be expanded by the found parameter names
+     * @param paramTypes - {@link StringList} to be expanded by the found parameter types
+     * @param paramDefaults - {@link StringList} to be expanded by possible default literals
+     * @return true iff the text contains a parameter list at all
+     * @see #collectParameters(StringList, StringList, StringList)
+     */
+    private boolean parseParameters(StringList paramNames, StringList paramTypes, StringList paramDefaults)
+    {
+        boolean hasParamList = false;
+        try
+        {
+        	String rootText = this.getText().getText();
+        	// START KGU#580 2018-09-24: Bugfix #605 we must not mutilate identifiers ending with "var".
+        	//rootText = rootText.replace("var ", "");
+        	Matcher varMatcher = VAR_PATTERN.matcher(rootText);
+        	if (varMatcher.matches()) {
+        		rootText = varMatcher.replaceAll("$1$2");
+        	}
+        	// END KGU#580
+        	if (rootText.indexOf("(") >= 0)
         	{
-        		String rootText = this.getText().getText();
-        		// START KGU#580 2018-09-24: Bugfix #605 we must not mutilate identifiers ending with "var".
-        		//rootText = rootText.replace("var ", "");
-        		Matcher varMatcher = VAR_PATTERN.matcher(rootText);
-        		if (varMatcher.matches()) {
-        			rootText = varMatcher.replaceAll("$1$2");
-        		}
-        		// END KGU#580
-        		if (rootText.indexOf("(") >= 0)
-        		{
-        			// FIXME: This is getting too simple now!
-        			rootText = rootText.substring(rootText.indexOf("(")+1).trim();
-        			rootText = rootText.substring(0,rootText.lastIndexOf(")")).trim();
-        			// START KGU#253 2016-09-22: Enh. #249 - seems to be a parameter list
-        			hasParamList = true;
-        			// END KGU#253 2016-09-22
-        		}
-        		// START KGU#222 2016-07-28: If there is no parenthesis then we shouldn't add anything...
-        		else
-        		{
-        			rootText = "";
-        		}
-        		// END KGU#222 2016-07-28
-
-        		extractDeclarationsFromList(rootText, paramNames, paramTypes, paramDefaults);
-        		// START KGU#371 2019-03-07: Enh. #395 Use cached values if available, otherwise fill cache
-        		parameterList = new ArrayList<Param>(paramNames.count());
-        		synchronized(this) {
-        			for (int i = 0; i < paramNames.count(); i++) {
-        				parameterList.add(new Param(paramNames.get(i), paramTypes.get(i), paramDefaults.get(i)));
-        			}
-        		}
-        		// END KGU#371 2019-03-07
+        		// FIXME: This is getting too simple now!
+        		rootText = rootText.substring(rootText.indexOf("(")+1).trim();
+        		rootText = rootText.substring(0,rootText.lastIndexOf(")")).trim();
+        		// START KGU#253 2016-09-22: Enh. #249 - seems to be a parameter list
+        		hasParamList = true;
+        		// END KGU#253 2016-09-22
         	}
-        	catch (Exception ex)
+        	// START KGU#222 2016-07-28: If there is no parenthesis then we shouldn't add anything...
+        	else
         	{
-        		logger.logp(Level.WARNING, getClass().getName(), "collectParameters", ex.getMessage());
+        		rootText = "";
         	}
+        	// END KGU#222 2016-07-28
+
+        	extractDeclarationsFromList(rootText, paramNames, paramTypes, paramDefaults);
+        	// START KGU#870 2020-05-02: Caching is done by getSignature() now
+        	// START KGU#371 2019-03-07: Enh. #395 Use cached values if available, otherwise fill cache
+        	//parameterList = new ArrayList<Param>(paramNames.count());
+        	//synchronized(this) {
+        	//	for (int i = 0; i < paramNames.count(); i++) {
+        	//		parameterList.add(new Param(paramNames.get(i), paramTypes.get(i), paramDefaults.get(i)));
+        	//	}
+        	//}
+        	// END KGU#371 2019-03-07
+        	// END KGU#870 2020-05-02
+        }
+        catch (Exception ex)
+        {
+        	logger.logp(Level.WARNING, getClass().getName(), "parseParameters", ex.getMessage());
         }
-        // START KGU#253 2016-09-22: Enh. #249 - is there a parameter list?
         return hasParamList;
-        // START KGU#253 2016-09-22
     }
+    // END KGU#870 2020-05-02
     // END KGU#78 2015-11-25
     
     // START KGU#305 2016-12-12: Enh. #305 - representaton fo a Root list
@@ -5580,7 +6232,10 @@ public class Root extends Element {
     	if (this.isSubroutine()) {
     		// START KGU#371 2019-03-07: Enh. #385: Default parameter values supported
     		//presentation += "(" + this.getParameterNames().count() + ")";
-    		int maxArgs = this.getParameterNames().count();
+    		// START KGU#870 2020-05-02
+    		//int maxArgs = this.getParameterNames().count();
+    		int maxArgs = this.getMaxParameterCount();
+    		// END KGU#870 2020-05-02
     		int minArgs = this.getMinParameterCount();
     		presentation += "(" + ((minArgs < maxArgs) ? minArgs + "-" : "" ) + maxArgs + ")";
     		// END KGU#371 2019-03-07
@@ -5639,11 +6294,19 @@ public class Root extends Element {
     
     public Vector<DetectedError> analyse()
     {
-        structorizerKeywords.clear();
-        structorizerKeywords.add("global");
+        // START KGU#850 2020-04-12: Other threads may be analysing concurrently
+        //structorizerKeywords.clear();
+        //structorizerKeywords.add("global");
+        //for (String keyword: CodeParser.getAllProperties()) {
+        //    structorizerKeywords.add(keyword);
+        //}
+        Set<String> keywords = new HashSet<String>();
+        keywords.add("global");
         for (String keyword: CodeParser.getAllProperties()) {
-            structorizerKeywords.add(keyword);
+            keywords.add(keyword);
         }
+        structorizerKeywords = keywords;
+        // END KGU#850 2020-04-12
 
         this.retrieveVarNames();	// also fills this.constants if not already done
         //System.out.println(this.variables);
@@ -5900,11 +6563,23 @@ public class Root extends Element {
 	/**
 	 * Initializes the lookup tables for the identifier check 19 of analyser 
 	 */
-	private static final void initialiseKeyTables()
+	// START KGU#850 2020-04-12: Parallel analysis - tables are only published when complete
+	//private static final void initialiseKeyTables()
+	private static final synchronized void initialiseKeyTables()
+	// END KGU#850 2020-04-12
 	{
+		// START KGU#850 2020-04-12: Another thread may have done it meanwhile
+		if (caseAwareKeywords != null && caseUnawareKeywords != null) {
+			return;
+		}
+		// END KGU#850 2020-04-12
 		// Establish the primary lookup tables
-		caseAwareKeywords = new Hashtable<String, StringList>();
-		caseUnawareKeywords = new Hashtable<String, StringList>();
+		// START KGU#850 2020-04-12: Parallel analysis - tables are only published when complete
+		//caseAwareKeywords = new Hashtable<String, StringList>();
+		//caseUnawareKeywords = new Hashtable<String, StringList>();
+		Hashtable<String, StringList> caseAwareKeywords = new Hashtable<String, StringList>();
+		Hashtable<String, StringList> caseUnawareKeywords = new Hashtable<String, StringList>();
+		// END KGU#850 2020-04-12
 		// Now add the table entries for every generator
 		for (GENPlugin plugin: Menu.generatorPlugins)
 		{
@@ -5942,6 +6617,10 @@ public class Root extends Element {
 				}
 			}
 		}
+		// START KGU#850 2020-04-12: Parallel analysis - publish the complete tables
+		Root.caseUnawareKeywords = caseUnawareKeywords;
+		Root.caseAwareKeywords = caseAwareKeywords;
+		// END KGU#850 2020-04-12
 		// Now buy the GUI some time to accomplish its initialisation
 //		try {
 //			Thread.sleep(500);
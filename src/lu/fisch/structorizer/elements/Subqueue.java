@@ -59,6 +59,8 @@ package lu.fisch.structorizer.elements;
  *      Kay Gürtzig     2018.09.11      Issue #508: Font height retrieval concentrated to one method on Element
  *      Kay Gürtzig     2018.10.26      Enh. #619: Method getMaxLineLength() implemented
  *      Kay Gürtzig     2019-03-13      Issues #518, #544, #557: Element drawing now restricted to visible rect.
+ *      Kay Gürtzig     2020-04-14      KGU#852: getElementByCoord() locates the hit child by binary search
+ *      Kay Gürtzig     2020-05-07      KGU#852: Binary search result advanced to the last of equal child offsets
  *
  ******************************************************************************************************
  *
@@ -66,6 +68,9 @@ package lu.fisch.structorizer.elements;
  *
  ******************************************************************************************************///
 
+// START KGU#852 2020-04-14
+import java.util.Collections;
+// END KGU#852 2020-04-14
 import java.util.Date;
 import java.util.Vector;
 
@@ -358,6 +363,12 @@ public class Subqueue extends Element implements IElementSequence {
 	public Element getElementByCoord(int _x, int _y, boolean _forSelection)
 	{
 		Element res = super.getElementByCoord(_x, _y, _forSelection);
+		// START KGU#852 2020-04-14: For mere hit tests, the sorted child offsets form a search index
+		if (res != null && !_forSelection && this.y0Children.size() == children.size())
+		{
+			return getChildByCoord(_x, _y, res);
+		}
+		// END KGU#852 2020-04-14
     	// If this element isn't hit then there is no use searching the substructure
 		if (res != null || _forSelection)
 		{
@@ -382,6 +393,56 @@ public class Subqueue extends Element implements IElementSequence {
 		return res;
 	}
 	
+	// START KGU#852 2020-04-14
+	/**
+	 * Retrieves the most specific element containing the local coordinate
+	 * {@code (_x, _y)} among the children without modifying selection flags.<br/>
+	 * Since the children are stacked without gaps, their offsets {@link #y0Children} (as
+	 * provided by {@link #prepareDraw(Canvas)}) are ascending, so the last child starting
+	 * at or above {@code _y} can be found by binary search. Only this child and its upper
+	 * neighbours still reaching {@code _y} (i.e. at a common border) are inspected, the
+	 * result is the same as with a sequential search over all children.
+	 * @param _x - local x coordinate
+	 * @param _y - local y coordinate
+	 * @param _default - the element to be returned if no child is hit
+	 * @return the hit (sub-)element or {@code _default}
+	 */
+	private Element getChildByCoord(int _x, int _y, Element _default)
+	{
+		Vector<Integer> y0Children = this.y0Children;	// Might be replaced concurrently
+		int i = Collections.binarySearch(y0Children, _y);
+		if (i < 0) {
+			// Index of the last child starting above _y
+			i = -i - 2;
+		}
+		// START KGU#852 2020-05-07: Among equal offsets (zero-height hidden declarations), the search may have hit any
+		else {
+			while (i + 1 < y0Children.size() && y0Children.get(i + 1) <= _y) {
+				i++;
+			}
+		}
+		i = Math.min(i, children.size() - 1);
+		// END KGU#852 2020-05-07
+		// With several hits at a border, the sequential search would have returned the last one
+		for (; i >= 0 && i < children.size(); i--)
+		{
+			Element child = children.get(i);
+			int yOff = y0Children.get(i);
+			Element sel = child.getElementByCoord(_x, _y - yOff, false);
+			if (sel != null)
+			{
+				return sel;
+			}
+			if (yOff + child.rect.bottom < _y)
+			{
+				// This child and all its predecessors end above _y
+				break;
+			}
+		}
+		return _default;
+	}
+	// END KGU#852 2020-04-14
+	
 	// START KGU#183 2016-04-24: Issue #169 
 	/* (non-Javadoc)
 	 * @see lu.fisch.structorizer.elements.Element#findSelected()
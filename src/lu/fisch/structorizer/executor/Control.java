@@ -70,6 +70,8 @@ package lu.fisch.structorizer.executor;
  *      Kay Gürtzig     2019-11-21      Enh. #739: Mnemonic display and ComboBox editing for enumerator values
  *                                      Editability check bug fixed in the table model fixed
  *      Kay Gürtzig     2019-11-25      Enh. #739: Protection against pending EnumeratorCellEditor on stop
+ *      Kay Gürtzig     2020-04-19      KGU#857: Row-wise variable display update, truncated values not editable
+ *      Kay Gürtzig     2020-05-07      KGU#857: Pending rows scrolled into view are refreshed
  *
  ******************************************************************************************************
  *
@@ -85,6 +87,8 @@ import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
@@ -92,6 +96,9 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -375,7 +382,10 @@ public class Control extends LangFrame implements PropertyChangeListener, ItemLi
             	}
             	else if (column > 1) {
             		String name = (String)this.getValueAt(row, 0);
-            		return !Executor.getInstance().isConstant(name);
+            		// START KGU#857 2020-04-19: Truncated value strings must not be edited
+            		//return !Executor.getInstance().isConstant(name);
+            		return !Executor.getInstance().isConstant(name) && !truncatedVars.contains(name);
+            		// END KGU#857 2020-04-19
             	}
             	return false;
             	// END KGU#443 2017-10-31
@@ -393,6 +403,17 @@ public class Control extends LangFrame implements PropertyChangeListener, ItemLi
         tblVar.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
         // END KGU#443 2017-10-16
         jScrollPane1.setViewportView(tblVar);
+        // START KGU#857 2020-05-07: Rows scrolled into view may still lack their current values
+        jScrollPane1.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent evt) {
+                Executor executor = Executor.getInstance();
+                if (executor != null) {
+                    executor.refreshVisibleVariables();
+                }
+            }
+        });
+        // END KGU#857 2020-05-07
 
         // START KGU#287 2016-11-02: Issue #81 (DPI awareness workarounds)
         double scaleFactor = Double.valueOf(Ini.getInstance().getProperty("scaleFactor","1"));
@@ -804,13 +825,24 @@ public class Control extends LangFrame implements PropertyChangeListener, ItemLi
 			if (val != null)
 			{
 				try {
-					val = Executor.getInstance().evaluateExpression((String)val, true, false);
+					// START KGU#857 2020-04-19: A truncated value string must not be evaluated
+					//val = Executor.getInstance().evaluateExpression((String)val, true, false);
+					if (truncatedVars.contains(varName)) {
+						val = Executor.getInstance().evaluateExpression(varName, true, false);
+					}
+					else {
+						val = Executor.getInstance().evaluateExpression((String)val, true, false);
+					}
+					// END KGU#857 2020-04-19
 					if (val != null) {
 						val = editCompoundValue(varName, val,
 								!Executor.getInstance().isConstant(varName),
 								(JButton)evtSource);
 						if (val != null) {
 							tm.setValueAt(Executor.prepareValueForDisplay(val, null), rowNr, 2);
+							// START KGU#857 2020-04-19: The cell holds the complete value string now
+							truncatedVars.remove(varName);
+							// END KGU#857 2020-04-19
 						}
 					}
 				} catch (EvalError er) {
@@ -903,6 +935,88 @@ public class Control extends LangFrame implements PropertyChangeListener, ItemLi
         // ENDKGU#608 2018-12-03
     }
 
+	// START KGU#857 2020-04-19: Incremental variable display
+	/**
+	 * Updates the variable display row-wise: the table is cut or extended to {@code nVars}
+	 * rows, only the rows contained in {@code rowUpdates} are (re-)filled.
+	 * @param nVars - the number of variables (rows)
+	 * @param rowUpdates - maps row indices to pairs of variable name and value string; a null
+	 * value string means that just the name is to be set (the value will follow later)
+	 * @param truncated - names of the updated variables with truncated value strings
+	 */
+	public void updateVars(int nVars, Map<Integer, String[]> rowUpdates, Set<String> truncated)
+	{
+		tblVar.setGridColor(Color.LIGHT_GRAY);
+		tblVar.setShowGrid(true);
+		DefaultTableModel tm = (DefaultTableModel) tblVar.getModel();
+		varUpdates.clear();
+		ImageIcon pulldownIcon = IconLoader.getIcon(80);
+		int nRows = tm.getRowCount();
+		if (nRows > nVars) {
+			tm.setRowCount(nVars);
+			nRows = nVars;
+		}
+		for (int i = nRows; i < nVars; i++) {
+			String[] varEntry = rowUpdates.get(i);
+			String name = varEntry == null ? "" : varEntry[0];
+			tm.addRow(new Object[]{name, null, ""});
+		}
+		for (Map.Entry<Integer, String[]> update: rowUpdates.entrySet()) {
+			int row = update.getKey();
+			String[] varEntry = update.getValue();
+			if (row >= nVars) {
+				continue;
+			}
+			if (varEntry[1] == null) {
+				tm.setValueAt(varEntry[0], row, 0);
+				tm.setValueAt(null, row, 1);
+				tm.setValueAt("", row, 2);
+			}
+			else {
+				truncatedVars.remove(varEntry[0]);
+				if (truncated.contains(varEntry[0])) {
+					truncatedVars.add(varEntry[0]);
+				}
+				Object[] rowData = makeVarListRow(varEntry, pulldownIcon);
+				for (int j = 0; j < rowData.length; j++) {
+					tm.setValueAt(rowData[j], row, j);
+				}
+			}
+		}
+		if (!rowUpdates.isEmpty()) {
+			try {
+				ValuePresenter.optimizeColumnWidth(tblVar, 0);
+			}
+			catch (ArrayIndexOutOfBoundsException ex) {
+				// Just ignore it - it is caused by races.
+			}
+			tblVar.repaint();
+		}
+	}
+
+	/**
+	 * @return the indices of the first and the last visible row of the variable display
+	 * (the latter may exceed the row count if there is space for more rows); an empty range
+	 * if the display isn't visible.
+	 */
+	public int[] getVisibleVarRows()
+	{
+		Rectangle view = tblVar.getVisibleRect();
+		if (!this.isVisible() || view.isEmpty()) {
+			return new int[]{0, -1};
+		}
+		int first = tblVar.rowAtPoint(view.getLocation());
+		int last = tblVar.rowAtPoint(new Point(view.x, view.y + view.height - 1));
+		if (first < 0) {
+			first = 0;
+		}
+		if (last < 0) {
+			last = Integer.MAX_VALUE;
+		}
+		return new int[]{first, last};
+	}
+	// END KGU#857 2020-04-19
+
 	/**
 	 * @param varEntry - String array containing the variable name and a value string
 	 * @param pulldownIcon - the icon to be used for a pull-down button
@@ -1120,6 +1234,10 @@ public class Control extends LangFrame implements PropertyChangeListener, ItemLi
 
     // START KGU#68 2015-11-06: Register variable value editing events
     private final ConcurrentMap<String, Object> varUpdates = new ConcurrentHashMap<String, Object>();
+    // START KGU#857 2020-04-19: Incremental variable display
+    /** Names of the variables the value strings of which had to be truncated for display */
+    private final Set<String> truncatedVars = java.util.Collections.synchronizedSet(new HashSet<String>());
+    // END KGU#857 2020-04-19
 
     @Override
     public void propertyChange(PropertyChangeEvent pcEv) {
@@ -192,6 +192,13 @@ package lu.fisch.structorizer.executor;
  *                                      Fixed #823 (defective execution of assignments in some cases)
  *      Kay Gürtzig     2020-02-21      Issue #826: Raw input is to cope with backslashes as in Windows file paths
  *      Kay Gürtzig     2020-04-04      Issue #829 Control should not automatically close after debugging [mawa290669]
+ *      Kay Gürtzig     2020-04-18      KGU#856: Step-wise diagram refreshs coalesced via Diagram.redrawExecution()
+ *      Kay Gürtzig     2020-04-19      KGU#857: Incremental variable display, value strings truncated and built faster
+ *      Kay Gürtzig     2020-05-03      KGU#871: Resolved subroutines and includables cached per run (routineCache),
+ *                                      invalidated on routine pool changes
+ *      Kay Gürtzig     2020-05-07      KGU#857: Complete variable display on termination and on scrolling while
+ *                                      paused, container values compared by their bounded display text,
+ *                                      truncation reported by appendValueForDisplay() instead of length guess
  *
  ******************************************************************************************************
  *
@@ -335,6 +342,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -349,6 +357,7 @@ import javax.swing.SwingUtilities;
 import lu.fisch.diagrcontrol.*;
 import lu.fisch.diagrcontrol.DiagramController.FunctionException;
 import lu.fisch.structorizer.archivar.IRoutinePool;
+import lu.fisch.structorizer.archivar.IRoutinePoolListener;
 import lu.fisch.structorizer.arranger.Arranger;
 import lu.fisch.structorizer.elements.*;
 import lu.fisch.structorizer.gui.Diagram;
@@ -908,9 +917,58 @@ public class Executor implements Runnable
 	// END KGU#376 2017-04-20
 	// START KGU#2 (#9) 2015-11-13: We need a stack of calling parents
 	private Stack<ExecutionContext> callers = new Stack<ExecutionContext>();
+	// START KGU#857 2020-04-19: Incremental variable display
+	/** Maximum length of value strings in the variable display of the Control (longer ones are truncated) */
+	private static final int MAX_DISPLAY_LENGTH = 500;
+	/** Marks the cut-off position of truncated value strings */
+	private static final String DISPLAY_ELLIPSIS = "\u2026";
+	/**
+	 * Remembers what a row of the variable display of the Control was last updated with
+	 * in order to find out the rows to be refreshed.
+	 */
+	private static final class DisplayedVariable {
+		String name;
+		/** The value object (for identity or equality check) */
+		Object value;
+		// START KGU#857 2020-05-07: Hashing the contents cost O(n) per step
+		///** Content hash for arrays and records, which might have been modified in place */
+		//int contentHash;
+		/** The (possibly truncated) value string last sent to the display, or null */
+		String shownText;
+		// END KGU#857 2020-05-07
+		TypeMapEntry type;
+		/** Whether the row shows the current value */
+		boolean isShown;
+	}
+	/** The execution context the variable display refers to */
+	private ExecutionContext displayedContext = null;
+	/** Row states of the variable display in row order */
+	private final ArrayList<DisplayedVariable> displayedVars = new ArrayList<DisplayedVariable>();
+	// END KGU#857 2020-04-19
 	//private Object returnedValue = null;	// KGU#384 2017-04-22 -> context
 	private Vector<IRoutinePool> routinePools = new Vector<IRoutinePool>();
 	// END KGU#2 (#9) 2015-11-13
+	// START KGU#871 2020-05-03: Cache of resolved subroutines and includables
+	/**
+	 * Maps calling diagrams to the diagrams resolved for them by {@link #findDiagramWithSignature(String, int)},
+	 * keyed by {@code <name>#<argument count>} (argument count -2 for includables). Cleared on start
+	 * and whenever one of the {@link #routinePools} reports a change (the {@link ImportInfo} of an
+	 * includable is kept in {@link #importMap} with the resolved diagram as key).
+	 */
+	private final ConcurrentHashMap<Root, ConcurrentHashMap<String, Root>> routineCache =
+			new ConcurrentHashMap<Root, ConcurrentHashMap<String, Root>>();
+	/** The routine pools {@link #routineCacheInvalidator} has been registered with */
+	private final Set<IRoutinePool> observedPools = new HashSet<IRoutinePool>();
+	/** Clears the {@link #routineCache} if the set of routines or their signatures may have changed */
+	private final IRoutinePoolListener routineCacheInvalidator = new IRoutinePoolListener() {
+		@Override
+		public void routinePoolChanged(IRoutinePool _source, int _flags) {
+			if ((_flags & IRoutinePoolListener.RPC_POOL_CHANGED) != 0) {
+				routineCache.clear();
+			}
+		}
+	};
+	// END KGU#871 2020-05-03
 	// START KGU#307 2016-12-12: Issue #307: Keep track of FOR loop variables
 	//private StringList forLoopVars = new StringList();	// KGU#384 2017-04-22 -> context
 	// END KGU#307 2016-12-12
@@ -1423,7 +1481,10 @@ public class Executor implements Runnable
 	{
 		if (delay != 0)
 		{
-			diagram.redraw();
+			// START KGU#856 2020-04-18: Coalesced partial repaint
+			//diagram.redraw();
+			diagram.redrawExecution(null);
+			// END KGU#856 2020-04-18
 			try
 			{
 				Thread.sleep(delay);
@@ -1483,6 +1544,9 @@ public class Executor implements Runnable
 		// START KGU#376 2017-04-22: Enh. #389
 		this.importMap.clear();
 		// END KGU#376 2017-04-22
+		// START KGU#871 2020-05-03
+		this.routineCache.clear();
+		// END KGU#871 2020-05-03
 		// START KGU#307 2016-12-12: Issue #307: Keep track of FOR loop variables
 		//this.forLoopVars.clear();	// KGU#384 2017-04-22 -> new context
 		// END KGU#307 2016-12-12
@@ -1605,6 +1669,13 @@ public class Executor implements Runnable
 			}
 		}
 		// END KGU#2 (#9) 2015-11-14
+		// START KGU#871 2020-05-03: The routine cache must learn about pool changes
+		for (IRoutinePool pool: this.routinePools) {
+			if (this.observedPools.add(pool)) {
+				pool.addChangeListener(this.routineCacheInvalidator);
+			}
+		}
+		// END KGU#871 2020-05-03
 
 		boolean analyserState = diagram.getAnalyser();
 		diagram.setAnalyser(false);
@@ -1803,6 +1874,17 @@ public class Executor implements Runnable
 			diagram.redraw();
 		}
 		// END KGU#430 2017-10-12
+		// START KGU#857 2020-05-07: On termination, the variable display must be complete (e.g. after delay 0)
+		if (this.callers.isEmpty()) {
+			try {
+				updateVariableDisplay(true);
+			}
+			catch (EvalError ex)
+			{
+				logger.log(Level.SEVERE, "Sync Error in updateVariableDisplay(): {0}", ex.toString());
+			}
+		}
+		// END KGU#857 2020-05-07
 		if (!trouble.equals(""))
 		{
 			// START KGU#2 (#9) 2015-11-13
@@ -2600,7 +2682,10 @@ public class Executor implements Runnable
     	Root subroutine = null;
     	// First test whether the current root calls itself recursively
     	Root root = diagram.getRoot();
-    	if (name.equals(root.getMethodName()) && nArgs == root.getParameterNames().count())
+    	// START KGU#871 2020-05-03: Avoid the parameter list copy
+    	//if (name.equals(root.getMethodName()) && nArgs == root.getParameterNames().count())
+    	if (name.equals(root.getMethodName()) && nArgs == root.getMaxParameterCount())
+    	// END KGU#871 2020-05-03
     	{
     		subroutine = root;
     	}
@@ -2620,7 +2705,26 @@ public class Executor implements Runnable
      */
     private Root findDiagramWithSignature(String name, int nArgs) throws Exception
     {
+    	// START KGU#871 2020-05-03: Look up the routine cache first
+    	Root caller = context.root;
+    	String key = name + "#" + nArgs;
+    	ConcurrentHashMap<String, Root> resolved = null;
     	Root diagr = null;
+    	if (caller != null) {
+    		resolved = routineCache.get(caller);
+    		if (resolved == null) {
+    			resolved = new ConcurrentHashMap<String, Root>();
+    			ConcurrentHashMap<String, Root> present = routineCache.putIfAbsent(caller, resolved);
+    			if (present != null) {
+    				resolved = present;
+    			}
+    		}
+    		diagr = resolved.get(key);
+    		if (diagr != null) {
+    			return diagr;
+    		}
+    	}
+    	// END KGU#871 2020-05-03
     	Iterator<IRoutinePool> iter = this.routinePools.iterator();
     	while (diagr == null && iter.hasNext())
     	{
@@ -2666,6 +2770,11 @@ public class Executor implements Runnable
     			// END KGU#125 2016-01-05
     		}
     	}
+    	// START KGU#871 2020-05-03: Failed lookups aren't cached (they will usually abort the execution)
+    	if (diagr != null && resolved != null) {
+    		resolved.put(key, diagr);
+    	}
+    	// END KGU#871 2020-05-03
     	return diagr;
     }
 	// END KGU#2 (#9) 2015-11-13
@@ -2698,7 +2807,10 @@ public class Executor implements Runnable
 		// END KGU#675 2019-03-04
 		if (delay != 0)
 		{
-			diagram.redraw();
+			// START KGU#856 2020-04-18: Coalesced partial repaint
+			//diagram.redraw();
+			diagram.redrawExecution(null);
+			// END KGU#856 2020-04-18
 			try
 			{
 				Thread.sleep(delay);
@@ -2762,7 +2874,10 @@ public class Executor implements Runnable
 			if (!(controller instanceof DelayableDiagramController)) {
 				delay();
 			}
-			diagram.redraw();
+			// START KGU#856 2020-04-18: Coalesced partial repaint
+			//diagram.redraw();
+			diagram.redrawExecution(null);
+			// END KGU#856 2020-04-18
 			try
 			{
 				Thread.sleep(delay);
@@ -3962,40 +4077,165 @@ public class Executor implements Runnable
 	 */
 	private void updateVariableDisplay() throws EvalError
 	{
-		Vector<String[]> vars = new Vector<String[]>();
-		for (int i = 0; i < context.variables.count(); i++)
+		// START KGU#857 2020-04-19: Only refresh the rows of changed variables
+		updateVariableDisplay(false);
+	}
+
+	/**
+	 * Refreshes the rows of the variable display of the Control for all variables whose
+	 * value or type has changed since the last refresh. Values are formatted (with truncation)
+	 * only for rows currently visible unless {@code _complete} is true, the other changed rows
+	 * remain marked as pending.
+	 * @param _complete - whether all pending rows are to be refreshed (e.g. on pause)
+	 * @throws EvalError
+	 */
+	private void updateVariableDisplay(boolean _complete) throws EvalError
+	{
+		//Vector<String[]> vars = new Vector<String[]>();
+		//for (int i = 0; i < context.variables.count(); i++)
+		//{
+		//	String varName = context.variables.get(i);
+		//	// START KGU#67 2015-11-08: We had to find a solution for displaying arrays in a sensible way
+		//	//myVar.add(this.interpreter.get(this.variables.get(i)));
+		//	Object val = context.interpreter.get(varName);
+		//	String valStr = prepareValueForDisplay(val, context.dynTypeMap);
+		//	// START KGU#542 2019-11-20: Enh. #739 - support enumeration types
+		//	(moved to decorateEnumValue())
+		//	// END KGU#542 2019-11-20
+		//	// END KGU#67 2015-11-08
+		//	vars.add(new String[]{varName, valStr});
+		//}
+		//this.control.updateVars(vars);
+		if (context != displayedContext) {
+			// The table shows the variables of another context, so it must be filled anew
+			displayedVars.clear();
+			displayedContext = context;
+		}
+		int nVars = context.variables.count();
+		int[] visibleRows = control.getVisibleVarRows();
+		HashMap<Integer, String[]> rowUpdates = new HashMap<Integer, String[]>();
+		HashSet<String> truncated = new HashSet<String>();
+		for (int i = 0; i < nVars; i++)
 		{
 			String varName = context.variables.get(i);
-			// START KGU#67 2015-11-08: We had to find a solution for displaying arrays in a sensible way
-			//myVar.add(this.interpreter.get(this.variables.get(i)));
 			Object val = context.interpreter.get(varName);
-			String valStr = prepareValueForDisplay(val, context.dynTypeMap);
-			// START KGU#542 2019-11-20: Enh. #739 - support enumeration types
 			TypeMapEntry varType = context.dynTypeMap.get(varName);
-			if (varType != null && varType.isEnum() && val instanceof Integer) {
-				int testVal = ((Integer)val).intValue();
-				String enumStr = decodeEnumValue(testVal, varType);
-				if (enumStr != null) {
-					if (enumStr.equals(varName)) {
-						// This is the enumerator itself (a constant), so append the type name
-						valStr += " (" + varType.typeName + ")";
-					}
-					else {
-						// For variables just holding the enumarator value, just show the name instead
-						valStr = enumStr;
+			// START KGU#857 2020-05-07: Arrays and records may have been modified in place
+			//int contentHash = (val instanceof ArrayList || val instanceof HashMap) ? val.hashCode() : 0;
+			boolean isContainer = val instanceof ArrayList || val instanceof HashMap;
+			// END KGU#857 2020-05-07
+			DisplayedVariable dispVar = null;
+			if (i < displayedVars.size()) {
+				dispVar = displayedVars.get(i);
+			}
+			else {
+				dispVar = new DisplayedVariable();
+				displayedVars.add(dispVar);
+			}
+			boolean isNewName = !varName.equals(dispVar.name);
+			// START KGU#857 2020-05-07: Containers are always suspect, their (bounded) display text decides
+			//if (isNewName || varType != dispVar.type
+			//		|| (contentHash != 0 || dispVar.contentHash != 0
+			//		? val != dispVar.value || contentHash != dispVar.contentHash
+			//		: !(val == null ? dispVar.value == null : val.equals(dispVar.value)))) {
+			if (isNewName || varType != dispVar.type || isContainer
+					|| !(val == null ? dispVar.value == null : val.equals(dispVar.value))) {
+				if (isNewName || varType != dispVar.type) {
+					dispVar.shownText = null;
+				}
+			// END KGU#857 2020-05-07
+				dispVar.name = varName;
+				dispVar.value = val;
+				dispVar.type = varType;
+				dispVar.isShown = false;
+			}
+			if (!dispVar.isShown && (_complete || i >= visibleRows[0] && i <= visibleRows[1])) {
+				// START KGU#857 2020-05-07: The formatter knows best whether it truncated the value
+				//String valStr = prepareValueForDisplay(val, context.dynTypeMap, MAX_DISPLAY_LENGTH);
+				//boolean isTruncated = valStr.length() > MAX_DISPLAY_LENGTH;
+				StringBuilder sb = new StringBuilder();
+				boolean isTruncated = !appendValueForDisplay(sb, val, context.dynTypeMap, MAX_DISPLAY_LENGTH);
+				String valStr = sb.toString();
+				// END KGU#857 2020-05-07
+				valStr = decorateEnumValue(valStr, val, varName, varType);
+				// START KGU#857 2020-05-07: Formatting is bounded, so it is cheaper than hashing a large array
+				if (!valStr.equals(dispVar.shownText)) {
+					if (isTruncated) {
+						truncated.add(varName);
 					}
+					rowUpdates.put(i, new String[]{varName, valStr});
+					dispVar.shownText = valStr;
 				}
+				// END KGU#857 2020-05-07
+				dispVar.isShown = true;
 			}
-			// END KGU#542 2019-11-20
-			// END KGU#67 2015-11-08
-			vars.add(new String[]{varName, valStr});
+			else if (isNewName) {
+				// Row content not visible - just the name, the value is to follow when necessary
+				rowUpdates.put(i, new String[]{varName, null});
+			}
+		}
+		while (displayedVars.size() > nVars) {
+			displayedVars.remove(displayedVars.size() - 1);
 		}
-		this.control.updateVars(vars);
+		this.control.updateVars(nVars, rowUpdates, truncated);
+		// END KGU#857 2020-04-19
 		// START KGU#2 (#9) 2015-11-14
 		this.control.updateCallLevel(this.callers.size());
 		// END#2 (#9) KGU 2015-11-14
 	}
 	// END KGU#20 2015-10-13
+
+	// START KGU#857 2020-05-07
+	/**
+	 * Fills in the rows of the variable display that have become visible (e.g. by scrolling)
+	 * but still lack their current values. Only effective while the execution is paused, since
+	 * otherwise the next step will do it. To be called on the event dispatch thread.
+	 */
+	public void refreshVisibleVariables()
+	{
+		if (running && paus && context != null) {
+			try {
+				updateVariableDisplay(false);
+			}
+			catch (EvalError ex)
+			{
+				logger.log(Level.SEVERE, "Sync Error in updateVariableDisplay(): {0}", ex.toString());
+			}
+		}
+	}
+	// END KGU#857 2020-05-07
+
+	// START KGU#857 2020-04-19: Extracted from updateVariableDisplay()
+	/**
+	 * Replaces the display string {@code _valStr} of value {@code _val} by the enumerator
+	 * name if variable {@code _varName} is of an enumeration type.
+	 * @param _valStr - the prepared value string
+	 * @param _val - the value
+	 * @param _varName - the variable or constant name
+	 * @param _varType - the type of the variable or null
+	 * @return the value string to be displayed
+	 */
+	private String decorateEnumValue(String _valStr, Object _val, String _varName, TypeMapEntry _varType)
+	{
+		// START KGU#542 2019-11-20: Enh. #739 - support enumeration types
+		if (_varType != null && _varType.isEnum() && _val instanceof Integer) {
+			int testVal = ((Integer)_val).intValue();
+			String enumStr = decodeEnumValue(testVal, _varType);
+			if (enumStr != null) {
+				if (enumStr.equals(_varName)) {
+					// This is the enumerator itself (a constant), so append the type name
+					_valStr += " (" + _varType.typeName + ")";
+				}
+				else {
+					// For variables just holding the enumarator value, just show the name instead
+					_valStr = enumStr;
+				}
+			}
+		}
+		// END KGU#542 2019-11-20
+		return _valStr;
+	}
+	// END KGU#857 2020-04-19
 	
 	// START KGU#67/KGU#68 2015-11-08: We have to present values in an editable way (recursively!)
 	// START KGU#526 2018-08-01: Enh. #423 - new optional argument to improve record presentation
@@ -4003,75 +4243,121 @@ public class Executor implements Runnable
 	protected static String prepareValueForDisplay(Object val, HashMap<String, TypeMapEntry> typeMap)
 	// END KGU#526 2018-08-01
 	{
-		String valStr = "";
-		if (val != null)
+		// START KGU#857 2020-04-19: Built with a StringBuilder now (avoids quadratic effort for arrays)
+		return prepareValueForDisplay(val, typeMap, 0);
+	}
+	
+	/**
+	 * Prepares an editable string representation of value {@code val}, arrays and records
+	 * in braces (recursively). If {@code maxLength} is positive then the string will be
+	 * truncated (marked by an ellipsis, with the braces closed) as soon as its length
+	 * exceeds {@code maxLength}. Use {@link #appendValueForDisplay(StringBuilder, Object, HashMap, int)}
+	 * directly if you need to know whether truncation took place.
+	 * @param val - the value to be presented
+	 * @param typeMap - a type map for the component order of records, or null
+	 * @param maxLength - the length limit or 0 for unlimited length
+	 * @return the value string
+	 */
+	protected static String prepareValueForDisplay(Object val, HashMap<String, TypeMapEntry> typeMap, int maxLength)
+	{
+		StringBuilder sb = new StringBuilder();
+		appendValueForDisplay(sb, val, typeMap, maxLength > 0 ? maxLength : Integer.MAX_VALUE);
+		return sb.toString();
+	}
+	
+	/**
+	 * Appends the display string of value {@code val} to {@code sb} as long as the length of
+	 * {@code sb} doesn't exceed {@code limit}.
+	 * @return false if the representation had to be truncated
+	 * @see #prepareValueForDisplay(Object, HashMap, int)
+	 */
+	private static boolean appendValueForDisplay(StringBuilder sb, Object val, HashMap<String, TypeMapEntry> typeMap, int limit)
+	{
+		if (val == null) {
+			return true;
+		}
+		if (sb.length() >= limit) {
+			sb.append(DISPLAY_ELLIPSIS);
+			return false;
+		}
+		boolean complete = true;
+		if (val instanceof ArrayList)
 		{
-			valStr = val.toString();
-			if (val instanceof ArrayList)
+			sb.append("{");
+			ArrayList<?> valArray = (ArrayList<?>)val;
+			for (int j = 0; j < valArray.size() && complete; j++)
 			{
-				valStr = "{";
-				ArrayList<?> valArray = (ArrayList<?>)val;
-				for (int j = 0; j < valArray.size(); j++)
-				{
-					String elementStr = prepareValueForDisplay(valArray.get(j), typeMap);
-					valStr = valStr + ((j > 0) ? ", " : "") + elementStr;
+				if (j > 0) {
+					sb.append(", ");
 				}
-				valStr = valStr + "}";
+				complete = appendValueForDisplay(sb, valArray.get(j), typeMap, limit);
 			}
-			// START KGU#388 2017-09-14: Enh. #423
-			// START KGU#526 2018-08-01: Enh. #423
-			//if (val.getClass().getSimpleName().equals("HashMap")) {
-			if (val instanceof HashMap) {
-			// END KGU#526 2018-08-01
-				// In case we have access to a type map provide the declared component order.
-				HashMap<?, ?> hmVal = (HashMap<?, ?>)val;
-				String typeName = String.valueOf(hmVal.get("§TYPENAME§"));
-				valStr = typeName + "{";
-				// START KGU#526 2018-08-01: Enh. #423 - Try to preserve component order
-				TypeMapEntry typeInfo = null;
-				int j = 0;
-				if (typeMap != null && (typeInfo = typeMap.get(":"+typeName)) != null && typeInfo.isRecord()) {
-					for (String compName: typeInfo.getComponentInfo(true).keySet()) {
-						if (hmVal.containsKey(compName)) {
-							String elementStr = prepareValueForDisplay(hmVal.get(compName), typeMap);
-							valStr += ((j++ > 0) ? ", " : "") + compName + ": " + elementStr;
-						}
+			sb.append("}");
+		}
+		// START KGU#388 2017-09-14: Enh. #423
+		else if (val instanceof HashMap) {
+			// In case we have access to a type map provide the declared component order.
+			HashMap<?, ?> hmVal = (HashMap<?, ?>)val;
+			String typeName = String.valueOf(hmVal.get("§TYPENAME§"));
+			sb.append(typeName);
+			sb.append("{");
+			// START KGU#526 2018-08-01: Enh. #423 - Try to preserve component order
+			TypeMapEntry typeInfo = null;
+			int j = 0;
+			if (typeMap != null && (typeInfo = typeMap.get(":"+typeName)) != null && typeInfo.isRecord()) {
+				for (String compName: typeInfo.getComponentInfo(true).keySet()) {
+					if (hmVal.containsKey(compName) && complete) {
+						sb.append((j++ > 0) ? ", " : "").append(compName).append(": ");
+						complete = appendValueForDisplay(sb, hmVal.get(compName), typeMap, limit);
 					}
 				}
-				else {
-				// END KGU#526 2018-08-01
-					for (Entry<?, ?> entry: hmVal.entrySet())
-					{
-						if (entry.getKey() instanceof String) {
-							String key = (String)entry.getKey();
-							if (!key.startsWith("§")) {
-								String elementStr = prepareValueForDisplay(entry.getValue(), typeMap);
-								valStr += ((j++ > 0) ? ", " : "") + key + ": " + elementStr;
-							}
+			}
+			else {
+			// END KGU#526 2018-08-01
+				for (Entry<?, ?> entry: hmVal.entrySet())
+				{
+					if (entry.getKey() instanceof String && complete) {
+						String key = (String)entry.getKey();
+						if (!key.startsWith("§")) {
+							sb.append((j++ > 0) ? ", " : "").append(key).append(": ");
+							complete = appendValueForDisplay(sb, entry.getValue(), typeMap, limit);
 						}
 					}
-				// START KGU#526 2018-08-01: Enh. #423 (continuation)
 				}
-				// END KGU#526 2018-08-01
-				valStr = valStr + "}";
+			// START KGU#526 2018-08-01: Enh. #423 (continuation)
 			}
-			// END KGU#388 2017-09-14
-			else if (val instanceof String)
-			{
-				// START KGU#285 2016-10-16: Bugfix #276
-				valStr = valStr.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
-				// END KGU#285 2016-10-16
-				valStr = "\"" + valStr + "\"";
+			// END KGU#526 2018-08-01
+			sb.append("}");
+		}
+		// END KGU#388 2017-09-14
+		else if (val instanceof String)
+		{
+			// START KGU#285 2016-10-16: Bugfix #276
+			String valStr = ((String)val).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+			// END KGU#285 2016-10-16
+			sb.append("\"");
+			if (valStr.length() > limit - sb.length()) {
+				sb.append(valStr.substring(0, Math.max(0, limit - sb.length())));
+				sb.append(DISPLAY_ELLIPSIS);
+				complete = false;
 			}
-			else if (val instanceof Character)
-			{
-				// START KGU#285 2016-10-16: Bugfix #276
-				valStr = valStr.replace("\\", "\\\\").replace("'", "\\'").replace("\n", "\\n");
-				// END KGU#285 2016-10-16
-				valStr = "'" + valStr + "'";
+			else {
+				sb.append(valStr);
 			}
+			sb.append("\"");
+		}
+		else if (val instanceof Character)
+		{
+			// START KGU#285 2016-10-16: Bugfix #276
+			String valStr = val.toString().replace("\\", "\\\\").replace("'", "\\'").replace("\n", "\\n");
+			// END KGU#285 2016-10-16
+			sb.append("'").append(valStr).append("'");
+		}
+		else {
+			sb.append(val.toString());
 		}
-		return valStr;
+		return complete;
+		// END KGU#857 2020-04-19
 	}
 	// END KGU#67/KGU#68 2015-11-08
 	
@@ -4270,6 +4556,9 @@ public class Executor implements Runnable
 		stop = false;
 
 		control.updateVars(new Vector<String[]>());
+		// START KGU#857 2020-04-19: The variable display is to be filled anew
+		displayedContext = null;
+		// END KGU#857 2020-04-19
 		
 		running = true;
 		Thread runner = new Thread(this, "Player");
@@ -4284,9 +4573,17 @@ public class Executor implements Runnable
 		boolean atBreakpoint = element.triggersBreakNow();
 		// END KGU#213 2016-08-01
 		// START KGU#276 2016-11-19: Issue #267: in paused mode we should move the focus to the current element
-		if (delay > 0 || step || atBreakpoint) {
+		// START KGU#856 2020-04-18: In animated mode, focus and repaint via the coalescer
+		//if (delay > 0 || step || atBreakpoint) {
+		//	diagram.redraw(element);
+		//}
+		if (step || atBreakpoint) {
 			diagram.redraw(element);
 		}
+		else if (delay > 0) {
+			diagram.redrawExecution(element);
+		}
+		// END KGU#856 2020-04-18
 		// END KGU#276 2016-11-19
 		if (atBreakpoint) {
 			// START KGU#379 2017-04-12: Bugfix #391 moved to waitForNext()
@@ -6145,10 +6442,18 @@ public class Executor implements Runnable
 		try
 		{
 			element.waited = true;
-			if (delay != 0 || step)
-			{
+			// START KGU#856 2020-04-18: Coalesced partial repaint
+			//if (delay != 0 || step)
+			//{
+			//	diagram.redraw();
+			//}
+			if (step) {
 				diagram.redraw();
 			}
+			else if (delay != 0) {
+				diagram.redrawExecution(null);
+			}
+			// END KGU#856 2020-04-18
 
 			// The exit condition is converted and parsed once in advance!
 			// Hence, syntactic errors will be reported before the loop has been started at all.
@@ -6396,10 +6701,18 @@ public class Executor implements Runnable
 				// At this point, we symbolize the time for the incrementing and condition checking
 				element.waited = false;
 				element.executed = true;
-				if (delay != 0 || step)
-				{
+				// START KGU#856 2020-04-18: Coalesced partial repaint
+				//if (delay != 0 || step)
+				//{
+				//	diagram.redraw();
+				//}
+				if (step) {
 					diagram.redraw();
 				}
+				else if (delay != 0) {
+					diagram.redrawExecution(null);
+				}
+				// END KGU#856 2020-04-18
 				checkBreakpoint(element);
 				delay();
 				element.executed = false;
@@ -7116,6 +7429,15 @@ public class Executor implements Runnable
 		// Well, maybe it is better put into the synchronized block?
 		if (getPaus()) {
 			control.setButtonsForPause(true);
+			// START KGU#857 2020-04-19: Now the user may inspect all variables
+			try {
+				updateVariableDisplay(true);
+			}
+			catch (EvalError ex)
+			{
+				logger.log(Level.SEVERE, "Sync Error in updateVariableDisplay(): {0}", ex.toString());
+			}
+			// END KGU#857 2020-04-19
 		}
 		// END KGU#379 2017-04-12
 		synchronized (this)
@@ -43,10 +43,17 @@ package lu.fisch.structorizer.executor;
  *      Kay Gürtzig     2018.03.13      Enh. #519: Font resizing via ctrl + mouse wheel (newboerg's proposal)
  *      Kay Gürtzig     2018.08.03      Enh. #577: New checkbox menu items "menuLogMeta" and "menuLogCalls"
  *      Kay Gürtzig     2018.08.09      Issue #577: New menu item and accelerator for saving the log
+ *      Kay Gürtzig     2020.04.20      KGU#858: Buffered output mode with batched document updates and
+ *                                      line limit (dropped lines spilled to a temporary file)
  *
  ******************************************************************************************************
  *
- *      Comment:  /
+ *      Comment:
+ *      2020-04-20 (Kay Gürtzig)
+ *      - In buffered mode (default), write() just enqueues the fragment. A timer transfers the queued
+ *        fragments to the document at about frame rate, fragments of equal colour merged to a single
+ *        insertion. If the document then exceeds the line limit, the oldest lines are removed en bloc
+ *        and appended to a temporary file, from where save() retrieves them again.
  *         
  ******************************************************************************************************///
 
@@ -60,8 +67,17 @@ import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -76,6 +92,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIDefaults;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.MutableAttributeSet;
@@ -88,6 +105,7 @@ import lu.fisch.structorizer.elements.Element;
 import lu.fisch.structorizer.gui.FontChooser;
 import lu.fisch.structorizer.gui.GUIScaler;
 import lu.fisch.structorizer.gui.IconLoader;
+import lu.fisch.structorizer.io.Ini;
 import lu.fisch.structorizer.io.LogFilter;
 import lu.fisch.structorizer.locales.LangFrame;
 import lu.fisch.structorizer.locales.LangTextHolder;
@@ -126,10 +144,49 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 	public static final LangTextHolder msgErrorFileSave = new LangTextHolder("Error on saving the file: %!");
 	public static final LangTextHolder msgTitleError = new LangTextHolder("Error");
 	// END KGU#569 2018-08-04
+	// START KGU#858 2020-04-20: Buffered output mode
+	/** Default maximum number of lines kept in the text pane in buffered mode */
+	public static final int DEFAULT_MAX_LINES = 10000;
+	/** Interval (ms) for the transfer of buffered output to the document, about the frame rate */
+	private static final int FLUSH_INTERVAL = 1000 / 60;
+	public JCheckBoxMenuItem menuContentBuffered;
+	public JMenuItem menuContentMaxLines;
+	public static final LangTextHolder msgMaxLines = new LangTextHolder("Maximum number of lines to be shown (older lines are kept for saving only):");
+	/** An output fragment waiting to be transferred to the document */
+	private static final class Fragment {
+		final String text;
+		final Color colour;
+		Fragment(String _text, Color _colour)
+		{
+			text = _text;
+			colour = _colour;
+		}
+	}
+	/** Written fragments not yet transferred to the document (buffered mode) */
+	private final ConcurrentLinkedQueue<Fragment> pendingOutput = new ConcurrentLinkedQueue<Fragment>();
+	/** Whether the {@link #flushTimer} is active */
+	private final AtomicBoolean isFlushing = new AtomicBoolean(false);
+	/** Timer transferring the {@link #pendingOutput} to the document */
+	private final Timer flushTimer;
+	/** Maximum number of lines in the document in buffered mode */
+	private int maxLines = DEFAULT_MAX_LINES;
+	/** Temporary file holding the lines dropped from the document, null if there aren't any */
+	private File spillFile = null;
+	private Writer spillWriter = null;
+	/** Lock for modifications of the document content and the spill file in buffered mode */
+	private final Object docLock = new Object();
+	// END KGU#858 2020-04-20
 	
 	public OutputConsole()
 	{
 		initComponents();
+		// START KGU#858 2020-04-20: Buffered output mode
+		flushTimer = new Timer(FLUSH_INTERVAL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				flushOutput();
+			}});
+		// END KGU#858 2020-04-20
 	}
 	
 	/** This method is called from within the constructor to
@@ -168,6 +225,29 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 			}});
 		menuContentSave.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S,Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
 		// END KGU#569 2018-08-03
+		// START KGU#858 2020-04-20: Buffered output mode
+		Ini ini = Ini.getInstance();
+		menuContentBuffered = new JCheckBoxMenuItem("Buffered output");
+		menuContentBuffered.setSelected(ini.getProperty("consoleBuffered", "1").equals("1"));
+		menuContentBuffered.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				if (!menuContentBuffered.isSelected()) {
+					flushOutput();
+				}
+				saveToIni();
+			}});
+		try {
+			maxLines = Math.max(1, Integer.parseInt(ini.getProperty("consoleMaxLines", Integer.toString(DEFAULT_MAX_LINES))));
+		}
+		catch (NumberFormatException ex) {}
+		menuContentMaxLines = new JMenuItem("Line limit ...");
+		menuContentMaxLines.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent evt) {
+				selectMaxLines();
+			}});
+		// END KGU#858 2020-04-20
 
 		JMenuBar menuBar = new JMenuBar();
 		menuBar.add(menuProp);
@@ -178,6 +258,10 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 		menuBar.add(menuContent);
 		menuContent.add(menuContentLogMeta);
 		menuContent.add(menuContentLogCalls);
+		// START KGU#858 2020-04-20: Buffered output mode
+		menuContent.add(menuContentBuffered);
+		menuContent.add(menuContentMaxLines);
+		// END KGU#858 2020-04-20
 		menuContent.addSeparator();
 		menuContent.add(menuContentSave);
 		// END KGU#569 2018-08-03
@@ -223,6 +307,11 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 
 	public void clear()
 	{
+		// START KGU#858 2020-04-20: Buffered output mode
+		pendingOutput.clear();
+		synchronized (docLock) {
+			discardSpillFile();
+		// END KGU#858 2020-04-20
 		try {
 			doc.remove(0, doc.getLength());
 		} catch (BadLocationException ex) {
@@ -231,6 +320,9 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 			Logger.getLogger(getClass().getName()).log(Level.WARNING, "Trouble clearing the content.", ex);
 			// END KGU#484 2018-04-05
 		}
+		// START KGU#858 2020-04-20
+		}
+		// END KGU#858 2020-04-20
 		// START KGU#569 2018-08-04: Enh. #577 - more precise scrolling control
 		textHeight = textPane.getHeight();
 		// END KGU#569 2018-08-04
@@ -253,6 +345,15 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 	 */
 	public void write(String _text, Color _colour)
 	{
+		// START KGU#858 2020-04-20: In buffered mode just enqueue the fragment
+		if (isBuffered()) {
+			pendingOutput.add(new Fragment(_text, _colour));
+			if (isFlushing.compareAndSet(false, true)) {
+				flushTimer.start();
+			}
+			return;
+		}
+		// END KGU#858 2020-04-20
 		try {
 			this.doc.insertString(doc.getLength(), _text, doc.getStyle(_colour.toString()));
 		} catch (BadLocationException e) {
@@ -282,6 +383,16 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 		//rect.y = rect.height - 1;
 		//rect.height = 1;
 		//textPane.scrollRectToVisible(rect);
+		// START KGU#858 2020-04-20: Extracted to a method
+		scrollToEnd();
+	}
+
+	/**
+	 * Scrolls the text pane to the last line if its height has changed.
+	 */
+	private void scrollToEnd()
+	{
+		// END KGU#858 2020-04-20
 		int newHeight = textPane.getHeight();
 		if (newHeight != textHeight) {
 			textHeight = newHeight;
@@ -343,6 +454,169 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 		this.write(_text + "\n", _colour);
 	}
 
+	// START KGU#858 2020-04-20: Buffered output mode
+	/** @return true if written output is to be buffered (and transferred in batches) */
+	public boolean isBuffered()
+	{
+		return (menuContentBuffered != null && menuContentBuffered.isSelected());
+	}
+
+	/**
+	 * Transfers the pending output fragments to the document (merging subsequent fragments
+	 * of equal colour), drops the oldest lines exceeding the line limit and stops the flush
+	 * timer if there is nothing more to do. To be called on the event dispatch thread.
+	 */
+	private void flushOutput()
+	{
+		boolean done = false;
+		synchronized (docLock) {
+			StringBuilder sb = new StringBuilder();
+			Color colour = null;
+			Fragment frag = null;
+			while ((frag = pendingOutput.poll()) != null) {
+				if (colour != null && !colour.equals(frag.colour)) {
+					insertText(sb.toString(), colour);
+					sb.setLength(0);
+				}
+				colour = frag.colour;
+				sb.append(frag.text);
+				done = true;
+			}
+			if (colour != null) {
+				insertText(sb.toString(), colour);
+			}
+			if (done) {
+				trimDocument();
+			}
+		}
+		if (done) {
+			scrollToEnd();
+		}
+		else {
+			// Order matters: a writer may only restart the timer after we stopped it
+			flushTimer.stop();
+			isFlushing.set(false);
+			if (!pendingOutput.isEmpty() && isFlushing.compareAndSet(false, true)) {
+				flushTimer.start();
+			}
+		}
+	}
+
+	/**
+	 * Appends {@code _text} in colour {@code _colour} to the document
+	 */
+	private void insertText(String _text, Color _colour)
+	{
+		try {
+			this.doc.insertString(doc.getLength(), _text, doc.getStyle(_colour.toString()));
+		} catch (BadLocationException ex) {
+			Logger.getLogger(getClass().getName()).log(Level.WARNING, "Inconsistent content with offset " + ex.offsetRequested() + ".", ex);
+		}
+	}
+
+	/**
+	 * Removes the oldest lines from the document as far as they exceed {@link #maxLines}
+	 * and appends them to the spill file.
+	 */
+	private void trimDocument()
+	{
+		javax.swing.text.Element rootElement = doc.getDefaultRootElement();
+		int excess = rootElement.getElementCount() - maxLines;
+		if (excess > 0) {
+			int offset = rootElement.getElement(excess).getStartOffset();
+			try {
+				spill(doc.getText(0, offset));
+				doc.remove(0, offset);
+			} catch (BadLocationException ex) {
+				Logger.getLogger(getClass().getName()).log(Level.WARNING, "Failed to shorten content between 0 and " + offset + ".", ex);
+			}
+		}
+	}
+
+	/**
+	 * Appends the given text to the spill file (which is created on demand).
+	 * @param _text - lines dropped from the document
+	 */
+	private void spill(String _text)
+	{
+		try {
+			if (spillWriter == null) {
+				spillFile = File.createTempFile("structorizer-console", ".log");
+				spillFile.deleteOnExit();
+				spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile), "UTF-8"));
+			}
+			spillWriter.write(_text);
+		}
+		catch (IOException ex) {
+			Logger.getLogger(getClass().getName()).log(Level.WARNING, "Dropped console lines could not be retained.", ex);
+		}
+	}
+
+	/**
+	 * Closes and deletes the spill file if there is one.
+	 */
+	private void discardSpillFile()
+	{
+		if (spillWriter != null) {
+			try {
+				spillWriter.close();
+			} catch (IOException ex) {}
+			spillWriter = null;
+		}
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+
+	/**
+	 * Lets the user specify the maximum number of lines to be kept in the text pane.
+	 */
+	private void selectMaxLines()
+	{
+		Object answer = JOptionPane.showInputDialog(this, msgMaxLines.getText(), menuContentMaxLines.getText(),
+				JOptionPane.QUESTION_MESSAGE, null, null, maxLines);
+		if (answer != null) {
+			try {
+				int newMaxLines = Integer.parseInt(answer.toString().trim());
+				if (newMaxLines > 0) {
+					maxLines = newMaxLines;
+					saveToIni();
+				}
+			}
+			catch (NumberFormatException ex) {}
+		}
+	}
+
+	/**
+	 * Saves the buffering preferences to the ini file.
+	 */
+	private void saveToIni()
+	{
+		try {
+			Ini ini = Ini.getInstance();
+			ini.load();
+			ini.setProperty("consoleBuffered", isBuffered() ? "1" : "0");
+			ini.setProperty("consoleMaxLines", Integer.toString(maxLines));
+			ini.save();
+		}
+		catch (Exception ex) {
+			Logger.getLogger(getClass().getName()).log(Level.WARNING, "Failed to save the console preferences.", ex);
+		}
+	}
+
+	@Override
+	public void dispose()
+	{
+		flushTimer.stop();
+		pendingOutput.clear();
+		synchronized (docLock) {
+			discardSpillFile();
+		}
+		super.dispose();
+	}
+	// END KGU#858 2020-04-20
+
 	// START KGU#569 2018-08-09: Issue #577
 	/**
 	 * Callback method for menu action "Save log ...".
@@ -393,15 +667,36 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 	}
 
 	/**
-	 * Saves the the {@link #doc} content to file {@code targetFile}.
+	 * Saves the the {@link #doc} content (preceded by the lines dropped from it in buffered
+	 * mode) to file {@code targetFile}.
 	 * @param targetFile - file object specifying the saving target. 
 	 * @return in case of errors, a string describing them.
 	 */
 	private String saveToFile(File targetFile) {
 		String problems = "";
 		BTextfile outp = new BTextfile(targetFile.getAbsolutePath());
+		// START KGU#858 2020-04-20: Buffered output mode
+		flushOutput();
+		synchronized (docLock) {
+		// END KGU#858 2020-04-20
 		try {
 			outp.rewrite("UTF-8");
+			// START KGU#858 2020-04-20: First copy the lines spilled to the temporary file
+			if (spillWriter != null) {
+				spillWriter.flush();
+				BufferedReader spillReader = new BufferedReader(new InputStreamReader(new FileInputStream(spillFile), "UTF-8"));
+				try {
+					char[] buffer = new char[8192];
+					int nChars = 0;
+					while ((nChars = spillReader.read(buffer)) > 0) {
+						outp.write(new String(buffer, 0, nChars));
+					}
+				}
+				finally {
+					spillReader.close();
+				}
+			}
+			// END KGU#858 2020-04-20
 			int nleft = doc.getLength();
 			Segment text = new Segment();
 			int offs = 0;
@@ -423,6 +718,9 @@ public class OutputConsole extends LangFrame implements ActionListener, MouseWhe
 				problems += e.toString();
 			}
 		}
+		// START KGU#858 2020-04-20
+		}
+		// END KGU#858 2020-04-20
 		return problems;
 	}
 	// END KGU#569 2018-08-09
@@ -197,6 +197,11 @@ package lu.fisch.structorizer.gui;
  *      Kay Gürtzig     2020-02-16      Issue #815: Combined file filter (StructorizerFilter) preferred in openNSD()
  *      Kay Gürtzig     2020-03-03      Enh. #440: New method to support PapDesigner export
  *      Kay Gürtzig     2020-03-16/17   Enh. #828: New method to export an arrangement group
+ *      Kay Gürtzig     2020-04-17      KGU#855: Tiled painting with cached tile images
+ *      Kay Gürtzig     2020-04-18      KGU#856: Coalesced partial repainting of execution status changes
+ *      Kay Gürtzig     2020-04-24      KGU#862: PNG exports rendered and streamed band by band (PNGBandWriter)
+ *      Kay Gürtzig     2020-04-30      KGU#868: Group export loads lazily loaded Arranger diagrams first
+ *      Kay Gürtzig     2020-05-07      KGU#855: Tile cache capacity adapted to the viewport, Root change version in the tile key
  *
  ******************************************************************************************************
  *
@@ -516,6 +521,34 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 	// START KGU#440 2017-11-06: Bugfix #455 - allow to suppress drawing on initialisation
 	private boolean isInitialized = false;
 	// END KGU#440 2017-11-06
+	
+	// START KGU#855 2020-04-17: Tiled painting - repaint requests invalidate the affected tiles
+	/** Minimum number of retained tile images (256 x 256 each), see {@link #adjustTileCapacity(Rectangle)} */
+	private static final int MAX_TILES = 64;
+	/** Cached images of the diagram drawing, see {@link #redraw(Graphics)} and {@link #repaint(long, int, int, int, int)} */
+	private final TileCache tileCache = new TileCache(TileCache.DEFAULT_TILE_SIZE, MAX_TILES);
+	// START KGU#855 2020-05-07
+	/** Current capacity of the {@link #tileCache} (adapted to the viewport size) */
+	private int tileCapacity = MAX_TILES;
+	// END KGU#855 2020-05-07
+	// END KGU#855 2020-04-17
+	// START KGU#856 2020-04-18: Coalesced repainting during execution
+	/** Assumed display refresh rate (frames per second) if the device doesn't tell it */
+	private static final int DEFAULT_REFRESH_RATE = 60;
+	/** Lock for the execution repaint request fields below */
+	private final Object execRepaintLock = new Object();
+	/** Whether an execution repaint has been requested since the latest one */
+	private boolean execRepaintPending = false;
+	/** Element to be scrolled into view on the next execution repaint, or null */
+	private Element execFocusElement = null;
+	/** Timer performing the requested execution repaints at display rate at most (created on demand) */
+	private javax.swing.Timer execRepaintTimer = null;
+	/** Execution status (1 = executed, 2 = waited) of the elements as painted by the latest execution repaint */
+	private final IdentityHashMap<Element, Integer> execStatusMap = new IdentityHashMap<Element, Integer>();
+	/** The diagram and its bounds {@link #execStatusMap} refers to */
+	private Root execStatusRoot = null;
+	private Rectangle execStatusBounds = null;
+	// END KGU#856 2020-04-18
 
 	// START KGU#634 2019-01-17: Issue #664 - we need this distinction for saveAsNSD() in mode AUTO_SAVE_ON_CLOSE
 	/** Flag allowing the saving methods to decide whether the application is going to close */
@@ -1496,6 +1529,29 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 	 */
 	public void redraw(Element element)
 	{
+		// START KGU#856 2020-04-18: Scrolling code extracted to scrollToElement(Element)
+		scrollToElement(element);
+		redraw();	// This is to make sure the drawing rectangles are correct
+		// START KGU#705 2019-09-24: Enh. 738
+		if (show_CODE_PREVIEW && codeHighlighter != null && element.executed) {
+			codeHighlighter.removeAllHighlights();
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					highlightCodeForElement(element, true);
+				}
+			});
+		}
+		// END KGU#705 2019-09-24
+	}
+
+	/**
+	 * Scrolls the diagram such that the given element gets visible (as far as possible)
+	 * @param element - the element to gain the focus
+	 */
+	private void scrollToElement(Element element)
+	{
+		// END KGU#856 2020-04-18
 		Rectangle rect = element.getRectOffDrawPoint().getRectangle();
 		Rectangle visibleRect = new Rectangle();
 		this.computeVisibleRect(visibleRect);
@@ -1523,18 +1579,20 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 		catch (Exception ex) {
 			logger.warning(ex.toString());
 		}
-		redraw();	// This is to make sure the drawing rectangles are correct
-		// START KGU#705 2019-09-24: Enh. 738
-		if (show_CODE_PREVIEW && codeHighlighter != null && element.executed) {
-			codeHighlighter.removeAllHighlights();
-			SwingUtilities.invokeLater(new Runnable() {
-				@Override
-				public void run() {
-					highlightCodeForElement(element, true);
-				}
-			});
-		}
-		// END KGU#705 2019-09-24
+		// START KGU#856 2020-04-18: Moved to redraw(Element)
+		//redraw();	// This is to make sure the drawing rectangles are correct
+		//// START KGU#705 2019-09-24: Enh. 738
+		//if (show_CODE_PREVIEW && codeHighlighter != null && element.executed) {
+		//	codeHighlighter.removeAllHighlights();
+		//	SwingUtilities.invokeLater(new Runnable() {
+		//		@Override
+		//		public void run() {
+		//			highlightCodeForElement(element, true);
+		//		}
+		//	});
+		//}
+		//// END KGU#705 2019-09-24
+		// END KGU#856 2020-04-18
 	}
 	// END KGU#276 2016-10-09
 
@@ -1612,7 +1670,35 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 		// START KGU#502/KGU#524/KGU#553: 2019-03-29: Issues #518, #544, #557 drawing speed
 		//root.draw(_g, ((JViewport)this.getParent()).getViewRect());
 		Rectangle clipRect = _g.getClipBounds();
-		root.draw(_g, clipRect);
+		// START KGU#855 2020-04-17: Use tile images for the unchanged regions
+		//root.draw(_g, clipRect);
+		if (clipRect != null && _g instanceof Graphics2D) {
+			final Root drawnRoot = root;
+			// START KGU#855 2020-05-07: Capacity adapted to the viewport, key includes the change version
+			adjustTileCapacity(this.getVisibleRect());
+			// END KGU#855 2020-05-07
+			int nRendered = tileCache.paint((Graphics2D)_g, clipRect,
+					// START KGU#855 2020-05-07
+					//Arrays.asList(drawnRoot, Element.getFont()),
+					Arrays.asList(drawnRoot, drawnRoot.getChangeVersion(), Element.getFont()),
+					// END KGU#855 2020-05-07
+					this.getBackground(),
+					new TileCache.TileRenderer() {
+						@Override
+						public void renderTile(Graphics2D _gTile, Rectangle _region) {
+							drawnRoot.drawWithoutNotification(_gTile, new Point(0,0), _region,
+									Element.DrawingContext.DC_STRUCTORIZER, false);
+						}
+					});
+			if (nRendered > 0) {
+				// Something has changed, so tell e.g. the Arranger
+				drawnRoot.notifyUpdaters(null);
+			}
+		}
+		else {
+			root.draw(_g, clipRect);
+		}
+		// END KGU#855 2020-04-17
 		// END KGU#502/KGU#524/KGU#553
 		
 		lu.fisch.graphics.Canvas canvas = new lu.fisch.graphics.Canvas((Graphics2D) _g);
@@ -1650,6 +1736,167 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 		//if (Element.E_TOGGLETC) root.setSwitchTextAndComments(false);
 	}
 
+	// START KGU#855 2020-05-07
+	/**
+	 * Makes sure the tile cache may retain at least twice the number of tiles covering the
+	 * viewport {@code _visible} (such that no tile is evicted while the viewport is painted and
+	 * some tiles around survive scrolling), but not fewer than {@link #MAX_TILES}.
+	 * @param _visible - the visible rectangle of this panel
+	 */
+	private void adjustTileCapacity(Rectangle _visible)
+	{
+		int tileSize = tileCache.getTileSize();
+		// A viewport not aligned to the tile grid overlaps one more column and row
+		int nVisible = (_visible.width / tileSize + 2) * (_visible.height / tileSize + 2);
+		int capacity = Math.max(MAX_TILES, 2 * nVisible);
+		if (capacity != tileCapacity) {
+			tileCache.setCapacity(capacity);
+			tileCapacity = capacity;
+		}
+	}
+	// END KGU#855 2020-05-07
+
+	// START KGU#855 2020-04-17: Tiled painting
+	/**
+	 * Besides scheduling the repaint, discards the cached tile images of the given region
+	 * because a repaint request indicates a change of the drawing there.
+	 * (Mere exposures as on scrolling lead to paint calls without repaint request, such
+	 * that the tiles may be reused.)
+	 */
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height)
+	{
+		if (tileCache != null) {	// The super constructor might already call this method
+			tileCache.invalidate(new Rectangle(x, y, width, height));
+		}
+		super.repaint(tm, x, y, width, height);
+	}
+	// END KGU#855 2020-04-17
+
+	// START KGU#856 2020-04-18: Coalesced repainting during execution
+	/**
+	 * Requests a repaint of the execution status of the diagram (may be called from any thread).
+	 * Unlike {@link #redraw()}, requests are merged and served on the event dispatch thread at
+	 * display refresh rate at most, and only the elements whose executed or waited status has
+	 * changed since the last served request are repainted (unless the layout has changed).
+	 * @param _focus - an element to be scrolled into view, or null
+	 * @see #redraw(Element)
+	 */
+	public void redrawExecution(Element _focus)
+	{
+		synchronized (execRepaintLock) {
+			execRepaintPending = true;
+			if (_focus != null) {
+				execFocusElement = _focus;
+			}
+			if (execRepaintTimer == null) {
+				execRepaintTimer = new javax.swing.Timer(1000 / getRefreshRate(), new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent evt) {
+						flushExecutionRepaint();
+					}
+				});
+				execRepaintTimer.setInitialDelay(0);
+			}
+			if (!execRepaintTimer.isRunning()) {
+				// The timer stops after an idle period, so the rate limit is kept
+				execRepaintTimer.start();
+			}
+		}
+	}
+
+	/**
+	 * Serves the pending execution repaint request if there is one, otherwise stops
+	 * the repaint timer.
+	 * @see #redrawExecution(Element)
+	 */
+	private void flushExecutionRepaint()
+	{
+		Element focus = null;
+		synchronized (execRepaintLock) {
+			if (!execRepaintPending) {
+				execRepaintTimer.stop();
+				return;
+			}
+			execRepaintPending = false;
+			focus = execFocusElement;
+			execFocusElement = null;
+		}
+		if (!this.isInitialized) {
+			return;
+		}
+		Root drawnRoot = root;
+		Rectangle bounds = drawnRoot.prepareDraw(this.getGraphics()).getRectangle();
+		if (focus != null) {
+			scrollToElement(focus);
+			if (show_CODE_PREVIEW && codeHighlighter != null && focus.executed) {
+				codeHighlighter.removeAllHighlights();
+				highlightCodeForElement(focus, true);
+			}
+		}
+		// Runtime data visualisation may alter the drawing of any element on every step
+		boolean fullRedraw = drawnRoot != execStatusRoot || !bounds.equals(execStatusBounds)
+				|| Element.E_COLLECTRUNTIMEDATA;
+		if (fullRedraw) {
+			execStatusMap.clear();
+			execStatusRoot = drawnRoot;
+			execStatusBounds = bounds;
+		}
+		final List<Element> changed = new ArrayList<Element>();
+		drawnRoot.traverse(new IElementVisitor() {
+			@Override
+			public boolean visitPreOrder(Element _ele) {
+				int status = (_ele.executed ? 1 : 0) | (_ele.waited ? 2 : 0);
+				Integer oldStatus = execStatusMap.put(_ele, status);
+				if (oldStatus == null && status != 0 || oldStatus != null && oldStatus != status) {
+					changed.add(_ele);
+				}
+				return true;
+			}
+			@Override
+			public boolean visitPostOrder(Element _ele) {
+				return true;
+			}
+		});
+		if (fullRedraw) {
+			redraw();
+			return;
+		}
+		for (Element ele: changed) {
+			// Elements within collapsed ones aren't drawn - the collapsed ancestor represents them
+			Element shown = ele;
+			for (Element anc = ele.parent; anc != null; anc = anc.parent) {
+				if (anc.isCollapsed(false)) {
+					shown = anc;
+				}
+			}
+			repaint(shown.getRectOffDrawPoint().getRectangle());
+		}
+	}
+
+	/**
+	 * @return the refresh rate of the display device showing this diagram or
+	 * {@link #DEFAULT_REFRESH_RATE} if it is unknown
+	 */
+	private int getRefreshRate()
+	{
+		int rate = DisplayMode.REFRESH_RATE_UNKNOWN;
+		try {
+			GraphicsConfiguration gc = this.getGraphicsConfiguration();
+			if (gc != null) {
+				rate = gc.getDevice().getDisplayMode().getRefreshRate();
+			}
+		}
+		catch (Exception ex) {
+			logger.log(Level.FINE, "Display refresh rate not available", ex);
+		}
+		if (rate <= 0) {
+			rate = DEFAULT_REFRESH_RATE;
+		}
+		return rate;
+	}
+	// END KGU#856 2020-04-18
+
 	@Override
 	public void paintComponent(Graphics g)
 	{
@@ -3319,7 +3566,10 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 	{
 		boolean cond = this.root.hasChanged();
 		if (!cond && any && Arranger.hasInstance()) {
-			Set<Root> roots = Arranger.getInstance().getAllRoots();
+			// START KGU#868 2020-04-30: Unloaded placeholders can't have changed
+			//Set<Root> roots = Arranger.getInstance().getAllRoots();
+			Set<Root> roots = Arranger.getInstance().getAllRoots(false);
+			// END KGU#868 2020-04-30
 			for (Root aRoot: roots) {
 				if (aRoot.hasChanged()) {
 					cond = true;
@@ -5508,75 +5758,103 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 				int rows = Integer.valueOf(JOptionPane.showInputDialog(null, Menu.msgDialogExpRows.getText(), "3"));
 				// END KGU#218 2016-07-28
 
-				BufferedImage image = new BufferedImage(root.width+1,root.height+1,BufferedImage.TYPE_4BYTE_ABGR);
-				// START KGU#221 2016-07-28: Issue #208 Need to achieve transparent background
-				//printAll(image.getGraphics());
-				redraw(image.createGraphics());
-				// END KGU#221 2016-07-28
-				// source: http://answers.yahoo.com/question/index?qid=20110821001157AAcdXVk
-				// source: http://kalanir.blogspot.com/2010/02/how-to-split-image-into-chunks-java.html
+				// START KGU#862 2020-04-24: Render and stream the tiles band by band (bounded memory)
+				//BufferedImage image = new BufferedImage(root.width+1,root.height+1,BufferedImage.TYPE_4BYTE_ABGR);
+				//// START KGU#221 2016-07-28: Issue #208 Need to achieve transparent background
+				////printAll(image.getGraphics());
+				//redraw(image.createGraphics());
+				//// END KGU#221 2016-07-28
+				//// source: http://answers.yahoo.com/question/index?qid=20110821001157AAcdXVk
+				//// source: http://kalanir.blogspot.com/2010/02/how-to-split-image-into-chunks-java.html
+				//try
+				//{
+					//// 1. Load image file into memory
+					////File file = new File("mario.png"); // mario.png in the same working directory
+					////FileInputStream fis = new FileInputStream(file);
+					////BufferedImage image = ImageIO.read(fis);
+
+					//// 2. Decide the number of pieces, and calculate the size of each chunk
+					////int rows = 4;
+					////int cols = 6;
+					//int chunks = rows * cols;
+
+					//int chunkWidth = image.getWidth() / cols;
+					//int chunkHeight = image.getHeight() / rows;
+					//// START KGU#223 2016-07-28: Bugfix #209 - identify the integer division defects
+					//int widthDefect = image.getWidth() % cols;
+					//int heightDefect = image.getHeight() % rows;
+					//// END KGU#223 2016-07-28
+
+					//// 3. Define an Image array to hold image chunks
+					//int count = 0;
+					//BufferedImage imgs[] = new BufferedImage[chunks];
+
+					//// 4. Fill the Image array with split image parts
+					//for (int x = 0; x < rows; x++)
+					//{
+						//for (int y = 0; y < cols; y++)
+						//{
+							////Initialize the image array with image chunks
+							//// START KGU#223 2016-07-28: Bugfix #209
+							//// We must compensate the rounding defects lest the right and lower borders should be cut
+							////imgs[count] = new BufferedImage(chunkWidth, chunkHeight, image.getType());
+							//int tileWidth = chunkWidth + (y < cols-1 ? 0 : widthDefect);
+							//int tileHeight = chunkHeight + (x < rows-1 ? 0 : heightDefect);
+							//imgs[count] = new BufferedImage(tileWidth, tileHeight, image.getType());
+							//// END KGU#223 2016-07-28
+							
+							//// draws the image chunk
+							//Graphics2D gr = imgs[count++].createGraphics();
+							//// START KGU#223 2016-07-28: Bugfix #209
+							////gr.drawImage(image, 0, 0, chunkWidth, chunkHeight, chunkWidth * y, chunkHeight * x, chunkWidth * y + chunkWidth, chunkHeight * x + chunkHeight, null);
+							//// We need to achieve transparent background
+							//gr.drawImage(image, 0, 0, tileWidth, tileHeight, chunkWidth * y, chunkHeight * x, chunkWidth * y + tileWidth, chunkHeight * x + tileHeight, null);
+							//// END KGU#223 2016-07-28
+							//gr.dispose();
+						//}
+					//}
+
+					//// 5. Save mini images into image files
+					//// START KGU#224 2016-07-28: Issue #209 - provide the original base name
+					//file = new File(filename);
+					//filename = file.getAbsolutePath();
+					//// END KGU#224 2016-07-28
+					//for (int i = 0; i < imgs.length; i++)
+					//{
+						//// START KGU#224 2016-07-28: Issue #209 - Better file name coding
+						////File f = new File(file.getAbsolutePath().replace(".png", "-"+i+".png"));
+						//File f = new File(filename.replace(".png", String.format("-%1$02d-%2$02d.png", i / cols, i % cols)));
+						//// END KGU#224 2016-07-28
+						//ImageIO.write(imgs[i], "png", f);
+					//}
+				//}
+				int width = root.width+1;
+				int height = root.height+1;
+				int chunkWidth = width / cols;
+				int chunkHeight = height / rows;
+				int widthDefect = width % cols;
+				int heightDefect = height % rows;
+				file = new File(filename);
+				filename = file.getAbsolutePath();
 				try
 				{
-					// 1. Load image file into memory
-					//File file = new File("mario.png"); // mario.png in the same working directory
-					//FileInputStream fis = new FileInputStream(file);
-					//BufferedImage image = ImageIO.read(fis);
-
-					// 2. Decide the number of pieces, and calculate the size of each chunk
-					//int rows = 4;
-					//int cols = 6;
-					int chunks = rows * cols;
-
-					int chunkWidth = image.getWidth() / cols;
-					int chunkHeight = image.getHeight() / rows;
-					// START KGU#223 2016-07-28: Bugfix #209 - identify the integer division defects
-					int widthDefect = image.getWidth() % cols;
-					int heightDefect = image.getHeight() % rows;
-					// END KGU#223 2016-07-28
-
-					// 3. Define an Image array to hold image chunks
-					int count = 0;
-					BufferedImage imgs[] = new BufferedImage[chunks];
-
-					// 4. Fill the Image array with split image parts
+					PNGBandWriter writer = new PNGBandWriter(PNGBandWriter.DEFAULT_BAND_HEIGHT);
+					PNGBandWriter.BandRenderer renderer = makeExportRenderer();
 					for (int x = 0; x < rows; x++)
 					{
 						for (int y = 0; y < cols; y++)
 						{
-							//Initialize the image array with image chunks
-							// START KGU#223 2016-07-28: Bugfix #209
-							// We must compensate the rounding defects lest the right and lower borders should be cut 
-							//imgs[count] = new BufferedImage(chunkWidth, chunkHeight, image.getType());
 							int tileWidth = chunkWidth + (y < cols-1 ? 0 : widthDefect);
 							int tileHeight = chunkHeight + (x < rows-1 ? 0 : heightDefect);
-							imgs[count] = new BufferedImage(tileWidth, tileHeight, image.getType());
-							// END KGU#223 2016-07-28
-							
-							// draws the image chunk
-							Graphics2D gr = imgs[count++].createGraphics();
-							// START KGU#223 2016-07-28: Bugfix #209
-							//gr.drawImage(image, 0, 0, chunkWidth, chunkHeight, chunkWidth * y, chunkHeight * x, chunkWidth * y + chunkWidth, chunkHeight * x + chunkHeight, null);
-							// We need to achieve transparent background
-							gr.drawImage(image, 0, 0, tileWidth, tileHeight, chunkWidth * y, chunkHeight * x, chunkWidth * y + tileWidth, chunkHeight * x + tileHeight, null);
-							// END KGU#223 2016-07-28
-							gr.dispose();
+							File f = new File(filename.replace(".png", String.format("-%1$02d-%2$02d.png", x, y)));
+							try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f)))
+							{
+								writer.write(out, new Rectangle(chunkWidth * y, chunkHeight * x, tileWidth, tileHeight), renderer);
+							}
 						}
 					}
-
-					// 5. Save mini images into image files
-					// START KGU#224 2016-07-28: Issue #209 - provide the original base name
-					file = new File(filename);
-					filename = file.getAbsolutePath();
-					// END KGU#224 2016-07-28
-					for (int i = 0; i < imgs.length; i++)
-					{
-						// START KGU#224 2016-07-28: Issue #209 - Better file name coding
-						//File f = new File(file.getAbsolutePath().replace(".png", "-"+i+".png"));
-						File f = new File(filename.replace(".png", String.format("-%1$02d-%2$02d.png", i / cols, i % cols)));
-						// END KGU#224 2016-07-28
-						ImageIO.write(imgs[i], "png", f);
-					}     
 				}
+				// END KGU#862 2020-04-24
 				catch(Exception e)
 				{
 					JOptionPane.showMessageDialog(this.getFrame(),
@@ -5601,6 +5879,24 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 		// END KGU#456 2017-11-05
 	}
 
+	// START KGU#862 2020-04-24: Band-wise PNG export
+	/**
+	 * @return a {@link PNGBandWriter.BandRenderer} drawing the requested regions of the
+	 * current diagram for the PNG export
+	 */
+	private PNGBandWriter.BandRenderer makeExportRenderer()
+	{
+		final Root drawnRoot = root;
+		return new PNGBandWriter.BandRenderer() {
+			@Override
+			public void renderBand(Graphics2D _g, Rectangle _region) {
+				drawnRoot.drawWithoutNotification(_g, new Point(0,0), _region,
+						Element.DrawingContext.DC_STRUCTORIZER, false);
+			}
+		};
+	}
+	// END KGU#862 2020-04-24
+
 	/**
 	 * Opens a {@link FileChooser} and performs the image export as PNG file.
 	 * @see #exportPNGmulti()
@@ -5668,15 +5964,22 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 			File file = new File(filename);
 			if (checkOverwrite(file, false) == 0)
 			{
-				BufferedImage bi = new BufferedImage(root.width+1,root.height+1,BufferedImage.TYPE_4BYTE_ABGR);
-				// START KGU#221 2016-07-28: Issue #208 Need to achieve transparent background
-				//printAll(bi.getGraphics());
-				redraw(bi.createGraphics());
-				// END KGU#221 2016-07-28
-				try
+				// START KGU#862 2020-04-24: Render and stream the image band by band (bounded memory)
+				//BufferedImage bi = new BufferedImage(root.width+1,root.height+1,BufferedImage.TYPE_4BYTE_ABGR);
+				//// START KGU#221 2016-07-28: Issue #208 Need to achieve transparent background
+				////printAll(bi.getGraphics());
+				//redraw(bi.createGraphics());
+				//// END KGU#221 2016-07-28
+				//try
+				//{
+					//ImageIO.write(bi, "png", file);
+				//}
+				try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
 				{
-					ImageIO.write(bi, "png", file);
+					new PNGBandWriter(PNGBandWriter.DEFAULT_BAND_HEIGHT).write(out,
+							new Rectangle(0, 0, root.width+1, root.height+1), makeExportRenderer());
 				}
+				// END KGU#862 2020-04-24
 				catch(Exception e)
 				{
 					JOptionPane.showMessageDialog(this.getFrame(),
@@ -6939,6 +7242,11 @@ public class Diagram extends JPanel implements MouseMotionListener, MouseListene
 			}
 			// END KGU#396 2020-04-01
 			
+			// START KGU#868 2020-04-30: Diagrams of large arrangements may not have been loaded yet
+			if (Arranger.hasInstance()) {
+				Arranger.getInstance().loadDiagramBodies(group.getSortedRoots());
+			}
+			// END KGU#868 2020-04-30
 			File exportDir = gen.exportCode(group.getSortedRoots(), groupName, 
 					targetDir,
 					NSDControl.getFrame(),
@@ -80,6 +80,7 @@ package lu.fisch.structorizer.gui;
  *      Kay Gürtzig     2019-09-27      Enh. #738: Click in code preview now selects element and highlights code,
  *                                      double-click opens element editor
  *      Kay Gürtzig     2019-10-02      Enh. #738 code preview font control via Ctrl-Numpad-+/-
+ *      Kay Gürtzig     2020-05-07      KGU#872: repaintArrangerIndex() also refreshes the node labels
  *
  ******************************************************************************************************
  *
@@ -1699,8 +1700,8 @@ public class Editor extends LangPanel implements NSDController, ComponentListene
 //		this.doButtonsLocal();
 //	}
 	/**
-	 * Rebuilds the Arranger index from scratch according to the group information give
-	 * with {@code _groups}.
+	 * Updates the Arranger index according to the group information given with {@code _groups}
+	 * (only the differences are applied, expansion and selection are kept).
 	 * @param _groups - sorted list of all currently held {@link Group} objects
 	 */
 	public void updateArrangerIndex(Vector<Group> _groups)
@@ -1721,9 +1722,13 @@ public class Editor extends LangPanel implements NSDController, ComponentListene
 
 	// START KGU#626 2019-01-04: Enh. #657
 	/**
-	 * Lightweight update of the Arranger Index (just some modified markers to be refreshed)
+	 * Lightweight update of the Arranger Index (just some modified markers and labels,
+	 * e.g. Analyser complaint counts, to be refreshed)
 	 */
 	public void repaintArrangerIndex() {
+		// START KGU#872 2020-05-07: Changed labels must be re-measured
+		arrangerIndex.refreshLabels();
+		// END KGU#872 2020-05-07
 		this.scrollIndex.repaint();
 		this.scrollIndex.validate();
 		this.doButtonsTabbedPane();
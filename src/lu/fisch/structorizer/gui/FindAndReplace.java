@@ -51,6 +51,7 @@ package lu.fisch.structorizer.gui;
  *      Kay Gürtzig     2019-06-13      Bugfix #728 - IRoutinePoolListener inheritance added, now reacts on diagram changes
  *                                      Retrieval and traversal strategies unified (now tree is always completely shown)
  *      Kay Gürtzig     2019-09-29      Enh. #738: Update of code preview ensured after replacements
+ *      Kay Gürtzig     2020-04-30      KGU#868: Bodies of lazily loaded Arranger diagrams loaded before search
  *
  ******************************************************************************************************
  *
@@ -1514,6 +1515,11 @@ public class FindAndReplace extends LangFrame implements IRoutinePoolListener /*
 		Vector<Root> roots;
 		if (scope == Scope.OPENED_DIAGRAMS) {
 			roots = Arranger.getSortedRoots();
+			// START KGU#868 2020-04-30: Placeholders of large arrangements must get their bodies
+			if (!roots.isEmpty() && Arranger.hasInstance()) {
+				Arranger.getInstance().loadDiagramBodies(roots);
+			}
+			// END KGU#868 2020-04-30
 		}
 		else {
 			roots = new Vector<Root>();
@@ -90,6 +90,7 @@ package lu.fisch.structorizer.gui;
  *      Kay Gürtzig     2019-09-20      Issue #463: Startup and shutdown/dispose log entries now with version number
  *      Kay Gürtzig     2019-10-07      Error message fallback for cases of empty exception text ensured (KGU#747)
  *      Kay Gürtzig     2020-02-04      Bugfix #805: Have ini saved recent property changes in create() before loading from ini
+ *      Kay Gürtzig     2020-04-12      KGU#850: Reaction to Arranger notifications about analysis results
  *
  ******************************************************************************************************
  *
@@ -1402,11 +1403,20 @@ public class Mainform  extends LangFrame implements NSDController, IRoutinePoolL
 				//this.editor.updateArrangerIndex(Arranger.getSortedRoots());
 				this.editor.updateArrangerIndex(Arranger.getSortedGroups());
 				// END KGU#626 2019-01-01
-			} else if ((_flags & (IRoutinePoolListener.RPC_POSITIONS_CHANGED | IRoutinePoolListener.RPC_GROUP_COLOR_CHANGED)) != 0) {
+			// START KGU#850 2020-04-12: Also show updated error counts
+			//} else if ((_flags & (IRoutinePoolListener.RPC_POSITIONS_CHANGED | IRoutinePoolListener.RPC_GROUP_COLOR_CHANGED)) != 0) {
+			} else if ((_flags & (IRoutinePoolListener.RPC_POSITIONS_CHANGED | IRoutinePoolListener.RPC_GROUP_COLOR_CHANGED
+					| IRoutinePoolListener.RPC_ANALYSIS_CHANGED)) != 0) {
+			// END KGU#850 2020-04-12
 				this.editor.repaintArrangerIndex();
 			}
 			// START KGU#701 2019-03-30: Issue #718
-			diagram.invalidateAndRedraw();
+			// START KGU#850 2020-04-12: A mere analysis result doesn't invalidate anything
+			//diagram.invalidateAndRedraw();
+			if (_flags != IRoutinePoolListener.RPC_ANALYSIS_CHANGED) {
+				diagram.invalidateAndRedraw();
+			}
+			// END KGU#850 2020-04-12
 			// END KGU#701 2019-03-30
 		}
 		updateAnalysis();
@@ -0,0 +1,223 @@
+/*
+    Structorizer
+    A little tool which you can use to create Nassi-Schneiderman Diagrams (NSD)
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.structorizer.io;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Writes diagram images without GUI (for batch image export).
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-25      First Issue (KGU#863)
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-25 (Kay Gürtzig)
+ *      - The image exports of class Diagram are bound to the GUI (file choosers, selection handling).
+ *        This class renders a diagram to PNG, SVG, PDF, or EMF with an offscreen Graphics2D, such that
+ *        it also works in headless mode. Sizes and margins are the same as with the interactive exports.
+ *      - PNG images are streamed band by band via PNGBandWriter.
+ *      - An instance works on one diagram and is not meant to be shared among threads; different
+ *        instances (for different diagrams) may be used concurrently.
+ *
+ ******************************************************************************************************///
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.freehep.graphicsio.AbstractVectorGraphicsIO;
+import org.freehep.graphicsio.emf.EMFGraphics2D;
+import org.freehep.graphicsio.pdf.PDFGraphics2D;
+import org.freehep.graphicsio.svg.SVGGraphics2D;
+
+import lu.fisch.graphics.Canvas;
+import lu.fisch.graphics.PNGBandWriter;
+import lu.fisch.graphics.Rect;
+import lu.fisch.structorizer.elements.Element;
+import lu.fisch.structorizer.elements.Root;
+
+/**
+ * Renders a diagram as image file of one of the {@link #FORMATS} without requiring a GUI.
+ * @author Kay Gürtzig
+ */
+public class DiagramImageWriter {
+
+	/** The supported image formats (file name extensions) */
+	public static final String[] FORMATS = {"png", "svg", "pdf", "emf"};
+
+	/** Margin around the diagram in vector images (as with the interactive exports) */
+	private static final int VECTOR_MARGIN = 6;
+
+	private final Root root;
+	/** Whether the layout of the first rendering is to be retained for all formats */
+	private final boolean reuseLayout;
+	private boolean isLaidOut = false;
+
+	/**
+	 * Creates an image writer for the given diagram.
+	 * @param _root - the diagram to be rendered
+	 * @param _reuseLayout - if true then the element geometry computed for the first written
+	 * format is used for all subsequent formats, otherwise the layout is recomputed for every
+	 * written file
+	 */
+	public DiagramImageWriter(Root _root, boolean _reuseLayout)
+	{
+		root = _root;
+		reuseLayout = _reuseLayout;
+	}
+
+	/**
+	 * @param _format - a format name (file name extension)
+	 * @return true if {@code _format} is one of the {@link #FORMATS} (ignoring case)
+	 */
+	public static boolean isSupportedFormat(String _format)
+	{
+		for (String format: FORMATS) {
+			if (format.equalsIgnoreCase(_format)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Renders the diagram in the given format to file {@code _file}.
+	 * @param _format - one of the {@link #FORMATS}
+	 * @param _file - the target file (will be overwritten)
+	 * @throws IOException if the format is unsupported or writing failed
+	 */
+	public void write(String _format, File _file) throws IOException
+	{
+		String format = _format.toLowerCase();
+		Rect bounds = ensureLayout();
+		switch (format) {
+		case "png":
+			writePNG(_file, bounds);
+			break;
+		case "svg":
+		{
+			// The SVG is written in platform encoding and has to be converted to UTF-8 (as in Diagram)
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			writeVector(new SVGGraphics2D(buffer, getVectorSize()));
+			try (Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(_file)), StandardCharsets.UTF_8)) {
+				out.write(new String(buffer.toByteArray(), Charset.defaultCharset()));
+			}
+			break;
+		}
+		case "pdf":
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(_file))) {
+				writeVector(new PDFGraphics2D(out, getVectorSize()));
+			}
+			break;
+		case "emf":
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(_file))) {
+				writeVector(new EMFGraphics2D(out, getVectorSize()));
+			}
+			break;
+		default:
+			throw new IOException("Unsupported image format: " + _format);
+		}
+	}
+
+	/**
+	 * Computes the element geometry (with the font metrics of an offscreen image, i.e. as
+	 * for the screen) unless it is to be reused and has already been computed.
+	 * @return the bounds of the diagram
+	 */
+	private Rect ensureLayout()
+	{
+		if (!reuseLayout || !isLaidOut) {
+			root.resetDrawingInfoDown();
+		}
+		BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = scratch.createGraphics();
+		try {
+			// Returns the cached bounds if the layout is up to date
+			Rect rect = root.prepareDraw(g);
+			isLaidOut = true;
+			return rect;
+		}
+		finally {
+			g.dispose();
+		}
+	}
+
+	/** Streams the diagram (bounds {@code _rect}) as PNG with transparent background to {@code _file} */
+	private void writePNG(File _file, Rect rect) throws IOException
+	{
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(_file))) {
+			new PNGBandWriter(PNGBandWriter.DEFAULT_BAND_HEIGHT).write(out,
+					new Rectangle(0, 0, rect.right - rect.left + 1, rect.bottom - rect.top + 1),
+					new PNGBandWriter.BandRenderer() {
+						@Override
+						public void renderBand(Graphics2D _g, Rectangle _region) {
+							root.drawWithoutNotification(_g, new Point(0, 0), _region,
+									Element.DrawingContext.DC_STRUCTORIZER, false);
+						}
+					});
+		}
+	}
+
+	/** Draws the diagram onto the freehep vector graphics {@code _vg} and finishes the export */
+	private void writeVector(AbstractVectorGraphicsIO _vg)
+	{
+		if (GraphicsEnvironment.isHeadless()) {
+			// Otherwise e.g. the EMF header would ask the toolkit for the screen size
+			_vg.setDeviceIndependent(true);
+		}
+		_vg.startExport();
+		Canvas canvas = new Canvas(_vg);
+		canvas.setFont(Element.getFont());
+		Rect myrect = root.prepareDraw(canvas);
+		myrect.left += VECTOR_MARGIN;
+		myrect.top += VECTOR_MARGIN;
+		root.draw(canvas, myrect, null, false);
+		_vg.endExport();
+	}
+
+	/** @return the page size for vector formats (root size plus margins, see Diagram) */
+	private Dimension getVectorSize()
+	{
+		return new Dimension(root.width + 2 * VECTOR_MARGIN, root.height + 2 * VECTOR_MARGIN);
+	}
+
+}
@@ -55,6 +55,8 @@ package lu.fisch.structorizer.parsers;
  *      Kay Gürtzig     2018.07.17      Bugfix #562: Attribute "origin" must be set (overwritten) in any case
  *      Kay Gürtzig     2018.09.11      Refines #372: More sensible attributes for Roots from an arrz file.
  *      Kay Gürtzig     2019-03-17      Enh. #56: Import of new Try element implemented
+ *      Kay Gürtzig     2020-04-28      KGU#866: parse(InputStream, ZipEntry, File) for reading arrz entries directly
+ *      Kay Gürtzig     2020-04-29      KGU#867: Shared SAXParserFactory and one reused SAXParser per thread
  *
  ******************************************************************************************************
  *
@@ -79,6 +81,7 @@ import java.util.HashMap;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 
 import lu.fisch.utils.*;
 import lu.fisch.structorizer.elements.*;
@@ -91,6 +94,13 @@ public class NSDParser extends DefaultHandler {
 	// END KGU#484 2018-03-21
 
 	private static Schema nsdSchema = null;
+	
+	// START KGU#867 2020-04-29: Diagrams may be parsed concurrently (arrangements)
+	/** The factory for the non-validating SAX parsers (shared, access is to be synchronized) */
+	private static final SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+	/** The non-validating SAX parser of the current thread (being reset after each use) */
+	private static final ThreadLocal<SAXParser> saxParser = new ThreadLocal<SAXParser>();
+	// END KGU#867 2020-04-29
 
 	private Root root = null;
 	
@@ -948,6 +958,51 @@ public class NSDParser extends DefaultHandler {
 		// END KGU#363 2018-09-11
 		// END KGU#363 2017-05-21
 
+		// START KGU#866 2020-04-28: Shared with the parsing of archive entries
+		parseUnvalidated(new InputSource(_file.toURI().toASCIIString()), _file.toString());
+		
+		return root;
+	}
+	
+	/**
+	 * Parses an NSD file content provided by the stream {@code _is}, which is supposed to
+	 * belong to entry {@code _entry} of arrangement archive {@code _zipFile} (e.g. obtained
+	 * via {@link java.util.zip.ZipFile#getInputStream(ZipEntry)}), and returns the composed
+	 * {@link Root} (if possible), otherwise raises exceptions. Unlike {@link #parse(InputStream)},
+	 * this behaves like {@link #parse(File, File)} such that nothing has to be extracted.
+	 * The stream is not closed.
+	 * @param _is - the input stream of the archive entry
+	 * @param _entry - the archive entry (for the attribute inference)
+	 * @param _zipFile - the arrz file containing {@code _entry}
+	 * @return the built diagram
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public Root parse(InputStream _is, ZipEntry _entry, File _zipFile) throws SAXException, IOException
+	{
+		// setup a new root
+		root = new Root();
+		root.fetchAuthorDates(_entry, _zipFile);
+		
+		String sourceName = _zipFile.getAbsolutePath() + File.separator + _entry.getName();
+		InputSource source = new InputSource(_is);
+		source.setSystemId(new File(sourceName).toURI().toASCIIString());
+		parseUnvalidated(source, sourceName);
+		
+		return root;
+	}
+	
+	/**
+	 * Parses the NSD content from {@code _source} into the prepared {@link #root} without
+	 * validation.
+	 * @param _source - the XML source
+	 * @param _sourceName - description of the source for error messages
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	private void parseUnvalidated(InputSource _source, String _sourceName) throws SAXException, IOException
+	{
+		// END KGU#866 2020-04-28
 		// clear stacks
 		stack.clear();
 		ifStack.clear();
@@ -967,30 +1022,44 @@ public class NSDParser extends DefaultHandler {
 		// END KGU#362 2017-03-28
 		// END KGU#258 2016-09-26
 
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		// START KGU#400 2017-06-20: Issue #404
-		if (nsdSchema == null) {
-			URL schemaLocal = this.getClass().getResource("structorizer.xsd");
-			SchemaFactory sFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-			try {
-				nsdSchema = sFactory.newSchema(schemaLocal);
-			} catch (SAXException ex) {
-				logger.log(Level.WARNING, "structorizer.xsd", ex);
-			}
-		}
+		// START KGU#867 2020-04-29: The schema isn't used here, the factory is shared
+		//SAXParserFactory factory = SAXParserFactory.newInstance();
+		//// START KGU#400 2017-06-20: Issue #404
+		//if (nsdSchema == null) {
+		//	URL schemaLocal = this.getClass().getResource("structorizer.xsd");
+		//	SchemaFactory sFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		//	try {
+		//		nsdSchema = sFactory.newSchema(schemaLocal);
+		//	} catch (SAXException ex) {
+		//		logger.log(Level.WARNING, "structorizer.xsd", ex);
+		//	}
+		//}
+		// END KGU#867 2020-04-29
 		// FIXME: This doesn't work properly -maybe it requires full tag qualification
 		//factory.setNamespaceAware(true);
 //		factory.setValidating(true);
 //		factory.setSchema(nsdSchema);
 		// END KGU#400 2017-06-20
+		// START KGU#867 2020-04-29
+		SAXParser parser = null;
+		// END KGU#867 2020-04-29
 		try		
 		{
-			SAXParser saxParser = factory.newSAXParser();
-			saxParser.parse(_file/*.toURI().toString()*/, this);
+			// START KGU#867 2020-04-29: Reuse the SAX parser of this thread
+			//SAXParser saxParser = factory.newSAXParser();
+			parser = getSAXParser();
+			// END KGU#867 2020-04-29
+			// START KGU#866 2020-04-28
+			//saxParser.parse(_file/*.toURI().toString()*/, this);
+			parser.parse(_source, this);
+			// END KGU#866 2020-04-28
 		} 
 		catch(Exception e) 
 		{
-			String errorMessage = "Error parsing " + _file + ":";
+			// START KGU#866 2020-04-28
+			//String errorMessage = "Error parsing " + _file + ":";
+			String errorMessage = "Error parsing " + _sourceName + ":";
+			// END KGU#866 2020-04-28
 			logger.log(Level.SEVERE, errorMessage, e);
 			// START KGU#111 2015-12-16: Bugfix #63 re-throw the exception!
 			if (e instanceof SAXException)
@@ -1003,14 +1072,40 @@ public class NSDParser extends DefaultHandler {
 			}
 			// END KGU#111 2015-12-16
 		}
+		// START KGU#867 2020-04-29
+		finally {
+			if (parser != null) {
+				parser.reset();
+			}
+		}
+		// END KGU#867 2020-04-29
 		
 		// START KGU#137 2016-01-11: In theory no longer needed - should have been initialized so
 		//root.hasChanged=false;
 		// END KGU#137 2016-01-11
-		
-		return root;
 	}
 	
+	// START KGU#867 2020-04-29
+	/**
+	 * Provides the non-validating SAX parser of the current thread, creates it on the first
+	 * request of a thread.
+	 * @return the {@link SAXParser} (to be reset after use)
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	private static SAXParser getSAXParser() throws ParserConfigurationException, SAXException
+	{
+		SAXParser parser = saxParser.get();
+		if (parser == null) {
+			synchronized (saxFactory) {
+				parser = saxFactory.newSAXParser();
+			}
+			saxParser.set(parser);
+		}
+		return parser;
+	}
+	// END KGU#867 2020-04-29
+	
 	// START KGU#177 2016-04-14: Enh. 158 - we need an opportunity to parse an XML string as well
 	// (FIXME: This is just a copy-and-paste clone of Root parse(String _filename))
 	public Root parse(InputStream _is) throws SAXException, IOException
@@ -45,6 +45,8 @@ package lu.fisch.turtle;
  *      Kay Gürtzig     2018-07-30      Enh. #576: New procedure clear() added to the API
  *      Kay Gürtzig     2018-10-12      Issue #622: Modification apparently helping to overcome drawing contention
  *      Kay Gürtzig     2019-03-02      Issue #366: New methods isFocused() and requestFocus() in analogy to Window
+ *      Kay Gürtzig     2020-04-21      KGU#859: Segments held in a SegmentList, painting via a persistent back buffer
+ *      Kay Gürtzig     2020-04-23      KGU#861: Headless mode (no window, no delays), PNG and SVG export
  *
  ******************************************************************************************************
  *
@@ -55,28 +57,41 @@ package lu.fisch.turtle;
  *			{@code turtleBox.setAnimationDelay(0, true);}
  *      The API for employing applications is retrievable via {@link TurtleBox#getFunctionMap()} and
  *      {@link TurtleBox#getProcedureMap}.
+ *      For batch use (e.g. automatic checks of turtle drawings) a headless instance without window and
+ *      without animation delays may be created and the result be exported afterwards:
+ *      	{@code TurtleBox turtleBox = new TurtleBox(<width>, <height>, true);}
+ *			... (API calls) ...
+ *			{@code turtleBox.exportPNG(<file>, false);}
  *
  ******************************************************************************************************///
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Point;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.Vector;
 //import java.util.logging.Logger;
 
+import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 
 import lu.fisch.diagrcontrol.*;
-import lu.fisch.turtle.elements.Element;
-import lu.fisch.turtle.elements.Line;
-import lu.fisch.turtle.elements.Move;
+import lu.fisch.turtle.elements.SegmentList;
 
 /**
  * TurtleBox - a Turtle controller providing an interface usable e.g. by Structorizer
@@ -182,7 +197,24 @@ public class TurtleBox implements DelayableDiagramController
     // END KGU#303 2016-12-02
     private boolean turtleHidden = false;
     private int delay = 10;
-    private Vector<Element> elements = new Vector<Element>();
+    // START KGU#859 2020-04-21: Compact segment storage and incremental painting
+    //private Vector<Element> elements = new Vector<Element>();
+    /** The line segments drawn so far (moves without trace aren't recorded) */
+    private final SegmentList segments = new SegmentList();
+    /** Persistent image of the drawn segments, only new segments are added on painting */
+    private BufferedImage backBuffer = null;
+    /** Number of segments already drawn onto {@link #backBuffer} */
+    private int nBufferedSegments = 0;
+    /** {@link SegmentList#getGeneration()} and background colour {@link #backBuffer} was made for */
+    private int bufferGeneration = -1;
+    private Color bufferBackground = null;
+    // END KGU#859 2020-04-21
+    // START KGU#861 2020-04-23: Headless mode for batch runs
+    /** If true then no window is ever created and there are no animation delays */
+    private boolean headless = false;
+    /** Canvas size of a headless instance */
+    private int canvasWidth = 0, canvasHeight = 0;
+    // END KGU#861 2020-04-23
     private JPanel panel; 
 
     /**
@@ -211,6 +243,39 @@ public class TurtleBox implements DelayableDiagramController
         init(width,height);
     }
 
+    // START KGU#861 2020-04-23: Headless mode for batch runs
+    /**
+     * Creates a TurtleBox with a canvas of size {@code width} x {@code height}. If {@code headless}
+     * is true then no window will ever be created, the animation delay is ignored, and the drawing
+     * can only be obtained via {@link #renderImage(boolean)}, {@link #exportPNG(File, boolean)},
+     * or {@link #exportSVG(File)}. Otherwise it's equivalent to {@link #TurtleBox(int, int)}.
+     * @param width - width of the canvas (or the initial width of the frame) in pixels
+     * @param height - height of the canvas (or the initial height of the frame) in pixels
+     * @param headless - whether the instance is to work without GUI
+     */
+    public TurtleBox(int width, int height, boolean headless)
+    {
+        if (headless) {
+            this.headless = true;
+            canvasWidth = width;
+            canvasHeight = height;
+            home = new Point(width/2, height/2);
+            reinit();
+        }
+        else {
+            init(width, height);
+        }
+    }
+
+    /**
+     * @return true if this instance works without window (see {@link #TurtleBox(int, int, boolean)})
+     */
+    public boolean isHeadless()
+    {
+        return headless;
+    }
+    // END KGU#861 2020-04-23
+
     /* (non-Javadoc)
      * @see java.awt.Component#setName(java.lang.String)
      */
@@ -292,34 +357,30 @@ public class TurtleBox implements DelayableDiagramController
                 // set anti-aliasing rendering
                 ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_ANTIALIASING,RenderingHints.VALUE_ANTIALIAS_ON);
 
-                // clear background
-                // START KGU#303 2016-12-02: Enh. #302
-                //g.setColor(Color.WHITE);
-                g.setColor(backgroundColor);
-                // END KGU#303 2016-12-02
-                g.fillRect(0,0,getWidth(),getHeight());
-                // START KGU#303 2016-12-03: Enh. #302
-                //g.setColor(Color.BLACK);
-                g.setColor(defaultPenColor);
-                // END KGU#303 2016-12-03
-
-                // draw all elements
-                // START KGU#449 2017-10-28: The use of iterators may lead to lots of
-                //java.util.ConcurrentModificationException errors slowing down all.
-                // So we better avoid the iterator and loop against a snapshot size
-                // (which is safe because the elements Vector can't shrink during execution).
-                //for (Element ele : elements)
-                //{
-                //    ele.draw(g);
+                // START KGU#859 2020-04-21: Only new segments are drawn onto the back buffer
+                //// clear background
+                //// START KGU#303 2016-12-02: Enh. #302
+                ////g.setColor(Color.WHITE);
+                //g.setColor(backgroundColor);
+                //// END KGU#303 2016-12-02
+                //g.fillRect(0,0,getWidth(),getHeight());
+                //// START KGU#303 2016-12-03: Enh. #302
+                ////g.setColor(Color.BLACK);
+                //g.setColor(defaultPenColor);
+                //// END KGU#303 2016-12-03
+                //
+                //// draw all elements
+                //// START KGU#449 2017-10-28: The use of iterators may lead to lots of
+                ////java.util.ConcurrentModificationException errors slowing down all.
+                //// So we better avoid the iterator and loop against a snapshot size
+                //// (which is safe because the elements Vector can't shrink during execution).
+                //int nElements = elements.size();
+                //for (int i = 0; i < nElements; i++) {
+                //	elements.get(i).draw(g);
                 //}
-                int nElements = elements.size();
-                // START KGU#597 2018-10-12: Issue #622 - Monitoring drawing detention underMac
-                //logger.config("Painting " + nElements + " elements...");
-                // END KGU#597 2018-10-12
-                for (int i = 0; i < nElements; i++) {
-                	elements.get(i).draw(g);
-                }
-                // END KGU#449 2017-10-28
+                //// END KGU#449 2017-10-28
+                paintSegments(g, getWidth(), getHeight());
+                // END KGU#859 2020-04-21
 
                 if (!turtleHidden)
                 {
@@ -368,6 +429,14 @@ public class TurtleBox implements DelayableDiagramController
      */
     public void setVisible(boolean visible)
     {
+        // START KGU#861 2020-04-23: There is nothing to show but the state is reset as usual
+        if (headless) {
+            if (visible) {
+                reinit();
+            }
+            return;
+        }
+        // END KGU#861 2020-04-23
         // START KGU#480 2018-01-16: Enh. #490 - lazy initialization
         if (visible && frame == null) {
             init(300, 300);
@@ -393,13 +462,170 @@ public class TurtleBox implements DelayableDiagramController
         }
     }
     
+    // START KGU#859 2020-04-21: Incremental painting
+    /**
+     * Paints the segments onto {@code g} (for a canvas of size {@code width} x {@code height})
+     * by copying the back buffer image after having added the new segments to it. The back
+     * buffer is rebuilt from scratch after a resize, a scale change, a background colour change
+     * or a wipe.
+     * @param g - the target graphics
+     * @param width - canvas width
+     * @param height - canvas height
+     */
+    private void paintSegments(Graphics2D g, int width, int height)
+    {
+        // The buffer is held in device resolution (to avoid blurring on HiDPI displays)
+        AffineTransform trans = g.getTransform();
+        int devWidth = (int)Math.ceil(width * trans.getScaleX());
+        int devHeight = (int)Math.ceil(height * trans.getScaleY());
+        if (devWidth <= 0 || devHeight <= 0) {
+            return;
+        }
+        int generation = segments.getGeneration();
+        if (backBuffer == null || backBuffer.getWidth() != devWidth || backBuffer.getHeight() != devHeight
+                || generation != bufferGeneration || !backgroundColor.equals(bufferBackground)) {
+            backBuffer = new BufferedImage(devWidth, devHeight, BufferedImage.TYPE_INT_RGB);
+            nBufferedSegments = 0;
+            bufferGeneration = generation;
+            bufferBackground = backgroundColor;
+            Graphics2D gBuf = backBuffer.createGraphics();
+            gBuf.setColor(backgroundColor);
+            gBuf.fillRect(0, 0, devWidth, devHeight);
+            gBuf.dispose();
+        }
+        int nSegments = segments.size();
+        if (nSegments > nBufferedSegments) {
+            Graphics2D gBuf = backBuffer.createGraphics();
+            gBuf.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            gBuf.scale(trans.getScaleX(), trans.getScaleY());
+            nBufferedSegments = segments.draw(gBuf, nBufferedSegments, nSegments);
+            gBuf.dispose();
+        }
+        Graphics2D gDev = (Graphics2D)g.create();
+        gDev.setTransform(AffineTransform.getTranslateInstance(trans.getTranslateX(), trans.getTranslateY()));
+        gDev.drawImage(backBuffer, 0, 0, null);
+        gDev.dispose();
+    }
+    // END KGU#859 2020-04-21
+
+    // START KGU#861 2020-04-23: Export of the drawing (also for headless instances)
+    /**
+     * @return the size of the drawing area, i.e. the canvas size of a headless instance or
+     * the current panel size (0 x 0 if no window has been created)
+     */
+    public Dimension getCanvasSize()
+    {
+        if (headless) {
+            return new Dimension(canvasWidth, canvasHeight);
+        }
+        else if (panel != null) {
+            return panel.getSize();
+        }
+        return new Dimension(0, 0);
+    }
+
+    /**
+     * Renders the current drawing (background and all segments) into a new image of the
+     * canvas size (see {@link #getCanvasSize()}).
+     * @param withTurtle - whether the turtle icon is to be drawn as well (unless hidden)
+     * @return the image or null if the canvas is empty
+     */
+    public BufferedImage renderImage(boolean withTurtle)
+    {
+        Dimension size = getCanvasSize();
+        if (size.width <= 0 || size.height <= 0) {
+            return null;
+        }
+        BufferedImage img = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(backgroundColor);
+            g.fillRect(0, 0, size.width, size.height);
+            segments.draw(g, 0, Integer.MAX_VALUE);
+            if (withTurtle && !turtleHidden) {
+                double x = posX - (image.getWidth(null)/2);
+                double y = posY - (image.getHeight(null)/2);
+                g.rotate((270-angle)/180*Math.PI, posX, posY);
+                g.drawImage(image, (int)Math.round(x), (int)Math.round(y), null);
+            }
+        }
+        finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * Writes the current drawing as PNG image of the canvas size to the given {@code file}.
+     * @param file - the target file
+     * @param withTurtle - whether the turtle icon is to be drawn as well (unless hidden)
+     * @return true if the image could be written, false if the canvas is empty
+     * @throws IOException if writing failed
+     * @see #renderImage(boolean)
+     */
+    public boolean exportPNG(File file, boolean withTurtle) throws IOException
+    {
+        BufferedImage img = renderImage(withTurtle);
+        return img != null && ImageIO.write(img, "png", file);
+    }
+
+    /**
+     * Writes the current drawing (background and segments, without turtle icon) as SVG
+     * file with one {@code line} element per segment to the given {@code file}.
+     * @param file - the target file
+     * @throws IOException if writing failed
+     */
+    public void exportSVG(File file) throws IOException
+    {
+        Dimension size = getCanvasSize();
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" width=\"" + size.width
+                    + "\" height=\"" + size.height + "\" viewBox=\"0 0 " + size.width + " " + size.height + "\">\n");
+            out.write("<rect width=\"100%\" height=\"100%\" fill=\"" + toSVGColor(backgroundColor.getRGB()) + "\"/>\n");
+            out.write("<g stroke-linecap=\"round\" fill=\"none\">\n");
+            final IOException[] trouble = new IOException[]{null};
+            segments.forEach(new SegmentList.SegmentVisitor() {
+                @Override
+                public void visitSegment(int x1, int y1, int x2, int y2, int argb) {
+                    if (trouble[0] != null) {
+                        return;
+                    }
+                    try {
+                        out.write("<line x1=\"" + x1 + "\" y1=\"" + y1 + "\" x2=\"" + x2 + "\" y2=\"" + y2
+                                + "\" stroke=\"" + toSVGColor(argb) + "\"/>\n");
+                    }
+                    catch (IOException ex) {
+                        trouble[0] = ex;
+                    }
+                }
+            });
+            if (trouble[0] != null) {
+                throw trouble[0];
+            }
+            out.write("</g>\n</svg>\n");
+        }
+    }
+
+    /** @return the SVG colour specification ({@code #rrggbb}) for the ARGB value {@code argb} */
+    private static String toSVGColor(int argb)
+    {
+        return String.format("#%06x", argb & 0xFFFFFF);
+    }
+    // END KGU#861 2020-04-23
+
     // START KGU#303 2016-12-03: Issue #302
     /**
      * Undoes all possible impacts of a previous main diagram execution  
      */
     private void reinit()
     {
-        elements.clear();
+        // START KGU#859 2020-04-21
+        //elements.clear();
+        segments.clear();
+        // END KGU#859 2020-04-21
         angle = -90;
         backgroundColor = Color.WHITE;
         defaultPenColor = Color.BLACK;
@@ -411,6 +637,11 @@ public class TurtleBox implements DelayableDiagramController
     
     private void delay()
     {
+        // START KGU#861 2020-04-23: Nothing to animate in headless mode
+        if (headless) {
+            return;
+        }
+        // END KGU#861 2020-04-23
         //panel.repaint();
         // force repaint (not recommended!)
         // START KGU#480 2018-01-16: Enh. #490 - lazy initialization
@@ -442,14 +673,20 @@ public class TurtleBox implements DelayableDiagramController
     {
         Point newPos = new Point(pos.x-(int) Math.round(Math.cos(angle/180*Math.PI)*pixels),
                                  pos.y+(int) Math.round(Math.sin(angle/180*Math.PI)*pixels));
+        // START KGU#859 2020-04-21: Compact segment storage, moves aren't recorded
+        //if (isPenDown)
+        //{
+        //    elements.add(new Line(pos,newPos,penColor));
+        //}
+        //else
+        //{
+        //    elements.add(new Move(pos,newPos));
+        //}
         if (isPenDown)
         {
-            elements.add(new Line(pos,newPos,penColor));
-        }
-        else
-        {
-            elements.add(new Move(pos,newPos));
+            segments.add(pos.x, pos.y, newPos.x, newPos.y, penColor);
         }
+        // END KGU#859 2020-04-21
         //System.out.println("from: ("+pos.x+","+pos.y+") => to: ("+newPos.x+","+newPos.y+")");
         setPos(newPos);
         delay();
@@ -465,14 +702,20 @@ public class TurtleBox implements DelayableDiagramController
         double newX = posX - Math.cos(angle/180*Math.PI) * pixels;
         double newY = posY + Math.sin(angle/180*Math.PI) * pixels;
         Point newPos = new Point((int)Math.round(newX), (int)Math.round(newY));
+        // START KGU#859 2020-04-21: Compact segment storage, moves aren't recorded
+        //if (isPenDown)
+        //{
+        //    elements.add(new Line(pos, newPos, penColor));
+        //}
+        //else
+        //{
+        //    elements.add(new Move(pos, newPos));
+        //}
         if (isPenDown)
         {
-            elements.add(new Line(pos, newPos, penColor));
-        }
-        else
-        {
-            elements.add(new Move(pos, newPos));
+            segments.add(pos.x, pos.y, newPos.x, newPos.y, penColor);
         }
+        // END KGU#859 2020-04-21
         //System.out.println("from: ("+pos.x+","+pos.y+") => to: ("+newPos.x+","+newPos.y+")");
         setPos(newX, newY);
         delay();
@@ -546,12 +789,20 @@ public class TurtleBox implements DelayableDiagramController
     public void setBackgroundColor(Color bgColor)
     {
         // START KGU#480 2018-01-16: Enh. #490 - lazy initialization
-        if (frame == null) {
+        // START KGU#861 2020-04-23: Not in headless mode
+        //if (frame == null) {
+        if (frame == null && !headless) {
+        // END KGU#861 2020-04-23
             init(300, 300);
-    	}
+        }
         // END KGU#480 2018-01-16
         backgroundColor = bgColor;
-        panel.repaint();
+        // START KGU#861 2020-04-23
+        //panel.repaint();
+        if (panel != null) {
+            panel.repaint();
+        }
+        // END KGU#861 2020-04-23
     }
 
     /** Delayed API method to set the background colour from RGB values
@@ -573,12 +824,20 @@ public class TurtleBox implements DelayableDiagramController
     public void setPenColor(Color penColor)
     {
         // START KGU#480 2018-01-16: Enh. #490 - lazy initialization
-        if (frame == null) {
+        // START KGU#861 2020-04-23: Not in headless mode
+        //if (frame == null) {
+        if (frame == null && !headless) {
+        // END KGU#861 2020-04-23
             init(300, 300);
         }
         // END KGU#480 2018-01-16
         defaultPenColor = penColor;
-        panel.repaint();
+        // START KGU#861 2020-04-23
+        //panel.repaint();
+        if (panel != null) {
+            panel.repaint();
+        }
+        // END KGU#861 2020-04-23
     }
 
     /**
@@ -661,7 +920,9 @@ public class TurtleBox implements DelayableDiagramController
     public void gotoXY(Integer x, Integer y)
     {
         Point newPos = new Point(x,y);
-        elements.add(new Move(pos,newPos));
+        // START KGU#859 2020-04-21: Moves aren't recorded anymore
+        //elements.add(new Move(pos,newPos));
+        // END KGU#859 2020-04-21
         setPos(newPos);
         delay();
    }
@@ -915,7 +1176,10 @@ public class TurtleBox implements DelayableDiagramController
      */
     public void clear()
     {
-    	this.elements.clear();
+    	// START KGU#859 2020-04-21
+    	//this.elements.clear();
+    	this.segments.clear();
+    	// END KGU#859 2020-04-21
     	this.delay();
     }
     // END KGU#566 2018-07-30
@@ -35,6 +35,8 @@ package lu.fisch.turtle.adapters;
  *                                      Turtleizer functionality by Java code e.g. exported from Structorizer)
  *      Kay Gürtzig     2018.01.21      Enh. #441, #443: Retrieval methods for API put deprecated
  *      Kay Gürtzig     2018.07.30      Enh. #576: New procedure clear() added to the API
+ *      Kay Gürtzig     2020.05.07      KGU#861: Headless TurtleBox in a headless environment or if system
+ *                                      property "turtleizer.output" is set, export of the drawing on exit
  *
  ******************************************************************************************************
  *
@@ -42,11 +44,19 @@ package lu.fisch.turtle.adapters;
  *      This adapter class works with static methods and is a kind of proxy for {@link TurtleBox}.
  *      The API for employing applications is retrievable via {@link TurtleBox#getFunctionMap()} and
  *      {@link TurtleBox#getProcedureMap}.
+ *      For batch runs (e.g. the automatic checking of turtle drawings produced by exported programs),
+ *      the application may be started with system property "turtleizer.output" specifying a PNG or
+ *      SVG file:
+ *      	{@code java -Djava.awt.headless=true -Dturtleizer.output=drawing.png ... <main class>}
+ *      The TurtleBox is then created without window and animation delays, and the drawing is written
+ *      to the specified file when the application terminates.
  *
  ******************************************************************************************************///
 
 import java.awt.Color;
-
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 
 import lu.fisch.turtle.TurtleBox;
@@ -64,6 +74,12 @@ import lu.fisch.turtle.TurtleBox;
 public class Turtleizer {
 	
 	private static TurtleBox turtleBox = null;
+	// START KGU#861 2020-05-07: Headless batch runs
+	/** Name of the system property specifying a PNG or SVG file to export the drawing to on exit */
+	public static final String OUTPUT_PROPERTY = "turtleizer.output";
+	/** Canvas size of the TurtleBox in either dimension */
+	private static final int CANVAS_SIZE = 500;
+	// END KGU#861 2020-05-07
 	/**
 	 * Maps different Turtleizer function names (in lower-case) to the respective adapter
 	 * method names, which are not of course case-ignorant. This map is needed for 
@@ -100,18 +116,60 @@ public class Turtleizer {
 	/**
 	 * Returns a (heavy-weight) as-if singleton instance of class {@link TurtleBox} (creates it if it
 	 * hadn't been there).<br/>
-	 * Note: For mere API retrieval use a light-weight instance to be obtained via {@link TurtleBox#TurtleBox()}.
+	 * Note: For mere API retrieval use a light-weight instance to be obtained via {@link TurtleBox#TurtleBox()}.<br/>
+	 * In a headless environment or if system property {@link #OUTPUT_PROPERTY} is set, the instance will
+	 * be headless, and the drawing will be exported to the file specified by the property on exit.
 	 */
 	private static TurtleBox getTurtleBox()
 	{
 		if (turtleBox == null) {
-			turtleBox = new TurtleBox(500, 500);
+			// START KGU#861 2020-05-07: Headless instance for batch runs
+			//turtleBox = new TurtleBox(500, 500);
+			final String output = System.getProperty(OUTPUT_PROPERTY);
+			if (output != null || GraphicsEnvironment.isHeadless()) {
+				turtleBox = new TurtleBox(CANVAS_SIZE, CANVAS_SIZE, true);
+				if (output != null) {
+					Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+						@Override
+						public void run() {
+							exportDrawing(new File(output));
+						}
+					}));
+				}
+			}
+			else {
+				turtleBox = new TurtleBox(CANVAS_SIZE, CANVAS_SIZE);
+			}
+			// END KGU#861 2020-05-07
 			turtleBox.setVisible(true);
 			turtleBox.setAnimationDelay(0, true);
 		}
 		return turtleBox;
 	}
 	
+	// START KGU#861 2020-05-07
+	/**
+	 * Writes the current drawing to {@code file}, as SVG if the file name ends with ".svg",
+	 * otherwise as PNG image (including the turtle unless hidden). Errors are reported on
+	 * the standard error stream.
+	 * @param file - the target file
+	 */
+	private static void exportDrawing(File file)
+	{
+		try {
+			if (file.getName().toLowerCase().endsWith(".svg")) {
+				turtleBox.exportSVG(file);
+			}
+			else if (!turtleBox.exportPNG(file, true)) {
+				System.err.println("Turtleizer: Drawing couldn't be exported to " + file);
+			}
+		}
+		catch (IOException ex) {
+			System.err.println("Turtleizer: Drawing couldn't be exported to " + file + ": " + ex);
+		}
+	}
+	// END KGU#861 2020-05-07
+	
 	/**
 	 * Checks whether a routine with the {@code candidateName} is supported by Turtleizer, and if so
 	 * returns the qualified method name, otherwise null. Note that {@code candidateName} will be
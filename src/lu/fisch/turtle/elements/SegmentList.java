@@ -0,0 +1,182 @@
+/*
+    Turtlebox
+
+    Copyright (C) 2009  Bob Fisch
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any
+    later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package lu.fisch.turtle.elements;
+
+/******************************************************************************************************
+ *
+ *      Author:         Kay Gürtzig
+ *
+ *      Description:    Compact store of the line segments drawn by the turtle.
+ *
+ ******************************************************************************************************
+ *
+ *      Revision List
+ *
+ *      Author          Date            Description
+ *      ------          ----            -----------
+ *      Kay Gürtzig     2020-04-21      First Issue (KGU#859)
+ *      Kay Gürtzig     2020-04-23      KGU#861: Method forEach() and interface SegmentVisitor added for exports
+ *
+ ******************************************************************************************************
+ *
+ *      Comment:
+ *      2020-04-21 (Kay Gürtzig)
+ *      - Replaces the Vector of Line and Move objects in TurtleBox: the coordinates are held in one int
+ *        array (four entries per segment), the colours (ARGB) in another one. Moves without trace aren't
+ *        stored at all since they don't leave anything to draw.
+ *      - Segments are only appended (by the executing thread) while the painting thread reads. Growing
+ *        or clearing replaces the arrays, so a reader working on a snapshot of arrays and size obtained
+ *        via {@link #draw(Graphics2D, int, int)} is never disturbed.
+ *
+ ******************************************************************************************************///
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.Arrays;
+
+/**
+ * Holds the line segments of a turtle drawing in primitive arrays and draws ranges of them.
+ * @author Kay Gürtzig
+ */
+public class SegmentList {
+
+    // START KGU#861 2020-04-23: Access for exports
+    /**
+     * Receives the segments on {@link SegmentList#forEach(SegmentVisitor)}
+     */
+    public interface SegmentVisitor {
+        /**
+         * Is called for a line segment from ({@code x1}, {@code y1}) to ({@code x2}, {@code y2})
+         * @param argb - the colour of the segment as ARGB value
+         */
+        public void visitSegment(int x1, int y1, int x2, int y2, int argb);
+    }
+    // END KGU#861 2020-04-23
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Coordinates x1, y1, x2, y2 of the segments */
+    private int[] coords = new int[4 * INITIAL_CAPACITY];
+    /** ARGB colours of the segments */
+    private int[] colors = new int[INITIAL_CAPACITY];
+    /** Number of stored segments */
+    private int size = 0;
+    /** Incremented on every {@link #clear()} such that observers may detect it */
+    private int generation = 0;
+
+    /**
+     * Appends a line segment from ({@code x1}, {@code y1}) to ({@code x2}, {@code y2})
+     * in colour {@code color}.
+     */
+    public synchronized void add(int x1, int y1, int x2, int y2, Color color)
+    {
+        if (size == colors.length) {
+            int newCapacity = 2 * colors.length;
+            coords = Arrays.copyOf(coords, 4 * newCapacity);
+            colors = Arrays.copyOf(colors, newCapacity);
+        }
+        int ix = 4 * size;
+        coords[ix++] = x1;
+        coords[ix++] = y1;
+        coords[ix++] = x2;
+        coords[ix] = y2;
+        colors[size++] = color.getRGB();
+    }
+
+    /** @return the number of stored segments */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return a number changed on every {@link #clear()}, so segment indices obtained with
+     * a different generation are invalid
+     */
+    public synchronized int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Removes all segments.
+     */
+    public synchronized void clear()
+    {
+        coords = new int[4 * INITIAL_CAPACITY];
+        colors = new int[INITIAL_CAPACITY];
+        size = 0;
+        generation++;
+    }
+
+    /**
+     * Draws the segments with indices {@code from} (inclusive) to {@code to} (exclusive),
+     * as far as they exist, onto {@code graphics}.
+     * @param graphics - the target graphics
+     * @param from - index of the first segment to draw
+     * @param to - index beyond the last segment to draw
+     * @return the index beyond the last drawn segment
+     */
+    public int draw(Graphics2D graphics, int from, int to)
+    {
+        int[] xys;
+        int[] argbs;
+        synchronized (this) {
+            xys = coords;
+            argbs = colors;
+            to = Math.min(to, size);
+        }
+        Color color = null;
+        for (int i = from; i < to; i++) {
+            if (color == null || color.getRGB() != argbs[i]) {
+                color = new Color(argbs[i], true);
+                graphics.setColor(color);
+            }
+            int ix = 4 * i;
+            graphics.drawLine(xys[ix], xys[ix+1], xys[ix+2], xys[ix+3]);
+        }
+        return Math.max(from, to);
+    }
+
+    // START KGU#861 2020-04-23: Access for exports
+    /**
+     * Passes all segments present at the time of the call in drawing order to {@code visitor}.
+     * @param visitor - the {@link SegmentVisitor}
+     * @return the number of visited segments
+     */
+    public int forEach(SegmentVisitor visitor)
+    {
+        int[] xys;
+        int[] argbs;
+        int count;
+        synchronized (this) {
+            xys = coords;
+            argbs = colors;
+            count = size;
+        }
+        for (int i = 0; i < count; i++) {
+            int ix = 4 * i;
+            visitor.visitSegment(xys[ix], xys[ix+1], xys[ix+2], xys[ix+3], argbs[i]);
+        }
+        return count;
+    }
+    // END KGU#861 2020-04-23
+
+}